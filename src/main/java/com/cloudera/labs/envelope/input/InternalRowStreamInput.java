@@ -0,0 +1,44 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.streaming.api.java.JavaDStream;
+
+/**
+ * Stream inputs that can read their stream source directly into Spark SQL internal rows.
+ * Envelope turns the micro-batches of internal rows into DataFrames without converting each
+ * row from a Spark SQL Row, so for high rates of wide rows this saves a significant part of
+ * the time of each micro-batch.
+ */
+public interface InternalRowStreamInput extends StreamInput {
+
+  /**
+   * @return True if the input can currently provide internal rows, for example because its
+   * translator can translate into internal rows. If false, Envelope uses #getDStream instead.
+   * @throws Exception
+   */
+  boolean providesInternalRows() throws Exception;
+
+  /**
+   * Read the external stream source into internal rows.
+   * @return The Spark distributed stream of Spark SQL internal rows, which must have the schema
+   * of the input.
+   * @throws Exception
+   */
+  JavaDStream<InternalRow> getInternalRowDStream() throws Exception;
+
+}
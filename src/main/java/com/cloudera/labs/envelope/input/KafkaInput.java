@@ -15,11 +15,14 @@
  */
 package com.cloudera.labs.envelope.input;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.streaming.Duration;
 import org.apache.spark.streaming.api.java.JavaDStream;
@@ -27,7 +30,9 @@ import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.apache.spark.streaming.kafka.KafkaUtils;
 
-import com.cloudera.labs.envelope.input.translate.TranslateFunction;
+import com.cloudera.labs.envelope.input.translate.InternalRowTranslator;
+import com.cloudera.labs.envelope.input.translate.TranslateInternalRowPartitionFunction;
+import com.cloudera.labs.envelope.input.translate.TranslatePartitionFunction;
 import com.cloudera.labs.envelope.input.translate.TranslatorFactory;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.google.common.collect.Maps;
@@ -36,8 +41,9 @@ import com.typesafe.config.Config;
 
 import kafka.serializer.DefaultDecoder;
 import kafka.serializer.StringDecoder;
+import scala.Tuple2;
 
-public class KafkaInput implements StreamInput {
+public class KafkaInput implements InternalRowStreamInput {
 
   public static final String BROKERS_CONFIG_NAME = "brokers";
   public static final String TOPICS_CONFIG_NAME = "topics";
@@ -55,6 +61,38 @@ public class KafkaInput implements StreamInput {
 
   @Override
   public JavaDStream<Row> getDStream() throws Exception {
+    Config translatorConfig = config.getConfig("translator");
+
+    return translate(new TranslatePartitionFunction<String>(translatorConfig),
+        new TranslatePartitionFunction<byte[]>(translatorConfig));
+  }
+
+  @Override
+  public boolean providesInternalRows() throws Exception {
+    Config translatorConfig = config.getConfig("translator");
+
+    return TranslatorFactory.create(translatorConfig) instanceof InternalRowTranslator;
+  }
+
+  @Override
+  public JavaDStream<InternalRow> getInternalRowDStream() throws Exception {
+    Config translatorConfig = config.getConfig("translator");
+
+    return translate(new TranslateInternalRowPartitionFunction<String>(translatorConfig),
+        new TranslateInternalRowPartitionFunction<byte[]>(translatorConfig));
+  }
+
+  @Override
+  public StructType getSchema() throws Exception {
+    Config translatorConfig = config.getConfig("translator");
+    return TranslatorFactory.create(translatorConfig).getSchema();
+  }
+
+  // Read the Kafka topics with the encoding of the input and translate each partition with the
+  // function for that encoding
+  private <R> JavaDStream<R> translate(FlatMapFunction<Iterator<Tuple2<String, String>>, R> stringFunction,
+                                       FlatMapFunction<Iterator<Tuple2<byte[], byte[]>>, R> byteArrayFunction)
+  {
     Map<String, String> kafkaParams = Maps.newHashMap();
 
     String brokers = config.getString(BROKERS_CONFIG_NAME);
@@ -67,22 +105,20 @@ public class KafkaInput implements StreamInput {
 
     addCustomParams(kafkaParams);
 
-    Config translatorConfig = config.getConfig("translator");
-
     JavaStreamingContext jssc = Contexts.getJavaStreamingContext();
-    JavaDStream<Row> dStream = null;
+    JavaDStream<R> dStream = null;
 
     if (encoding.equals("string")) {
       JavaPairDStream<String, String> stringDStream = KafkaUtils.createDirectStream(
           jssc, String.class, String.class, StringDecoder.class, StringDecoder.class, kafkaParams, topicsSet);
 
-      dStream = stringDStream.flatMap(new TranslateFunction<String>(translatorConfig));
+      dStream = stringDStream.mapPartitions(stringFunction);
     }
     else if (encoding.equals("bytearray")) {
       JavaPairDStream<byte[], byte[]> byteArrayDStream = KafkaUtils.createDirectStream(
           jssc, byte[].class, byte[].class, DefaultDecoder.class, DefaultDecoder.class, kafkaParams, topicsSet);
 
-      dStream = byteArrayDStream.flatMap(new TranslateFunction<byte[]>(translatorConfig));
+      dStream = byteArrayDStream.mapPartitions(byteArrayFunction);
     }
     else {
       throw new RuntimeException("Invalid Kafka input encoding type. Valid types are 'string' and 'bytearray'.");
@@ -97,12 +133,6 @@ public class KafkaInput implements StreamInput {
     return dStream;
   }
 
-  @Override
-  public StructType getSchema() throws Exception {
-    Config translatorConfig = config.getConfig("translator");
-    return TranslatorFactory.create(translatorConfig).getSchema();
-  }
-
   private void addCustomParams(Map<String, String> params) {
     for (String propertyName : config.root().keySet()) {
       if (propertyName.startsWith(PARAMETER_CONFIG_PREFIX)) {
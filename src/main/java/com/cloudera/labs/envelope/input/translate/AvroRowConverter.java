@@ -0,0 +1,313 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Converts Avro records of one schema into Spark SQL Rows. The conversion for each field is
+ * resolved once when the converter is created, and the fields of each record are then accessed
+ * by position rather than by name. Nested records are converted to nested Rows, arrays to lists
+ * and maps to maps with string keys. A union of null and one other type is converted as that
+ * type, and any other union is converted to a struct with one field per member, named
+ * 'member0', 'member1', and so on, of which only the field of the actual member is set.
+ * The converted values do not share any objects with the record, so the record can be reused.
+ */
+class AvroRowConverter {
+
+  private final RecordConverter recordConverter;
+
+  AvroRowConverter(Schema recordSchema) {
+    if (recordSchema.getType() != Type.RECORD) {
+      throw new RuntimeException("Avro schema must be a record: " + recordSchema);
+    }
+
+    recordConverter = new RecordConverter(recordSchema);
+  }
+
+  /**
+   * @return The Spark SQL schema of the converted rows.
+   */
+  StructType getSchema() {
+    return (StructType)recordConverter.getDataType();
+  }
+
+  Row toRow(IndexedRecord record) {
+    return recordConverter.convert(record);
+  }
+
+  private static Converter converterFor(Schema schema) {
+    switch (schema.getType()) {
+      case RECORD:
+        return new RecordConverter(schema);
+      case ARRAY:
+        return new ArrayConverter(schema);
+      case MAP:
+        return new MapConverter(schema);
+      case UNION:
+        return unionConverterFor(schema);
+      case STRING:
+      case ENUM:
+        return new StringConverter();
+      case BYTES:
+        return new BytesConverter();
+      case FIXED:
+        return new FixedConverter();
+      case INT:
+        return new PrimitiveConverter(DataTypes.IntegerType);
+      case LONG:
+        return new PrimitiveConverter(DataTypes.LongType);
+      case FLOAT:
+        return new PrimitiveConverter(DataTypes.FloatType);
+      case DOUBLE:
+        return new PrimitiveConverter(DataTypes.DoubleType);
+      case BOOLEAN:
+        return new PrimitiveConverter(DataTypes.BooleanType);
+      case NULL:
+        return new PrimitiveConverter(DataTypes.NullType);
+      default:
+        throw new RuntimeException("Unsupported Avro type: " + schema.getType());
+    }
+  }
+
+  private static Converter unionConverterFor(Schema schema) {
+    List<Schema> nonNullTypes = Lists.newArrayList();
+    for (Schema type : schema.getTypes()) {
+      if (type.getType() != Type.NULL) {
+        nonNullTypes.add(type);
+      }
+    }
+
+    if (nonNullTypes.size() == 1) {
+      return converterFor(nonNullTypes.get(0));
+    }
+
+    return new UnionConverter(schema);
+  }
+
+  // Converters are only given non-null values
+  private static abstract class Converter {
+    abstract DataType getDataType();
+
+    abstract Object convert(Object value);
+  }
+
+  private static class RecordConverter extends Converter {
+    private final Converter[] fieldConverters;
+    private final StructType schema;
+
+    RecordConverter(Schema recordSchema) {
+      List<Schema.Field> fields = recordSchema.getFields();
+      List<StructField> structFields = Lists.newArrayListWithCapacity(fields.size());
+      fieldConverters = new Converter[fields.size()];
+
+      for (int i = 0; i < fields.size(); i++) {
+        Schema.Field field = fields.get(i);
+
+        fieldConverters[i] = converterFor(field.schema());
+        structFields.add(DataTypes.createStructField(field.name(), fieldConverters[i].getDataType(), true));
+      }
+
+      schema = DataTypes.createStructType(structFields);
+    }
+
+    @Override
+    DataType getDataType() {
+      return schema;
+    }
+
+    @Override
+    Row convert(Object value) {
+      IndexedRecord record = (IndexedRecord)value;
+      Object[] values = new Object[fieldConverters.length];
+
+      for (int i = 0; i < values.length; i++) {
+        Object fieldValue = record.get(i);
+
+        if (fieldValue != null) {
+          values[i] = fieldConverters[i].convert(fieldValue);
+        }
+      }
+
+      return RowFactory.create(values);
+    }
+  }
+
+  private static class ArrayConverter extends Converter {
+    private final Converter elementConverter;
+
+    ArrayConverter(Schema arraySchema) {
+      elementConverter = converterFor(arraySchema.getElementType());
+    }
+
+    @Override
+    DataType getDataType() {
+      return DataTypes.createArrayType(elementConverter.getDataType(), true);
+    }
+
+    @Override
+    Object convert(Object value) {
+      Collection<?> elements = (Collection<?>)value;
+      List<Object> converted = Lists.newArrayListWithCapacity(elements.size());
+
+      for (Object element : elements) {
+        converted.add(element == null ? null : elementConverter.convert(element));
+      }
+
+      return converted;
+    }
+  }
+
+  private static class MapConverter extends Converter {
+    private final Converter valueConverter;
+
+    MapConverter(Schema mapSchema) {
+      valueConverter = converterFor(mapSchema.getValueType());
+    }
+
+    @Override
+    DataType getDataType() {
+      return DataTypes.createMapType(DataTypes.StringType, valueConverter.getDataType(), true);
+    }
+
+    @Override
+    Object convert(Object value) {
+      Map<?, ?> entries = (Map<?, ?>)value;
+      Map<String, Object> converted = Maps.newHashMapWithExpectedSize(entries.size());
+
+      for (Map.Entry<?, ?> entry : entries.entrySet()) {
+        Object entryValue = entry.getValue();
+        converted.put(entry.getKey().toString(), entryValue == null ? null : valueConverter.convert(entryValue));
+      }
+
+      return converted;
+    }
+  }
+
+  private static class UnionConverter extends Converter {
+    private final Schema unionSchema;
+    private final Converter[] memberConverters;
+    private final StructType schema;
+
+    UnionConverter(Schema unionSchema) {
+      this.unionSchema = unionSchema;
+
+      List<Schema> members = unionSchema.getTypes();
+      List<StructField> structFields = Lists.newArrayListWithCapacity(members.size());
+      memberConverters = new Converter[members.size()];
+
+      for (int i = 0; i < members.size(); i++) {
+        memberConverters[i] = converterFor(members.get(i));
+        structFields.add(DataTypes.createStructField("member" + i, memberConverters[i].getDataType(), true));
+      }
+
+      schema = DataTypes.createStructType(structFields);
+    }
+
+    @Override
+    DataType getDataType() {
+      return schema;
+    }
+
+    @Override
+    Object convert(Object value) {
+      int member = GenericData.get().resolveUnion(unionSchema, value);
+      Object[] values = new Object[memberConverters.length];
+      values[member] = memberConverters[member].convert(value);
+
+      return RowFactory.create(values);
+    }
+  }
+
+  // Avro returns Utf8s for strings, which Spark SQL doesn't know how to use, and the Utf8s of a
+  // reused record are overwritten by the next record
+  private static class StringConverter extends Converter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.StringType;
+    }
+
+    @Override
+    Object convert(Object value) {
+      return value.toString();
+    }
+  }
+
+  private static class BytesConverter extends Converter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.BinaryType;
+    }
+
+    @Override
+    Object convert(Object value) {
+      ByteBuffer buffer = ((ByteBuffer)value).duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+
+      return bytes;
+    }
+  }
+
+  private static class FixedConverter extends Converter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.BinaryType;
+    }
+
+    @Override
+    Object convert(Object value) {
+      return ((GenericFixed)value).bytes().clone();
+    }
+  }
+
+  private static class PrimitiveConverter extends Converter {
+    private final DataType dataType;
+
+    PrimitiveConverter(DataType dataType) {
+      this.dataType = dataType;
+    }
+
+    @Override
+    DataType getDataType() {
+      return dataType;
+    }
+
+    @Override
+    Object convert(Object value) {
+      return value;
+    }
+  }
+
+}
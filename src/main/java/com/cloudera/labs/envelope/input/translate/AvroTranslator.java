@@ -15,53 +15,110 @@
  */
 package com.cloudera.labs.envelope.input.translate;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.avro.Schema;
-import org.apache.avro.Schema.Field;
-import org.apache.avro.Schema.Type;
 import org.apache.avro.SchemaBuilder;
 import org.apache.avro.SchemaBuilder.FieldAssembler;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.Decoder;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.types.StructType;
 
-import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
 
 /**
- * A translator implementation for binary Apache Avro generic record messages.
+ * A translator implementation for binary Apache Avro generic record messages. The schema of
+ * the records is either given by an Avro schema file, which can contain nested records,
+ * arrays, maps and unions, or built from a flat list of field names and types.
+ * <p>
+ * If a schema store directory is given then each message is expected to start with the Avro
+ * single object encoding header, which is the two bytes 0xC3 0x01 followed by the 64-bit
+ * little-endian fingerprint of the schema that the message was written with. That schema is
+ * found in the store by its fingerprint and resolved to the schema of the translator, so
+ * messages written with earlier or later versions of the schema can be translated.
+ * <p>
+ * The datum readers, the decoder and the decoded record are reused across messages.
  */
 public class AvroTranslator implements Translator<byte[]> {
 
-  private List<String> fieldNames;
-  private List<String> fieldTypes;
   private StructType schema;
   private Schema avroSchema;
+  private AvroRowConverter converter;
+  private Map<Long, GenericDatumReader<GenericRecord>> storeReaders;
+  private GenericDatumReader<GenericRecord> reader;
+  private BinaryDecoder decoder;
+  private GenericRecord record;
 
   public static final String FIELD_NAMES_CONFIG_NAME = "field.names";
   public static final String FIELD_TYPES_CONFIG_NAME = "field.types";
+  public static final String SCHEMA_PATH_CONFIG_NAME = "schema.path";
+  public static final String SCHEMA_STORE_PATH_CONFIG_NAME = "schema.store.path";
+
+  private static final byte[] SINGLE_OBJECT_MAGIC = new byte[] { (byte)0xC3, (byte)0x01 };
+  private static final int SINGLE_OBJECT_HEADER_LENGTH = SINGLE_OBJECT_MAGIC.length + 8;
 
   @Override
   public void configure(Config config) {
-    fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
-    fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
-    schema = RowUtils.structTypeFor(fieldNames, fieldTypes);
-    avroSchema = schemaFor(fieldNames, fieldTypes);
+    if (config.hasPath(SCHEMA_PATH_CONFIG_NAME)) {
+      avroSchema = readSchema(new Path(config.getString(SCHEMA_PATH_CONFIG_NAME)));
+    }
+    else if (config.hasPath(FIELD_NAMES_CONFIG_NAME) && config.hasPath(FIELD_TYPES_CONFIG_NAME)) {
+      avroSchema = schemaFor(config.getStringList(FIELD_NAMES_CONFIG_NAME),
+          config.getStringList(FIELD_TYPES_CONFIG_NAME));
+    }
+    else {
+      throw new RuntimeException("Avro translator requires either '" + SCHEMA_PATH_CONFIG_NAME + "' or '" +
+          FIELD_NAMES_CONFIG_NAME + "' and '" + FIELD_TYPES_CONFIG_NAME + "' properties");
+    }
+
+    converter = new AvroRowConverter(avroSchema);
+    schema = converter.getSchema();
+    reader = new GenericDatumReader<GenericRecord>(avroSchema);
+
+    if (config.hasPath(SCHEMA_STORE_PATH_CONFIG_NAME)) {
+      storeReaders = Maps.newHashMap();
+      storeReaders.put(SchemaNormalization.parsingFingerprint64(avroSchema), reader);
+
+      for (Schema writerSchema : readSchemas(new Path(config.getString(SCHEMA_STORE_PATH_CONFIG_NAME)))) {
+        long fingerprint = SchemaNormalization.parsingFingerprint64(writerSchema);
+
+        if (!storeReaders.containsKey(fingerprint)) {
+          storeReaders.put(fingerprint, new GenericDatumReader<GenericRecord>(writerSchema, avroSchema));
+        }
+      }
+    }
   }
 
   @Override
   public Iterable<Row> translate(byte[] key, byte[] message) throws Exception {
-    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<GenericRecord>(avroSchema);
-    Decoder decoder = DecoderFactory.get().binaryDecoder(message, null);
-    GenericRecord record = reader.read(null, decoder);
-    Row row = rowForRecord(record);
+    GenericDatumReader<GenericRecord> messageReader = reader;
+    int offset = 0;
+
+    if (storeReaders != null) {
+      messageReader = storeReaders.get(fingerprintOf(message));
+      if (messageReader == null) {
+        throw new RuntimeException("Avro message was written with a schema that is not in the schema store");
+      }
+      offset = SINGLE_OBJECT_HEADER_LENGTH;
+    }
+
+    decoder = DecoderFactory.get().binaryDecoder(message, offset, message.length - offset, decoder);
+    record = messageReader.read(record, decoder);
+    Row row = converter.toRow(record);
 
     return Collections.singleton(row);
   }
@@ -71,6 +128,53 @@ public class AvroTranslator implements Translator<byte[]> {
     return schema;
   }
 
+  private static long fingerprintOf(byte[] message) {
+    if (message.length < SINGLE_OBJECT_HEADER_LENGTH ||
+        message[0] != SINGLE_OBJECT_MAGIC[0] || message[1] != SINGLE_OBJECT_MAGIC[1]) {
+      throw new RuntimeException("Avro message does not start with a single object encoding header");
+    }
+
+    long fingerprint = 0;
+    for (int i = SINGLE_OBJECT_HEADER_LENGTH - 1; i >= SINGLE_OBJECT_MAGIC.length; i--) {
+      fingerprint = (fingerprint << 8) | (message[i] & 0xFF);
+    }
+
+    return fingerprint;
+  }
+
+  private static Schema readSchema(Path path) {
+    try {
+      FileSystem fs = path.getFileSystem(new Configuration());
+
+      try (InputStream stream = fs.open(path)) {
+        return new Schema.Parser().parse(stream);
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Could not read Avro schema file: " + path, e);
+    }
+  }
+
+  // The schema files of a store are the files ending in .avsc directly within its directory
+  private static List<Schema> readSchemas(Path directory) {
+    List<Schema> schemas = Lists.newArrayList();
+
+    try {
+      FileSystem fs = directory.getFileSystem(new Configuration());
+
+      for (FileStatus status : fs.listStatus(directory)) {
+        if (status.isFile() && status.getPath().getName().endsWith(".avsc")) {
+          schemas.add(readSchema(status.getPath()));
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Could not list Avro schema store: " + directory, e);
+    }
+
+    return schemas;
+  }
+
   private Schema schemaFor(List<String> fieldNames, List<String> fieldTypes) {
     FieldAssembler<Schema> assembler = SchemaBuilder.record("t").fields();
 
@@ -105,25 +209,4 @@ public class AvroTranslator implements Translator<byte[]> {
     return assembler.endRecord();
   }
 
-  private static Row rowForRecord(GenericRecord record) {
-    List<Object> values = Lists.newArrayList();
-
-    for (Field field : record.getSchema().getFields()) {
-      Object value = record.get(field.name());
-
-      Type fieldType = field.schema().getType();
-      if (fieldType.equals(Type.UNION)) {
-        fieldType = field.schema().getTypes().get(1).getType();
-      }
-      // Avro returns Utf8s for strings, which Spark SQL doesn't know how to use
-      if (fieldType.equals(Type.STRING) && value != null) {
-        value = value.toString();
-      }
-
-      values.add(value);
-    }
-
-    return RowFactory.create(values.toArray());
-  }
-
 }
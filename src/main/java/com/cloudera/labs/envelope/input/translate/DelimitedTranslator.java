@@ -15,96 +15,150 @@
  */
 package com.cloudera.labs.envelope.input.translate;
 
+import java.nio.charset.Charset;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.catalyst.expressions.GenericInternalRow;
 import org.apache.spark.sql.types.StructType;
 
 import com.cloudera.labs.envelope.utils.RowUtils;
-import com.google.common.collect.Lists;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
 import com.typesafe.config.Config;
 
+import scala.Tuple2;
+
 /**
- * A translator implementation for plain delimited text messages, e.g. CSV.
+ * A translator implementation for plain delimited text messages, e.g. CSV. Messages can be
+ * either strings or byte arrays. The message is scanned once for the delimiter and each value
+ * is parsed directly from the message by the parser of its field type. Byte array messages in
+ * an ASCII-compatible encoding are scanned without first being decoded into a string.
+ * @param <T> The data type of the input keys and messages, either String or byte[].
  */
-public class DelimitedTranslator implements Translator<String> {
+public class DelimitedTranslator<T> implements InternalRowTranslator<T> {
 
   private String delimiter;
-  private List<String> fieldNames;
-  private List<String> fieldTypes;
+  private byte[] delimiterBytes;
+  private Charset charset;
+  private boolean scanBytes;
+  private FieldParser[] parsers;
+  private FieldParser[] internalParsers;
   private StructType schema;
-  private List<Object> values = Lists.newArrayList();
 
   public static final String DELIMITER_CONFIG_NAME = "delimiter";
   public static final String FIELD_NAMES_CONFIG_NAME = "field.names";
   public static final String FIELD_TYPES_CONFIG_NAME = "field.types";
+  public static final String ENCODING_CONFIG_NAME = "encoding";
 
   @Override
   public void configure(Config config) {
-    delimiter = resolveDelimiter(config.getString(DELIMITER_CONFIG_NAME));
-    fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
-    fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
+    delimiter = Delimiters.resolveDelimiter(config.getString(DELIMITER_CONFIG_NAME));
+    List<String> fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
+    List<String> fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
     schema = RowUtils.structTypeFor(fieldNames, fieldTypes);
-  }
 
-  @Override
-  public Iterable<Row> translate(String key, String message) {
-    String[] stringValues = message.split(Pattern.quote(delimiter));
-    values.clear();
-
-    for (int valuePos = 0; valuePos < stringValues.length; valuePos++) {
-      String fieldValue = stringValues[valuePos];
-
-      switch (fieldTypes.get(valuePos)) {
-        case "string":
-          values.add(fieldValue);
-          break;
-        case "float":
-          values.add(Float.parseFloat(fieldValue));
-          break;
-        case "double":
-          values.add(Double.parseDouble(fieldValue));
-          break;
-        case "int":
-          values.add(Integer.parseInt(fieldValue));
-          break;
-        case "long":
-          values.add(Long.parseLong(fieldValue));
-          break;
-        case "boolean":
-          values.add(Boolean.parseBoolean(fieldValue));
-          break;
-        default:
-          throw new RuntimeException("Unsupported delimited field type: " + fieldTypes.get(valuePos));
-      }
+    parsers = new FieldParser[fieldTypes.size()];
+    internalParsers = new FieldParser[fieldTypes.size()];
+    for (int i = 0; i < parsers.length; i++) {
+      parsers[i] = FieldParser.forType(fieldTypes.get(i), false);
+      internalParsers[i] = FieldParser.forType(fieldTypes.get(i), true);
     }
 
-    Row row = RowFactory.create(values.toArray());
+    charset = config.hasPath(ENCODING_CONFIG_NAME) ?
+        Charset.forName(config.getString(ENCODING_CONFIG_NAME)) : Charsets.UTF_8;
+    delimiterBytes = delimiter.getBytes(charset);
+    // In these encodings a delimiter can not match the middle of a multi-byte character, and
+    // digits are single ASCII bytes
+    scanBytes = charset.equals(Charsets.UTF_8) || charset.equals(Charsets.US_ASCII) ||
+        charset.equals(Charsets.ISO_8859_1);
+  }
+
+  @Override
+  public Iterable<Row> translate(T key, T message) {
+    Row row = RowFactory.create(translateValues(message, parsers));
 
     return Collections.singleton(row);
   }
 
+  @Override
+  public Iterator<Row> translatePartition(Iterator<Tuple2<T, T>> keysAndMessages) {
+    return Iterators.transform(keysAndMessages, new Function<Tuple2<T, T>, Row>() {
+      @Override
+      public Row apply(Tuple2<T, T> keyAndMessage) {
+        return RowFactory.create(translateValues(keyAndMessage._2(), parsers));
+      }
+    });
+  }
+
+  @Override
+  public Iterator<InternalRow> translatePartitionToInternalRows(Iterator<Tuple2<T, T>> keysAndMessages) {
+    return Iterators.transform(keysAndMessages, new Function<Tuple2<T, T>, InternalRow>() {
+      @Override
+      public InternalRow apply(Tuple2<T, T> keyAndMessage) {
+        return new GenericInternalRow(translateValues(keyAndMessage._2(), internalParsers));
+      }
+    });
+  }
+
   @Override
   public StructType getSchema() {
     return schema;
   }
 
-  private String resolveDelimiter(String delimiterArg) {
-    if (delimiterArg.startsWith("chars:")) {
-      String[] codePoints = delimiterArg.substring("chars:".length()).split(",");
+  private Object[] translateValues(T message, FieldParser[] fieldParsers) {
+    // The row takes ownership of the values, so they can not be reused for the next message
+    Object[] values = new Object[fieldParsers.length];
 
-      StringBuilder delimiter = new StringBuilder();
-      for (String codePoint : codePoints) {
-        delimiter.append(Character.toChars(Integer.parseInt(codePoint)));
-      }
+    if (message instanceof byte[]) {
+      byte[] bytes = (byte[])message;
 
-      return delimiter.toString();
+      if (scanBytes) {
+        translateBytes(bytes, fieldParsers, values);
+      }
+      else {
+        translateString(new String(bytes, charset), fieldParsers, values);
+      }
     }
     else {
-      return delimiterArg;
+      translateString((String)message, fieldParsers, values);
+    }
+
+    return values;
+  }
+
+  // Fields that are missing from the end of the message are null, and values beyond the
+  // configured fields are ignored
+  private void translateString(String message, FieldParser[] fieldParsers, Object[] values) {
+    int start = 0;
+
+    for (int field = 0; field < fieldParsers.length && start <= message.length(); field++) {
+      int end = message.indexOf(delimiter, start);
+      if (end < 0) {
+        end = message.length();
+      }
+
+      values[field] = fieldParsers[field].parse(message, start, end);
+      start = end + delimiter.length();
+    }
+  }
+
+  private void translateBytes(byte[] message, FieldParser[] fieldParsers, Object[] values) {
+    int start = 0;
+
+    for (int field = 0; field < fieldParsers.length && start <= message.length; field++) {
+      int end = Delimiters.indexOf(message, delimiterBytes, start, message.length);
+      if (end < 0) {
+        end = message.length;
+      }
+
+      values[field] = fieldParsers[field].parse(message, start, end, charset);
+      start = end + delimiterBytes.length;
     }
   }
 
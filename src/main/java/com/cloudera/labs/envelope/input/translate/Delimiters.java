@@ -0,0 +1,83 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+/**
+ * Functions for finding the delimiters of text messages, which are shared by the translators.
+ */
+class Delimiters {
+
+  /**
+   * @return The delimiter of the configuration value, which is either the delimiter itself or
+   * the code points of its characters in the form 'chars:1,2,...'.
+   */
+  static String resolveDelimiter(String delimiterArg) {
+    if (delimiterArg.startsWith("chars:")) {
+      String[] codePoints = delimiterArg.substring("chars:".length()).split(",");
+
+      StringBuilder delimiter = new StringBuilder();
+      for (String codePoint : codePoints) {
+        delimiter.append(Character.toChars(Integer.parseInt(codePoint)));
+      }
+
+      return delimiter.toString();
+    }
+    else {
+      return delimiterArg;
+    }
+  }
+
+  /**
+   * @return The position of the first delimiter that is entirely within the given range of the
+   * text, or -1 if there is none.
+   */
+  static int indexOf(String text, String delimiter, int from, int to) {
+    int last = to - delimiter.length();
+
+    for (int i = from; i <= last; i++) {
+      if (text.startsWith(delimiter, i)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return The position of the first delimiter that is entirely within the given range of the
+   * bytes, or -1 if there is none.
+   */
+  static int indexOf(byte[] bytes, byte[] delimiter, int from, int to) {
+    byte first = delimiter[0];
+    int last = to - delimiter.length;
+
+    for (int i = from; i <= last; i++) {
+      if (bytes[i] == first) {
+        int matched = 1;
+        while (matched < delimiter.length && bytes[i + matched] == delimiter[matched]) {
+          matched++;
+        }
+
+        if (matched == delimiter.length) {
+          return i;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.nio.charset.Charset;
+
+import org.apache.spark.unsafe.types.UTF8String;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Parses the value of a field of a text message directly from the range of the message that
+ * contains it, so that the message does not need to be split into separate strings first. The
+ * parser for each field is chosen once from the field type when the translator is configured.
+ * Empty values are parsed as an empty string for string fields, and as null for all other types.
+ * Parsers for internal rows give strings in the Spark SQL internal string format.
+ */
+abstract class FieldParser {
+
+  /**
+   * @param fieldType The field type as given in the translator configuration.
+   * @param internal Whether the values are for Spark SQL internal rows.
+   * @return The parser for values of the field type.
+   */
+  static FieldParser forType(String fieldType, boolean internal) {
+    switch (fieldType) {
+      case "string":
+        return internal ? new InternalStringParser() : new StringParser();
+      case "float":
+        return new FloatParser();
+      case "double":
+        return new DoubleParser();
+      case "int":
+        return new IntParser();
+      case "long":
+        return new LongParser();
+      case "boolean":
+        return new BooleanParser();
+      default:
+        throw new RuntimeException("Unsupported field type: " + fieldType);
+    }
+  }
+
+  /**
+   * Parse the value in the characters from start (inclusive) to end (exclusive) of the text.
+   */
+  abstract Object parse(String text, int start, int end);
+
+  /**
+   * Parse the value in the bytes from start (inclusive) to end (exclusive) of the message.
+   * @param charset The encoding of the message, which must be ASCII-compatible.
+   */
+  abstract Object parse(byte[] bytes, int start, int end, Charset charset);
+
+  private static class StringParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      return text.substring(start, end);
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      return new String(bytes, start, end - start, charset);
+    }
+  }
+
+  // UTF-8 and ASCII bytes are already in the internal format, so they are referenced rather
+  // than decoded
+  private static class InternalStringParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      return UTF8String.fromString(text.substring(start, end));
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      if (charset.equals(Charsets.UTF_8) || charset.equals(Charsets.US_ASCII)) {
+        return UTF8String.fromBytes(bytes, start, end - start);
+      }
+
+      return UTF8String.fromString(new String(bytes, start, end - start, charset));
+    }
+  }
+
+  private static class FloatParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      return start == end ? null : Float.parseFloat(text.substring(start, end));
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      return start == end ? null : Float.parseFloat(new String(bytes, start, end - start, charset));
+    }
+  }
+
+  private static class DoubleParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      return start == end ? null : Double.parseDouble(text.substring(start, end));
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      return start == end ? null : Double.parseDouble(new String(bytes, start, end - start, charset));
+    }
+  }
+
+  private static class IntParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      return start == end ? null : (int)parseLong(text, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      return start == end ? null : (int)parseLong(bytes, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+  }
+
+  private static class LongParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      return start == end ? null : parseLong(text, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      return start == end ? null : parseLong(bytes, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+  }
+
+  // Matches Boolean#parseBoolean, where any value other than "true" in any case is false
+  private static class BooleanParser extends FieldParser {
+    @Override
+    Object parse(String text, int start, int end) {
+      if (start == end) {
+        return null;
+      }
+
+      return end - start == 4 && text.regionMatches(true, start, "true", 0, 4);
+    }
+
+    @Override
+    Object parse(byte[] bytes, int start, int end, Charset charset) {
+      if (start == end) {
+        return null;
+      }
+
+      return end - start == 4 &&
+          (bytes[start] | 0x20) == 't' && (bytes[start + 1] | 0x20) == 'r' &&
+          (bytes[start + 2] | 0x20) == 'u' && (bytes[start + 3] | 0x20) == 'e';
+    }
+  }
+
+  // The same parsing as Long#parseLong, but of a range of the text and within the given bounds
+  private static long parseLong(String text, int start, int end, long min, long max) {
+    int i = start;
+    boolean negative = false;
+
+    char first = text.charAt(i);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      if (++i == end) {
+        throw numberFormatException(text.substring(start, end));
+      }
+    }
+
+    long limit = negative ? min : -max;
+    long multiplyLimit = limit / 10;
+    long result = 0;
+
+    for (; i < end; i++) {
+      int digit = Character.digit(text.charAt(i), 10);
+
+      if (digit < 0 || result < multiplyLimit) {
+        throw numberFormatException(text.substring(start, end));
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw numberFormatException(text.substring(start, end));
+      }
+      result -= digit;
+    }
+
+    return negative ? result : -result;
+  }
+
+  private static long parseLong(byte[] bytes, int start, int end, long min, long max) {
+    int i = start;
+    boolean negative = false;
+
+    byte first = bytes[i];
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      if (++i == end) {
+        throw numberFormatException(bytes, start, end);
+      }
+    }
+
+    long limit = negative ? min : -max;
+    long multiplyLimit = limit / 10;
+    long result = 0;
+
+    for (; i < end; i++) {
+      int digit = bytes[i] - '0';
+
+      if (digit < 0 || digit > 9 || result < multiplyLimit) {
+        throw numberFormatException(bytes, start, end);
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw numberFormatException(bytes, start, end);
+      }
+      result -= digit;
+    }
+
+    return negative ? result : -result;
+  }
+
+  private static NumberFormatException numberFormatException(String value) {
+    return new NumberFormatException("For input string: \"" + value + "\"");
+  }
+
+  private static NumberFormatException numberFormatException(byte[] bytes, int start, int end) {
+    return numberFormatException(new String(bytes, start, end - start, Charset.forName("ISO-8859-1")));
+  }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Iterator;
+
+import org.apache.spark.sql.catalyst.InternalRow;
+
+import scala.Tuple2;
+
+/**
+ * Partition translators that can also translate directly into Spark SQL internal rows, which
+ * Envelope can turn into a DataFrame without first converting each row from a Spark SQL Row.
+ * The values of internal rows must be in the Spark SQL internal formats, for example strings
+ * must be UTF8Strings.
+ * @param <T> The data type of the input keys and messages.
+ */
+public interface InternalRowTranslator<T> extends PartitionTranslator<T> {
+
+  /**
+   * Translate the raw keys and messages of a partition into Spark SQL internal rows.
+   * @param keysAndMessages The keys and messages of the partition. The keys could be null if not
+   * provided or not applicable.
+   * @return The internal rows of the keyed messages, in order, which must have the schema of
+   * the translator. The rows can be translated lazily as the returned iterator is consumed.
+   * @throws Exception
+   */
+  Iterator<InternalRow> translatePartitionToInternalRows(Iterator<Tuple2<T, T>> keysAndMessages) throws Exception;
+
+}
@@ -15,118 +15,305 @@
  */
 package com.cloudera.labs.envelope.input.translate;
 
+import java.nio.charset.Charset;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.RowFactory;
-import org.apache.spark.sql.types.DataTypes;
-import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.catalyst.expressions.GenericInternalRow;
 import org.apache.spark.sql.types.StructType;
 
 import com.cloudera.labs.envelope.utils.RowUtils;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
 import com.typesafe.config.Config;
 
+import scala.Tuple2;
+
 /**
- * A translator implementation for text key-value pair messages.
+ * A translator implementation for text key-value pair messages, such as FIX messages. Messages
+ * can be either strings or byte arrays. Each message is scanned once, and the key of each pair
+ * is looked up in a table of the field names without being copied out of the message, so the
+ * pairs of keys that are not fields are skipped without being parsed. If a key occurs more than
+ * once then the last value is used.
+ * @param <T> The data type of the input keys and messages, either String or byte[].
  */
-public class KVPTranslator implements Translator<String> {
+public class KVPTranslator<T> implements InternalRowTranslator<T> {
 
   private String kvpDelimiter;
   private String fieldDelimiter;
-  private List<String> fieldNames;
-  private List<String> fieldTypes;
+  private byte[] kvpDelimiterBytes;
+  private byte[] fieldDelimiterBytes;
+  private Charset charset;
+  private boolean scanBytes;
+  private FieldParser[] parsers;
+  private FieldParser[] internalParsers;
+  private FieldOrdinals ordinals;
   private StructType schema;
-  private List<Object> values = Lists.newArrayList();
-  private Map<String, String> kvpMap = Maps.newHashMap();
 
   public static final String KVP_DELIMITER_CONFIG_NAME = "delimiter.kvp";
   public static final String FIELD_DELIMITER_CONFIG_NAME = "delimiter.field";
   public static final String FIELD_NAMES_CONFIG_NAME = "field.names";
   public static final String FIELD_TYPES_CONFIG_NAME = "field.types";
+  public static final String ENCODING_CONFIG_NAME = "encoding";
 
   @Override
   public void configure(Config config) {
-    kvpDelimiter = resolveDelimiter(config.getString(KVP_DELIMITER_CONFIG_NAME));
-    fieldDelimiter = resolveDelimiter(config.getString(FIELD_DELIMITER_CONFIG_NAME));
-    fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
-    fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
+    kvpDelimiter = Delimiters.resolveDelimiter(config.getString(KVP_DELIMITER_CONFIG_NAME));
+    fieldDelimiter = Delimiters.resolveDelimiter(config.getString(FIELD_DELIMITER_CONFIG_NAME));
+    List<String> fieldNames = config.getStringList(FIELD_NAMES_CONFIG_NAME);
+    List<String> fieldTypes = config.getStringList(FIELD_TYPES_CONFIG_NAME);
     schema = RowUtils.structTypeFor(fieldNames, fieldTypes);
+
+    parsers = new FieldParser[fieldTypes.size()];
+    internalParsers = new FieldParser[fieldTypes.size()];
+    for (int i = 0; i < parsers.length; i++) {
+      parsers[i] = FieldParser.forType(fieldTypes.get(i), false);
+      internalParsers[i] = FieldParser.forType(fieldTypes.get(i), true);
+    }
+
+    charset = config.hasPath(ENCODING_CONFIG_NAME) ?
+        Charset.forName(config.getString(ENCODING_CONFIG_NAME)) : Charsets.UTF_8;
+    kvpDelimiterBytes = kvpDelimiter.getBytes(charset);
+    fieldDelimiterBytes = fieldDelimiter.getBytes(charset);
+    // In these encodings a delimiter can not match the middle of a multi-byte character, and
+    // digits are single ASCII bytes
+    scanBytes = charset.equals(Charsets.UTF_8) || charset.equals(Charsets.US_ASCII) ||
+        charset.equals(Charsets.ISO_8859_1);
+
+    ordinals = new FieldOrdinals(fieldNames, charset);
+  }
+
+  @Override
+  public Iterable<Row> translate(T key, T message) {
+    Row row = RowFactory.create(translateValues(message, parsers));
+
+    return Collections.singleton(row);
+  }
+
+  @Override
+  public Iterator<Row> translatePartition(Iterator<Tuple2<T, T>> keysAndMessages) {
+    return Iterators.transform(keysAndMessages, new Function<Tuple2<T, T>, Row>() {
+      @Override
+      public Row apply(Tuple2<T, T> keyAndMessage) {
+        return RowFactory.create(translateValues(keyAndMessage._2(), parsers));
+      }
+    });
   }
 
   @Override
-  public Iterable<Row> translate(String key, String message) {
-    kvpMap.clear();
-    values.clear();
+  public Iterator<InternalRow> translatePartitionToInternalRows(Iterator<Tuple2<T, T>> keysAndMessages) {
+    return Iterators.transform(keysAndMessages, new Function<Tuple2<T, T>, InternalRow>() {
+      @Override
+      public InternalRow apply(Tuple2<T, T> keyAndMessage) {
+        return new GenericInternalRow(translateValues(keyAndMessage._2(), internalParsers));
+      }
+    });
+  }
+
+  @Override
+  public StructType getSchema() {
+    return schema;
+  }
+
+  private Object[] translateValues(T message, FieldParser[] fieldParsers) {
+    // The row takes ownership of the values, so they can not be reused for the next message
+    Object[] values = new Object[fieldParsers.length];
 
-    String[] kvps = message.split(Pattern.quote(kvpDelimiter));
-    for (String kvp : kvps) {
-      String[] components = kvp.split(Pattern.quote(fieldDelimiter));
-      String kvpKey = components[0];
-      String kvpValue = components[1];
+    if (message instanceof byte[]) {
+      byte[] bytes = (byte[])message;
 
-      kvpMap.put(kvpKey, kvpValue);
+      if (scanBytes) {
+        translateBytes(bytes, fieldParsers, values);
+      }
+      else {
+        translateString(new String(bytes, charset), fieldParsers, values);
+      }
+    }
+    else {
+      translateString((String)message, fieldParsers, values);
     }
 
-    for (StructField field : schema.fields()) {
-      String fieldName = field.name();
-      if (kvpMap.containsKey(fieldName)) {
-        String kvpValue = kvpMap.get(fieldName);
+    return values;
+  }
 
-        if (field.dataType().equals(DataTypes.StringType)) {
-          values.add(kvpValue);
-        }
-        else if (field.dataType().equals(DataTypes.FloatType)) {
-          values.add(Float.parseFloat(kvpValue));
-        }
-        else if (field.dataType().equals(DataTypes.DoubleType)) {
-          values.add(Double.parseDouble(kvpValue));
-        }
-        else if (field.dataType().equals(DataTypes.IntegerType)) {
-          values.add(Integer.parseInt(kvpValue));
-        }
-        else if (field.dataType().equals(DataTypes.LongType)) {
-          values.add(Long.parseLong(kvpValue));
-        }
-        else if (field.dataType().equals(DataTypes.BooleanType)) {
-          values.add(Boolean.parseBoolean(kvpValue));
-        }
-        else {
-          throw new RuntimeException("Unsupported KVP field type: " + field.dataType());
+  // Pairs without a field delimiter are skipped
+  private void translateString(String message, FieldParser[] fieldParsers, Object[] values) {
+    int start = 0;
+
+    while (start < message.length()) {
+      int end = message.indexOf(kvpDelimiter, start);
+      if (end < 0) {
+        end = message.length();
+      }
+
+      int separator = Delimiters.indexOf(message, fieldDelimiter, start, end);
+      if (separator >= 0) {
+        int ordinal = ordinals.ordinalOf(message, start, separator);
+
+        if (ordinal >= 0) {
+          int valueStart = separator + fieldDelimiter.length();
+          values[ordinal] = fieldParsers[ordinal].parse(message, valueStart, valueEnd(message, valueStart, end));
         }
       }
-      else {
-        values.add(null);
+
+      start = end + kvpDelimiter.length();
+    }
+  }
+
+  private void translateBytes(byte[] message, FieldParser[] fieldParsers, Object[] values) {
+    int start = 0;
+
+    while (start < message.length) {
+      int end = Delimiters.indexOf(message, kvpDelimiterBytes, start, message.length);
+      if (end < 0) {
+        end = message.length;
+      }
+
+      int separator = Delimiters.indexOf(message, fieldDelimiterBytes, start, end);
+      if (separator >= 0) {
+        int ordinal = ordinals.ordinalOf(message, start, separator);
+
+        if (ordinal >= 0) {
+          int valueStart = separator + fieldDelimiterBytes.length;
+          values[ordinal] = fieldParsers[ordinal].parse(message, valueStart, valueEnd(message, valueStart, end), charset);
+        }
       }
+
+      start = end + kvpDelimiterBytes.length;
     }
+  }
 
-    Row row = RowFactory.create(values.toArray());
+  // A value ends at any further field delimiter of its pair
+  private int valueEnd(String message, int valueStart, int end) {
+    int valueEnd = Delimiters.indexOf(message, fieldDelimiter, valueStart, end);
 
-    return Collections.singleton(row);
+    return valueEnd < 0 ? end : valueEnd;
   }
 
-  @Override
-  public StructType getSchema() {
-    return schema;
+  private int valueEnd(byte[] message, int valueStart, int end) {
+    int valueEnd = Delimiters.indexOf(message, fieldDelimiterBytes, valueStart, end);
+
+    return valueEnd < 0 ? end : valueEnd;
   }
 
-  private String resolveDelimiter(String delimiterArg) {
-    if (delimiterArg.startsWith("chars:")) {
-      String[] codePoints = delimiterArg.substring("chars:".length()).split(",");
+  /**
+   * An open addressing hash table from the field names to their ordinals in the schema, which
+   * looks up keys by their range of a message. Field names are held both as characters and as
+   * encoded bytes, as the hash of a name depends on which of the two it is looked up by.
+   */
+  private static class FieldOrdinals {
+    private final char[][] names;
+    private final byte[][] nameBytes;
+    private final int[] charSlots;
+    private final int[] byteSlots;
+    private final int mask;
+
+    FieldOrdinals(List<String> fieldNames, Charset charset) {
+      int size = Integer.highestOneBit(Math.max(fieldNames.size(), 1) * 2) * 2;
+      mask = size - 1;
+
+      names = new char[fieldNames.size()][];
+      nameBytes = new byte[fieldNames.size()][];
+      charSlots = new int[size];
+      byteSlots = new int[size];
+
+      // Slots hold the ordinal plus one, so that zero is an empty slot
+      for (int ordinal = 0; ordinal < names.length; ordinal++) {
+        String fieldName = fieldNames.get(ordinal);
+        names[ordinal] = fieldName.toCharArray();
+        nameBytes[ordinal] = fieldName.getBytes(charset);
+
+        if (ordinalOf(fieldName, 0, fieldName.length()) < 0) {
+          int slot = hash(fieldName, 0, fieldName.length()) & mask;
+          while (charSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          charSlots[slot] = ordinal + 1;
+
+          slot = hash(nameBytes[ordinal], 0, nameBytes[ordinal].length) & mask;
+          while (byteSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          byteSlots[slot] = ordinal + 1;
+        }
+      }
+    }
+
+    /**
+     * @return The ordinal of the field named by the range of the text, or -1 if it is not a field.
+     */
+    int ordinalOf(String text, int start, int end) {
+      int slot = hash(text, start, end) & mask;
 
-      StringBuilder delimiter = new StringBuilder();
-      for (String codePoint : codePoints) {
-        delimiter.append(Character.toChars(Integer.parseInt(codePoint)));
+      while (charSlots[slot] != 0) {
+        int ordinal = charSlots[slot] - 1;
+        char[] name = names[ordinal];
+
+        if (name.length == end - start) {
+          int i = 0;
+          while (i < name.length && name[i] == text.charAt(start + i)) {
+            i++;
+          }
+
+          if (i == name.length) {
+            return ordinal;
+          }
+        }
+
+        slot = (slot + 1) & mask;
       }
 
-      return delimiter.toString();
+      return -1;
     }
-    else {
-      return delimiterArg;
+
+    /**
+     * @return The ordinal of the field named by the range of the bytes, or -1 if it is not a field.
+     */
+    int ordinalOf(byte[] bytes, int start, int end) {
+      int slot = hash(bytes, start, end) & mask;
+
+      while (byteSlots[slot] != 0) {
+        int ordinal = byteSlots[slot] - 1;
+        byte[] name = nameBytes[ordinal];
+
+        if (name.length == end - start) {
+          int i = 0;
+          while (i < name.length && name[i] == bytes[start + i]) {
+            i++;
+          }
+
+          if (i == name.length) {
+            return ordinal;
+          }
+        }
+
+        slot = (slot + 1) & mask;
+      }
+
+      return -1;
+    }
+
+    private static int hash(String text, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + text.charAt(i);
+      }
+
+      return hash ^ (hash >>> 16);
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + bytes[i];
+      }
+
+      return hash ^ (hash >>> 16);
     }
   }
 
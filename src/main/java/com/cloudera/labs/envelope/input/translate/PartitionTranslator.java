@@ -0,0 +1,43 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Iterator;
+
+import org.apache.spark.sql.Row;
+
+import scala.Tuple2;
+
+/**
+ * Translators that can translate a whole partition of raw stream objects at a time. Envelope
+ * uses this in preference to translating each keyed message separately, which saves a call and
+ * a returned collection per message. Translators that do not implement this interface are
+ * still used one message at a time.
+ * @param <T> The data type of the input keys and messages.
+ */
+public interface PartitionTranslator<T> extends Translator<T> {
+
+  /**
+   * Translate the raw keys and messages of a partition into structured rows.
+   * @param keysAndMessages The keys and messages of the partition. The keys could be null if not
+   * provided or not applicable.
+   * @return The Spark SQL Rows of the keyed messages, in order. The rows can be translated
+   * lazily as the returned iterator is consumed.
+   * @throws Exception
+   */
+  Iterator<Row> translatePartition(Iterator<Tuple2<T, T>> keysAndMessages) throws Exception;
+
+}
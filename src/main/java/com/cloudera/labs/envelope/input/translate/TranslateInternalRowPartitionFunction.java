@@ -15,8 +15,10 @@
  */
 package com.cloudera.labs.envelope.input.translate;
 
+import java.util.Iterator;
+
 import org.apache.spark.api.java.function.FlatMapFunction;
-import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,28 +26,38 @@ import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
+/**
+ * Translates a whole partition of keyed messages at a time into Spark SQL internal rows. The
+ * translator must be an internal row translator.
+ */
 @SuppressWarnings("serial")
-public class TranslateFunction<T> implements FlatMapFunction<Tuple2<T, T>, Row> {
+public class TranslateInternalRowPartitionFunction<T> implements FlatMapFunction<Iterator<Tuple2<T, T>>, InternalRow> {
   private Config config;
-  private Translator<T> translator;
+  private InternalRowTranslator<T> translator;
 
-  private static Logger LOG = LoggerFactory.getLogger(TranslateFunction.class);
+  private static Logger LOG = LoggerFactory.getLogger(TranslateInternalRowPartitionFunction.class);
 
-  public TranslateFunction(Config config) {
+  public TranslateInternalRowPartitionFunction(Config config) {
     this.config = config;
   }
 
   @SuppressWarnings("unchecked")
   @Override
-  public Iterable<Row> call(Tuple2<T, T> keyAndMessage) throws Exception {
-    T key = keyAndMessage._1;
-    T message = keyAndMessage._2;
-
+  public Iterable<InternalRow> call(Iterator<Tuple2<T, T>> keysAndMessages) throws Exception {
     if (translator == null) {
-      translator = (Translator<T>)TranslatorFactory.create(config);
+      translator = (InternalRowTranslator<T>)TranslatorFactory.create(config);
       LOG.info("Translator created: " + translator.getClass().getName());
     }
 
-    return translator.translate(key, message);
+    final Iterator<InternalRow> rows = translator.translatePartitionToInternalRows(keysAndMessages);
+
+    // The rows are only iterated once, so the iterator does not need to be recreated
+    return new Iterable<InternalRow>() {
+      @Override
+      public Iterator<InternalRow> iterator() {
+        return rows;
+      }
+    };
   }
+
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.AbstractIterator;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * Translates a whole partition of keyed messages at a time. Translators that are not
+ * partition translators are adapted to translate the partition one message at a time.
+ */
+@SuppressWarnings("serial")
+public class TranslatePartitionFunction<T> implements FlatMapFunction<Iterator<Tuple2<T, T>>, Row> {
+  private Config config;
+  private Translator<T> translator;
+
+  private static Logger LOG = LoggerFactory.getLogger(TranslatePartitionFunction.class);
+
+  public TranslatePartitionFunction(Config config) {
+    this.config = config;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Iterable<Row> call(Iterator<Tuple2<T, T>> keysAndMessages) throws Exception {
+    if (translator == null) {
+      translator = (Translator<T>)TranslatorFactory.create(config);
+      LOG.info("Translator created: " + translator.getClass().getName());
+    }
+
+    final Iterator<Row> rows;
+    if (translator instanceof PartitionTranslator) {
+      rows = ((PartitionTranslator<T>)translator).translatePartition(keysAndMessages);
+    }
+    else {
+      rows = new MessageTranslatingIterator<>(translator, keysAndMessages);
+    }
+
+    // The rows are only iterated once, so the iterator does not need to be recreated
+    return new Iterable<Row>() {
+      @Override
+      public Iterator<Row> iterator() {
+        return rows;
+      }
+    };
+  }
+
+  private static class MessageTranslatingIterator<T> extends AbstractIterator<Row> {
+    private Translator<T> translator;
+    private Iterator<Tuple2<T, T>> keysAndMessages;
+    private Iterator<Row> messageRows = Collections.emptyIterator();
+
+    MessageTranslatingIterator(Translator<T> translator, Iterator<Tuple2<T, T>> keysAndMessages) {
+      this.translator = translator;
+      this.keysAndMessages = keysAndMessages;
+    }
+
+    @Override
+    protected Row computeNext() {
+      while (!messageRows.hasNext()) {
+        if (!keysAndMessages.hasNext()) {
+          return endOfData();
+        }
+
+        Tuple2<T, T> keyAndMessage = keysAndMessages.next();
+        try {
+          messageRows = translator.translate(keyAndMessage._1(), keyAndMessage._2()).iterator();
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      return messageRows.next();
+    }
+  }
+
+}
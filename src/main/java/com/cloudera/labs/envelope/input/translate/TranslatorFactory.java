@@ -33,10 +33,10 @@ public class TranslatorFactory {
     Translator<?> translator = null;
 
     if (translatorType.equals("kvp")) {
-      translator = new KVPTranslator();
+      translator = new KVPTranslator<>();
     }
     else if (translatorType.equals("delimited")) {
-      translator = new DelimitedTranslator();
+      translator = new DelimitedTranslator<>();
     }
     else if (translatorType.equals("avro")) {
       translator = new AvroTranslator();
@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+/**
+ * Outputs that may hold back some of the mutations that they are given, for example to write
+ * several streaming micro-batches at once, until they are flushed.
+ */
+public interface BufferedOutput extends Output {
+
+  /**
+   * Write any mutations that the output is holding back. Envelope flushes the outputs of a
+   * batch pipeline once all of its steps have finished.
+   */
+  void flush() throws Exception;
+
+}
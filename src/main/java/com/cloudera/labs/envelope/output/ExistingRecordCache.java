@@ -0,0 +1,216 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+
+/**
+ * An executor-local cache of the existing records of a random output, keyed by the filter rows
+ * that they were looked up with. Keys that have no existing records are cached as empty lists.
+ * The cache is kept consistent with the writes of the same executor by applying each mutation
+ * to the cached records of its key. Writes to the output by any other executor or application
+ * are not seen until the cached key expires, so the time-to-live bounds the staleness.
+ */
+public class ExistingRecordCache {
+
+  public static final String ENABLED_CONFIG_NAME = "existing.cache.enabled";
+  public static final String SIZE_CONFIG_NAME = "existing.cache.size";
+  public static final String TTL_SECONDS_CONFIG_NAME = "existing.cache.ttl.seconds";
+
+  private static final long DEFAULT_SIZE = 10000;
+  private static final long DEFAULT_TTL_SECONDS = 60;
+
+  private Cache<Row, List<Row>> cache;
+  private volatile StructType keySchema;
+
+  public ExistingRecordCache(long maximumSize, long ttlSeconds) {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  public static boolean isEnabled(Config config) {
+    return config.hasPath(ENABLED_CONFIG_NAME) && config.getBoolean(ENABLED_CONFIG_NAME);
+  }
+
+  public static ExistingRecordCache fromConfig(Config config) {
+    long maximumSize = config.hasPath(SIZE_CONFIG_NAME) ? config.getLong(SIZE_CONFIG_NAME) : DEFAULT_SIZE;
+    long ttlSeconds = config.hasPath(TTL_SECONDS_CONFIG_NAME) ?
+        config.getLong(TTL_SECONDS_CONFIG_NAME) : DEFAULT_TTL_SECONDS;
+
+    return new ExistingRecordCache(maximumSize, ttlSeconds);
+  }
+
+  /**
+   * Get the cached existing records for a filter.
+   * @return The existing records, which may be empty, or null if the filter is not cached.
+   */
+  public List<Row> get(Row filter) {
+    return cache.getIfPresent(filter);
+  }
+
+  /**
+   * Cache the existing records of a filter. All filters given to the cache must have the same
+   * schema, which is then used to find the keys of the records written to the output.
+   */
+  public void put(Row filter, List<Row> existing) {
+    if (keySchema == null) {
+      keySchema = filter.schema();
+    }
+
+    cache.put(filter, ImmutableList.copyOf(existing));
+  }
+
+  public void invalidate(Row filter) {
+    cache.invalidate(filter);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Invalidate the keys of mutations that may or may not have been written to the output.
+   */
+  public void invalidateMutations(List<PlannedRow> planned) {
+    if (keySchema == null) {
+      return;
+    }
+
+    for (PlannedRow plan : planned) {
+      invalidate(keyFor(plan.getRow()));
+    }
+  }
+
+  /**
+   * @return The filter row that the given record would be cached under.
+   */
+  public Row keyFor(Row record) {
+    return RowUtils.subsetRow(record, keySchema);
+  }
+
+  /**
+   * Apply a mutation that was successfully written to the output to the cached records of its
+   * key. If the cached records can not be brought up to date then the key is invalidated.
+   * @param plan The mutation that was written.
+   * @param recordSchema The schema of the records of the output.
+   * @param primaryKeyFieldNames The fields that uniquely identify a record of the output.
+   */
+  public void applyMutation(PlannedRow plan, StructType recordSchema, List<String> primaryKeyFieldNames) {
+    if (keySchema == null) {
+      return;
+    }
+
+    Row mutation = plan.getRow();
+    Row key = keyFor(mutation);
+    List<Row> cached = get(key);
+
+    if (cached == null) {
+      return;
+    }
+
+    List<Row> updated = Lists.newArrayList();
+    Row matched = null;
+    for (Row existing : cached) {
+      if (matched == null && samePrimaryKey(existing, mutation, primaryKeyFieldNames)) {
+        matched = existing;
+      }
+      else {
+        updated.add(existing);
+      }
+    }
+
+    switch (plan.getMutationType()) {
+      case DELETE:
+        break;
+      case INSERT:
+      case UPSERT:
+        Row inserted = asRecord(mutation, recordSchema,
+            plan.getMutationType() == MutationType.UPSERT ? matched : null);
+        if (inserted == null) {
+          invalidate(key);
+          return;
+        }
+        updated.add(inserted);
+        break;
+      case UPDATE:
+        if (matched == null) {
+          invalidate(key);
+          return;
+        }
+        updated.add(asRecord(mutation, recordSchema, matched));
+        break;
+      default:
+        invalidate(key);
+        return;
+    }
+
+    cache.put(key, ImmutableList.copyOf(updated));
+  }
+
+  private boolean samePrimaryKey(Row existing, Row mutation, List<String> primaryKeyFieldNames) {
+    for (String fieldName : primaryKeyFieldNames) {
+      Object existingValue = RowUtils.get(existing, fieldName);
+      Object mutationValue = RowUtils.get(mutation, fieldName);
+
+      if (existingValue == null ? mutationValue != null : !existingValue.equals(mutationValue)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Lay out the mutation as a record of the output, taking any fields that the mutation does
+  // not contain from the base record. Returns null if there is no base record for those fields.
+  private Row asRecord(Row mutation, StructType recordSchema, Row base) {
+    List<String> mutationFieldNames = Arrays.asList(mutation.schema().fieldNames());
+    Object[] values = new Object[recordSchema.size()];
+
+    for (int i = 0; i < values.length; i++) {
+      String fieldName = recordSchema.fields()[i].name();
+
+      if (mutationFieldNames.contains(fieldName)) {
+        values[i] = RowUtils.get(mutation, fieldName);
+      }
+      else if (base != null) {
+        values[i] = RowUtils.get(base, fieldName);
+      }
+      else {
+        return null;
+      }
+    }
+
+    return new RowWithSchema(recordSchema, values);
+  }
+
+}
@@ -15,25 +15,45 @@
  */
 package com.cloudera.labs.envelope.output;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.spark.sql.DataFrame;
 import org.apache.spark.sql.DataFrameWriter;
+import org.apache.spark.sql.SQLContext;
 import org.apache.spark.sql.SaveMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.cloudera.labs.envelope.plan.MutationType;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class FileSystemOutput implements BulkOutput {
+public class FileSystemOutput implements BulkOutput, BufferedOutput {
+
+  private static Logger LOG = LoggerFactory.getLogger(FileSystemOutput.class);
 
   public final static String FORMAT_CONFIG_NAME = "format";
   public final static String PATH_CONFIG_NAME = "path";
+  public final static String PARTITION_BY_CONFIG_NAME = "partition.by";
+  public final static String OVERWRITE_MODE_CONFIG_NAME = "overwrite.mode";
+
+  public final static String OVERWRITE_MODE_STATIC = "static";
+  public final static String OVERWRITE_MODE_DYNAMIC = "dynamic";
+
+  public final static String STAGING_DIRECTORY_NAME = "_envelope_staging";
 
   private Config config;
+  private MicroBatchBuffer buffer;
+  private SmallFileCompactor compactor;
 
   @Override
   public void configure(Config config) {
@@ -45,45 +65,266 @@ public class FileSystemOutput implements BulkOutput {
     if (!config.hasPath(PATH_CONFIG_NAME)) {
       throw new RuntimeException("Filesystem output requires '" + PATH_CONFIG_NAME + "' property");
     }
+
+    String overwriteMode = getOverwriteMode();
+    if (!overwriteMode.equals(OVERWRITE_MODE_STATIC) && !overwriteMode.equals(OVERWRITE_MODE_DYNAMIC)) {
+      throw new RuntimeException("Filesystem output does not support overwrite mode: " + overwriteMode);
+    }
+    if (overwriteMode.equals(OVERWRITE_MODE_DYNAMIC) && !hasPartitionColumns()) {
+      throw new RuntimeException("Filesystem output requires '" + PARTITION_BY_CONFIG_NAME +
+          "' property for dynamic overwrite mode");
+    }
+
+    if (MicroBatchBuffer.isEnabled(config)) {
+      buffer = MicroBatchBuffer.fromConfig(config);
+    }
+    if (SmallFileCompactor.isEnabled(config)) {
+      compactor = SmallFileCompactor.fromConfig(config, config.getString(FORMAT_CONFIG_NAME));
+    }
   }
 
   @Override
-  public void applyBulkMutations(List<Tuple2<MutationType, DataFrame>> planned) throws Exception {
+  public synchronized void applyBulkMutations(List<Tuple2<MutationType, DataFrame>> planned) throws Exception {
     for (Tuple2<MutationType, DataFrame> plan : planned) {
       MutationType mutationType = plan._1();
       DataFrame mutation = plan._2();
 
-      String format = config.getString(FORMAT_CONFIG_NAME);
-      String path = config.getString(PATH_CONFIG_NAME);
-
-      DataFrameWriter writer = mutation.write();
-      switch (mutationType) {
-        case INSERT:
-          writer = writer.mode(SaveMode.Append);
-          break;
-        case OVERWRITE:
-          writer = writer.mode(SaveMode.Overwrite);
-          break;
-        default:
-          throw new RuntimeException("Filesystem output does not support mutation type: " + mutationType);
+      // Inserts are buffered across micro-batches, but any other mutation is applied in order
+      // after the inserts that were planned before it
+      if (buffer != null && mutationType == MutationType.INSERT) {
+        if (!buffer.accepts(mutation)) {
+          flush();
+        }
+        buffer.add(mutation);
+
+        if (buffer.isFull()) {
+          flush();
+        }
+      }
+      else {
+        flush();
+        applyMutation(mutationType, mutation);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws Exception {
+    if (buffer == null || buffer.isEmpty()) {
+      return;
+    }
+
+    applyMutation(MutationType.INSERT, buffer.getBuffered());
+    buffer.clear();
+  }
+
+  private void applyMutation(MutationType mutationType, DataFrame mutation) throws Exception {
+    String format = config.getString(FORMAT_CONFIG_NAME);
+    String path = config.getString(PATH_CONFIG_NAME);
+
+    DataFrameWriter writer = mutation.write();
+    if (hasPartitionColumns()) {
+      writer = writer.partitionBy(getPartitionColumns());
+    }
+
+    switch (mutationType) {
+      case INSERT:
+        write(writer.mode(SaveMode.Append), format, path);
+        break;
+      case OVERWRITE:
+        // Otherwise the compaction could rename merged copies of replaced files back in
+        if (compactor != null) {
+          compactor.awaitCompaction();
+        }
+
+        if (getOverwriteMode().equals(OVERWRITE_MODE_DYNAMIC)) {
+          overwritePartitions(mutation.sqlContext(), writer, format, path);
+        }
+        else {
+          write(writer.mode(SaveMode.Overwrite), format, path);
+        }
+        break;
+      default:
+        throw new RuntimeException("Filesystem output does not support mutation type: " + mutationType);
+    }
+
+    if (compactor != null) {
+      compactor.compactInBackground(mutation.sqlContext(), path);
+    }
+  }
+
+  /**
+   * Replace only the partitions of the output that the mutation contains. The mutation is
+   * written to a hidden staging directory under the output path, and each staged partition
+   * directory is then swapped with the existing partition directory by renames. Each partition
+   * is replaced as a whole, but between the two renames of a swap the partition is briefly
+   * missing for readers. If any swap fails then the partitions that were already swapped are
+   * swapped back, so that the output is left as it was.
+   */
+  private void overwritePartitions(SQLContext sqlc, DataFrameWriter writer, String format, String path)
+      throws IOException
+  {
+    Path root = new Path(path);
+    FileSystem fs = root.getFileSystem(sqlc.sparkContext().hadoopConfiguration());
+    Path staging = new Path(new Path(root, STAGING_DIRECTORY_NAME), UUID.randomUUID().toString());
+    Path staged = new Path(staging, "new");
+    Path replaced = new Path(staging, "old");
+
+    // Partitions are recorded before their renames, which may have happened even if they fail
+    List<String> swappedIn = Lists.newArrayList();
+    List<String> movedOut = Lists.newArrayList();
+
+    try {
+      write(writer.mode(SaveMode.ErrorIfExists), format, staged.toString());
+
+      List<String> partitions = Lists.newArrayList();
+      addPartitionDirectories(fs, staged, "", getPartitionColumns().length, partitions);
+
+      for (String partition : partitions) {
+        Path target = new Path(root, partition);
+
+        if (fs.exists(target)) {
+          Path old = new Path(replaced, partition);
+          fs.mkdirs(old.getParent());
+          movedOut.add(partition);
+          rename(fs, target, old);
+        }
+        else {
+          fs.mkdirs(target.getParent());
+        }
+
+        swappedIn.add(partition);
+        rename(fs, new Path(staged, partition), target);
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      boolean restored = rollBack(fs, root, staged, replaced, swappedIn, movedOut, e);
+
+      // The old partitions are only deleted along with the staging directory if they are all back
+      try {
+        if (restored && !(fs.exists(replaced) && fs.listFiles(replaced, true).hasNext())) {
+          fs.delete(staging, true);
+        }
+        else {
+          LOG.error("Overwrite of {} could not be fully rolled back, any replaced partitions that " +
+              "were not moved back are in {}", path, replaced);
+        }
+      }
+      catch (IOException cleanupException) {
+        e.addSuppressed(cleanupException);
+      }
+
+      throw e;
+    }
+
+    fs.delete(staging, true);
+  }
+
+  /**
+   * Swap back the partitions of a failed overwrite, by moving the new partitions back to the
+   * staging directory and then moving the old partitions back into place.
+   * @return True if all of the old partitions were moved back into place.
+   */
+  private boolean rollBack(FileSystem fs, Path root, Path staged, Path replaced, List<String> swappedIn,
+                           List<String> movedOut, Exception cause)
+  {
+    boolean restored = true;
+
+    for (String partition : swappedIn) {
+      Path target = new Path(root, partition);
+      Path stagedPartition = new Path(staged, partition);
+
+      try {
+        if (!fs.exists(stagedPartition) && fs.exists(target)) {
+          rename(fs, target, stagedPartition);
+        }
+      }
+      catch (IOException e) {
+        cause.addSuppressed(e);
+        restored = false;
       }
+    }
+
+    for (String partition : movedOut) {
+      Path target = new Path(root, partition);
+      Path old = new Path(replaced, partition);
+
+      try {
+        if (fs.exists(old)) {
+          // Renaming onto an existing directory would move the old partition inside of it
+          if (fs.exists(target)) {
+            throw new IOException("Could not move " + old + " back to " + target + " because it exists");
+          }
+          rename(fs, old, target);
+        }
+      }
+      catch (IOException e) {
+        cause.addSuppressed(e);
+        restored = false;
+      }
+    }
 
-      switch (format) {
-        case "parquet":
-          writer.parquet(path);
-          break;
-        case "avro":
-          writer.format("com.databricks.spark.avro").save(path);
-          break;
-        default:
-          throw new RuntimeException("Filesystem output does not support file format: " + format);
+    return restored;
+  }
+
+  // The relative paths of the leaf partition directories, which are the given number of
+  // directories below the path
+  private static void addPartitionDirectories(FileSystem fs, Path directory, String relativePath, int depth,
+                                              List<String> partitions) throws IOException
+  {
+    if (depth == 0) {
+      partitions.add(relativePath);
+      return;
+    }
+
+    for (FileStatus status : fs.listStatus(directory)) {
+      String name = status.getPath().getName();
+
+      if (status.isDirectory() && !name.startsWith("_") && !name.startsWith(".")) {
+        String childPath = relativePath.isEmpty() ? name : relativePath + Path.SEPARATOR + name;
+        addPartitionDirectories(fs, status.getPath(), childPath, depth - 1, partitions);
       }
     }
   }
 
+  // Package-private so that tests can make an overwrite fail partway through
+  void rename(FileSystem fs, Path from, Path to) throws IOException {
+    if (!fs.rename(from, to)) {
+      throw new IOException("Could not rename " + from + " to " + to);
+    }
+  }
+
+  static void write(DataFrameWriter writer, String format, String path) {
+    switch (format) {
+      case "parquet":
+        writer.parquet(path);
+        break;
+      case "avro":
+        writer.format("com.databricks.spark.avro").save(path);
+        break;
+      default:
+        throw new RuntimeException("Filesystem output does not support file format: " + format);
+    }
+  }
+
   @Override
   public Set<MutationType> getSupportedBulkMutationTypes() {
     return Sets.newHashSet(MutationType.INSERT, MutationType.OVERWRITE);
   }
 
+  private boolean hasPartitionColumns() {
+    return config.hasPath(PARTITION_BY_CONFIG_NAME);
+  }
+
+  private String[] getPartitionColumns() {
+    List<String> partitionColumns = config.getStringList(PARTITION_BY_CONFIG_NAME);
+
+    return partitionColumns.toArray(new String[partitionColumns.size()]);
+  }
+
+  private String getOverwriteMode() {
+    return config.hasPath(OVERWRITE_MODE_CONFIG_NAME) ?
+        config.getString(OVERWRITE_MODE_CONFIG_NAME) : OVERWRITE_MODE_STATIC;
+  }
+
 }
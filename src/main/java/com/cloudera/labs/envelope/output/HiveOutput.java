@@ -19,21 +19,29 @@ import java.util.List;
 import java.util.Set;
 
 import org.apache.kudu.client.shaded.com.google.common.collect.Sets;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.DataFrame;
 import org.apache.spark.sql.DataFrameWriter;
 import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.hive.HiveContext;
 
 import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.spark.Contexts;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class HiveOutput implements BulkOutput {
+public class HiveOutput implements BulkOutput, BufferedOutput {
 
   public final static String TABLE_CONFIG_NAME = "table";
   public final static String PARTITION_BY_CONFIG_NAME = "partition.by";
+  public final static String OVERWRITE_MODE_CONFIG_NAME = "overwrite.mode";
+
+  public final static String OVERWRITE_MODE_STATIC = "static";
+  public final static String OVERWRITE_MODE_DYNAMIC = "dynamic";
 
   private Config config;
+  private MicroBatchBuffer buffer;
 
   @Override
   public void configure(Config config) {
@@ -42,32 +50,108 @@ public class HiveOutput implements BulkOutput {
     if (!config.hasPath(TABLE_CONFIG_NAME)) {
       throw new RuntimeException("Hive output requires '" + TABLE_CONFIG_NAME + "' property");
     }
+
+    String overwriteMode = getOverwriteMode();
+    if (!overwriteMode.equals(OVERWRITE_MODE_STATIC) && !overwriteMode.equals(OVERWRITE_MODE_DYNAMIC)) {
+      throw new RuntimeException("Hive output does not support overwrite mode: " + overwriteMode);
+    }
+    if (overwriteMode.equals(OVERWRITE_MODE_DYNAMIC) && !hasPartitionColumns()) {
+      throw new RuntimeException("Hive output requires '" + PARTITION_BY_CONFIG_NAME +
+          "' property for dynamic overwrite mode");
+    }
+
+    if (MicroBatchBuffer.isEnabled(config)) {
+      buffer = MicroBatchBuffer.fromConfig(config);
+    }
   }
 
   @Override
-  public void applyBulkMutations(List<Tuple2<MutationType, DataFrame>> planned) throws Exception {    
+  public synchronized void applyBulkMutations(List<Tuple2<MutationType, DataFrame>> planned) throws Exception {
     for (Tuple2<MutationType, DataFrame> plan : planned) {
       MutationType mutationType = plan._1();
       DataFrame mutation = plan._2();
-      DataFrameWriter writer = mutation.write();
 
-      if (hasPartitionColumns()) {
-        writer = writer.partitionBy(getPartitionColumns());
+      // Inserts are buffered across micro-batches, but any other mutation is applied in order
+      // after the inserts that were planned before it
+      if (buffer != null && mutationType == MutationType.INSERT) {
+        if (!buffer.accepts(mutation)) {
+          flush();
+        }
+        buffer.add(mutation);
+
+        if (buffer.isFull()) {
+          flush();
+        }
       }
-
-      switch (mutationType) {
-        case INSERT:
-          writer = writer.mode(SaveMode.Append);
-          break;
-        case OVERWRITE:
-          writer = writer.mode(SaveMode.Overwrite);
-          break;
-        default:
-          throw new RuntimeException("Hive output does not support mutation type: " + mutationType);
+      else {
+        flush();
+        applyMutation(mutationType, mutation);
       }
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws Exception {
+    if (buffer == null || buffer.isEmpty()) {
+      return;
+    }
+
+    applyMutation(MutationType.INSERT, buffer.getBuffered());
+    buffer.clear();
+  }
+
+  private void applyMutation(MutationType mutationType, DataFrame mutation) {
+    if (mutationType == MutationType.OVERWRITE && getOverwriteMode().equals(OVERWRITE_MODE_DYNAMIC)) {
+      overwritePartitions(mutation);
+      return;
+    }
+
+    DataFrameWriter writer = mutation.write();
+
+    if (hasPartitionColumns()) {
+      writer = writer.partitionBy(getPartitionColumns());
+    }
 
-      writer.saveAsTable(getTableName());
+    switch (mutationType) {
+      case INSERT:
+        writer = writer.mode(SaveMode.Append);
+        break;
+      case OVERWRITE:
+        writer = writer.mode(SaveMode.Overwrite);
+        break;
+      default:
+        throw new RuntimeException("Hive output does not support mutation type: " + mutationType);
     }
+
+    writer.saveAsTable(getTableName());
+  }
+
+  /**
+   * Replace only the partitions of the table that the mutation contains, by inserting into the
+   * table with dynamic partitioning. Hive writes the mutation to a staging directory and then
+   * replaces each of the partitions in turn.
+   */
+  private void overwritePartitions(DataFrame mutation) {
+    HiveContext hc = mutation.sqlContext() instanceof HiveContext ?
+        (HiveContext)mutation.sqlContext() : Contexts.getHiveContext();
+    if (mutation.sqlContext() != hc) {
+      mutation = hc.createDataFrame(mutation.rdd(), mutation.schema());
+    }
+
+    hc.setConf("hive.exec.dynamic.partition", "true");
+    hc.setConf("hive.exec.dynamic.partition.mode", "nonstrict");
+
+    // Inserts match the columns by position, and the partition columns of the table are last
+    String[] tableColumns = hc.table(getTableName()).columns();
+    Column[] columns = new Column[tableColumns.length];
+    for (int i = 0; i < tableColumns.length; i++) {
+      columns[i] = mutation.col(tableColumns[i]);
+    }
+
+    mutation.select(columns).write()
+        .mode(SaveMode.Overwrite)
+        .partitionBy(getPartitionColumns())
+        .insertInto(getTableName());
   }
 
   @Override
@@ -80,7 +164,14 @@ public class HiveOutput implements BulkOutput {
   }
 
   private String[] getPartitionColumns() {
-    return (String[])config.getList(PARTITION_BY_CONFIG_NAME).toArray();
+    List<String> partitionColumns = config.getStringList(PARTITION_BY_CONFIG_NAME);
+
+    return partitionColumns.toArray(new String[partitionColumns.size()]);
+  }
+
+  private String getOverwriteMode() {
+    return config.hasPath(OVERWRITE_MODE_CONFIG_NAME) ?
+        config.getString(OVERWRITE_MODE_CONFIG_NAME) : OVERWRITE_MODE_STATIC;
   }
 
   private String getTableName() {
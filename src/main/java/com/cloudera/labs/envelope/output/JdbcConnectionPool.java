@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal pool of the JDBC connections of one database and user, so that the tasks of an
+ * executor reuse connections rather than opening a new connection each time. Connections are
+ * only opened on demand, so there is no limit on how many are in use at once, but at most the
+ * maximum number of idle connections are kept open between uses.
+ */
+class JdbcConnectionPool {
+
+  private static Logger LOG = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+  private final String url;
+  private final String username;
+  private final String password;
+  private final BlockingDeque<Connection> idle;
+
+  JdbcConnectionPool(String url, String username, String password, int maxIdle) {
+    this.url = url;
+    this.username = username;
+    this.password = password;
+    this.idle = new LinkedBlockingDeque<>(maxIdle);
+  }
+
+  /**
+   * @return An open connection, which must be given back to the pool with release.
+   */
+  Connection borrow() throws SQLException {
+    Connection connection;
+
+    // The most recently used connections are the least likely to have been closed by the database
+    while ((connection = idle.pollFirst()) != null) {
+      if (isValid(connection)) {
+        return connection;
+      }
+
+      close(connection);
+    }
+
+    LOG.debug("Opening JDBC connection to {}", url);
+
+    return DriverManager.getConnection(url, username, password);
+  }
+
+  /**
+   * Give a connection back to the pool. Connections that were being used when an error
+   * occurred are closed rather than reused, as their state is not known.
+   */
+  void release(Connection connection, boolean reusable) {
+    if (!reusable || !idle.offerFirst(connection)) {
+      close(connection);
+    }
+  }
+
+  private static boolean isValid(Connection connection) {
+    try {
+      return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+    }
+    catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    }
+    catch (SQLException e) {
+      LOG.warn("Could not close JDBC connection", e);
+    }
+  }
+
+}
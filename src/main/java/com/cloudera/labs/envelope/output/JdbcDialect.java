@@ -0,0 +1,166 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * The SQL that differs between the databases that the JDBC output writes to. Only upserts
+ * differ, as the other mutation types are written with standard SQL.
+ */
+public enum JdbcDialect {
+
+  H2 {
+    @Override
+    String upsertStatement(String tableName, List<String> columnNames, List<String> keyColumnNames) {
+      return "MERGE INTO " + tableName + " (" + COMMA.join(columnNames) + ") KEY (" +
+          COMMA.join(keyColumnNames) + ") VALUES (" + parameters(columnNames.size()) + ")";
+    }
+  },
+
+  POSTGRES {
+    @Override
+    String upsertStatement(String tableName, List<String> columnNames, List<String> keyColumnNames) {
+      List<String> assignments = Lists.newArrayList();
+      for (String columnName : valueColumnNames(columnNames, keyColumnNames)) {
+        assignments.add(columnName + " = EXCLUDED." + columnName);
+      }
+
+      return insertStatement(tableName, columnNames) + " ON CONFLICT (" + COMMA.join(keyColumnNames) + ") " +
+          (assignments.isEmpty() ? "DO NOTHING" : "DO UPDATE SET " + COMMA.join(assignments));
+    }
+  },
+
+  MYSQL {
+    @Override
+    String upsertStatement(String tableName, List<String> columnNames, List<String> keyColumnNames) {
+      List<String> assignments = Lists.newArrayList();
+      for (String columnName : valueColumnNames(columnNames, keyColumnNames)) {
+        assignments.add(columnName + " = VALUES(" + columnName + ")");
+      }
+      // An assignment is required, and assigning a key to itself leaves an existing row as is
+      if (assignments.isEmpty()) {
+        assignments.add(keyColumnNames.get(0) + " = " + keyColumnNames.get(0));
+      }
+
+      return insertStatement(tableName, columnNames) + " ON DUPLICATE KEY UPDATE " + COMMA.join(assignments);
+    }
+  },
+
+  GENERIC {
+    @Override
+    boolean supportsUpsert() {
+      return false;
+    }
+
+    @Override
+    String upsertStatement(String tableName, List<String> columnNames, List<String> keyColumnNames) {
+      throw new RuntimeException("JDBC output does not support upserts for this database");
+    }
+  };
+
+  private static final Joiner COMMA = Joiner.on(", ");
+  private static final Joiner AND = Joiner.on(" AND ");
+
+  /**
+   * @return The dialect with the given name, or the dialect of the database of the JDBC URL
+   * if no name is given.
+   */
+  public static JdbcDialect forName(String name, String url) {
+    if (name != null) {
+      return JdbcDialect.valueOf(name.toUpperCase());
+    }
+
+    if (url.startsWith("jdbc:h2:")) {
+      return H2;
+    }
+    else if (url.startsWith("jdbc:postgresql:")) {
+      return POSTGRES;
+    }
+    else if (url.startsWith("jdbc:mysql:")) {
+      return MYSQL;
+    }
+    else {
+      return GENERIC;
+    }
+  }
+
+  boolean supportsUpsert() {
+    return true;
+  }
+
+  abstract String upsertStatement(String tableName, List<String> columnNames, List<String> keyColumnNames);
+
+  String insertStatement(String tableName, List<String> columnNames) {
+    return "INSERT INTO " + tableName + " (" + COMMA.join(columnNames) + ") VALUES (" +
+        parameters(columnNames.size()) + ")";
+  }
+
+  String updateStatement(String tableName, List<String> valueColumnNames, List<String> keyColumnNames) {
+    List<String> assignments = Lists.newArrayList();
+    for (String columnName : valueColumnNames) {
+      assignments.add(columnName + " = ?");
+    }
+
+    return "UPDATE " + tableName + " SET " + COMMA.join(assignments) + " WHERE " + keysMatch(keyColumnNames);
+  }
+
+  String deleteStatement(String tableName, List<String> keyColumnNames) {
+    return "DELETE FROM " + tableName + " WHERE " + keysMatch(keyColumnNames);
+  }
+
+  /**
+   * @return A query for the rows that match any of the given number of keys.
+   */
+  String selectForKeysStatement(String tableName, List<String> keyColumnNames, int numKeys) {
+    List<String> keys = Lists.newArrayListWithCapacity(numKeys);
+    String keyMatch = "(" + keysMatch(keyColumnNames) + ")";
+    for (int i = 0; i < numKeys; i++) {
+      keys.add(keyMatch);
+    }
+
+    return "SELECT * FROM " + tableName + " WHERE " + Joiner.on(" OR ").join(keys);
+  }
+
+  static List<String> valueColumnNames(List<String> columnNames, List<String> keyColumnNames) {
+    List<String> valueColumnNames = Lists.newArrayList(columnNames);
+    valueColumnNames.removeAll(keyColumnNames);
+
+    return valueColumnNames;
+  }
+
+  private static String keysMatch(List<String> keyColumnNames) {
+    List<String> matches = Lists.newArrayList();
+    for (String columnName : keyColumnNames) {
+      matches.add(columnName + " = ?");
+    }
+
+    return AND.join(matches);
+  }
+
+  private static String parameters(int numParameters) {
+    List<String> parameters = Lists.newArrayListWithCapacity(numParameters);
+    for (int i = 0; i < numParameters; i++) {
+      parameters.add("?");
+    }
+
+    return COMMA.join(parameters);
+  }
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.DecimalType;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import scala.Tuple2;
+
+/**
+ * Writes mutations to a JDBC table in batches of prepared statements. Each combination of
+ * mutation type and schema has its own statement, which is prepared once and kept open for
+ * the life of the writer, so interleaved mutation types are still batched. Mutations of
+ * different keys can be executed in a different order to the one they are given in, but the
+ * mutations of each key are always executed in order. The writer does not commit, which is
+ * left to the caller.
+ */
+class JdbcMutationWriter {
+
+  private final Connection connection;
+  private final String tableName;
+  private final List<String> keyFieldNames;
+  private final JdbcDialect dialect;
+  private final int batchSize;
+
+  private final Map<Tuple2<MutationType, StructType>, BatchedStatement> statements = Maps.newHashMap();
+
+  JdbcMutationWriter(Connection connection, String tableName, List<String> keyFieldNames, JdbcDialect dialect,
+                     int batchSize)
+  {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.keyFieldNames = keyFieldNames;
+    this.dialect = dialect;
+    this.batchSize = batchSize;
+  }
+
+  void write(MutationType mutationType, StructType schema, Row row) throws SQLException {
+    Tuple2<MutationType, StructType> statementKey = new Tuple2<>(mutationType, schema);
+    BatchedStatement statement = statements.get(statementKey);
+    if (statement == null) {
+      statement = prepare(mutationType, schema);
+      statements.put(statementKey, statement);
+    }
+
+    List<Object> key = statement.keyOf(row);
+
+    // Any earlier mutation of the same key that is batched in another statement is executed
+    // first, so that each key is only ever batched in one statement
+    for (BatchedStatement other : statements.values()) {
+      if (other != statement && other.mayContain(key)) {
+        other.execute();
+      }
+    }
+
+    statement.add(row, key);
+
+    if (statement.batched == batchSize) {
+      statement.execute();
+    }
+  }
+
+  /**
+   * Execute the mutations that are not yet executed.
+   */
+  void flush() throws SQLException {
+    for (BatchedStatement statement : statements.values()) {
+      statement.execute();
+    }
+  }
+
+  /**
+   * Close the prepared statements. Any mutations that have not been flushed are discarded.
+   */
+  void close() {
+    for (BatchedStatement statement : statements.values()) {
+      try {
+        statement.statement.close();
+      }
+      catch (SQLException e) {
+        // The statement is also closed along with its connection
+      }
+    }
+
+    statements.clear();
+  }
+
+  private BatchedStatement prepare(MutationType mutationType, StructType schema) throws SQLException {
+    List<String> fieldNames = Arrays.asList(schema.fieldNames());
+    List<String> parameterFieldNames;
+    String sql;
+
+    switch (mutationType) {
+      case INSERT:
+        parameterFieldNames = fieldNames;
+        sql = dialect.insertStatement(tableName, fieldNames);
+        break;
+      case UPSERT:
+        requireKeys(mutationType);
+        parameterFieldNames = fieldNames;
+        sql = dialect.upsertStatement(tableName, fieldNames, keyFieldNames);
+        break;
+      case UPDATE:
+        requireKeys(mutationType);
+        List<String> valueFieldNames = JdbcDialect.valueColumnNames(fieldNames, keyFieldNames);
+        if (valueFieldNames.isEmpty()) {
+          throw new RuntimeException("JDBC output can not update a row that only contains key fields");
+        }
+        parameterFieldNames = Lists.newArrayList(valueFieldNames);
+        parameterFieldNames.addAll(keyFieldNames);
+        sql = dialect.updateStatement(tableName, valueFieldNames, keyFieldNames);
+        break;
+      case DELETE:
+        requireKeys(mutationType);
+        parameterFieldNames = keyFieldNames;
+        sql = dialect.deleteStatement(tableName, keyFieldNames);
+        break;
+      default:
+        throw new RuntimeException("JDBC output does not support mutation type: " + mutationType);
+    }
+
+    int[] parameterFields = new int[parameterFieldNames.size()];
+    int[] parameterTypes = new int[parameterFieldNames.size()];
+    for (int i = 0; i < parameterFields.length; i++) {
+      parameterFields[i] = schema.fieldIndex(parameterFieldNames.get(i));
+      parameterTypes[i] = sqlTypeFor(schema.fields()[parameterFields[i]].dataType());
+    }
+
+    // Without all of the key fields the keys of the mutations are not known
+    int[] keyFields = null;
+    if (keyFieldNames != null && !keyFieldNames.isEmpty() && fieldNames.containsAll(keyFieldNames)) {
+      keyFields = new int[keyFieldNames.size()];
+      for (int i = 0; i < keyFields.length; i++) {
+        keyFields[i] = schema.fieldIndex(keyFieldNames.get(i));
+      }
+    }
+
+    return new BatchedStatement(connection.prepareStatement(sql), parameterFields, parameterTypes, keyFields);
+  }
+
+  private void requireKeys(MutationType mutationType) {
+    if (keyFieldNames == null || keyFieldNames.isEmpty()) {
+      throw new RuntimeException("JDBC output requires '" + JdbcOutput.JDBC_CONFIG_KEY_FIELD_NAMES +
+          "' property for mutation type: " + mutationType);
+    }
+  }
+
+  // Only used for null values, where some drivers need to know the type of the column
+  private static int sqlTypeFor(DataType dataType) {
+    if (dataType.equals(DataTypes.StringType)) {
+      return Types.VARCHAR;
+    }
+    else if (dataType.equals(DataTypes.IntegerType)) {
+      return Types.INTEGER;
+    }
+    else if (dataType.equals(DataTypes.LongType)) {
+      return Types.BIGINT;
+    }
+    else if (dataType.equals(DataTypes.DoubleType)) {
+      return Types.DOUBLE;
+    }
+    else if (dataType.equals(DataTypes.FloatType)) {
+      return Types.REAL;
+    }
+    else if (dataType.equals(DataTypes.ShortType)) {
+      return Types.SMALLINT;
+    }
+    else if (dataType.equals(DataTypes.ByteType)) {
+      return Types.TINYINT;
+    }
+    else if (dataType.equals(DataTypes.BooleanType)) {
+      return Types.BOOLEAN;
+    }
+    else if (dataType.equals(DataTypes.TimestampType)) {
+      return Types.TIMESTAMP;
+    }
+    else if (dataType.equals(DataTypes.DateType)) {
+      return Types.DATE;
+    }
+    else if (dataType.equals(DataTypes.BinaryType)) {
+      return Types.BINARY;
+    }
+    else if (dataType instanceof DecimalType) {
+      return Types.DECIMAL;
+    }
+    else {
+      return Types.NULL;
+    }
+  }
+
+  /**
+   * A prepared statement and the keys of the mutations that are batched in it but not yet
+   * executed. A null key is a mutation whose key is not known, which could be of any key.
+   */
+  private static class BatchedStatement {
+    private final PreparedStatement statement;
+    private final int[] parameterFields;
+    private final int[] parameterTypes;
+    private final int[] keyFields;
+
+    private final Set<List<Object>> batchedKeys = Sets.newHashSet();
+    private boolean batchedUnknownKey = false;
+    private int batched = 0;
+
+    BatchedStatement(PreparedStatement statement, int[] parameterFields, int[] parameterTypes, int[] keyFields) {
+      this.statement = statement;
+      this.parameterFields = parameterFields;
+      this.parameterTypes = parameterTypes;
+      this.keyFields = keyFields;
+    }
+
+    List<Object> keyOf(Row row) {
+      if (keyFields == null) {
+        return null;
+      }
+
+      List<Object> key = Lists.newArrayListWithCapacity(keyFields.length);
+      for (int keyField : keyFields) {
+        key.add(row.get(keyField));
+      }
+
+      return key;
+    }
+
+    boolean mayContain(List<Object> key) {
+      if (batched == 0) {
+        return false;
+      }
+
+      return key == null || batchedUnknownKey || batchedKeys.contains(key);
+    }
+
+    void add(Row row, List<Object> key) throws SQLException {
+      for (int i = 0; i < parameterFields.length; i++) {
+        Object value = row.get(parameterFields[i]);
+
+        if (value == null) {
+          statement.setNull(i + 1, parameterTypes[i]);
+        }
+        else {
+          statement.setObject(i + 1, value);
+        }
+      }
+      statement.addBatch();
+
+      if (key == null) {
+        batchedUnknownKey = true;
+      }
+      else {
+        batchedKeys.add(key);
+      }
+      batched++;
+    }
+
+    void execute() throws SQLException {
+      if (batched == 0) {
+        return;
+      }
+
+      statement.executeBatch();
+      batchedKeys.clear();
+      batchedUnknownKey = false;
+      batched = 0;
+    }
+  }
+
+}
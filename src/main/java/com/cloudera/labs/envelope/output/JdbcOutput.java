@@ -15,26 +15,63 @@
  */
 package com.cloudera.labs.envelope.output;
 
-
-import com.cloudera.labs.envelope.plan.MutationType;
-import com.typesafe.config.Config;
-import com.google.common.collect.Sets;
-import org.apache.spark.sql.DataFrame;
-import scala.Tuple2;
-
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
-public class JdbcOutput implements BulkOutput  {
+import org.apache.spark.api.java.function.VoidFunction;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
 
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * Writes to a table of a database through JDBC. Bulk inserts are written by Spark, which
+ * creates the table. All other mutations, and all random mutations, are written to an existing
+ * table in batches of prepared statements over connections that are pooled in each executor.
+ */
+public class JdbcOutput implements BulkOutput, RandomOutput {
 
   public static final String JDBC_CONFIG_URL = "url";
   public static final String JDBC_CONFIG_TABLENAME = "tablename";
   public static final String JDBC_CONFIG_USERNAME = "username";
   public static final String JDBC_CONFIG_PASSWORD = "password";
+  public static final String JDBC_CONFIG_KEY_FIELD_NAMES = "fields.key";
+  public static final String JDBC_CONFIG_DIALECT = "dialect";
+  public static final String JDBC_CONFIG_BATCH_SIZE = "batch.size";
+  public static final String JDBC_CONFIG_POOL_MAX_IDLE = "pool.max.idle";
+  public static final String JDBC_CONFIG_LOOKUP_CHUNK_SIZE = "existing.lookup.chunk.size";
+
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final int DEFAULT_POOL_MAX_IDLE = 4;
+  private static final int DEFAULT_LOOKUP_CHUNK_SIZE = 100;
+
+  // Executor-local connection pools, keyed by database URL and user
+  private static Map<String, JdbcConnectionPool> pools = Maps.newHashMap();
 
   private Config config;
+  private JdbcDialect dialect;
 
   @Override
   public void configure(Config config) {
@@ -56,11 +93,28 @@ public class JdbcOutput implements BulkOutput  {
     if (!config.hasPath(JDBC_CONFIG_PASSWORD)) {
       throw new RuntimeException("JDBC output requires '" + JDBC_CONFIG_PASSWORD + "' property");
     }
+
+    dialect = JdbcDialect.forName(config.hasPath(JDBC_CONFIG_DIALECT) ? config.getString(JDBC_CONFIG_DIALECT) : null,
+        config.getString(JDBC_CONFIG_URL));
   }
 
   @Override
   public Set<MutationType> getSupportedBulkMutationTypes() {
-    return Sets.newHashSet(MutationType.INSERT);
+    return getSupportedMutationTypes();
+  }
+
+  @Override
+  public Set<MutationType> getSupportedRandomMutationTypes() {
+    return getSupportedMutationTypes();
+  }
+
+  private Set<MutationType> getSupportedMutationTypes() {
+    Set<MutationType> mutationTypes = Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE, MutationType.DELETE);
+    if (dialect.supportsUpsert()) {
+      mutationTypes.add(MutationType.UPSERT);
+    }
+
+    return mutationTypes;
   }
 
   @Override
@@ -80,10 +134,316 @@ public class JdbcOutput implements BulkOutput  {
         case INSERT:
           mutation.write().jdbc(url, tablename, properties);
           break;
+        case UPDATE:
+        case UPSERT:
+        case DELETE:
+          mutation.javaRDD().foreachPartition(new ApplyPartitionFunction(config, mutationType, mutation.schema()));
+          break;
         default:
           throw new RuntimeException("JDBC output does not support mutation type: " + mutationType);
       }
 
     }
   }
+
+  @Override
+  public void applyRandomMutations(final List<PlannedRow> planned) throws Exception {
+    applyMutations(new MutationsWriter() {
+      @Override
+      public void write(JdbcMutationWriter writer) throws SQLException {
+        for (PlannedRow plan : planned) {
+          writer.write(plan.getMutationType(), plan.getRow().schema(), plan.getRow());
+        }
+      }
+    });
+  }
+
+  /**
+   * Look up the existing records of the filters with one query per chunk of filters. The
+   * existing records have the field names of the filters and the configured key fields, matched
+   * case-insensitively to the column names that the database reports for the table.
+   */
+  @Override
+  public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
+    List<Row> filtersList = Lists.newArrayList(filters);
+    List<Row> existing = Lists.newArrayList();
+
+    if (filtersList.isEmpty()) {
+      return existing;
+    }
+
+    int chunkSize = config.hasPath(JDBC_CONFIG_LOOKUP_CHUNK_SIZE) ?
+        config.getInt(JDBC_CONFIG_LOOKUP_CHUNK_SIZE) : DEFAULT_LOOKUP_CHUNK_SIZE;
+    String tableName = config.getString(JDBC_CONFIG_TABLENAME);
+
+    JdbcConnectionPool pool = getPool();
+    Connection connection = pool.borrow();
+    boolean succeeded = false;
+
+    try {
+      boolean upperCaseColumns = connection.getMetaData().storesUpperCaseIdentifiers();
+
+      for (List<Row> chunk : Lists.partition(filtersList, chunkSize)) {
+        StructType filterSchema = chunk.get(0).schema();
+        List<String> filterFieldNames = Lists.newArrayList(filterSchema.fieldNames());
+        Map<String, String> fieldNames = fieldNamesFor(filterFieldNames);
+        String sql = dialect.selectForKeysStatement(tableName, filterFieldNames, chunk.size());
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+          int parameter = 1;
+          for (Row filter : chunk) {
+            for (int i = 0; i < filter.length(); i++) {
+              statement.setObject(parameter++, filter.get(i));
+            }
+          }
+
+          try (ResultSet results = statement.executeQuery()) {
+            addRows(results, fieldNames, upperCaseColumns, existing);
+          }
+        }
+      }
+
+      succeeded = true;
+    }
+    finally {
+      pool.release(connection, succeeded);
+    }
+
+    return existing;
+  }
+
+  private void applyMutations(MutationsWriter mutations) throws Exception {
+    List<String> keyFieldNames = config.hasPath(JDBC_CONFIG_KEY_FIELD_NAMES) ?
+        config.getStringList(JDBC_CONFIG_KEY_FIELD_NAMES) : Collections.<String>emptyList();
+    int batchSize = config.hasPath(JDBC_CONFIG_BATCH_SIZE) ?
+        config.getInt(JDBC_CONFIG_BATCH_SIZE) : DEFAULT_BATCH_SIZE;
+
+    JdbcConnectionPool pool = getPool();
+    Connection connection = pool.borrow();
+    JdbcMutationWriter writer = null;
+    boolean succeeded = false;
+
+    // The mutations of each call are committed together
+    try {
+      connection.setAutoCommit(false);
+
+      writer = new JdbcMutationWriter(connection, config.getString(JDBC_CONFIG_TABLENAME),
+          keyFieldNames, dialect, batchSize);
+      mutations.write(writer);
+      writer.flush();
+
+      connection.commit();
+      succeeded = true;
+    }
+    finally {
+      if (writer != null) {
+        writer.close();
+      }
+
+      if (!succeeded) {
+        try {
+          connection.rollback();
+        }
+        catch (SQLException e) {
+          // The connection is closed rather than reused, which also discards the transaction
+        }
+      }
+
+      pool.release(connection, succeeded);
+    }
+  }
+
+  private JdbcConnectionPool getPool() {
+    String url = config.getString(JDBC_CONFIG_URL);
+    String username = config.getString(JDBC_CONFIG_USERNAME);
+    String poolKey = url + "|" + username;
+
+    synchronized (pools) {
+      JdbcConnectionPool pool = pools.get(poolKey);
+
+      if (pool == null) {
+        int maxIdle = config.hasPath(JDBC_CONFIG_POOL_MAX_IDLE) ?
+            config.getInt(JDBC_CONFIG_POOL_MAX_IDLE) : DEFAULT_POOL_MAX_IDLE;
+        pool = new JdbcConnectionPool(url, username, config.getString(JDBC_CONFIG_PASSWORD), maxIdle);
+        pools.put(poolKey, pool);
+      }
+
+      return pool;
+    }
+  }
+
+  // Databases such as Oracle, DB2 and H2 report unquoted column names in upper case, so the
+  // column names are mapped back to the field names that the pipeline knows. Other columns are
+  // assumed to have been created with unquoted lower case names.
+  private Map<String, String> fieldNamesFor(List<String> filterFieldNames) {
+    Map<String, String> fieldNames = Maps.newHashMap();
+
+    if (config.hasPath(JDBC_CONFIG_KEY_FIELD_NAMES)) {
+      for (String keyFieldName : config.getStringList(JDBC_CONFIG_KEY_FIELD_NAMES)) {
+        fieldNames.put(keyFieldName.toLowerCase(), keyFieldName);
+      }
+    }
+    for (String filterFieldName : filterFieldNames) {
+      fieldNames.put(filterFieldName.toLowerCase(), filterFieldName);
+    }
+
+    return fieldNames;
+  }
+
+  private static String fieldNameFor(String columnName, Map<String, String> fieldNames,
+                                     boolean upperCaseColumns)
+  {
+    String fieldName = fieldNames.get(columnName.toLowerCase());
+
+    if (fieldName != null) {
+      return fieldName;
+    }
+    else if (upperCaseColumns && columnName.equals(columnName.toUpperCase())) {
+      return columnName.toLowerCase();
+    }
+    else {
+      return columnName;
+    }
+  }
+
+  private static void addRows(ResultSet results, Map<String, String> fieldNames, boolean upperCaseColumns,
+                              List<Row> rows) throws SQLException
+  {
+    ResultSetMetaData metadata = results.getMetaData();
+    int numColumns = metadata.getColumnCount();
+
+    List<StructField> fields = Lists.newArrayListWithCapacity(numColumns);
+    for (int i = 1; i <= numColumns; i++) {
+      String fieldName = fieldNameFor(metadata.getColumnLabel(i), fieldNames, upperCaseColumns);
+      fields.add(DataTypes.createStructField(fieldName, dataTypeFor(metadata, i), true));
+    }
+    StructType schema = DataTypes.createStructType(fields);
+
+    while (results.next()) {
+      Object[] values = new Object[numColumns];
+
+      for (int i = 0; i < numColumns; i++) {
+        values[i] = valueFor(results, i + 1, schema.fields()[i].dataType());
+      }
+
+      rows.add(new RowWithSchema(schema, values));
+    }
+  }
+
+  // The same mappings from JDBC types as Spark uses when reading a JDBC table
+  private static DataType dataTypeFor(ResultSetMetaData metadata, int column) throws SQLException {
+    switch (metadata.getColumnType(column)) {
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.LONGVARCHAR:
+      case Types.NCHAR:
+      case Types.NVARCHAR:
+      case Types.LONGNVARCHAR:
+      case Types.CLOB:
+        return DataTypes.StringType;
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+        return DataTypes.IntegerType;
+      case Types.BIGINT:
+        return DataTypes.LongType;
+      case Types.FLOAT:
+      case Types.DOUBLE:
+        return DataTypes.DoubleType;
+      case Types.REAL:
+        return DataTypes.FloatType;
+      case Types.BIT:
+      case Types.BOOLEAN:
+        return DataTypes.BooleanType;
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return DataTypes.createDecimalType(metadata.getPrecision(column), metadata.getScale(column));
+      case Types.DATE:
+        return DataTypes.DateType;
+      case Types.TIMESTAMP:
+        return DataTypes.TimestampType;
+      case Types.BINARY:
+      case Types.VARBINARY:
+      case Types.LONGVARBINARY:
+      case Types.BLOB:
+        return DataTypes.BinaryType;
+      default:
+        throw new RuntimeException("JDBC output does not support column type " + metadata.getColumnTypeName(column) +
+            " of column " + metadata.getColumnLabel(column));
+    }
+  }
+
+  private static Object valueFor(ResultSet results, int column, DataType dataType) throws SQLException {
+    Object value;
+
+    if (dataType.equals(DataTypes.StringType)) {
+      value = results.getString(column);
+    }
+    else if (dataType.equals(DataTypes.IntegerType)) {
+      value = results.getInt(column);
+    }
+    else if (dataType.equals(DataTypes.LongType)) {
+      value = results.getLong(column);
+    }
+    else if (dataType.equals(DataTypes.DoubleType)) {
+      value = results.getDouble(column);
+    }
+    else if (dataType.equals(DataTypes.FloatType)) {
+      value = results.getFloat(column);
+    }
+    else if (dataType.equals(DataTypes.BooleanType)) {
+      value = results.getBoolean(column);
+    }
+    else if (dataType.equals(DataTypes.DateType)) {
+      value = results.getDate(column);
+    }
+    else if (dataType.equals(DataTypes.TimestampType)) {
+      value = results.getTimestamp(column);
+    }
+    else if (dataType.equals(DataTypes.BinaryType)) {
+      value = results.getBytes(column);
+    }
+    else {
+      value = results.getBigDecimal(column);
+    }
+
+    return results.wasNull() ? null : value;
+  }
+
+  private interface MutationsWriter {
+    void write(JdbcMutationWriter writer) throws SQLException;
+  }
+
+  /**
+   * Applies the bulk mutations of each Spark partition on the executors, with one transaction
+   * for each partition.
+   */
+  @SuppressWarnings("serial")
+  private static class ApplyPartitionFunction implements VoidFunction<Iterator<Row>> {
+    private Config config;
+    private MutationType mutationType;
+    private StructType schema;
+
+    public ApplyPartitionFunction(Config config, MutationType mutationType, StructType schema) {
+      this.config = config;
+      this.mutationType = mutationType;
+      this.schema = schema;
+    }
+
+    @Override
+    public void call(final Iterator<Row> rows) throws Exception {
+      JdbcOutput output = new JdbcOutput();
+      output.configure(config);
+
+      output.applyMutations(new MutationsWriter() {
+        @Override
+        public void write(JdbcMutationWriter writer) throws SQLException {
+          while (rows.hasNext()) {
+            writer.write(mutationType, schema, rows.next());
+          }
+        }
+      });
+    }
+  }
+
 }
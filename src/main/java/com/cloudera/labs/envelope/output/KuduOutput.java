@@ -15,53 +15,91 @@
  */
 package com.cloudera.labs.envelope.output;
 
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
 import org.apache.kudu.client.KuduClient;
 import org.apache.kudu.client.KuduException;
 import org.apache.kudu.client.KuduPredicate;
+import org.apache.kudu.client.KuduPredicate.ComparisonOp;
 import org.apache.kudu.client.KuduScanner;
 import org.apache.kudu.client.KuduScanner.KuduScannerBuilder;
 import org.apache.kudu.client.KuduSession;
 import org.apache.kudu.client.KuduTable;
+import org.apache.kudu.client.LocatedTablet;
 import org.apache.kudu.client.Operation;
 import org.apache.kudu.client.PartialRow;
+import org.apache.kudu.client.PartitionSchema;
+import org.apache.kudu.client.PartitionSchema.HashBucketSchema;
 import org.apache.kudu.client.RowError;
+import org.apache.kudu.client.RowErrorsAndOverflowStatus;
 import org.apache.kudu.client.RowResult;
 import org.apache.kudu.client.SessionConfiguration.FlushMode;
 import org.apache.kudu.spark.kudu.KuduContext;
+import org.apache.spark.Partitioner;
 import org.apache.spark.sql.DataFrame;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.cloudera.labs.envelope.plan.ExistingPredicate;
 import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
-import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.spark.Contexts;
 import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class KuduOutput implements RandomOutput, BulkOutput {
+public class KuduOutput implements PartitionedOutput, PredicatedOutput, BulkOutput, ReadableOutput {
 
   public static final String CONNECTION_CONFIG_NAME = "connection";
   public static final String TABLE_CONFIG_NAME = "table.name"; 
+  public static final String PARTITIONER_ENABLED_CONFIG_NAME = "partitioner.enabled";
+  public static final String SCAN_CHUNK_SIZE_CONFIG_NAME = "existing.scan.chunk.size";
+  public static final String SCAN_PARALLELISM_CONFIG_NAME = "existing.scan.parallelism";
+
+  public static final String SESSION_BUFFER_SIZE_CONFIG_NAME = "session.buffer.size";
+  public static final String SESSION_FLUSH_INTERVAL_MS_CONFIG_NAME = "session.flush.interval.ms";
+
+  private static final int DEFAULT_SESSION_BUFFER_SIZE = 10000;
+  private static final int DEFAULT_SCAN_CHUNK_SIZE = 1000;
+  private static final int DEFAULT_SCAN_PARALLELISM = 4;
+
+  private static final long TABLET_LOCATIONS_TIMEOUT_MS = 60000;
 
   private Config config;
 
   private static KuduClient client;
-  private static KuduSession session;
   private static Map<String, KuduTable> tables;
-  private static Map<String, StructType> tableSchemas;
+  private static Map<String, KuduRowConverter> converters;
+  private static Map<String, ExistingRecordCache> existingCaches;
+  private static ExecutorService scanThreadPool;
 
   private static Logger LOG = LoggerFactory.getLogger(KuduOutput.class);
 
@@ -75,24 +113,74 @@ public class KuduOutput implements RandomOutput, BulkOutput {
     KuduTable table = connectToTable();
 
     List<Operation> operations = extractOperations(planned, table);
+    ExistingRecordCache existingCache = getExistingCache(table, config);
+
+    try {
+      // Each call has its own session so that tasks running in the same executor do not flush or
+      // collect the errors of each other's mutations
+      applyOperations(newSession(), operations);
+    }
+    catch (Exception e) {
+      // It is not known which of the mutations were applied
+      if (existingCache != null) {
+        existingCache.invalidateMutations(planned);
+      }
 
-    for (Operation operation : operations) {
-      session.apply(operation);
+      throw e;
     }
 
-    // Wait until all operations have completed before checking for errors.
-    while (session.hasPendingOperations()) {
-      Thread.sleep(1);
+    // Write the applied mutations through to the cached existing records
+    if (existingCache != null) {
+      StructType tableSchema = getTableSchema(table);
+      List<String> primaryKeyFieldNames = primaryKeyFieldNamesFor(table);
+
+      for (PlannedRow plan : planned) {
+        existingCache.applyMutation(plan, tableSchema, primaryKeyFieldNames);
+      }
     }
+  }
+
+  // Apply the operations and then close the session, failing with every error of the operations
+  static void applyOperations(KuduSession session, List<Operation> operations) throws Exception {
+    try {
+      for (Operation operation : operations) {
+        session.apply(operation);
+      }
+
+      // Blocks until all operations have completed, so that the errors can be checked
+      session.flush();
 
-    // Fail fast on any error applying mutations
-    if (session.countPendingErrors() > 0) {
-      RowError firstError = session.getPendingErrors().getRowErrors()[0];
-      String errorMessage = String.format("Kudu output error '{}' during operation '{}' at tablet server '{}'",
-          firstError.getErrorStatus(), firstError.getOperation(), firstError.getTsUUID());
+      // Fail fast on any error applying mutations, reporting every error
+      if (session.countPendingErrors() > 0) {
+        RowErrorsAndOverflowStatus pendingErrors = session.getPendingErrors();
+        RowError[] rowErrors = pendingErrors.getRowErrors();
 
-      throw new RuntimeException(errorMessage);
+        for (RowError rowError : rowErrors) {
+          LOG.error("Kudu output error '{}' during operation '{}' at tablet server '{}'",
+              rowError.getErrorStatus(), rowError.getOperation(), rowError.getTsUUID());
+        }
+
+        String errorMessage = String.format("Kudu output had %d%s errors, the first of which was '%s' " +
+            "during operation '%s' at tablet server '%s'", rowErrors.length,
+            pendingErrors.isOverflowed() ? " or more" : "", rowErrors[0].getErrorStatus(),
+            rowErrors[0].getOperation(), rowErrors[0].getTsUUID());
+
+        throw new RuntimeException(errorMessage);
+      }
+    }
+    catch (Exception e) {
+      // A failure to close the session must not hide why the operations failed
+      try {
+        session.close();
+      }
+      catch (Exception closeException) {
+        e.addSuppressed(closeException);
+      }
+
+      throw e;
     }
+
+    session.close();
   }
 
   @Override
@@ -107,129 +195,340 @@ public class KuduOutput implements RandomOutput, BulkOutput {
 
   @Override
   public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
-    List<Row> existingForFilters = Lists.newArrayList();
+    return getExistingForFilters(filters, Collections.<ExistingPredicate>emptyList());
+  }
+
+  @Override
+  public Iterable<Row> getExistingForFilters(Iterable<Row> filters, List<ExistingPredicate> predicates) throws Exception {
+    List<Row> filtersList = Lists.newArrayList(filters);
 
-    if (!filters.iterator().hasNext()) {
-      return existingForFilters;
+    if (filtersList.isEmpty()) {
+      return Lists.newArrayList();
     }
 
     KuduTable table = connectToTable();
-    KuduScanner scanner = scannerForFilters(filters, table);
+    ExistingRecordCache existingCache = getExistingCache(table, config);
+
+    if (existingCache == null) {
+      return scanForFilters(filtersList, table, predicates);
+    }
 
-    while (scanner.hasMoreRows()) {
-      for (RowResult rowResult : scanner.nextRows()) {
-        Row existing = resultAsRow(rowResult, table);
+    return getExistingForFiltersWithCache(filtersList, predicates, existingCache, table);
+  }
 
-        existingForFilters.add(existing);
+  // Only scan Kudu for the filters that are not already cached. The scanned records are returned
+  // as their chunks are scanned, and the scanned filters are cached once the scan is exhausted.
+  Iterable<Row> getExistingForFiltersWithCache(List<Row> filtersList, List<ExistingPredicate> predicates,
+                                               final ExistingRecordCache existingCache, KuduTable table)
+  {
+    List<Row> cachedForFilters = Lists.newArrayList();
+    List<Row> uncachedFilters = Lists.newArrayList();
+    for (Row filter : filtersList) {
+      List<Row> cached = existingCache.get(filter);
+
+      if (cached != null) {
+        for (Row existing : cached) {
+          if (matchesAll(existing, predicates)) {
+            cachedForFilters.add(existing);
+          }
+        }
       }
+      else {
+        uncachedFilters.add(filter);
+      }
+    }
+
+    if (uncachedFilters.isEmpty()) {
+      return cachedForFilters;
+    }
+
+    // A scan with predicates does not read all of the existing records of its filters, so
+    // those records are not cached
+    if (!predicates.isEmpty()) {
+      return Iterables.concat(cachedForFilters, scanForFilters(uncachedFilters, table, predicates));
+    }
+
+    final Map<Row, List<Row>> scannedForFilters = Maps.newHashMap();
+    for (Row filter : uncachedFilters) {
+      scannedForFilters.put(filter, Lists.<Row>newArrayList());
     }
+    final StructType filterSchema = uncachedFilters.get(0).schema();
+    final Iterable<Row> scanned = scanForFilters(uncachedFilters, table, predicates);
+
+    Iterable<Row> cachingScanned = new Iterable<Row>() {
+      @Override
+      public Iterator<Row> iterator() {
+        final Iterator<Row> scannedIterator = scanned.iterator();
+
+        return new AbstractIterator<Row>() {
+          @Override
+          protected Row computeNext() {
+            if (!scannedIterator.hasNext()) {
+              // Filters without any existing records are cached too, so that new keys are not rescanned
+              for (Map.Entry<Row, List<Row>> scannedForFilter : scannedForFilters.entrySet()) {
+                existingCache.put(scannedForFilter.getKey(), scannedForFilter.getValue());
+              }
+
+              return endOfData();
+            }
+
+            Row existing = scannedIterator.next();
+            List<Row> scannedForFilter = scannedForFilters.get(RowUtils.subsetRow(existing, filterSchema));
+
+            // A record whose key does not equal any of the filters, for example because a filter
+            // value is of a different type to the column, is still returned but is not cached
+            if (scannedForFilter != null) {
+              scannedForFilter.add(existing);
+            }
+
+            return existing;
+          }
+        };
+      }
+    };
 
-    return existingForFilters;
+    return Iterables.concat(cachedForFilters, cachingScanned);
   }
 
-  private synchronized KuduTable connectToTable() throws KuduException {
-    if (client == null) {
-      LOG.info("Connecting to Kudu");
+  @Override
+  public DataFrame readExisting() throws Exception {
+    return Contexts.getSQLContext().read()
+        .format("org.apache.kudu.spark.kudu")
+        .option("kudu.master", config.getString(CONNECTION_CONFIG_NAME))
+        .option("kudu.table", config.getString(TABLE_CONFIG_NAME))
+        .load();
+  }
 
-      String masterAddresses = config.getString(CONNECTION_CONFIG_NAME);
+  @Override
+  public Partitioner getPartitioner(List<String> keyFieldNames) throws Exception {
+    if (!config.hasPath(PARTITIONER_ENABLED_CONFIG_NAME) || !config.getBoolean(PARTITIONER_ENABLED_CONFIG_NAME)) {
+      return null;
+    }
 
-      client = new KuduClient.KuduClientBuilder(masterAddresses).build();
-      session = client.newSession();
-      session.setFlushMode(FlushMode.AUTO_FLUSH_BACKGROUND);
-      session.setMutationBufferSpace(10000);
+    KuduTable table = connectToTable();
+    Schema schema = table.getSchema();
+    PartitionSchema partitionSchema = table.getPartitionSchema();
 
-      LOG.info("Connection to Kudu established");
+    // The tablet of a key can only be found if the key contains every partition column
+    Set<Integer> partitionColumnIds = Sets.newHashSet(partitionSchema.getRangeSchema().getColumns());
+    for (HashBucketSchema hashBucketSchema : partitionSchema.getHashBucketSchemas()) {
+      partitionColumnIds.addAll(hashBucketSchema.getColumnIds());
     }
+    for (int columnId : partitionColumnIds) {
+      String columnName = schema.getColumnByIndex(schema.getColumnIndex(columnId)).getName();
 
-    String tableName = config.getString(TABLE_CONFIG_NAME);
-    KuduTable table = getTable(tableName);
+      if (!keyFieldNames.contains(columnName)) {
+        LOG.warn("Kudu partition column {} is not in the planner key, so keys will not be partitioned by tablet",
+            columnName);
+        return null;
+      }
+    }
 
-    return table;
+    List<byte[]> tabletStartKeys = Lists.newArrayList();
+    for (LocatedTablet tablet : table.getTabletsLocations(TABLET_LOCATIONS_TIMEOUT_MS)) {
+      tabletStartKeys.add(tablet.getPartition().getPartitionKeyStart());
+    }
+    Collections.sort(tabletStartKeys, UnsignedBytes.lexicographicalComparator());
+
+    LOG.info("Partitioning keys by the {} tablets of Kudu table {}", tabletStartKeys.size(), table.getName());
+
+    return new TabletPartitioner(config, tabletStartKeys.toArray(new byte[tabletStartKeys.size()][]));
+  }
+
+  private static boolean matchesAll(Row existing, List<ExistingPredicate> predicates) {
+    for (ExistingPredicate predicate : predicates) {
+      if (!predicate.matches(existing)) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
-  private Row resultAsRow(RowResult result, KuduTable table) throws KuduException {
-    List<Object> values = Lists.newArrayList();
+  // Scan for the filters in chunks that are run concurrently, returning the existing records of
+  // each chunk as soon as its scan has finished. The records are not collected, so the returned
+  // records can only be iterated once.
+  Iterable<Row> scanForFilters(List<Row> filters, KuduTable table, List<ExistingPredicate> predicates) {
+    int chunkSize = config.hasPath(SCAN_CHUNK_SIZE_CONFIG_NAME) ?
+        config.getInt(SCAN_CHUNK_SIZE_CONFIG_NAME) : DEFAULT_SCAN_CHUNK_SIZE;
+    int parallelism = config.hasPath(SCAN_PARALLELISM_CONFIG_NAME) ?
+        config.getInt(SCAN_PARALLELISM_CONFIG_NAME) : DEFAULT_SCAN_PARALLELISM;
+    List<List<Row>> chunks = Lists.partition(filters, chunkSize);
+
+    List<KuduPredicate> kuduPredicates = Lists.newArrayList();
+    for (ExistingPredicate predicate : predicates) {
+      kuduPredicates.add(kuduPredicateFor(predicate, table));
+    }
+
+    final Iterator<Row> existing = new ScanChunksIterator(chunks, table, kuduPredicates, parallelism);
+
+    return new Iterable<Row>() {
+      private boolean iterated = false;
 
-    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
-      String columnName = columnSchema.getName();
+      @Override
+      public Iterator<Row> iterator() {
+        if (iterated) {
+          throw new IllegalStateException("Kudu existing records can only be iterated once");
+        }
+        iterated = true;
 
-      if (result.isNull(columnName)) {
-        values.add(null);
-        continue;
+        return existing;
       }
+    };
+  }
 
-      switch (columnSchema.getType()) {
-        case DOUBLE:
-          values.add(result.getDouble(columnName));
-          break;
-        case FLOAT:
-          values.add(result.getFloat(columnName));
-          break;
-        case INT32:
-          values.add(result.getInt(columnName));
-          break;
-        case INT64:
-          values.add(result.getLong(columnName));
-          break;
-        case STRING:
-          values.add(result.getString(columnName));
-          break;
-        case BOOL:
-          values.add(result.getBoolean(columnName));
-          break;
-        default:
-          throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
+  private List<Row> scanChunk(List<Row> chunk, KuduTable table, List<KuduPredicate> predicates) throws KuduException {
+    List<Row> existingForChunk = Lists.newArrayList();
+    StructType filterSchema = chunk.get(0).schema();
+    boolean compoundFilters = filterSchema.length() > 1;
+    Set<Row> chunkFilters = compoundFilters ? Sets.newHashSet(chunk) : null;
+
+    KuduRowConverter converter = getConverter(table);
+    KuduScanner scanner = scannerForFilters(chunk, table, predicates);
+
+    try {
+      while (scanner.hasMoreRows()) {
+        for (RowResult rowResult : scanner.nextRows()) {
+          Row existing = converter.toRow(rowResult);
+
+          // An in-list per column also matches the other combinations of the compound filter values
+          if (compoundFilters && !chunkFilters.contains(RowUtils.subsetRow(existing, filterSchema))) {
+            continue;
+          }
+
+          existingForChunk.add(existing);
+        }
       }
     }
+    finally {
+      scanner.close();
+    }
 
-    Row row = new RowWithSchema(getTableSchema(table), values.toArray());
-
-    return row;
+    return existingForChunk;
   }
 
-  private StructType schemaFor(KuduTable table) {
-    List<String> fieldNames = Lists.newArrayList();
-    List<String> fieldTypes = Lists.newArrayList();
+  /**
+   * Iterates over the existing records of the chunks of filters, keeping up to the parallelism
+   * number of chunk scans running until all of the chunks have been scanned.
+   */
+  private class ScanChunksIterator implements Iterator<Row> {
+    private final List<List<Row>> chunks;
+    private final KuduTable table;
+    private final List<KuduPredicate> predicates;
+    private final CompletionService<List<Row>> scans;
+    private int submittedChunks = 0;
+    private int finishedChunks = 0;
+    private Iterator<Row> finishedChunk = Iterators.emptyIterator();
+
+    public ScanChunksIterator(List<List<Row>> chunks, KuduTable table, List<KuduPredicate> predicates,
+                              int parallelism)
+    {
+      this.chunks = chunks;
+      this.table = table;
+      this.predicates = predicates;
+      this.scans = new ExecutorCompletionService<>(getScanThreadPool());
+
+      while (submittedChunks < chunks.size() && submittedChunks < parallelism) {
+        submitNextChunk();
+      }
+    }
 
-    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
-      String fieldName = columnSchema.getName();
-      String fieldType;
+    @Override
+    public boolean hasNext() {
+      while (!finishedChunk.hasNext() && finishedChunks < chunks.size()) {
+        try {
+          finishedChunk = scans.take().get().iterator();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+          throw new RuntimeException("Kudu existing records scan failed", e.getCause());
+        }
+        finishedChunks++;
 
-      switch (columnSchema.getType()) {
-        case DOUBLE:
-          fieldType = "double";
-          break;
-        case FLOAT:
-          fieldType = "float";
-          break;
-        case INT32:
-          fieldType = "int";
-          break;
-        case INT64:
-          fieldType = "long";
-          break;
-        case STRING:
-          fieldType = "string";
-          break;
-        case BOOL:
-          fieldType = "boolean";
-          break;
-        default:
-          throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
+        if (submittedChunks < chunks.size()) {
+          submitNextChunk();
+        }
       }
 
-      fieldNames.add(fieldName);
-      fieldTypes.add(fieldType);
+      return finishedChunk.hasNext();
     }
 
-    StructType tableSchema = RowUtils.structTypeFor(fieldNames, fieldTypes);
+    @Override
+    public Row next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      return finishedChunk.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
 
-    return tableSchema;
+    private void submitNextChunk() {
+      final List<Row> chunk = chunks.get(submittedChunks++);
+
+      scans.submit(new Callable<List<Row>>() {
+        @Override
+        public List<Row> call() throws Exception {
+          return scanChunk(chunk, table, predicates);
+        }
+      });
+    }
   }
 
-  private KuduScanner scannerForFilters(Iterable<Row> filters, KuduTable table) {
-    List<Row> filtersList = Lists.newArrayList(filters);
+  private static synchronized ExecutorService getScanThreadPool() {
+    if (scanThreadPool == null) {
+      ThreadFactory threadFactory = new ThreadFactoryBuilder()
+          .setNameFormat("kudu-scan-%d")
+          .setDaemon(true)
+          .build();
+
+      // Each call to getExistingForFilters limits how many of its own scans run at once
+      scanThreadPool = Executors.newCachedThreadPool(threadFactory);
+    }
+
+    return scanThreadPool;
+  }
+
+  private KuduTable connectToTable() throws KuduException {
+    synchronized (KuduOutput.class) {
+      if (client == null) {
+        LOG.info("Connecting to Kudu");
+
+        String masterAddresses = config.getString(CONNECTION_CONFIG_NAME);
+
+        client = new KuduClient.KuduClientBuilder(masterAddresses).build();
+
+        LOG.info("Connection to Kudu established");
+      }
+    }
+
+    String tableName = config.getString(TABLE_CONFIG_NAME);
+    KuduTable table = getTable(tableName);
+
+    return table;
+  }
+
+  private KuduSession newSession() {
+    KuduSession session = client.newSession();
 
+    session.setFlushMode(FlushMode.AUTO_FLUSH_BACKGROUND);
+    session.setMutationBufferSpace(config.hasPath(SESSION_BUFFER_SIZE_CONFIG_NAME) ?
+        config.getInt(SESSION_BUFFER_SIZE_CONFIG_NAME) : DEFAULT_SESSION_BUFFER_SIZE);
+    if (config.hasPath(SESSION_FLUSH_INTERVAL_MS_CONFIG_NAME)) {
+      session.setFlushInterval(config.getInt(SESSION_FLUSH_INTERVAL_MS_CONFIG_NAME));
+    }
+
+    return session;
+  }
+
+  private KuduScanner scannerForFilters(List<Row> filtersList, KuduTable table, List<KuduPredicate> predicates) {
     if (filtersList.size() == 0) {
       throw new RuntimeException("Kudu existing filter was not provided.");
     }
@@ -239,14 +538,18 @@ public class KuduOutput implements RandomOutput, BulkOutput {
     for (String fieldName : filtersList.get(0).schema().fieldNames()) {
       ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
 
-      List<Object> columnValues = Lists.newArrayList();
+      Set<Object> columnValues = Sets.newLinkedHashSet();
       for (Row filter : filtersList) {
         Object columnValue = RowUtils.get(filter, fieldName);
         columnValues.add(columnValue);
       }
 
-      KuduPredicate predicate = KuduPredicate.newInListPredicate(columnSchema, columnValues);
+      KuduPredicate predicate = KuduPredicate.newInListPredicate(columnSchema, Lists.newArrayList(columnValues));
+
+      builder = builder.addPredicate(predicate);
+    }
 
+    for (KuduPredicate predicate : predicates) {
       builder = builder.addPredicate(predicate);
     }
 
@@ -255,8 +558,57 @@ public class KuduOutput implements RandomOutput, BulkOutput {
     return scanner;
   }
 
+  private static KuduPredicate kuduPredicateFor(ExistingPredicate predicate, KuduTable table) {
+    ColumnSchema columnSchema = table.getSchema().getColumn(predicate.getFieldName());
+    ComparisonOp op = comparisonOpFor(predicate.getOperator());
+    Object value = predicate.getValue();
+
+    switch (columnSchema.getType()) {
+      case BOOL:
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, (Boolean)value);
+      case INT8:
+      case INT16:
+      case INT32:
+      case INT64:
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, ((Number)value).longValue());
+      case UNIXTIME_MICROS:
+        long micros = value instanceof Timestamp ?
+            KuduRowConverter.timestampToMicros((Timestamp)value) : ((Number)value).longValue();
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, micros);
+      case FLOAT:
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, ((Number)value).floatValue());
+      case DOUBLE:
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, ((Number)value).doubleValue());
+      case STRING:
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, (String)value);
+      case BINARY:
+        return KuduPredicate.newComparisonPredicate(columnSchema, op, (byte[])value);
+      default:
+        throw new RuntimeException("Unsupported Kudu column type for existing record predicate: " +
+            columnSchema.getType());
+    }
+  }
+
+  private static ComparisonOp comparisonOpFor(ExistingPredicate.Operator operator) {
+    switch (operator) {
+      case EQUAL:
+        return ComparisonOp.EQUAL;
+      case GREATER:
+        return ComparisonOp.GREATER;
+      case GREATER_EQUAL:
+        return ComparisonOp.GREATER_EQUAL;
+      case LESS:
+        return ComparisonOp.LESS;
+      case LESS_EQUAL:
+        return ComparisonOp.LESS_EQUAL;
+      default:
+        throw new RuntimeException("Unsupported existing record predicate operator: " + operator);
+    }
+  }
+
   private List<Operation> extractOperations(List<PlannedRow> planned, KuduTable table) throws Exception {
-    List<Operation> operations = Lists.newArrayList();
+    List<Operation> operations = Lists.newArrayListWithCapacity(planned.size());
+    KuduRowConverter converter = getConverter(table);
 
     for (PlannedRow plan : planned) {
       MutationType mutationType = plan.getMutationType();
@@ -280,43 +632,7 @@ public class KuduOutput implements RandomOutput, BulkOutput {
           throw new RuntimeException("Unsupported Kudu mutation type: " + mutationType.toString());
       }
 
-      PartialRow kuduRow = operation.getRow();
-      Row planRow = plan.getRow();
-
-      if (planRow.schema() == null) {
-        throw new RuntimeException("Plan sent to Kudu output does not contain a schema");
-      }
-
-      for (StructField field : planRow.schema().fields()) {
-        String fieldName = field.name();
-        ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
-
-        if (!planRow.isNullAt(planRow.fieldIndex(fieldName))) {
-          int fieldIndex = planRow.fieldIndex(fieldName);
-          switch (columnSchema.getType()) {
-            case DOUBLE:
-              kuduRow.addDouble(fieldName, planRow.getDouble(fieldIndex));
-              break;
-            case FLOAT:
-              kuduRow.addFloat(fieldName, planRow.getFloat(fieldIndex));
-              break;
-            case INT32:
-              kuduRow.addInt(fieldName, planRow.getInt(fieldIndex));
-              break;
-            case INT64:
-              kuduRow.addLong(fieldName, planRow.getLong(fieldIndex));
-              break;
-            case STRING:
-              kuduRow.addString(fieldName, planRow.getString(fieldIndex));
-              break;
-            case BOOL:
-              kuduRow.addBoolean(fieldName, planRow.getBoolean(fieldIndex));
-              break;
-            default:
-              throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
-          }
-        }
-      }
+      converter.addToPartialRow(plan.getRow(), operation.getRow());
 
       operations.add(operation);
     }
@@ -339,18 +655,151 @@ public class KuduOutput implements RandomOutput, BulkOutput {
     }
   }
 
-  private synchronized StructType getTableSchema(KuduTable table) throws KuduException {
-    if (tableSchemas == null) {
-      tableSchemas = Maps.newHashMap();
+  private List<String> primaryKeyFieldNamesFor(KuduTable table) {
+    List<String> primaryKeyFieldNames = Lists.newArrayList();
+
+    for (ColumnSchema columnSchema : table.getSchema().getPrimaryKeyColumns()) {
+      primaryKeyFieldNames.add(columnSchema.getName());
     }
 
-    if (tableSchemas.containsKey(table.getName())) {
-      return tableSchemas.get(table.getName());
+    return primaryKeyFieldNames;
+  }
+
+  private static synchronized ExistingRecordCache getExistingCache(KuduTable table, Config config) {
+    if (!ExistingRecordCache.isEnabled(config)) {
+      return null;
     }
-    else {
-      StructType tableSchema = schemaFor(table);
-      tableSchemas.put(table.getName(), tableSchema);
-      return tableSchema;
+
+    if (existingCaches == null) {
+      existingCaches = Maps.newHashMap();
+    }
+
+    if (!existingCaches.containsKey(table.getName())) {
+      existingCaches.put(table.getName(), ExistingRecordCache.fromConfig(config));
+    }
+
+    return existingCaches.get(table.getName());
+  }
+
+  private static StructType getTableSchema(KuduTable table) {
+    return getConverter(table).getSchema();
+  }
+
+  private static synchronized KuduRowConverter getConverter(KuduTable table) {
+    if (converters == null) {
+      converters = Maps.newHashMap();
+    }
+
+    if (!converters.containsKey(table.getName())) {
+      converters.put(table.getName(), new KuduRowConverter(table.getSchema()));
+    }
+
+    return converters.get(table.getName());
+  }
+
+  /**
+   * A Spark partitioner that assigns each key to the Kudu tablet that stores it, so that each
+   * Spark partition only scans and writes to one tablet. The tablets are found on the driver,
+   * and each executor encodes the partition key of a key row using the table's partition schema.
+   * <p>
+   * The Kudu 1.2 client has no public API for finding the tablet of a row, so the partition key
+   * is encoded with PartitionSchema#encodePartitionKey, which is what the client itself uses to
+   * route operations but is not part of its public API. This depends on the kudu.version of the
+   * build, and should be replaced by KuduPartitioner when the client is upgraded to Kudu 1.6.
+   */
+  @SuppressWarnings("serial")
+  public static class TabletPartitioner extends Partitioner {
+    private Config config;
+    private byte[][] tabletStartKeys;
+    private transient KuduTable table;
+    private transient KuduRowConverter converter;
+
+    public TabletPartitioner(Config config, byte[][] tabletStartKeys) {
+      this.config = config;
+      this.tabletStartKeys = tabletStartKeys;
+    }
+
+    @Override
+    public int numPartitions() {
+      return tabletStartKeys.length;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+      Row keyRow = (Row)key;
+
+      // Kudu partition columns are always primary key columns, which can not be null, and a
+      // null would otherwise be silently left out of the encoded partition key
+      for (int i = 0; i < keyRow.length(); i++) {
+        if (keyRow.isNullAt(i)) {
+          throw new RuntimeException("Kudu tablet partitioner can not partition a key with a null value for field '" +
+              keyRow.schema().fields()[i].name() + "': " + keyRow);
+        }
+      }
+
+      return tabletFor(encodePartitionKey(keyRow));
+    }
+
+    byte[] encodePartitionKey(Row keyRow) {
+      PartialRow partialRow = getTable().getSchema().newPartialRow();
+
+      converter.addToPartialRow(keyRow, partialRow);
+
+      return getTable().getPartitionSchema().encodePartitionKey(partialRow);
+    }
+
+    // The last tablet that starts at or before the partition key
+    private int tabletFor(byte[] partitionKey) {
+      Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+      int low = 0;
+      int high = tabletStartKeys.length - 1;
+
+      while (low < high) {
+        int middle = (low + high + 1) >>> 1;
+
+        if (comparator.compare(tabletStartKeys[middle], partitionKey) <= 0) {
+          low = middle;
+        }
+        else {
+          high = middle - 1;
+        }
+      }
+
+      return low;
+    }
+
+    private KuduTable getTable() {
+      if (table == null) {
+        KuduOutput output = new KuduOutput();
+        output.configure(config);
+
+        try {
+          table = output.connectToTable();
+          converter = getConverter(table);
+        }
+        catch (KuduException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      return table;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof TabletPartitioner)) {
+        return false;
+      }
+
+      TabletPartitioner otherPartitioner = (TabletPartitioner)other;
+
+      return config.getString(TABLE_CONFIG_NAME).equals(otherPartitioner.config.getString(TABLE_CONFIG_NAME)) &&
+             Arrays.deepEquals(tabletStartKeys, otherPartitioner.tabletStartKeys);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.deepHashCode(tabletStartKeys);
     }
   }
 
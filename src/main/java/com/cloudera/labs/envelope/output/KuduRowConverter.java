@@ -0,0 +1,374 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.PartialRow;
+import org.apache.kudu.client.RowResult;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+/**
+ * Converts between Kudu rows and Spark SQL Rows for one Kudu table. The conversion for each
+ * column is resolved once when the converter is created, and the Kudu columns are then
+ * accessed by index rather than by name.
+ */
+public class KuduRowConverter {
+
+  private final Schema kuduSchema;
+  private final StructType schema;
+  private final ColumnConverter[] columnConverters;
+
+  // The mapping of the most recently converted Spark schema to the Kudu column indexes.
+  // The rows of a task almost always share one schema instance, so one mapping is enough.
+  private volatile SchemaMapping lastMapping;
+
+  public KuduRowConverter(Schema kuduSchema) {
+    this.kuduSchema = kuduSchema;
+
+    List<ColumnSchema> columns = kuduSchema.getColumns();
+    List<StructField> fields = Lists.newArrayListWithCapacity(columns.size());
+    columnConverters = new ColumnConverter[columns.size()];
+
+    for (int i = 0; i < columns.size(); i++) {
+      ColumnSchema column = columns.get(i);
+
+      columnConverters[i] = converterFor(column.getType());
+      fields.add(DataTypes.createStructField(column.getName(), columnConverters[i].getDataType(), true));
+    }
+
+    schema = DataTypes.createStructType(fields);
+  }
+
+  /**
+   * @return The Spark SQL schema of the rows of the Kudu table.
+   */
+  public StructType getSchema() {
+    return schema;
+  }
+
+  /**
+   * Convert a Kudu row into a Spark SQL Row with the schema of the table.
+   */
+  public Row toRow(RowResult result) {
+    Object[] values = new Object[columnConverters.length];
+
+    for (int i = 0; i < values.length; i++) {
+      if (!result.isNull(i)) {
+        values[i] = columnConverters[i].get(result, i);
+      }
+    }
+
+    return new RowWithSchema(schema, values);
+  }
+
+  /**
+   * Add the non-null values of a Spark SQL Row to a Kudu row, matching the fields of the Row
+   * to the columns of the table by name.
+   */
+  public void addToPartialRow(Row row, PartialRow kuduRow) {
+    if (row.schema() == null) {
+      throw new RuntimeException("Row sent to Kudu does not contain a schema");
+    }
+
+    int[] columnIndexes = columnIndexesFor(row.schema());
+
+    for (int fieldIndex = 0; fieldIndex < columnIndexes.length; fieldIndex++) {
+      if (!row.isNullAt(fieldIndex)) {
+        int columnIndex = columnIndexes[fieldIndex];
+        columnConverters[columnIndex].add(kuduRow, columnIndex, row, fieldIndex);
+      }
+    }
+  }
+
+  private int[] columnIndexesFor(StructType rowSchema) {
+    SchemaMapping mapping = lastMapping;
+
+    if (mapping == null || (mapping.rowSchema != rowSchema && !mapping.rowSchema.equals(rowSchema))) {
+      int[] columnIndexes = new int[rowSchema.length()];
+
+      for (int i = 0; i < columnIndexes.length; i++) {
+        columnIndexes[i] = kuduSchema.getColumnIndex(rowSchema.fields()[i].name());
+      }
+
+      mapping = new SchemaMapping(rowSchema, columnIndexes);
+      lastMapping = mapping;
+    }
+
+    return mapping.columnIndexes;
+  }
+
+  private static class SchemaMapping {
+    private final StructType rowSchema;
+    private final int[] columnIndexes;
+
+    public SchemaMapping(StructType rowSchema, int[] columnIndexes) {
+      this.rowSchema = rowSchema;
+      this.columnIndexes = columnIndexes;
+    }
+  }
+
+  private static ColumnConverter converterFor(Type type) {
+    switch (type) {
+      case BOOL:
+        return new BooleanConverter();
+      case INT8:
+        return new ByteConverter();
+      case INT16:
+        return new ShortConverter();
+      case INT32:
+        return new IntConverter();
+      case INT64:
+        return new LongConverter();
+      case FLOAT:
+        return new FloatConverter();
+      case DOUBLE:
+        return new DoubleConverter();
+      case STRING:
+        return new StringConverter();
+      case BINARY:
+        return new BinaryConverter();
+      case UNIXTIME_MICROS:
+        return new TimestampConverter();
+      default:
+        throw new RuntimeException("Unsupported Kudu column type: " + type);
+    }
+  }
+
+  private static abstract class ColumnConverter {
+    abstract DataType getDataType();
+
+    abstract Object get(RowResult result, int columnIndex);
+
+    abstract void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex);
+  }
+
+  private static class BooleanConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.BooleanType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getBoolean(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addBoolean(columnIndex, row.getBoolean(fieldIndex));
+    }
+  }
+
+  private static class ByteConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.ByteType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getByte(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addByte(columnIndex, row.getByte(fieldIndex));
+    }
+  }
+
+  private static class ShortConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.ShortType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getShort(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addShort(columnIndex, row.getShort(fieldIndex));
+    }
+  }
+
+  private static class IntConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.IntegerType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getInt(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addInt(columnIndex, row.getInt(fieldIndex));
+    }
+  }
+
+  private static class LongConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.LongType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getLong(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addLong(columnIndex, row.getLong(fieldIndex));
+    }
+  }
+
+  private static class FloatConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.FloatType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getFloat(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addFloat(columnIndex, row.getFloat(fieldIndex));
+    }
+  }
+
+  private static class DoubleConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.DoubleType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getDouble(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addDouble(columnIndex, row.getDouble(fieldIndex));
+    }
+  }
+
+  private static class StringConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.StringType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getString(columnIndex);
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addString(columnIndex, row.getString(fieldIndex));
+    }
+  }
+
+  private static class BinaryConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.BinaryType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return result.getBinaryCopy(columnIndex);
+    }
+
+    // Binary values can arrive as byte arrays from Spark SQL, or as byte buffers, for example
+    // from Avro bytes fields, which are added without copying them into an array
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      Object value = row.get(fieldIndex);
+
+      if (value instanceof ByteBuffer) {
+        kuduRow.addBinary(columnIndex, (ByteBuffer)value);
+      }
+      else {
+        kuduRow.addBinary(columnIndex, (byte[])value);
+      }
+    }
+  }
+
+  // Kudu timestamps are microseconds since the epoch
+  private static class TimestampConverter extends ColumnConverter {
+    @Override
+    DataType getDataType() {
+      return DataTypes.TimestampType;
+    }
+
+    @Override
+    Object get(RowResult result, int columnIndex) {
+      return microsToTimestamp(result.getLong(columnIndex));
+    }
+
+    @Override
+    void add(PartialRow kuduRow, int columnIndex, Row row, int fieldIndex) {
+      kuduRow.addLong(columnIndex, timestampToMicros(row.getTimestamp(fieldIndex)));
+    }
+  }
+
+  static Timestamp microsToTimestamp(long micros) {
+    long seconds = micros / 1000000;
+    long remainder = micros % 1000000;
+    if (remainder < 0) {
+      seconds--;
+      remainder += 1000000;
+    }
+
+    Timestamp timestamp = new Timestamp(seconds * 1000);
+    timestamp.setNanos((int)remainder * 1000);
+
+    return timestamp;
+  }
+
+  static long timestampToMicros(Timestamp timestamp) {
+    long seconds = timestamp.getTime() / 1000;
+    if (timestamp.getTime() % 1000 < 0) {
+      seconds--;
+    }
+
+    return seconds * 1000000 + timestamp.getNanos() / 1000;
+  }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.List;
+
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+
+/**
+ * A driver-side buffer of the mutations of consecutive micro-batches, so that a bulk output can
+ * write them as one larger set of files rather than as small files for every micro-batch. The
+ * buffered mutations are cached by Spark in memory and on disk, independently of the cached
+ * data of the steps, until the buffer is full and the output writes and clears it. The buffer
+ * is also written when the streaming context is stopped gracefully, but buffered mutations that
+ * have not been written when the application otherwise stops or fails are lost, so outputs that
+ * use a buffer are at-most-once.
+ */
+public class MicroBatchBuffer {
+
+  private static Logger LOG = LoggerFactory.getLogger(MicroBatchBuffer.class);
+
+  public static final String MAX_RECORDS_CONFIG_NAME = "buffer.max.records";
+  public static final String MAX_SECONDS_CONFIG_NAME = "buffer.max.seconds";
+
+  private final long maxRecords;
+  private final long maxMillis;
+
+  private List<DataFrame> buffered = Lists.newArrayList();
+  private long bufferedRecords;
+  private int maxPartitions;
+  private long firstBufferedMillis;
+
+  public MicroBatchBuffer(long maxRecords, long maxMillis) {
+    this.maxRecords = maxRecords;
+    this.maxMillis = maxMillis;
+  }
+
+  public static boolean isEnabled(Config config) {
+    return config.hasPath(MAX_RECORDS_CONFIG_NAME) || config.hasPath(MAX_SECONDS_CONFIG_NAME);
+  }
+
+  public static MicroBatchBuffer fromConfig(Config config) {
+    long maxRecords = config.hasPath(MAX_RECORDS_CONFIG_NAME) ?
+        config.getLong(MAX_RECORDS_CONFIG_NAME) : Long.MAX_VALUE;
+    long maxMillis = config.hasPath(MAX_SECONDS_CONFIG_NAME) ?
+        config.getLong(MAX_SECONDS_CONFIG_NAME) * 1000 : Long.MAX_VALUE;
+
+    return new MicroBatchBuffer(maxRecords, maxMillis);
+  }
+
+  /**
+   * @return True if the mutations can be added to the buffer, which requires them to have the
+   * same schema as the mutations that are already buffered.
+   */
+  public synchronized boolean accepts(DataFrame mutations) {
+    return buffered.isEmpty() || buffered.get(0).schema().equals(mutations.schema());
+  }
+
+  /**
+   * Add the mutations of a micro-batch to the buffer. The mutations are evaluated and cached
+   * immediately, so that the buffer does not depend on any data that the pipeline releases
+   * at the end of the micro-batch.
+   */
+  public synchronized void add(DataFrame mutations) {
+    if (!accepts(mutations)) {
+      throw new RuntimeException("Mutations added to a micro-batch buffer must all have the same schema");
+    }
+
+    // A new plan, so that the cache is not shared with, and released along with, the step data
+    DataFrame copy = mutations.sqlContext().createDataFrame(mutations.rdd(), mutations.schema());
+    copy.persist(StorageLevel.MEMORY_AND_DISK_SER());
+    long records = copy.count();
+
+    if (records == 0) {
+      copy.unpersist(false);
+      return;
+    }
+
+    if (buffered.isEmpty()) {
+      firstBufferedMillis = System.currentTimeMillis();
+    }
+    buffered.add(copy);
+    bufferedRecords += records;
+    maxPartitions = Math.max(maxPartitions, copy.rdd().partitions().length);
+
+    LOG.debug("Buffered {} records, {} records now in buffer", records, bufferedRecords);
+  }
+
+  public synchronized boolean isEmpty() {
+    return buffered.isEmpty();
+  }
+
+  /**
+   * @return True if the buffer holds at least the maximum number of records, or if the first
+   * buffered micro-batch is at least the maximum age. The age is only checked when this is
+   * called, which is typically once per micro-batch.
+   */
+  public synchronized boolean isFull() {
+    if (buffered.isEmpty()) {
+      return false;
+    }
+
+    return bufferedRecords >= maxRecords || System.currentTimeMillis() - firstBufferedMillis >= maxMillis;
+  }
+
+  /**
+   * @return All of the buffered mutations, in as many partitions as the largest buffered
+   * micro-batch, so that writing them creates about as many files as that micro-batch would
+   * have on its own. Returns null if the buffer is empty.
+   */
+  public synchronized DataFrame getBuffered() {
+    if (buffered.isEmpty()) {
+      return null;
+    }
+
+    DataFrame union = buffered.get(0);
+    for (int i = 1; i < buffered.size(); i++) {
+      union = union.unionAll(buffered.get(i));
+    }
+
+    return union.coalesce(maxPartitions);
+  }
+
+  /**
+   * Release the buffered mutations, which should only be done once they have been written.
+   */
+  public synchronized void clear() {
+    for (DataFrame mutations : buffered) {
+      mutations.unpersist(false);
+    }
+
+    buffered.clear();
+    bufferedRecords = 0;
+    maxPartitions = 0;
+  }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.List;
+
+import org.apache.spark.Partitioner;
+
+/**
+ * Partitioned outputs can group the keys of random mutations by where they are stored in the
+ * output, so that the existing records and the mutations for each Spark partition are sent to
+ * as few locations of the output as possible.
+ */
+public interface PartitionedOutput extends RandomOutput {
+
+  /**
+   * Get the Spark partitioner for the keys of the random mutations.
+   * @param keyFieldNames The names of the fields of the key rows that will be partitioned.
+   * @return The partitioner of the key rows, or null if the output can not partition the keys.
+   */
+  Partitioner getPartitioner(List<String> keyFieldNames) throws Exception;
+
+}
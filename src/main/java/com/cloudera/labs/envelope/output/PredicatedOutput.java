@@ -0,0 +1,38 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+
+import com.cloudera.labs.envelope.plan.ExistingPredicate;
+
+/**
+ * Random outputs that can apply the existing record predicates of a planner when reading the
+ * existing records, so that records that the planner would not use are not read.
+ */
+public interface PredicatedOutput extends RandomOutput {
+
+  /**
+   * Get the existing records from the output that match the given filters and all of the
+   * given predicates.
+   * @param filters The filters, as for {@link RandomOutput#getExistingForFilters(Iterable)}.
+   * @param predicates The predicates that the returned existing records must all match.
+   */
+  Iterable<Row> getExistingForFilters(Iterable<Row> filters, List<ExistingPredicate> predicates) throws Exception;
+
+}
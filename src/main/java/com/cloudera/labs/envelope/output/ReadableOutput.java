@@ -0,0 +1,31 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import org.apache.spark.sql.DataFrame;
+
+/**
+ * Outputs whose existing records can be read back as a DataFrame.
+ */
+public interface ReadableOutput extends Output {
+
+  /**
+   * @return The existing records of the output. The DataFrame is read lazily, so only the columns
+   * and records that the plan using it requires need to be read.
+   */
+  DataFrame readExisting() throws Exception;
+
+}
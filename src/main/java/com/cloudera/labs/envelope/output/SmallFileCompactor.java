@@ -0,0 +1,324 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.SQLContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+
+/**
+ * Merges the small files of each directory of a filesystem output into fewer larger files.
+ * Each directory that contains data files, such as each partition directory, is compacted on
+ * its own. The merged files are written to a staging directory under the output path, which
+ * readers ignore because it starts with an underscore. The small files are then moved aside into
+ * the staging directory, and the merged files are renamed into the compacted directory. Readers
+ * therefore never see partially written files or duplicated records, although a reader that lists
+ * a directory between the two sets of renames can briefly miss the compacted records. If the
+ * compaction fails partway through then the merged files are removed and the small files are moved
+ * back, so that the directory is left as it was.
+ */
+public class SmallFileCompactor {
+
+  private static Logger LOG = LoggerFactory.getLogger(SmallFileCompactor.class);
+
+  public static final String ENABLED_CONFIG_NAME = "compaction.enabled";
+  public static final String MIN_FILES_CONFIG_NAME = "compaction.min.files";
+  public static final String TARGET_BYTES_CONFIG_NAME = "compaction.target.bytes";
+
+  public static final String STAGING_DIRECTORY_NAME = "_envelope_compaction";
+
+  private static final int DEFAULT_MIN_FILES = 10;
+  private static final long DEFAULT_TARGET_BYTES = 128 * 1024 * 1024;
+
+  private final String format;
+  private final int minFiles;
+  private final long targetBytes;
+
+  private ExecutorService compactionThread;
+  private volatile Future<?> lastCompaction;
+  private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+  public SmallFileCompactor(String format, int minFiles, long targetBytes) {
+    this.format = format;
+    this.minFiles = minFiles;
+    this.targetBytes = targetBytes;
+  }
+
+  public static boolean isEnabled(Config config) {
+    return config.hasPath(ENABLED_CONFIG_NAME) && config.getBoolean(ENABLED_CONFIG_NAME);
+  }
+
+  public static SmallFileCompactor fromConfig(Config config, String format) {
+    int minFiles = config.hasPath(MIN_FILES_CONFIG_NAME) ?
+        config.getInt(MIN_FILES_CONFIG_NAME) : DEFAULT_MIN_FILES;
+    long targetBytes = config.hasPath(TARGET_BYTES_CONFIG_NAME) ?
+        config.getLong(TARGET_BYTES_CONFIG_NAME) : DEFAULT_TARGET_BYTES;
+
+    return new SmallFileCompactor(format, minFiles, targetBytes);
+  }
+
+  /**
+   * Compact the directories of the output path on a background thread, so that the pipeline
+   * does not wait for it. If a compaction is already running then this one is skipped, and
+   * the files are instead compacted the next time that this is called.
+   */
+  public void compactInBackground(final SQLContext sqlc, final String path) {
+    if (!compacting.compareAndSet(false, true)) {
+      LOG.debug("Compaction of {} is already running, skipping", path);
+      return;
+    }
+
+    lastCompaction = getCompactionThread().submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact(sqlc, path);
+        }
+        catch (Exception e) {
+          LOG.error("Compaction of " + path + " failed", e);
+        }
+        finally {
+          compacting.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for any background compaction to finish, so that the caller can replace files of the
+   * output without the compaction renaming merged copies of the replaced files back in.
+   */
+  public void awaitCompaction() throws InterruptedException, ExecutionException {
+    Future<?> compaction = lastCompaction;
+
+    if (compaction != null) {
+      compaction.get();
+    }
+  }
+
+  /**
+   * Compact the directories of the output path.
+   */
+  public void compact(SQLContext sqlc, String path) throws IOException {
+    Path root = new Path(path);
+    FileSystem fs = root.getFileSystem(sqlc.sparkContext().hadoopConfiguration());
+
+    if (!fs.exists(root)) {
+      return;
+    }
+
+    List<Path> directories = Lists.newArrayList();
+    addDataDirectories(fs, root, directories);
+
+    for (Path directory : directories) {
+      compactDirectory(sqlc, fs, root, directory);
+    }
+  }
+
+  private void compactDirectory(SQLContext sqlc, FileSystem fs, Path root, Path directory) throws IOException {
+    List<Path> smallFiles = Lists.newArrayList();
+    long smallBytes = 0;
+
+    for (FileStatus file : fs.listStatus(directory)) {
+      if (file.isFile() && isVisible(file.getPath()) && file.getLen() < targetBytes) {
+        smallFiles.add(file.getPath());
+        smallBytes += file.getLen();
+      }
+    }
+
+    if (smallFiles.size() < minFiles) {
+      return;
+    }
+
+    int numFiles = (int)Math.max(1, (smallBytes + targetBytes - 1) / targetBytes);
+    Path staging = new Path(new Path(root, STAGING_DIRECTORY_NAME), UUID.randomUUID().toString());
+    Path merged = new Path(staging, "merged");
+    Path replaced = new Path(staging, "replaced");
+
+    LOG.info("Compacting {} files of {} into {} files", smallFiles.size(), directory, numFiles);
+
+    List<Path> mergedIn = Lists.newArrayList();
+    List<Path> movedOut = Lists.newArrayList();
+    boolean restored = true;
+
+    try {
+      DataFrame compacted = read(sqlc, smallFiles).coalesce(numFiles);
+      FileSystemOutput.write(compacted.write(), format, merged.toString());
+
+      // The small files are moved aside before the merged files are renamed in, so that a reader
+      // between the two can miss the compacted records but never sees them twice. They are moved
+      // aside rather than deleted so that they can be moved back if the compaction fails.
+      fs.mkdirs(replaced);
+      for (Path smallFile : smallFiles) {
+        // Recorded before the rename, which may have happened even if it reports a failure
+        movedOut.add(smallFile);
+        move(fs, smallFile, new Path(replaced, smallFile.getName()));
+      }
+
+      for (FileStatus mergedFile : fs.listStatus(merged)) {
+        Path mergedPath = mergedFile.getPath();
+
+        if (mergedFile.isFile() && isVisible(mergedPath)) {
+          Path target = new Path(directory, mergedPath.getName());
+          mergedIn.add(target);
+          move(fs, mergedPath, target);
+        }
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      restored = rollBack(fs, replaced, mergedIn, movedOut, e);
+      throw e;
+    }
+    finally {
+      if (restored) {
+        fs.delete(staging, true);
+      }
+      else {
+        LOG.error("Compaction of {} could not be fully rolled back, any original files that were " +
+            "not moved back are in {}", directory, replaced);
+      }
+    }
+  }
+
+  /**
+   * Put a compacted directory back to how it was before the compaction, by removing the merged
+   * files and then moving the small files back, so that readers never see both.
+   * @return True if the directory was restored, or false if some of the merged files could not be
+   * removed or some of the small files could not be moved back, in which case the small files that
+   * were not moved back are kept in the staging directory so that no records are lost.
+   */
+  private boolean rollBack(FileSystem fs, Path replaced, List<Path> mergedIn, List<Path> movedOut,
+                           Exception cause)
+  {
+    for (Path mergedFile : mergedIn) {
+      try {
+        fs.delete(mergedFile, false);
+      }
+      catch (IOException e) {
+        cause.addSuppressed(e);
+        return false;
+      }
+    }
+
+    boolean restored = true;
+
+    for (Path smallFile : movedOut) {
+      Path aside = new Path(replaced, smallFile.getName());
+
+      try {
+        if (fs.exists(aside)) {
+          move(fs, aside, smallFile);
+        }
+      }
+      catch (IOException e) {
+        cause.addSuppressed(e);
+        restored = false;
+      }
+    }
+
+    return restored;
+  }
+
+  // Package-private so that tests can make a compaction fail partway through
+  void move(FileSystem fs, Path source, Path target) throws IOException {
+    if (!fs.rename(source, target)) {
+      throw new IOException("Could not rename " + source + " to " + target);
+    }
+  }
+
+  private DataFrame read(SQLContext sqlc, List<Path> files) {
+    String[] paths = new String[files.size()];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = files.get(i).toString();
+    }
+
+    switch (format) {
+      case "parquet":
+        return sqlc.read().parquet(paths);
+      case "avro":
+        DataFrame union = null;
+        for (String path : paths) {
+          DataFrame file = sqlc.read().format("com.databricks.spark.avro").load(path);
+          union = union == null ? file : union.unionAll(file);
+        }
+        return union;
+      default:
+        throw new RuntimeException("Filesystem output does not support file format: " + format);
+    }
+  }
+
+  // The directories under the path that directly contain data files, such as the leaf
+  // partition directories of a partitioned output
+  private static void addDataDirectories(FileSystem fs, Path directory, List<Path> directories) throws IOException {
+    boolean hasFiles = false;
+
+    for (FileStatus status : fs.listStatus(directory)) {
+      if (!isVisible(status.getPath())) {
+        continue;
+      }
+
+      if (status.isDirectory()) {
+        addDataDirectories(fs, status.getPath(), directories);
+      }
+      else {
+        hasFiles = true;
+      }
+    }
+
+    if (hasFiles) {
+      directories.add(directory);
+    }
+  }
+
+  // Hadoop and Spark treat files that start with an underscore or a dot as hidden
+  private static boolean isVisible(Path path) {
+    String name = path.getName();
+
+    return !name.startsWith("_") && !name.startsWith(".");
+  }
+
+  private synchronized ExecutorService getCompactionThread() {
+    if (compactionThread == null) {
+      ThreadFactory threadFactory = new ThreadFactoryBuilder()
+          .setNameFormat("filesystem-compaction-%d")
+          .setDaemon(true)
+          .build();
+
+      compactionThread = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    return compactionThread;
+  }
+
+}
@@ -15,15 +15,7 @@
  */
 package com.cloudera.labs.envelope.plan;
 
-import static com.cloudera.labs.envelope.utils.RowUtils.after;
-import static com.cloudera.labs.envelope.utils.RowUtils.append;
-import static com.cloudera.labs.envelope.utils.RowUtils.before;
-import static com.cloudera.labs.envelope.utils.RowUtils.compareTimestamp;
-import static com.cloudera.labs.envelope.utils.RowUtils.different;
-import static com.cloudera.labs.envelope.utils.RowUtils.get;
 import static com.cloudera.labs.envelope.utils.RowUtils.precedingTimestamp;
-import static com.cloudera.labs.envelope.utils.RowUtils.set;
-import static com.cloudera.labs.envelope.utils.RowUtils.simultaneous;
 
 import java.util.Collections;
 import java.util.Comparator;
@@ -35,11 +27,12 @@ import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 
+import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 
-public class BitemporalHistoryPlanner implements RandomPlanner {
+public class BitemporalHistoryPlanner implements PredicatedPlanner {
 
   public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
   public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "fields.values";
@@ -55,11 +48,33 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
   public static final String CURRENT_FLAG_NO = "N";
   public static final Long FAR_FUTURE_MILLIS = 253402214400000L; // 9999-12-31
 
+  // The positions of the planner-managed fields in the history fields
+  private static final int EVENT_TIME_EFFECTIVE_FROM = 0;
+  private static final int EVENT_TIME_EFFECTIVE_TO = 1;
+  private static final int SYSTEM_TIME_EFFECTIVE_FROM = 2;
+  private static final int SYSTEM_TIME_EFFECTIVE_TO = 3;
+
   private Config config;
+  private HistoryFields fields;
+  private int currentFlagField = -1;
+  private boolean carryForward;
 
   @Override
   public void configure(Config config) {
     this.config = config;
+
+    List<StructField> managedFields = Lists.newArrayList(
+        DataTypes.createStructField(getEventTimeEffectiveFromFieldName(), DataTypes.LongType, true),
+        DataTypes.createStructField(getEventTimeEffectiveToFieldName(), DataTypes.LongType, true),
+        DataTypes.createStructField(getSystemTimeEffectiveFromFieldName(), DataTypes.LongType, true),
+        DataTypes.createStructField(getSystemTimeEffectiveToFieldName(), DataTypes.LongType, true));
+    if (hasCurrentFlagField()) {
+      currentFlagField = managedFields.size();
+      managedFields.add(DataTypes.createStructField(getCurrentFlagFieldName(), DataTypes.StringType, true));
+    }
+
+    fields = new HistoryFields(getTimestampFieldName(), getValueFieldNames(), managedFields);
+    carryForward = config.hasPath(CARRY_FORWARD_CONFIG_NAME) && config.getBoolean(CARRY_FORWARD_CONFIG_NAME);
   }
 
   @Override
@@ -69,23 +84,15 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
 
   @Override
   public List<PlannedRow> planMutationsForKey(Row key, List<Row> arrivingForKey, List<Row> existingForKey) {
-    List<String> valueFieldNames = getValueFieldNames();
-    String timestampFieldName = getTimestampFieldName();
-    String eventTimeEffectiveFromFieldName = getEventTimeEffectiveFromFieldName();
-    String eventTimeEffectiveToFieldName = getEventTimeEffectiveToFieldName();
-    String systemTimeEffectiveFromFieldName = getSystemTimeEffectiveFromFieldName();
-    String systemTimeEffectiveToFieldName = getSystemTimeEffectiveToFieldName();
-    boolean hasCurrentFlagField = hasCurrentFlagField();
-    String currentFlagFieldName = getCurrentFlagFieldName();
-
     long currentSystemTime = System.currentTimeMillis();
-    Comparator<PlannedRow> tc = new PlanTimestampComparator(timestampFieldName);
+    Comparator<PlannedRow> tc = new PlanTimestampComparator();
 
     List<PlannedRow> plannedForKey = Lists.newArrayList();
 
     if (existingForKey != null) {
       for (Row existing : existingForKey) {
-        if (currentSystemTime < (long)get(existing, systemTimeEffectiveToFieldName)) {
+        HistoryFields.Layout existingLayout = fields.layoutFor(existing.schema());
+        if (currentSystemTime < (long)existingLayout.getManaged(existing, SYSTEM_TIME_EFFECTIVE_TO)) {
           plannedForKey.add(new PlannedRow(existing, MutationType.NONE));
         }
       }
@@ -94,166 +101,98 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     Collections.sort(plannedForKey, tc);
 
     for (Row arriving : arrivingForKey) {
-      arriving = append(arriving, eventTimeEffectiveFromFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, eventTimeEffectiveToFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, systemTimeEffectiveFromFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, systemTimeEffectiveToFieldName, DataTypes.LongType, null);
-      if (hasCurrentFlagField) {
-        arriving = append(arriving, currentFlagFieldName, DataTypes.StringType, null);
-      }
-
-      Long arrivingTimestamp = (Long)get(arriving, timestampFieldName);
+      long arrivingTimestamp = timestampOf(arriving);
+      RowWithSchema.Builder output = fields.project(arriving);
 
       // There was no existing record for the key, so we just insert the input record.
       if (plannedForKey.isEmpty()) {
-        arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-        arriving = set(arriving, eventTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-        arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-        arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-        if (hasCurrentFlagField) {
-          arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_YES);
-        }
-        plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        setVersion(output, arrivingTimestamp, FAR_FUTURE_MILLIS, currentSystemTime, CURRENT_FLAG_YES);
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
         continue;
       }
 
-      // Iterate through each existing record of the key in time order, stopping when we
-      // have either corrected the history or gone all the way through it.
-      for (int position = 0; position < plannedForKey.size(); position++) {
-        PlannedRow plan = plannedForKey.get(position);
-        Long planTimestamp = (Long)get(plan.getRow(), timestampFieldName);
-        PlannedRow previousPlanned = null;
-        PlannedRow nextPlanned = null;
-        Long nextPlannedTimestamp = null;
-
-        if (position > 0) {
-          previousPlanned = plannedForKey.get(position - 1);
-        }
-        if (position + 1 < plannedForKey.size()) {
-          nextPlanned = plannedForKey.get(position + 1);
-          nextPlannedTimestamp = (Long)get(nextPlanned.getRow(), timestampFieldName);
-        }
-
-        // There is an existing record for the same key and timestamp. It is possible that
-        // the existing record is in the storage layer or is about to be added during this
-        // micro-batch. Either way, we only update that record if it has changed.
-        if (simultaneous(arriving, plan.getRow(), timestampFieldName) &&
-          different(arriving, plan.getRow(), valueFieldNames))
-        {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, get(plan.getRow(), eventTimeEffectiveFromFieldName));
-          arriving = set(arriving, eventTimeEffectiveToFieldName, get(plan.getRow(), eventTimeEffectiveToFieldName));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, get(plan.getRow(), currentFlagFieldName));
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+      // Find where the input record falls in the time order of the key, so that only the
+      // records either side of it need to be considered.
+      int position = fields.firstNotBefore(plannedForKey, arrivingTimestamp);
 
-          plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
-          if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
-          }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
+      // There is an existing record for the same key and timestamp. It is possible that
+      // the existing record is in the storage layer or is about to be added during this
+      // micro-batch. Either way, we only update that record if it has changed.
+      if (position < plannedForKey.size() && timestampOf(plannedForKey.get(position).getRow()) == arrivingTimestamp) {
+        for (; position < plannedForKey.size() && timestampOf(plannedForKey.get(position).getRow()) == arrivingTimestamp; position++) {
+          PlannedRow plan = plannedForKey.get(position);
 
-          break;
-        }
-        // Before them all
-        // -> Insert with ED just before first
-        // The input record is timestamped before any existing record of the same key. In
-        // this case there is no need to modify existing records, and we only have to insert
-        // the input record as effective up until just prior to the first existing record.
-        else if (previousPlanned == null && before(arriving, plan.getRow(), timestampFieldName)) {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, precedingTimestamp(planTimestamp));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_NO);
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+          if (different(arriving, plan.getRow())) {
+            HistoryFields.Layout planLayout = fields.layoutFor(plan.getRow().schema());
+            setVersion(output, planLayout.getManaged(plan.getRow(), EVENT_TIME_EFFECTIVE_FROM),
+                planLayout.getManaged(plan.getRow(), EVENT_TIME_EFFECTIVE_TO), currentSystemTime,
+                currentFlagField >= 0 ? planLayout.getManaged(plan.getRow(), currentFlagField) : null);
+            fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
-          break;
-        }
-        // The input record is timestamped with an existing record of the same key before it
-        // and an existing record of the same key after it. We insert the input record
-        // effective until just prior to the next existing record and we update the
-        // previous existing record to be effective until just prior to the input record.
-        else if (plan != null && nextPlanned != null &&
-             after(arriving, plan.getRow(), timestampFieldName) &&
-             before(arriving, nextPlanned.getRow(), timestampFieldName))
-        {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, precedingTimestamp(nextPlannedTimestamp));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_NO);
-          }
-          arriving = carryForwardWhenNull(arriving, plan.getRow());
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+            endSystemTime(plan, currentSystemTime);
 
-          plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
-          if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
+            break;
           }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
-
-          Row superseded = plan.getRow();
-          superseded = set(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
-          superseded = set(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
-          superseded = set(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          plannedForKey.add(new PlannedRow(superseded, MutationType.INSERT));
-
-          break;
         }
-        // The input record is arriving after all existing records of the same key. This
-        // is the 'normal' case where data arrives in order. We insert the input record
-        // effective until the far future, and we update the previous existing record
-        // to be effective until just prior to the input record.
-        else if (after(arriving, plan.getRow(), timestampFieldName) && nextPlanned == null) {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_YES);
-          }
-          arriving = carryForwardWhenNull(arriving, plan.getRow());
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+      }
+      // Before them all
+      // -> Insert with ED just before first
+      // The input record is timestamped before any existing record of the same key. In
+      // this case there is no need to modify existing records, and we only have to insert
+      // the input record as effective up until just prior to the first existing record.
+      else if (position == 0) {
+        long firstTimestamp = timestampOf(plannedForKey.get(0).getRow());
+
+        setVersion(output, arrivingTimestamp, precedingTimestamp(firstTimestamp), currentSystemTime, CURRENT_FLAG_NO);
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
+      }
+      // The input record is timestamped with an existing record of the same key before it
+      // and an existing record of the same key after it. We insert the input record
+      // effective until just prior to the next existing record and we update the
+      // previous existing record to be effective until just prior to the input record.
+      else if (position < plannedForKey.size()) {
+        PlannedRow plan = plannedForKey.get(position - 1);
+        long nextPlannedTimestamp = timestampOf(plannedForKey.get(position).getRow());
+
+        setVersion(output, arrivingTimestamp, precedingTimestamp(nextPlannedTimestamp), currentSystemTime, CURRENT_FLAG_NO);
+        if (carryForward) {
+          HistoryFields.carryForwardWhenNull(output, plan.getRow());
+        }
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
-          if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
-          }
+        endSystemTime(plan, currentSystemTime);
+        fields.insert(plannedForKey, new PlannedRow(supersede(plan.getRow(), arrivingTimestamp, currentSystemTime, false),
+            MutationType.INSERT));
+      }
+      // The input record is arriving after all existing records of the same key. This
+      // is the 'normal' case where data arrives in order. We insert the input record
+      // effective until the far future, and we update the previous existing record
+      // to be effective until just prior to the input record.
+      else {
+        PlannedRow plan = plannedForKey.get(position - 1);
+        HistoryFields.Layout planLayout = fields.layoutFor(plan.getRow().schema());
+
+        setVersion(output, arrivingTimestamp, FAR_FUTURE_MILLIS, currentSystemTime, CURRENT_FLAG_YES);
+        if (carryForward) {
+          HistoryFields.carryForwardWhenNull(output, plan.getRow());
+        }
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
-          if ((long)get(plan.getRow(), systemTimeEffectiveFromFieldName) < currentSystemTime) {
-            plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
-            if (!plan.getMutationType().equals(MutationType.INSERT)) {
-              plan.setMutationType(MutationType.UPDATE);
-            }
-
-            Row superseded = plan.getRow();
-            superseded = set(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
-            superseded = set(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
-            superseded = set(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-            if (hasCurrentFlagField) {
-              superseded = set(superseded, currentFlagFieldName, CURRENT_FLAG_NO);
-            }
-            plannedForKey.add(new PlannedRow(superseded, MutationType.INSERT));
-          }
-          else {
-            plan.setRow(set(plan.getRow(), eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp)));
+        if ((long)planLayout.getManaged(plan.getRow(), SYSTEM_TIME_EFFECTIVE_FROM) < currentSystemTime) {
+          endSystemTime(plan, currentSystemTime);
+          fields.insert(plannedForKey, new PlannedRow(supersede(plan.getRow(), arrivingTimestamp, currentSystemTime, true),
+              MutationType.INSERT));
+        }
+        else {
+          RowWithSchema.Builder ended = new RowWithSchema.Builder(plan.getRow());
+          planLayout.setManaged(ended, EVENT_TIME_EFFECTIVE_TO, precedingTimestamp(arrivingTimestamp));
+          if (currentFlagField >= 0) {
+            planLayout.setManaged(ended, currentFlagField, CURRENT_FLAG_NO);
           }
-
-          break;
+          plan.setRow(ended.build());
         }
       }
-
-      Collections.sort(plannedForKey, tc);
     }
 
     Iterator<PlannedRow> planIterator = plannedForKey.iterator();
@@ -266,6 +205,94 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     return plannedForKey;
   }
 
+  // Set the planner-managed fields of a new version of the key, which is effective in system
+  // time from now until it is superseded
+  private void setVersion(RowWithSchema.Builder output, Object eventTimeEffectiveFrom,
+                          Object eventTimeEffectiveTo, long currentSystemTime, Object currentFlag)
+  {
+    HistoryFields.Layout layout = fields.layoutFor(output.schema());
+
+    layout.setManaged(output, EVENT_TIME_EFFECTIVE_FROM, eventTimeEffectiveFrom);
+    layout.setManaged(output, EVENT_TIME_EFFECTIVE_TO, eventTimeEffectiveTo);
+    layout.setManaged(output, SYSTEM_TIME_EFFECTIVE_FROM, currentSystemTime);
+    layout.setManaged(output, SYSTEM_TIME_EFFECTIVE_TO, FAR_FUTURE_MILLIS);
+    if (currentFlagField >= 0) {
+      layout.setManaged(output, currentFlagField, currentFlag);
+    }
+  }
+
+  // End the system time of a version of the key just prior to now
+  private void endSystemTime(PlannedRow plan, long currentSystemTime) {
+    HistoryFields.Layout layout = fields.layoutFor(plan.getRow().schema());
+    RowWithSchema.Builder ended = new RowWithSchema.Builder(plan.getRow());
+
+    layout.setManaged(ended, SYSTEM_TIME_EFFECTIVE_TO, precedingTimestamp(currentSystemTime));
+    if (currentFlagField >= 0) {
+      layout.setManaged(ended, currentFlagField, CURRENT_FLAG_NO);
+    }
+    plan.setRow(ended.build());
+
+    if (!plan.getMutationType().equals(MutationType.INSERT)) {
+      plan.setMutationType(MutationType.UPDATE);
+    }
+  }
+
+  // A new version of an ended version of the key that is only effective in event time until
+  // just prior to the arriving record
+  private Row supersede(Row ended, long arrivingTimestamp, long currentSystemTime, boolean setCurrentFlag) {
+    HistoryFields.Layout layout = fields.layoutFor(ended.schema());
+    RowWithSchema.Builder superseded = new RowWithSchema.Builder(ended);
+
+    layout.setManaged(superseded, EVENT_TIME_EFFECTIVE_TO, precedingTimestamp(arrivingTimestamp));
+    layout.setManaged(superseded, SYSTEM_TIME_EFFECTIVE_FROM, currentSystemTime);
+    layout.setManaged(superseded, SYSTEM_TIME_EFFECTIVE_TO, FAR_FUTURE_MILLIS);
+    if (setCurrentFlag && currentFlagField >= 0) {
+      layout.setManaged(superseded, currentFlagField, CURRENT_FLAG_NO);
+    }
+
+    return superseded.build();
+  }
+
+  private long timestampOf(Row row) {
+    return fields.timestampOf(row);
+  }
+
+  private Long earliestTimestamp(Iterable<Row> arriving) {
+    Long earliestTimestamp = null;
+
+    for (Row arrived : arriving) {
+      long timestamp = timestampOf(arrived);
+
+      if (earliestTimestamp == null || timestamp < earliestTimestamp) {
+        earliestTimestamp = timestamp;
+      }
+    }
+
+    return earliestTimestamp;
+  }
+
+  private boolean different(Row first, Row second) {
+    return fields.layoutFor(first.schema()).differentValues(first, fields.layoutFor(second.schema()), second);
+  }
+
+  // Only the versions that are current in system time are planned with, and of those the
+  // versions that ended in event time before the earliest arriving record are not needed
+  @Override
+  public List<ExistingPredicate> getExistingPredicates(Iterable<Row> arriving) {
+    List<ExistingPredicate> predicates = Lists.newArrayList();
+
+    predicates.add(new ExistingPredicate(getSystemTimeEffectiveToFieldName(), ExistingPredicate.Operator.GREATER,
+        System.currentTimeMillis()));
+
+    Long earliestTimestamp = earliestTimestamp(arriving);
+    if (earliestTimestamp != null) {
+      predicates.add(new ExistingPredicate(getEventTimeEffectiveToFieldName(), ExistingPredicate.Operator.GREATER_EQUAL,
+          earliestTimestamp));
+    }
+
+    return predicates;
+  }
+
   @Override
   public List<String> getKeyFieldNames() {
     return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
@@ -303,33 +330,10 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
   }
 
-  // When the arrived record value is null then we have the option to carry forward
-  // the value from the previous record. This is useful for handling sparse records.
-  private Row carryForwardWhenNull(Row into, Row from) {
-    if (!config.hasPath(CARRY_FORWARD_CONFIG_NAME) || !config.getBoolean(CARRY_FORWARD_CONFIG_NAME)) {
-      return into;
-    }
-
-    for (StructField field : into.schema().fields()) {
-      String fieldName = field.name();
-      if (get(into, fieldName) == null && get(from, fieldName) != null) {
-        into = set(into, fieldName, get(from, fieldName));
-      }
-    }
-    
-    return into;
-  }
-
   private class PlanTimestampComparator implements Comparator<PlannedRow> {
-    private String timestampFieldName;
-
-    public PlanTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
-    }
-
     @Override
     public int compare(PlannedRow p1, PlannedRow p2) {
-      return compareTimestamp(p1.getRow(), p2.getRow(), timestampFieldName);
+      return Long.compare(timestampOf(p1.getRow()), timestampOf(p2.getRow()));
     }
   }
 
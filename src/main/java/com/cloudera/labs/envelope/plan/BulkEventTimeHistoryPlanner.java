@@ -0,0 +1,336 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.first;
+import static org.apache.spark.sql.functions.lead;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.min;
+import static org.apache.spark.sql.functions.not;
+import static org.apache.spark.sql.functions.row_number;
+import static org.apache.spark.sql.functions.when;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.expressions.Window;
+import org.apache.spark.sql.expressions.WindowSpec;
+import org.apache.spark.sql.hive.HiveContext;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.storage.StorageLevel;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * A bulk planner implementation for tracking the history of the values of a key, with the same
+ * behavior as the history planner, which is equivalent to Type II SCD modeling. The arriving
+ * records are combined with the existing versions of their keys that are still effective at or
+ * after the earliest arriving record of the key, and the effective ranges of the combined
+ * versions are derived with window functions over each key in event time order.
+ * <p>
+ * The combined versions are cached and computed before the plan is returned, so that the
+ * updates are not planned from the output after the inserts have been applied to it.
+ */
+public class BulkEventTimeHistoryPlanner implements ExistingBulkPlanner, CachingPlanner {
+
+  public static final String KEY_FIELD_NAMES_CONFIG_NAME = EventTimeHistoryPlanner.KEY_FIELD_NAMES_CONFIG_NAME;
+  public static final String VALUE_FIELD_NAMES_CONFIG_NAME = EventTimeHistoryPlanner.VALUE_FIELD_NAMES_CONFIG_NAME;
+  public static final String TIMESTAMP_FIELD_NAME_CONFIG_NAME = EventTimeHistoryPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME;
+  public static final String EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME = EventTimeHistoryPlanner.EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME;
+  public static final String EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME = EventTimeHistoryPlanner.EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME;
+  public static final String CURRENT_FLAG_FIELD_NAME_CONFIG_NAME = EventTimeHistoryPlanner.CURRENT_FLAG_FIELD_NAME_CONFIG_NAME;
+  public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = EventTimeHistoryPlanner.LAST_UPDATED_FIELD_NAME_CONFIG_NAME;
+
+  // Columns of the intermediate DataFrames, prefixed so that they do not clash with the output columns
+  private static final String SOURCE = "__source";
+  private static final String EXISTING_AT_TIMESTAMP = "__existing_at_timestamp";
+  private static final String DIFFERENT = "__different";
+  private static final String RANK = "__rank";
+  private static final String NEXT_TIMESTAMP = "__next_timestamp";
+  private static final String STORED_EFFECTIVE_TO = "__stored_effective_to";
+  private static final String STORED_CURRENT_FLAG = "__stored_current_flag";
+  private static final String EARLIEST_PREFIX = "__earliest_";
+  private static final String FIRST_PREFIX = "__first_";
+
+  private static final int ARRIVING = 0;
+  private static final int EXISTING = 1;
+
+  private Config config;
+  private DataFrame versions;
+
+  @Override
+  public void configure(Config config) {
+    this.config = config;
+
+    if (config.hasPath(EventTimeHistoryPlanner.CARRY_FORWARD_CONFIG_NAME) &&
+        config.getBoolean(EventTimeHistoryPlanner.CARRY_FORWARD_CONFIG_NAME))
+    {
+      throw new RuntimeException("Bulk history planner does not support carrying forward null values");
+    }
+  }
+
+  @Override
+  public List<Tuple2<MutationType, DataFrame>> planMutationsForSet(DataFrame arriving) {
+    throw new RuntimeException("Bulk history planner requires the existing records of the output");
+  }
+
+  @Override
+  public List<Tuple2<MutationType, DataFrame>> planMutationsForSet(DataFrame arriving, DataFrame existing) {
+    List<String> keyFieldNames = getKeyFieldNames();
+    String timestampFieldName = getTimestampFieldName();
+    String effectiveFromFieldName = getEffectiveFromFieldName();
+    String effectiveToFieldName = getEffectiveToFieldName();
+    String[] arrivingFieldNames = arriving.columns();
+
+    List<Tuple2<MutationType, DataFrame>> planned = Lists.newArrayList();
+
+    Object earliestTimestamp = arriving.agg(min(col(timestampFieldName))).first().get(0);
+    if (earliestTimestamp == null) {
+      return planned;
+    }
+
+    // Filter and prune the existing records before they leave the context that read them, so
+    // that the output can push the filter and the projection down to its storage
+    List<Column> existingColumns = Lists.newArrayList(columnsFor(arrivingFieldNames));
+    existingColumns.add(col(effectiveFromFieldName));
+    existingColumns.add(col(effectiveToFieldName));
+    if (hasCurrentFlagField()) {
+      existingColumns.add(col(getCurrentFlagFieldName()));
+    }
+    existing = existing
+        .filter(col(effectiveToFieldName).geq(lit(earliestTimestamp)))
+        .select(existingColumns.toArray(new Column[existingColumns.size()]));
+
+    // Window functions require a Hive context in this version of Spark
+    HiveContext hc = arriving.sqlContext() instanceof HiveContext ?
+        (HiveContext)arriving.sqlContext() : Contexts.getHiveContext();
+    arriving = inContext(arriving, hc);
+    existing = inContext(existing, hc);
+
+    // The versions of a key are contiguous in event time, so only the versions that are still
+    // effective at the earliest arriving record of the key can be affected
+    DataFrame earliestForKeys = arriving
+        .groupBy(columnsFor(keyFieldNames))
+        .agg(min(col(timestampFieldName)).as(EARLIEST_PREFIX + timestampFieldName));
+    for (String fieldName : keyFieldNames) {
+      earliestForKeys = earliestForKeys.withColumnRenamed(fieldName, EARLIEST_PREFIX + fieldName);
+    }
+    Column affected = keysEqual(keyFieldNames, EARLIEST_PREFIX)
+        .and(col(effectiveToFieldName).geq(col(EARLIEST_PREFIX + timestampFieldName)));
+    DataFrame affectedExisting = existing.join(earliestForKeys, affected);
+
+    DataFrame combined = asVersions(arriving, ARRIVING, arrivingFieldNames)
+        .unionAll(asVersions(affectedExisting, EXISTING, arrivingFieldNames));
+
+    combined = chooseVersionsForTimestamps(combined, keyFieldNames, timestampFieldName);
+
+    // Each version is effective until just prior to the next version of the key, and the
+    // last version of the key is the current version
+    WindowSpec keyInTimeOrder = Window.partitionBy(columnsFor(keyFieldNames)).orderBy(col(timestampFieldName));
+    combined = combined.withColumn(NEXT_TIMESTAMP, lead(col(timestampFieldName), 1).over(keyInTimeOrder));
+
+    clearCache();
+    versions = combined;
+    versions.persist(StorageLevel.MEMORY_AND_DISK());
+    versions.count();
+    Column isCurrent = col(NEXT_TIMESTAMP).isNull();
+    Column effectiveTo = when(isCurrent, lit(EventTimeHistoryPlanner.FAR_FUTURE_MILLIS))
+        .otherwise(col(NEXT_TIMESTAMP).minus(1));
+    Column currentFlag = when(isCurrent, lit(EventTimeHistoryPlanner.CURRENT_FLAG_YES))
+        .otherwise(lit(EventTimeHistoryPlanner.CURRENT_FLAG_NO));
+
+    List<Column> outputColumns = Lists.newArrayList(columnsFor(arrivingFieldNames));
+    outputColumns.add(col(effectiveFromFieldName));
+    outputColumns.add(effectiveTo.as(effectiveToFieldName));
+    if (hasCurrentFlagField()) {
+      outputColumns.add(currentFlag.as(getCurrentFlagFieldName()));
+    }
+    if (hasLastUpdatedField()) {
+      outputColumns.add(lit(currentTimestampString()).as(getLastUpdatedFieldName()));
+    }
+    Column[] output = outputColumns.toArray(new Column[outputColumns.size()]);
+
+    // Existing versions only need to be updated if their effective range has changed
+    Column existingChanged = not(effectiveTo.eqNullSafe(col(STORED_EFFECTIVE_TO)));
+    if (hasCurrentFlagField()) {
+      existingChanged = existingChanged.or(not(currentFlag.eqNullSafe(col(STORED_CURRENT_FLAG))));
+    }
+    Column isArriving = col(SOURCE).equalTo(ARRIVING);
+    Column replacesExisting = col(EXISTING_AT_TIMESTAMP).equalTo(EXISTING);
+
+    DataFrame inserts = versions.filter(isArriving.and(not(replacesExisting))).select(output);
+    DataFrame updates = versions
+        .filter(isArriving.and(replacesExisting).or(not(isArriving).and(existingChanged)))
+        .select(output);
+
+    planned.add(new Tuple2<MutationType, DataFrame>(MutationType.INSERT, inserts));
+    planned.add(new Tuple2<MutationType, DataFrame>(MutationType.UPDATE, updates));
+
+    return planned;
+  }
+
+  @Override
+  public void clearCache() {
+    if (versions != null) {
+      versions.unpersist(false);
+      versions = null;
+    }
+  }
+
+  // Lay out arriving records and existing versions with the same columns so that they can be combined
+  private DataFrame asVersions(DataFrame records, int source, String[] arrivingFieldNames) {
+    List<Column> columns = Lists.newArrayList(columnsFor(arrivingFieldNames));
+
+    if (source == ARRIVING) {
+      columns.add(col(getTimestampFieldName()).as(getEffectiveFromFieldName()));
+      columns.add(lit(null).cast(DataTypes.LongType).as(STORED_EFFECTIVE_TO));
+      if (hasCurrentFlagField()) {
+        columns.add(lit(null).cast(DataTypes.StringType).as(STORED_CURRENT_FLAG));
+      }
+    }
+    else {
+      columns.add(col(getEffectiveFromFieldName()));
+      columns.add(col(getEffectiveToFieldName()).as(STORED_EFFECTIVE_TO));
+      if (hasCurrentFlagField()) {
+        columns.add(col(getCurrentFlagFieldName()).as(STORED_CURRENT_FLAG));
+      }
+    }
+    columns.add(lit(source).as(SOURCE));
+
+    return records.select(columns.toArray(new Column[columns.size()]));
+  }
+
+  // Keep one version for each timestamp of a key. An existing version is replaced by an
+  // arriving record of the same timestamp only if the values are different, and otherwise
+  // the existing version is kept. Between arriving records of the same timestamp the choice
+  // is arbitrary.
+  private DataFrame chooseVersionsForTimestamps(DataFrame versions, List<String> keyFieldNames,
+                                                String timestampFieldName)
+  {
+    List<Column> keyAndTimestamp = Lists.newArrayList(columnsFor(keyFieldNames));
+    keyAndTimestamp.add(col(timestampFieldName));
+    Column[] partition = keyAndTimestamp.toArray(new Column[keyAndTimestamp.size()]);
+
+    WindowSpec sameTimestamp = Window.partitionBy(partition);
+    WindowSpec existingFirst = Window.partitionBy(partition).orderBy(col(SOURCE).desc());
+
+    versions = versions.withColumn(EXISTING_AT_TIMESTAMP, max(col(SOURCE)).over(sameTimestamp));
+    for (String fieldName : getValueFieldNames()) {
+      versions = versions.withColumn(FIRST_PREFIX + fieldName, first(col(fieldName)).over(existingFirst));
+    }
+
+    Column different = lit(false);
+    for (String fieldName : getValueFieldNames()) {
+      different = different.or(not(col(fieldName).eqNullSafe(col(FIRST_PREFIX + fieldName))));
+    }
+    versions = versions.withColumn(DIFFERENT, col(SOURCE).equalTo(ARRIVING)
+        .and(col(EXISTING_AT_TIMESTAMP).equalTo(EXISTING)).and(different));
+
+    Column preference = when(col(DIFFERENT), lit(0)).when(col(SOURCE).equalTo(EXISTING), lit(1)).otherwise(lit(2));
+    versions = versions.withColumn(RANK, row_number().over(Window.partitionBy(partition).orderBy(preference)));
+
+    return versions.filter(col(RANK).equalTo(1));
+  }
+
+  private static DataFrame inContext(DataFrame dataFrame, HiveContext hc) {
+    if (dataFrame.sqlContext() == hc) {
+      return dataFrame;
+    }
+
+    return hc.createDataFrame(dataFrame.rdd(), dataFrame.schema());
+  }
+
+  private static Column keysEqual(List<String> keyFieldNames, String prefix) {
+    Column condition = null;
+
+    for (String fieldName : keyFieldNames) {
+      Column keyEqual = col(fieldName).equalTo(col(prefix + fieldName));
+      condition = condition == null ? keyEqual : condition.and(keyEqual);
+    }
+
+    return condition;
+  }
+
+  private static Column[] columnsFor(List<String> fieldNames) {
+    return columnsFor(fieldNames.toArray(new String[fieldNames.size()]));
+  }
+
+  private static Column[] columnsFor(String[] fieldNames) {
+    Column[] columns = new Column[fieldNames.length];
+
+    for (int i = 0; i < fieldNames.length; i++) {
+      columns[i] = col(fieldNames[i]);
+    }
+
+    return columns;
+  }
+
+  @Override
+  public Set<MutationType> getEmittedMutationTypes() {
+    return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
+  }
+
+  private List<String> getKeyFieldNames() {
+    return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private List<String> getValueFieldNames() {
+    return config.getStringList(VALUE_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private String getTimestampFieldName() {
+    return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getEffectiveFromFieldName() {
+    return config.getString(EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getEffectiveToFieldName() {
+    return config.getString(EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private boolean hasCurrentFlagField() {
+    return config.hasPath(CURRENT_FLAG_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getCurrentFlagFieldName() {
+    return config.getString(CURRENT_FLAG_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private boolean hasLastUpdatedField() {
+    return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getLastUpdatedFieldName() {
+    return config.getString(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String currentTimestampString() {
+    return new Date(System.currentTimeMillis()).toString();
+  }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.not;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.storage.StorageLevel;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * A bulk planner implementation for updating existing and inserting new (upsert), with the same
+ * behavior as the event time upsert planner. The plan is expressed as DataFrame operations over
+ * the whole set of arriving records and the existing records of the output, so that it is
+ * optimized and executed by Spark SQL rather than one key at a time.
+ * <p>
+ * The arriving records joined with the existing records are cached and computed before the plan
+ * is returned, so that the updates are not planned from the output after the inserts have been
+ * applied to it.
+ */
+public class BulkEventTimeUpsertPlanner implements ExistingBulkPlanner, CachingPlanner {
+
+  public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
+  public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = "field.last.updated";
+  public static final String TIMESTAMP_FIELD_NAME_CONFIG_NAME = "field.timestamp";
+  public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "field.values";
+
+  // Prefixes that keep the columns of the intermediate DataFrames from clashing with the arriving columns
+  private static final String LATEST_PREFIX = "__latest_";
+  private static final String EXISTING_PREFIX = "__existing_";
+
+  private Config config;
+  private DataFrame joined;
+
+  @Override
+  public void configure(Config config) {
+    this.config = config;
+  }
+
+  @Override
+  public List<Tuple2<MutationType, DataFrame>> planMutationsForSet(DataFrame arriving) {
+    throw new RuntimeException("Bulk event time upsert planner requires the existing records of the output");
+  }
+
+  @Override
+  public List<Tuple2<MutationType, DataFrame>> planMutationsForSet(DataFrame arriving, DataFrame existing) {
+    List<String> keyFieldNames = getKeyFieldNames();
+    String timestampFieldName = getTimestampFieldName();
+    List<String> valueFieldNames = getValueFieldNames();
+    Column[] arrivingColumns = columnsFor(arriving.columns());
+
+    DataFrame latest = latestForKeys(arriving, keyFieldNames, timestampFieldName).select(arrivingColumns);
+
+    List<Column> existingColumns = Lists.newArrayList();
+    for (String fieldName : keyFieldNames) {
+      existingColumns.add(col(fieldName).as(EXISTING_PREFIX + fieldName));
+    }
+    existingColumns.add(col(timestampFieldName).as(EXISTING_PREFIX + timestampFieldName));
+    for (String fieldName : valueFieldNames) {
+      existingColumns.add(col(fieldName).as(EXISTING_PREFIX + fieldName));
+    }
+    DataFrame existingForPlan = existing.select(existingColumns.toArray(new Column[existingColumns.size()]));
+
+    clearCache();
+    joined = latest.join(existingForPlan, keysEqual(keyFieldNames, EXISTING_PREFIX), "left_outer");
+    joined.persist(StorageLevel.MEMORY_AND_DISK());
+    joined.count();
+
+    // Key fields of the existing records are never null, so a null key means there was no match
+    Column notExisting = col(EXISTING_PREFIX + keyFieldNames.get(0)).isNull();
+
+    Column different = lit(false);
+    for (String fieldName : valueFieldNames) {
+      different = different.or(not(col(fieldName).eqNullSafe(col(EXISTING_PREFIX + fieldName))));
+    }
+    Column notBeforeExisting = col(timestampFieldName).geq(col(EXISTING_PREFIX + timestampFieldName));
+
+    DataFrame inserts = joined.filter(notExisting).select(arrivingColumns);
+    DataFrame updates = joined.filter(not(notExisting).and(notBeforeExisting).and(different)).select(arrivingColumns);
+
+    if (hasLastUpdatedField()) {
+      String lastUpdated = currentTimestampString();
+      inserts = inserts.withColumn(getLastUpdatedFieldName(), lit(lastUpdated));
+      updates = updates.withColumn(getLastUpdatedFieldName(), lit(lastUpdated));
+    }
+
+    List<Tuple2<MutationType, DataFrame>> planned = Lists.newArrayList();
+    planned.add(new Tuple2<MutationType, DataFrame>(MutationType.INSERT, inserts));
+    planned.add(new Tuple2<MutationType, DataFrame>(MutationType.UPDATE, updates));
+
+    return planned;
+  }
+
+  @Override
+  public void clearCache() {
+    if (joined != null) {
+      joined.unpersist(false);
+      joined = null;
+    }
+  }
+
+  // The arriving record with the latest timestamp of each key, choosing arbitrarily between
+  // records of a key that share the latest timestamp
+  private DataFrame latestForKeys(DataFrame arriving, List<String> keyFieldNames, String timestampFieldName) {
+    DataFrame maxTimestamps = arriving
+        .groupBy(columnsFor(keyFieldNames.toArray(new String[keyFieldNames.size()])))
+        .agg(max(col(timestampFieldName)).as(LATEST_PREFIX + timestampFieldName));
+    for (String fieldName : keyFieldNames) {
+      maxTimestamps = maxTimestamps.withColumnRenamed(fieldName, LATEST_PREFIX + fieldName);
+    }
+
+    Column latestCondition = keysEqual(keyFieldNames, LATEST_PREFIX)
+        .and(col(timestampFieldName).equalTo(col(LATEST_PREFIX + timestampFieldName)));
+
+    return arriving
+        .join(maxTimestamps, latestCondition)
+        .dropDuplicates(keyFieldNames.toArray(new String[keyFieldNames.size()]));
+  }
+
+  private Column keysEqual(List<String> keyFieldNames, String prefix) {
+    Column condition = null;
+
+    for (String fieldName : keyFieldNames) {
+      Column keyEqual = col(fieldName).equalTo(col(prefix + fieldName));
+      condition = condition == null ? keyEqual : condition.and(keyEqual);
+    }
+
+    return condition;
+  }
+
+  private Column[] columnsFor(String[] fieldNames) {
+    Column[] columns = new Column[fieldNames.length];
+
+    for (int i = 0; i < fieldNames.length; i++) {
+      columns[i] = col(fieldNames[i]);
+    }
+
+    return columns;
+  }
+
+  @Override
+  public Set<MutationType> getEmittedMutationTypes() {
+    return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
+  }
+
+  private List<String> getKeyFieldNames() {
+    return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private boolean hasLastUpdatedField() {
+    return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getLastUpdatedFieldName() {
+    return config.getString(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private List<String> getValueFieldNames() {
+    return config.getStringList(VALUE_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private String getTimestampFieldName() {
+    return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String currentTimestampString() {
+    return new Date(System.currentTimeMillis()).toString();
+  }
+
+}
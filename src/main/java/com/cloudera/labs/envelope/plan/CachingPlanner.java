@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+/**
+ * Bulk planners that cache the data that their planned mutations are derived from, so that
+ * every mutation is planned from the output as it was before any of them were applied.
+ */
+public interface CachingPlanner extends BulkPlanner {
+
+  /**
+   * Release the data that was cached to plan the last set of mutations. Envelope calls this
+   * once the planned mutations have been applied to the output, or have failed to be.
+   */
+  void clearCache();
+
+}
@@ -25,6 +25,7 @@ import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 
+import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -34,7 +35,7 @@ import com.typesafe.config.Config;
  * A planner implementation for storing all versions of the values of a key (its history) using
  * Type II SCD modeling.
  */
-public class EventTimeHistoryPlanner implements RandomPlanner {
+public class EventTimeHistoryPlanner implements PredicatedPlanner {
 
   public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
   public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "fields.values";
@@ -49,17 +50,41 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
   public static final String CURRENT_FLAG_NO = "N";
   public static final Long FAR_FUTURE_MILLIS = 253402214400000L; // 9999-12-31
 
+  // The positions of the planner-managed fields in the history fields
+  private static final int EFFECTIVE_FROM = 0;
+  private static final int EFFECTIVE_TO = 1;
+
   private Config config;
+  private HistoryFields fields;
+  private int currentFlagField = -1;
+  private int lastUpdatedField = -1;
+  private boolean carryForward;
 
   @Override
   public void configure(Config config) {
     this.config = config;
+
+    List<StructField> managedFields = Lists.newArrayList(
+        DataTypes.createStructField(getEffectiveFromFieldName(), DataTypes.LongType, true),
+        DataTypes.createStructField(getEffectiveToFieldName(), DataTypes.LongType, true));
+    if (hasCurrentFlagField()) {
+      currentFlagField = managedFields.size();
+      managedFields.add(DataTypes.createStructField(getCurrentFlagFieldName(), DataTypes.StringType, true));
+    }
+    if (hasLastUpdatedField()) {
+      lastUpdatedField = managedFields.size();
+      managedFields.add(DataTypes.createStructField(getLastUpdatedFieldName(), DataTypes.StringType, true));
+    }
+
+    fields = new HistoryFields(getTimestampFieldName(), getValueFieldNames(), managedFields);
+    carryForward = config.hasPath(CARRY_FORWARD_CONFIG_NAME) && config.getBoolean(CARRY_FORWARD_CONFIG_NAME);
   }
 
   @Override
   public List<PlannedRow> planMutationsForKey(Row key, List<Row> arrivingForKey, List<Row> existingForKey)
   {   
-    Comparator<PlannedRow> tc = new PlanTimestampComparator(getTimestampFieldName());
+    Comparator<PlannedRow> tc = new PlanTimestampComparator();
+    String lastUpdated = currentTimestampString();
 
     List<PlannedRow> planned = Lists.newArrayList();
     List<PlannedRow> plannedForKey = Lists.newArrayList();
@@ -73,155 +98,88 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     Collections.sort(plannedForKey, tc);
 
     for (Row arriving : arrivingForKey) {
-      arriving = RowUtils.append(arriving, getEffectiveFromFieldName(), DataTypes.LongType, null);
-      arriving = RowUtils.append(arriving, getEffectiveToFieldName(), DataTypes.LongType, null);
-      if (hasCurrentFlagField()) {
-        arriving = RowUtils.append(arriving, getCurrentFlagFieldName(), DataTypes.StringType, null);
-      }
-      if (hasLastUpdatedField()) {
-        arriving = RowUtils.append(arriving, getLastUpdatedFieldName(), DataTypes.StringType, null);
-      }
-
-      Long arrivedTimestamp = (Long)RowUtils.get(arriving, getTimestampFieldName());
+      long arrivedTimestamp = timestampOf(arriving);
+      RowWithSchema.Builder output = fields.project(arriving);
 
       // There was no existing record for the key, so we just insert the input record.
       if (plannedForKey.size() == 0) {
-        arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-        arriving = RowUtils.set(arriving, getEffectiveToFieldName(), FAR_FUTURE_MILLIS);
-        if (hasCurrentFlagField()) {
-          arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_YES);
-        }
-        if (hasLastUpdatedField()) {
-          arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-        }
-        plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        setVersion(output, arrivedTimestamp, FAR_FUTURE_MILLIS, CURRENT_FLAG_YES, lastUpdated);
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
         continue;
       }
 
-      // Iterate through each existing record of the key in time order, stopping when we
-      // have either corrected the history or gone all the way through it.
-      for (int position = 0; position < plannedForKey.size(); position++) {
-        PlannedRow plan = plannedForKey.get(position);
-        Long planTimestamp = (Long)RowUtils.get(plan.getRow(), getTimestampFieldName());
-        PlannedRow previousPlanned = null;
-        PlannedRow nextPlanned = null;
-        Long nextPlannedTimestamp = null;
-
-        if (position > 0) {
-          previousPlanned = plannedForKey.get(position - 1);
-        }
-        if (position + 1 < plannedForKey.size()) {
-          nextPlanned = plannedForKey.get(position + 1);
-          nextPlannedTimestamp = (Long)RowUtils.get(nextPlanned.getRow(), getTimestampFieldName());
-        }
-
-        // There is an existing record for the same key and timestamp. It is possible that
-        // the existing record is in the storage layer or is about to be added during this
-        // micro-batch. Either way, we only update that record if it has changed.
-        if (RowUtils.simultaneous(arriving, plan.getRow(), getTimestampFieldName()) &&
-          RowUtils.different(arriving, plan.getRow(), getValueFieldNames()))
-        {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), RowUtils.get(plan.getRow(), getEffectiveFromFieldName()));
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.get(plan.getRow(), getEffectiveToFieldName()));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), RowUtils.get(plan.getRow(), getCurrentFlagFieldName()));
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-
-          if (plan.getMutationType().equals(MutationType.INSERT)) {
-            plannedForKey.set(position, new PlannedRow(arriving, MutationType.INSERT));
-          }
-          else {
-            plannedForKey.set(position, new PlannedRow(arriving, MutationType.UPDATE));
+      // Find where the input record falls in the time order of the key, so that only the
+      // records either side of it need to be considered.
+      int position = fields.firstNotBefore(plannedForKey, arrivedTimestamp);
+
+      // There is an existing record for the same key and timestamp. It is possible that
+      // the existing record is in the storage layer or is about to be added during this
+      // micro-batch. Either way, we only update that record if it has changed.
+      if (position < plannedForKey.size() && timestampOf(plannedForKey.get(position).getRow()) == arrivedTimestamp) {
+        for (; position < plannedForKey.size() && timestampOf(plannedForKey.get(position).getRow()) == arrivedTimestamp; position++) {
+          PlannedRow plan = plannedForKey.get(position);
+
+          if (different(arriving, plan.getRow())) {
+            HistoryFields.Layout planLayout = fields.layoutFor(plan.getRow().schema());
+            setVersion(output, planLayout.getManaged(plan.getRow(), EFFECTIVE_FROM),
+                planLayout.getManaged(plan.getRow(), EFFECTIVE_TO),
+                currentFlagField >= 0 ? planLayout.getManaged(plan.getRow(), currentFlagField) : null,
+                lastUpdated);
+
+            if (plan.getMutationType().equals(MutationType.INSERT)) {
+              plannedForKey.set(position, new PlannedRow(output.build(), MutationType.INSERT));
+            }
+            else {
+              plannedForKey.set(position, new PlannedRow(output.build(), MutationType.UPDATE));
+            }
+
+            break;
           }
-
-          break;
         }
-        // Before them all
-        // -> Insert with ED just before first
-        // The input record is timestamped before any existing record of the same key. In
-        // this case there is no need to modify existing records, and we only have to insert
-        // the input record as effective up until just prior to the first existing record.
-        else if (previousPlanned == null && RowUtils.before(arriving, plan.getRow(), getTimestampFieldName())) {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.precedingTimestamp(planTimestamp));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_NO);
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
-
-          break;
+      }
+      // Before them all
+      // -> Insert with ED just before first
+      // The input record is timestamped before any existing record of the same key. In
+      // this case there is no need to modify existing records, and we only have to insert
+      // the input record as effective up until just prior to the first existing record.
+      else if (position == 0) {
+        long firstTimestamp = timestampOf(plannedForKey.get(0).getRow());
+
+        setVersion(output, arrivedTimestamp, RowUtils.precedingTimestamp(firstTimestamp), CURRENT_FLAG_NO, lastUpdated);
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
+      }
+      // The input record is timestamped with an existing record of the same key before it
+      // and an existing record of the same key after it. We insert the input record
+      // effective until just prior to the next existing record and we update the
+      // previous existing record to be effective until just prior to the input record.
+      else if (position < plannedForKey.size()) {
+        PlannedRow plan = plannedForKey.get(position - 1);
+        long nextPlannedTimestamp = timestampOf(plannedForKey.get(position).getRow());
+
+        setVersion(output, arrivedTimestamp, RowUtils.precedingTimestamp(nextPlannedTimestamp), CURRENT_FLAG_NO, lastUpdated);
+        if (carryForward) {
+          HistoryFields.carryForwardWhenNull(output, plan.getRow());
         }
-        // The input record is timestamped with an existing record of the same key before it
-        // and an existing record of the same key after it. We insert the input record
-        // effective until just prior to the next existing record and we update the
-        // previous existing record to be effective until just prior to the input record.
-        else if (plan != null && nextPlanned != null &&
-             RowUtils.after(arriving, plan.getRow(), getTimestampFieldName()) &&
-             RowUtils.before(arriving, nextPlanned.getRow(), getTimestampFieldName()))
-        {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.precedingTimestamp(nextPlannedTimestamp));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_NO);
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-          arriving = carryForwardWhenNull(arriving, plan.getRow());
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
-          plan.setRow(RowUtils.set(plan.getRow(), getEffectiveToFieldName(), RowUtils.precedingTimestamp(arrivedTimestamp)));
-          if (hasCurrentFlagField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getCurrentFlagFieldName(), CURRENT_FLAG_NO));
-          }
-          if (hasLastUpdatedField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getLastUpdatedFieldName(), currentTimestampString()));
-          }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
-
-          break;
+        endVersion(plan, arrivedTimestamp, lastUpdated);
+      }
+      // The input record is arriving after all existing records of the same key. This
+      // is the 'normal' case where data arrives in order. We insert the input record
+      // effective until the far future, and we update the previous existing record
+      // to be effective until just prior to the input record.
+      else {
+        PlannedRow plan = plannedForKey.get(position - 1);
+
+        setVersion(output, arrivedTimestamp, FAR_FUTURE_MILLIS, CURRENT_FLAG_YES, lastUpdated);
+        if (carryForward) {
+          HistoryFields.carryForwardWhenNull(output, plan.getRow());
         }
-        // The input record is arriving after all existing records of the same key. This
-        // is the 'normal' case where data arrives in order. We insert the input record
-        // effective until the far future, and we update the previous existing record
-        // to be effective until just prior to the input record.
-        else if (RowUtils.after(arriving, plan.getRow(), getTimestampFieldName()) && nextPlanned == null) {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_YES);
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-          arriving = carryForwardWhenNull(arriving, plan.getRow());
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        fields.insert(plannedForKey, new PlannedRow(output.build(), MutationType.INSERT));
 
-          plan.setRow(RowUtils.set(plan.getRow(), getEffectiveToFieldName(), RowUtils.precedingTimestamp(arrivedTimestamp)));
-          if (hasCurrentFlagField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getCurrentFlagFieldName(), CURRENT_FLAG_NO));
-          }
-          if (hasLastUpdatedField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getLastUpdatedFieldName(), currentTimestampString()));
-          }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
-
-          break;
-        }
+        endVersion(plan, arrivedTimestamp, lastUpdated);
       }
-
-      Collections.sort(plannedForKey, tc);
     }
 
     for (PlannedRow plan : plannedForKey) {
@@ -233,6 +191,78 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     return planned;
   }
 
+  // Set the planner-managed fields of a version of the key
+  private void setVersion(RowWithSchema.Builder output, Object effectiveFrom, Object effectiveTo,
+                          Object currentFlag, String lastUpdated)
+  {
+    HistoryFields.Layout layout = fields.layoutFor(output.schema());
+
+    layout.setManaged(output, EFFECTIVE_FROM, effectiveFrom);
+    layout.setManaged(output, EFFECTIVE_TO, effectiveTo);
+    if (currentFlagField >= 0) {
+      layout.setManaged(output, currentFlagField, currentFlag);
+    }
+    if (lastUpdatedField >= 0) {
+      layout.setManaged(output, lastUpdatedField, lastUpdated);
+    }
+  }
+
+  // End a version of the key just prior to the arrival of the next version
+  private void endVersion(PlannedRow plan, long arrivedTimestamp, String lastUpdated) {
+    HistoryFields.Layout layout = fields.layoutFor(plan.getRow().schema());
+    RowWithSchema.Builder ended = new RowWithSchema.Builder(plan.getRow());
+
+    layout.setManaged(ended, EFFECTIVE_TO, RowUtils.precedingTimestamp(arrivedTimestamp));
+    if (currentFlagField >= 0) {
+      layout.setManaged(ended, currentFlagField, CURRENT_FLAG_NO);
+    }
+    if (lastUpdatedField >= 0) {
+      layout.setManaged(ended, lastUpdatedField, lastUpdated);
+    }
+    plan.setRow(ended.build());
+
+    if (!plan.getMutationType().equals(MutationType.INSERT)) {
+      plan.setMutationType(MutationType.UPDATE);
+    }
+  }
+
+  private long timestampOf(Row row) {
+    return fields.timestampOf(row);
+  }
+
+  private Long earliestTimestamp(Iterable<Row> arriving) {
+    Long earliestTimestamp = null;
+
+    for (Row arrived : arriving) {
+      long timestamp = timestampOf(arrived);
+
+      if (earliestTimestamp == null || timestamp < earliestTimestamp) {
+        earliestTimestamp = timestamp;
+      }
+    }
+
+    return earliestTimestamp;
+  }
+
+  private boolean different(Row first, Row second) {
+    return fields.layoutFor(first.schema()).differentValues(first, fields.layoutFor(second.schema()), second);
+  }
+
+  // The versions of a key are contiguous in event time, so the versions that ended before the
+  // earliest arriving record are not needed to plan any of the arriving records
+  @Override
+  public List<ExistingPredicate> getExistingPredicates(Iterable<Row> arriving) {
+    List<ExistingPredicate> predicates = Lists.newArrayList();
+
+    Long earliestTimestamp = earliestTimestamp(arriving);
+    if (earliestTimestamp != null) {
+      predicates.add(new ExistingPredicate(getEffectiveToFieldName(), ExistingPredicate.Operator.GREATER_EQUAL,
+          earliestTimestamp));
+    }
+
+    return predicates;
+  }
+
   @Override
   public List<String> getKeyFieldNames() {
     return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
@@ -270,23 +300,6 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
   }
 
-  // When the arrived record value is null then we have the option to carry forward
-  // the value from the previous record. This is useful for handling sparse stream records.
-  private Row carryForwardWhenNull(Row into, Row from) {
-    if (!config.hasPath(CARRY_FORWARD_CONFIG_NAME) || !config.getBoolean(CARRY_FORWARD_CONFIG_NAME)) {
-      return into;
-    }
-
-    for (StructField field : into.schema().fields()) {
-      String fieldName = field.name();
-      if (RowUtils.get(into, fieldName) == null && RowUtils.get(from, fieldName) != null) {
-        into = RowUtils.set(into, fieldName, RowUtils.get(from, fieldName));
-      }
-    }
-
-    return into;
-  }
-
   @Override
   public Set<MutationType> getEmittedMutationTypes() {
     return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
@@ -297,15 +310,9 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
   }
 
   private class PlanTimestampComparator implements Comparator<PlannedRow> {
-    private String timestampFieldName;
-
-    public PlanTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
-    }
-
     @Override
     public int compare(PlannedRow p1, PlannedRow p2) {
-      return RowUtils.compareTimestamp(p1.getRow(), p2.getRow(), timestampFieldName);
+      return Long.compare(timestampOf(p1.getRow()), timestampOf(p2.getRow()));
     }
   }
 
@@ -33,7 +33,7 @@ import com.typesafe.config.Config;
  * A planner implementation for updating existing and inserting new (upsert). This maintains the
  * most recent version of the values of a key, which is equivalent to Type I SCD modeling.
  */
-public class EventTimeUpsertPlanner implements RandomPlanner {
+public class EventTimeUpsertPlanner implements ReducingPlanner {
 
   public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
   public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = "field.last.updated";
@@ -102,6 +102,12 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
     return planned;
   }
 
+  // Only the arriving record with the latest timestamp of the key is planned with
+  @Override
+  public Row reduceArriving(Row first, Row second) {
+    return RowUtils.after(second, first, getTimestampFieldName()) ? second : first;
+  }
+
   @Override
   public Set<MutationType> getEmittedMutationTypes() {
     return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
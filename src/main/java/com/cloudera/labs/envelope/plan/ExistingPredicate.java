@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.io.Serializable;
+
+import org.apache.spark.sql.Row;
+
+/**
+ * A comparison of a field of the existing records with a value, which a planner uses to declare
+ * which existing records it needs. Outputs can apply the predicate when reading the existing
+ * records so that records the planner would not use are never read.
+ */
+@SuppressWarnings("serial")
+public class ExistingPredicate implements Serializable {
+
+  public enum Operator {
+    EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL
+  }
+
+  private final String fieldName;
+  private final Operator operator;
+  private final Object value;
+
+  public ExistingPredicate(String fieldName, Operator operator, Object value) {
+    if (value == null) {
+      throw new RuntimeException("Existing record predicate on field " + fieldName + " must have a value");
+    }
+
+    this.fieldName = fieldName;
+    this.operator = operator;
+    this.value = value;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public Operator getOperator() {
+    return operator;
+  }
+
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * @return True if the record has a non-null value for the field that satisfies the predicate.
+   */
+  public boolean matches(Row record) {
+    Object recordValue = record.get(record.fieldIndex(fieldName));
+
+    if (recordValue == null) {
+      return false;
+    }
+
+    int comparison = compare(recordValue, value);
+
+    switch (operator) {
+      case EQUAL:
+        return comparison == 0;
+      case GREATER:
+        return comparison > 0;
+      case GREATER_EQUAL:
+        return comparison >= 0;
+      case LESS:
+        return comparison < 0;
+      case LESS_EQUAL:
+        return comparison <= 0;
+      default:
+        throw new RuntimeException("Unsupported existing record predicate operator: " + operator);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compare(Object first, Object second) {
+    if (first instanceof Number && second instanceof Number) {
+      if (first instanceof Float || first instanceof Double || second instanceof Float || second instanceof Double) {
+        return Double.compare(((Number)first).doubleValue(), ((Number)second).doubleValue());
+      }
+
+      return Long.compare(((Number)first).longValue(), ((Number)second).longValue());
+    }
+
+    return ((Comparable<Object>)first).compareTo(second);
+  }
+
+  @Override
+  public String toString() {
+    return fieldName + " " + operator + " " + value;
+  }
+
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.spark.RowSchemas;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+
+/**
+ * The fields that a history planner reads and writes, resolved to field ordinals once per
+ * schema rather than by name for every row. The planner-managed fields, such as the effective
+ * from and to timestamps, are referred to by their position in the list given to the
+ * constructor.
+ */
+class HistoryFields {
+
+  private final String timestampFieldName;
+  private final List<String> valueFieldNames;
+  private final List<StructField> managedFields;
+
+  // The rows of a key almost always share one arriving schema and one existing schema, so
+  // the most recent layout of each is enough
+  private volatile Projection lastProjection;
+  private volatile Layout lastLayout;
+
+  HistoryFields(String timestampFieldName, List<String> valueFieldNames, List<StructField> managedFields) {
+    this.timestampFieldName = timestampFieldName;
+    this.valueFieldNames = valueFieldNames;
+    this.managedFields = managedFields;
+  }
+
+  /**
+   * @return The layout of rows of the given schema, which may be arriving rows, planned rows
+   * in the output layout, or the existing rows of the output.
+   */
+  Layout layoutFor(StructType schema) {
+    Projection projection = lastProjection;
+    if (projection != null) {
+      if (projection.arrivingLayout.schema == schema) {
+        return projection.arrivingLayout;
+      }
+      if (projection.outputLayout.schema == schema) {
+        return projection.outputLayout;
+      }
+    }
+
+    Layout layout = lastLayout;
+    if (layout == null || layout.schema != schema) {
+      layout = new Layout(schema);
+      lastLayout = layout;
+    }
+
+    return layout;
+  }
+
+  long timestampOf(Row row) {
+    return layoutFor(row.schema()).getTimestamp(row);
+  }
+
+  /**
+   * @return The position of the first plan of a timeline, which is sorted by timestamp, that
+   * is not before the given timestamp, or the size of the timeline if there is none.
+   */
+  int firstNotBefore(List<PlannedRow> timeline, long timestamp) {
+    return search(timeline, timestamp, false);
+  }
+
+  /**
+   * Insert a plan into a timeline, which is sorted by timestamp, after any plans that have the
+   * same timestamp. This keeps the order that a stable sort of the appended plan would give.
+   */
+  void insert(List<PlannedRow> timeline, PlannedRow plan) {
+    timeline.add(search(timeline, timestampOf(plan.getRow()), true), plan);
+  }
+
+  private int search(List<PlannedRow> timeline, long timestamp, boolean afterEqual) {
+    int low = 0;
+    int high = timeline.size();
+
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      long middleTimestamp = timestampOf(timeline.get(middle).getRow());
+
+      if (middleTimestamp < timestamp || (afterEqual && middleTimestamp == timestamp)) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+
+    return low;
+  }
+
+  /**
+   * Project an arriving row into the output layout, which is the arriving schema with the
+   * planner-managed fields appended. The managed fields are left unset.
+   */
+  RowWithSchema.Builder project(Row arriving) {
+    return new RowWithSchema.Builder(projectionFor(arriving.schema()).outputLayout.schema).setAll(arriving);
+  }
+
+  /**
+   * Copy the values of a row into the null fields of the same name of a planned row.
+   */
+  static void carryForwardWhenNull(RowWithSchema.Builder into, Row from) {
+    int[] indexes = RowSchemas.projection(from.schema(), into.schema());
+
+    for (int i = 0; i < indexes.length; i++) {
+      if (indexes[i] >= 0 && into.get(i) == null) {
+        into.set(i, from.get(indexes[i]));
+      }
+    }
+  }
+
+  private Projection projectionFor(StructType arrivingSchema) {
+    Projection projection = lastProjection;
+
+    if (projection == null || projection.arrivingLayout.schema != arrivingSchema) {
+      StructType outputSchema = arrivingSchema;
+      for (StructField managedField : managedFields) {
+        outputSchema = RowSchemas.append(outputSchema, managedField);
+      }
+
+      projection = new Projection(new Layout(arrivingSchema), new Layout(outputSchema));
+      lastProjection = projection;
+    }
+
+    return projection;
+  }
+
+  private static class Projection {
+    private final Layout arrivingLayout;
+    private final Layout outputLayout;
+
+    Projection(Layout arrivingLayout, Layout outputLayout) {
+      this.arrivingLayout = arrivingLayout;
+      this.outputLayout = outputLayout;
+    }
+  }
+
+  class Layout {
+    private final StructType schema;
+    private final int timestamp;
+    private final int[] values;
+    private final int[] managed;
+
+    private Layout(StructType schema) {
+      this.schema = schema;
+      this.timestamp = schema.fieldIndex(timestampFieldName);
+
+      values = new int[valueFieldNames.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = schema.fieldIndex(valueFieldNames.get(i));
+      }
+
+      // Managed fields are only required to exist when they are used
+      List<String> fieldNames = Arrays.asList(schema.fieldNames());
+      managed = new int[managedFields.size()];
+      for (int i = 0; i < managed.length; i++) {
+        managed[i] = fieldNames.indexOf(managedFields.get(i).name());
+      }
+    }
+
+    StructType schema() {
+      return schema;
+    }
+
+    Long getTimestamp(Row row) {
+      return (Long)row.get(timestamp);
+    }
+
+    Object getManaged(Row row, int managedField) {
+      return row.get(ordinal(managedField));
+    }
+
+    void setManaged(RowWithSchema.Builder builder, int managedField, Object value) {
+      builder.set(ordinal(managedField), value);
+    }
+
+    int ordinal(int managedField) {
+      int ordinal = managed[managedField];
+
+      if (ordinal < 0) {
+        throw new IllegalArgumentException("Field " + managedFields.get(managedField).name() + " does not exist");
+      }
+
+      return ordinal;
+    }
+
+    /**
+     * @return True if any of the value fields of the two rows differ.
+     */
+    boolean differentValues(Row row, Layout otherLayout, Row other) {
+      for (int i = 0; i < values.length; i++) {
+        Object value = row.get(values[i]);
+        Object otherValue = other.get(otherLayout.values[i]);
+
+        if (value == null ? otherValue != null : !value.equals(otherValue)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+}
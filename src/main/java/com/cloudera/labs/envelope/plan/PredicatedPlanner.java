@@ -0,0 +1,38 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+
+/**
+ * Random planners that only use the existing records of a key that match a set of predicates,
+ * such as the records that are current in system time. Envelope gives the predicates to outputs
+ * that can apply them when reading the existing records.
+ */
+public interface PredicatedPlanner extends RandomPlanner {
+
+  /**
+   * Get the predicates that an existing record must match for the planner to use it.
+   * @param arriving The arriving records, of any number of keys, that the existing records will
+   * be planned with.
+   * @return The predicates, which may be empty. Existing records that do not match them must not
+   * change the mutations that the planner plans.
+   */
+  List<ExistingPredicate> getExistingPredicates(Iterable<Row> arriving);
+
+}
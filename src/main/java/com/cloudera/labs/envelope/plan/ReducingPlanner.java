@@ -0,0 +1,34 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import org.apache.spark.sql.Row;
+
+/**
+ * Random planners that only plan with one of the arriving records of each key. Envelope reduces
+ * the arriving records of each key to that one record before the records are shuffled by key,
+ * so that at most one record per key is sent from each partition.
+ */
+public interface ReducingPlanner extends RandomPlanner {
+
+  /**
+   * Choose between two arriving records of the same key. The choice must not depend on the order
+   * of the two records, other than between records that are equivalent to the planner.
+   * @return The arriving record that the planner would plan with out of the two.
+   */
+  Row reduceArriving(Row first, Row second);
+
+}
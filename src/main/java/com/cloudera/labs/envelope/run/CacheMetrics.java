@@ -0,0 +1,169 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.Map;
+
+import org.apache.spark.SparkEnv;
+import org.apache.spark.metrics.source.Source;
+import org.apache.spark.storage.RDDInfo;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Maps;
+
+/**
+ * The storage used by the cached data of each step, as of the last time it was measured. The
+ * storage of a step is only attributed from the RDD that the step itself cached, and is
+ * published to the Spark metrics system under the "envelope.cache" source so that it reaches
+ * any configured metrics sinks.
+ */
+public class CacheMetrics {
+
+  public static final String SOURCE_NAME = "envelope.cache";
+
+  private static CacheMetrics instance;
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private final Map<String, StepStorage> storage = Maps.newConcurrentMap();
+
+  /**
+   * @return The cache metrics of the application, which are registered with the Spark metrics
+   * system when they are first used.
+   */
+  public static synchronized CacheMetrics get() {
+    if (instance == null) {
+      instance = new CacheMetrics();
+
+      SparkEnv sparkEnv = SparkEnv.get();
+      if (sparkEnv != null) {
+        sparkEnv.metricsSystem().registerSource(instance.new CacheMetricsSource());
+      }
+    }
+
+    return instance;
+  }
+
+  /**
+   * Measure the storage currently used by the cached data of the step.
+   * @return The storage of the step, which is also reported by the metrics of the step.
+   */
+  public StepStorage update(DataStep step) {
+    StepStorage stepStorage = measure(step, Contexts.getJavaSparkContext().sc().getRDDStorageInfo());
+
+    if (storage.put(step.getName(), stepStorage) == null) {
+      registerGauges(step.getName());
+    }
+
+    return stepStorage;
+  }
+
+  /**
+   * @return The storage of the step as of when it was last measured, or null if it has not been.
+   */
+  public StepStorage getStorage(String stepName) {
+    return storage.get(stepName);
+  }
+
+  static StepStorage measure(DataStep step, RDDInfo[] rddInfos) {
+    int rddId = step.getCachedRDDId();
+
+    if (rddId >= 0) {
+      for (RDDInfo rddInfo : rddInfos) {
+        if (rddInfo.id() == rddId) {
+          return new StepStorage(true, rddInfo.memSize(), rddInfo.diskSize(), rddInfo.externalBlockStoreSize());
+        }
+      }
+    }
+
+    // A step that is cached but that no action has computed yet does not use any storage
+    return new StepStorage(rddId >= 0, 0, 0, 0);
+  }
+
+  private void registerGauges(final String stepName) {
+    registry.register(MetricRegistry.name(stepName, "cached"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return storage.get(stepName).isCached() ? 1 : 0;
+      }
+    });
+    registry.register(MetricRegistry.name(stepName, "memoryBytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return storage.get(stepName).getMemoryBytes();
+      }
+    });
+    registry.register(MetricRegistry.name(stepName, "diskBytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return storage.get(stepName).getDiskBytes();
+      }
+    });
+    registry.register(MetricRegistry.name(stepName, "offHeapBytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return storage.get(stepName).getOffHeapBytes();
+      }
+    });
+  }
+
+  private class CacheMetricsSource implements Source {
+    @Override
+    public String sourceName() {
+      return SOURCE_NAME;
+    }
+
+    @Override
+    public MetricRegistry metricRegistry() {
+      return registry;
+    }
+  }
+
+  /**
+   * The storage used by the cached data of a step.
+   */
+  public static class StepStorage {
+    private final boolean cached;
+    private final long memoryBytes;
+    private final long diskBytes;
+    private final long offHeapBytes;
+
+    public StepStorage(boolean cached, long memoryBytes, long diskBytes, long offHeapBytes) {
+      this.cached = cached;
+      this.memoryBytes = memoryBytes;
+      this.diskBytes = diskBytes;
+      this.offHeapBytes = offHeapBytes;
+    }
+
+    public boolean isCached() {
+      return cached;
+    }
+
+    public long getMemoryBytes() {
+      return memoryBytes;
+    }
+
+    public long getDiskBytes() {
+      return diskBytes;
+    }
+
+    public long getOffHeapBytes() {
+      return offHeapBytes;
+    }
+  }
+
+}
@@ -20,10 +20,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.SparkContext;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.api.java.function.PairFlatMapFunction;
 import org.apache.spark.api.java.function.VoidFunction;
 import org.apache.spark.sql.DataFrame;
@@ -36,17 +40,27 @@ import com.cloudera.labs.envelope.derive.Deriver;
 import com.cloudera.labs.envelope.derive.DeriverFactory;
 import com.cloudera.labs.envelope.input.Input;
 import com.cloudera.labs.envelope.input.InputFactory;
+import com.cloudera.labs.envelope.output.BufferedOutput;
 import com.cloudera.labs.envelope.output.BulkOutput;
 import com.cloudera.labs.envelope.output.Output;
 import com.cloudera.labs.envelope.output.OutputFactory;
+import com.cloudera.labs.envelope.output.PartitionedOutput;
+import com.cloudera.labs.envelope.output.PredicatedOutput;
 import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.output.ReadableOutput;
 import com.cloudera.labs.envelope.plan.BulkPlanner;
+import com.cloudera.labs.envelope.plan.CachingPlanner;
+import com.cloudera.labs.envelope.plan.ExistingBulkPlanner;
+import com.cloudera.labs.envelope.plan.ExistingPredicate;
 import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.plan.Planner;
 import com.cloudera.labs.envelope.plan.PlannerFactory;
+import com.cloudera.labs.envelope.plan.PredicatedPlanner;
 import com.cloudera.labs.envelope.plan.RandomPlanner;
+import com.cloudera.labs.envelope.plan.ReducingPlanner;
 import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -62,13 +76,18 @@ import scala.Tuple2;
 public abstract class DataStep extends Step {
 
   public static final String CACHE_PROPERTY = "cache";
+  public static final String STORAGE_LEVEL_PROPERTY = "storage.level";
   public static final String SMALL_HINT_PROPERTY = "hint.small";
+  public static final String PARTITIONED_BY_KEY_HINT_PROPERTY = "hint.partitioned.by.key";
 
   protected boolean finished = false;
   protected DataFrame data;
+  protected boolean cached = false;
+  protected int cachedRDDId = -1;
   protected Input input;
   protected Deriver deriver;
   protected Output output;
+  protected int numDependents = -1;
 
   public DataStep(String name, Config config) throws Exception {
     super(name, config);
@@ -89,6 +108,10 @@ public abstract class DataStep extends Step {
       Config outputConfig = config.getConfig("output");
       output = OutputFactory.create(outputConfig);
     }
+
+    // Fail fast on invalid caching configurations rather than when the data is first set
+    getCachePolicy();
+    getStorageLevel();
   }
 
   public boolean hasFinished() {
@@ -104,6 +127,9 @@ public abstract class DataStep extends Step {
   }
 
   public void setData(DataFrame data) throws Exception {
+    // Release any data that is still cached from the previous time the step was run
+    clearCache();
+
     this.data = data;
 
     data.registerTempTable(getName());
@@ -121,18 +147,106 @@ public abstract class DataStep extends Step {
     }
   }
 
+  /**
+   * Write any mutations that the output of the step has buffered rather than written.
+   */
+  public void flushOutput() throws Exception {
+    if (output instanceof BufferedOutput) {
+      ((BufferedOutput)output).flush();
+    }
+  }
+
+  /**
+   * @return The number of steps in the pipeline that depend on this step, or -1 if not known.
+   */
+  public int getNumDependents() {
+    return numDependents;
+  }
+
+  public void setNumDependents(int numDependents) {
+    this.numDependents = numDependents;
+  }
+
   private boolean doesCache() {
-    if (!config.hasPath(CACHE_PROPERTY)) return true;
+    switch (getCachePolicy()) {
+      case "true":
+        return true;
+      case "false":
+        return false;
+      case "auto":
+        // Only worth caching if the data will be read more than once. If the number of
+        // dependents is not known then fall back to caching.
+        if (numDependents < 0) {
+          return true;
+        }
+        return numDependents + (hasOutput() ? 1 : 0) > 1;
+      default:
+        throw new RuntimeException("Unexpected cache policy: " + getCachePolicy());
+    }
+  }
+
+  private String getCachePolicy() {
+    if (!config.hasPath(CACHE_PROPERTY)) return "true";
+
+    String cachePolicy = config.getString(CACHE_PROPERTY).toLowerCase();
+    if (!cachePolicy.equals("true") && !cachePolicy.equals("false") && !cachePolicy.equals("auto")) {
+      throw new RuntimeException("Step " + getName() + " has invalid cache policy '" + cachePolicy +
+          "'. Valid policies are true, false, and auto.");
+    }
+
+    return cachePolicy;
+  }
+
+  private StorageLevel getStorageLevel() {
+    if (!config.hasPath(STORAGE_LEVEL_PROPERTY)) return StorageLevel.MEMORY_ONLY();
+
+    String storageLevel = config.getString(STORAGE_LEVEL_PROPERTY).toUpperCase();
+    try {
+      return StorageLevel.fromString(storageLevel);
+    }
+    catch (IllegalArgumentException e) {
+      throw new RuntimeException("Step " + getName() + " has invalid storage level: " + storageLevel, e);
+    }
+  }
+
+  private synchronized void cache() {
+    data.persist(getStorageLevel());
+    cached = true;
+
+    // The DataFrame is cached as the columnar RDD of its plan rather than as its own RDD. The
+    // cache manager is private to Spark SQL in Spark 1.6, but is public in the bytecode.
+    cachedRDDId = data.sqlContext().cacheManager().lookupCachedData(data).get()
+        .cachedRepresentation().cachedColumnBuffers().id();
+  }
+
+  /**
+   * Release the cached data of the step, if it was cached. This is a no-op if the data was not
+   * cached or has already been released, so that no unnecessary requests are sent to Spark.
+   */
+  public synchronized void clearCache() {
+    if (cached) {
+      data.unpersist(false);
+      cached = false;
+      cachedRDDId = -1;
+    }
+  }
 
-    return config.getBoolean(CACHE_PROPERTY);
+  public synchronized boolean isCached() {
+    return cached;
   }
 
-  private void cache() {
-    data.persist(StorageLevel.MEMORY_ONLY());
+  /**
+   * @return The id of the RDD that holds the cached data of the step, or -1 if the step is not
+   * cached.
+   */
+  public synchronized int getCachedRDDId() {
+    return cachedRDDId;
   }
 
-  public void clearCache() {
-    data.unpersist(false);
+  private boolean usesPartitionedByKeyHint() {
+    if (!config.hasPath(PARTITIONED_BY_KEY_HINT_PROPERTY)) return false;
+
+    return config.getBoolean(PARTITIONED_BY_KEY_HINT_PROPERTY);
   }
 
   private boolean usesSmallHint() {
@@ -177,18 +291,31 @@ public abstract class DataStep extends Step {
     // Plan the mutations, and then apply them to the output, based on the type of planner used
     if (planner instanceof RandomPlanner) {      
       RandomPlanner randomPlanner = (RandomPlanner)planner;
-      List<String> keyFieldNames = randomPlanner.getKeyFieldNames();
       Config outputConfig = config.getConfig("output");
-      JavaRDD<PlannedRow> planned = planMutationsByKey(data, keyFieldNames, plannerConfig, outputConfig);
+      JavaRDD<PlannedRow> planned = planMutationsByKey(data, randomPlanner, plannerConfig, outputConfig);
 
       applyMutations(planned, outputConfig);
     }
     else if (planner instanceof BulkPlanner) {
       BulkPlanner bulkPlanner = (BulkPlanner)planner;
-      List<Tuple2<MutationType, DataFrame>> planned = bulkPlanner.planMutationsForSet(data);
+      List<Tuple2<MutationType, DataFrame>> planned;
+      if (planner instanceof ExistingBulkPlanner) {
+        DataFrame existing = ((ReadableOutput)output).readExisting();
+        planned = ((ExistingBulkPlanner)planner).planMutationsForSet(data, existing);
+      }
+      else {
+        planned = bulkPlanner.planMutationsForSet(data);
+      }
 
-      BulkOutput bulkOutput = (BulkOutput)output;      
-      bulkOutput.applyBulkMutations(planned);
+      BulkOutput bulkOutput = (BulkOutput)output;
+      try {
+        bulkOutput.applyBulkMutations(planned);
+      }
+      finally {
+        if (planner instanceof CachingPlanner) {
+          ((CachingPlanner)planner).clearCache();
+        }
+      }
     }
     else {
       throw new RuntimeException("Unexpected output class: " + output.getClass().getName());
@@ -215,6 +342,9 @@ public abstract class DataStep extends Step {
       if (!(output instanceof BulkOutput)) {
         handleIncompatiblePlannerOutput(planner, output);
       }
+      if (planner instanceof ExistingBulkPlanner && !(output instanceof ReadableOutput)) {
+        handleIncompatiblePlannerOutput(planner, output);
+      }
 
       Set<MutationType> outputMTs = ((BulkOutput)output).getSupportedBulkMutationTypes();
 
@@ -234,12 +364,41 @@ public abstract class DataStep extends Step {
   }
 
   // Group the arriving records by key, attach the existing records for each key, and plan
-  private JavaRDD<PlannedRow> planMutationsByKey(DataFrame arriving, List<String> keyFieldNames, Config plannerConfig, Config outputConfig) {
-    JavaPairRDD<Row, Iterable<Row>> arrivingByKey = 
-        arriving.javaRDD().groupBy(new ExtractKeyFunction(keyFieldNames));
+  private JavaRDD<PlannedRow> planMutationsByKey(DataFrame arriving, RandomPlanner planner, Config plannerConfig, Config outputConfig) throws Exception {
+    List<String> keyFieldNames = planner.getKeyFieldNames();
+    JavaPairRDD<Row, Row> keyedArriving = arriving.javaRDD().keyBy(new ExtractKeyFunction(keyFieldNames));
+
+    JavaPairRDD<Row, List<Row>> arrivingByKey;
+    if (usesPartitionedByKeyHint()) {
+      // The records of each key are already in the same partition, so there is no need to shuffle
+      arrivingByKey = keyedArriving.mapPartitionsToPair(new GroupInPartitionFunction(), true);
+    }
+    else {
+      // Co-locate the keys by where they are stored in the output, if the output can tell us
+      Partitioner partitioner = null;
+      if (output instanceof PartitionedOutput) {
+        partitioner = ((PartitionedOutput)output).getPartitioner(keyFieldNames);
+      }
+      if (partitioner == null) {
+        partitioner = defaultPartitionerFor(keyedArriving);
+      }
 
-    JavaPairRDD<Row, Tuple2<Iterable<Row>, Iterable<Row>>> arrivingAndExistingByKey =
-        arrivingByKey.mapPartitionsToPair(new JoinExistingForKeysFunction(outputConfig, keyFieldNames));
+      if (planner instanceof ReducingPlanner) {
+        // Only the one arriving record per key that the planner will use is shuffled from each partition
+        arrivingByKey = keyedArriving
+            .reduceByKey(partitioner, new ReduceArrivingFunction(plannerConfig))
+            .mapValues(new CreateListFunction());
+      }
+      else {
+        // The arriving records are collected straight into the lists given to the planner. There
+        // is no map-side combine because grouping does not reduce the data that is shuffled.
+        arrivingByKey = keyedArriving.combineByKey(new CreateListFunction(), new AddToListFunction(),
+            new MergeListsFunction(), partitioner, false, null);
+      }
+    }
+
+    JavaPairRDD<Row, Tuple2<List<Row>, List<Row>>> arrivingAndExistingByKey =
+        arrivingByKey.mapPartitionsToPair(new JoinExistingForKeysFunction(outputConfig, plannerConfig, keyFieldNames));
 
     JavaRDD<PlannedRow> planned = 
         arrivingAndExistingByKey.flatMap(new PlanForKeyFunction(plannerConfig));
@@ -247,6 +406,91 @@ public abstract class DataStep extends Step {
     return planned;
   }
 
+  // The same partitioning that Spark would use for a shuffle that was not given a partitioner
+  private Partitioner defaultPartitionerFor(JavaPairRDD<Row, Row> rdd) {
+    SparkContext sparkContext = rdd.context();
+
+    if (sparkContext.getConf().contains("spark.default.parallelism")) {
+      return new HashPartitioner(sparkContext.defaultParallelism());
+    }
+    else {
+      return new HashPartitioner(rdd.partitions().size());
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class ReduceArrivingFunction implements Function2<Row, Row, Row> {
+    private Config config;
+    private ReducingPlanner planner;
+
+    public ReduceArrivingFunction(Config config) {
+      this.config = config;
+    }
+
+    @Override
+    public Row call(Row first, Row second) throws Exception {
+      if (planner == null) {
+        planner = (ReducingPlanner)PlannerFactory.create(config);
+      }
+
+      return planner.reduceArriving(first, second);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class CreateListFunction implements Function<Row, List<Row>> {
+    @Override
+    public List<Row> call(Row row) throws Exception {
+      return Lists.newArrayList(row);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class AddToListFunction implements Function2<List<Row>, Row, List<Row>> {
+    @Override
+    public List<Row> call(List<Row> rows, Row row) throws Exception {
+      rows.add(row);
+      return rows;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class MergeListsFunction implements Function2<List<Row>, List<Row>, List<Row>> {
+    @Override
+    public List<Row> call(List<Row> rows, List<Row> otherRows) throws Exception {
+      rows.addAll(otherRows);
+      return rows;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class GroupInPartitionFunction
+  implements PairFlatMapFunction<Iterator<Tuple2<Row, Row>>, Row, List<Row>> {
+    @Override
+    public Iterable<Tuple2<Row, List<Row>>> call(Iterator<Tuple2<Row, Row>> keyedRows) throws Exception {
+      Map<Row, List<Row>> rowsByKey = Maps.newLinkedHashMap();
+
+      while (keyedRows.hasNext()) {
+        Tuple2<Row, Row> keyedRow = keyedRows.next();
+        List<Row> rowsForKey = rowsByKey.get(keyedRow._1());
+
+        if (rowsForKey == null) {
+          rowsForKey = Lists.newArrayList();
+          rowsByKey.put(keyedRow._1(), rowsForKey);
+        }
+
+        rowsForKey.add(keyedRow._2());
+      }
+
+      List<Tuple2<Row, List<Row>>> groupedByKey = Lists.newArrayListWithCapacity(rowsByKey.size());
+      for (Map.Entry<Row, List<Row>> rowsForKey : rowsByKey.entrySet()) {
+        groupedByKey.add(new Tuple2<Row, List<Row>>(rowsForKey.getKey(), rowsForKey.getValue()));
+      }
+
+      return groupedByKey;
+    }
+  }
+
   @SuppressWarnings("serial")
   private static class ExtractKeyFunction implements Function<Row, Row> {
     private StructType schema;
@@ -270,20 +514,23 @@ public abstract class DataStep extends Step {
 
   @SuppressWarnings("serial")
   private static class JoinExistingForKeysFunction
-  implements PairFlatMapFunction<Iterator<Tuple2<Row, Iterable<Row>>>, Row, Tuple2<Iterable<Row>, Iterable<Row>>> {
+  implements PairFlatMapFunction<Iterator<Tuple2<Row, List<Row>>>, Row, Tuple2<List<Row>, List<Row>>> {
     private Config outputConfig;
+    private Config plannerConfig;
     private RandomOutput output;
+    private RandomPlanner planner;
     private List<String> keyFieldNames;
 
-    public JoinExistingForKeysFunction(Config outputConfig, List<String> keyFieldNames) {
+    public JoinExistingForKeysFunction(Config outputConfig, Config plannerConfig, List<String> keyFieldNames) {
       this.outputConfig = outputConfig;
+      this.plannerConfig = plannerConfig;
       this.keyFieldNames = keyFieldNames;
     }
 
     // Add the existing records for the keys to the arriving records
     @Override
-    public Iterable<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>>
-    call(Iterator<Tuple2<Row, Iterable<Row>>> arrivingForKeysIterator) throws Exception
+    public Iterable<Tuple2<Row, Tuple2<List<Row>, List<Row>>>>
+    call(Iterator<Tuple2<Row, List<Row>>> arrivingForKeysIterator) throws Exception
     {
       // If there are no arriving keys, return an empty list
       if (!arrivingForKeysIterator.hasNext()) {
@@ -296,36 +543,67 @@ public abstract class DataStep extends Step {
       }
 
       // Convert the iterator of keys to a list
-      List<Tuple2<Row, Iterable<Row>>> arrivingForKeys = Lists.newArrayList(arrivingForKeysIterator);
+      List<Tuple2<Row, List<Row>>> arrivingForKeys = Lists.newArrayList(arrivingForKeysIterator);
 
       // Extract the keys from the keyed arriving records
       Set<Row> arrivingKeys = extractKeys(arrivingForKeys);
 
-      // Get the existing records for those keys from the output
-      Iterable<Row> existingWithoutKeys = output.getExistingForFilters(arrivingKeys);
+      // Get the existing records for those keys from the output, only reading the existing
+      // records that the planner will use if both the planner and the output support that
+      Iterable<Row> existingWithoutKeys;
+      List<ExistingPredicate> predicates = existingPredicatesFor(arrivingForKeys);
+      if (!predicates.isEmpty()) {
+        existingWithoutKeys = ((PredicatedOutput)output).getExistingForFilters(arrivingKeys, predicates);
+      }
+      else {
+        existingWithoutKeys = output.getExistingForFilters(arrivingKeys);
+      }
       
       // Map the retrieved existing records to the keys they were looked up from
-      Map<Row, Iterable<Row>> existingForKeys = mapExistingToKeys(existingWithoutKeys);
+      Map<Row, List<Row>> existingForKeys = mapExistingToKeys(existingWithoutKeys);
 
       // Attach the existing records by key to the arriving records by key
-      List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> arrivingAndExistingForKeys = 
+      List<Tuple2<Row, Tuple2<List<Row>, List<Row>>>> arrivingAndExistingForKeys = 
           attachExistingToArrivingForKeys(existingForKeys, arrivingForKeys);
 
       return arrivingAndExistingForKeys;
     }
 
-    private Set<Row> extractKeys(List<Tuple2<Row, Iterable<Row>>> arrivingForKeys) {
+    private List<ExistingPredicate> existingPredicatesFor(List<Tuple2<Row, List<Row>>> arrivingForKeys)
+        throws Exception
+    {
+      if (!(output instanceof PredicatedOutput)) {
+        return Lists.newArrayList();
+      }
+
+      if (planner == null) {
+        planner = (RandomPlanner)PlannerFactory.create(plannerConfig);
+      }
+
+      if (!(planner instanceof PredicatedPlanner)) {
+        return Lists.newArrayList();
+      }
+
+      List<List<Row>> arriving = Lists.newArrayList();
+      for (Tuple2<Row, List<Row>> arrivingForKey : arrivingForKeys) {
+        arriving.add(arrivingForKey._2());
+      }
+
+      return ((PredicatedPlanner)planner).getExistingPredicates(Iterables.concat(arriving));
+    }
+
+    private Set<Row> extractKeys(List<Tuple2<Row, List<Row>>> arrivingForKeys) {
       Set<Row> arrivingKeys = Sets.newHashSet();
 
-      for (Tuple2<Row, Iterable<Row>> arrivingForKey : arrivingForKeys) {
+      for (Tuple2<Row, List<Row>> arrivingForKey : arrivingForKeys) {
         arrivingKeys.add(arrivingForKey._1());
       }
 
       return arrivingKeys;
     }
 
-    private Map<Row, Iterable<Row>> mapExistingToKeys(Iterable<Row> existingWithoutKeys) throws Exception {
-      Map<Row, Iterable<Row>> existingForKeys = Maps.newHashMap();
+    private Map<Row, List<Row>> mapExistingToKeys(Iterable<Row> existingWithoutKeys) throws Exception {
+      Map<Row, List<Row>> existingForKeys = Maps.newHashMap();
       ExtractKeyFunction extractKeyFunction = new ExtractKeyFunction(keyFieldNames);
 
       for (Row existing : existingWithoutKeys) {
@@ -335,21 +613,21 @@ public abstract class DataStep extends Step {
           existingForKeys.put(existingKey, Lists.<Row>newArrayList());
         }
 
-        ((List<Row>)existingForKeys.get(existingKey)).add(existing);
+        existingForKeys.get(existingKey).add(existing);
       }
 
       return existingForKeys;
     }
 
-    private List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> attachExistingToArrivingForKeys
-    (Map<Row, Iterable<Row>> existingForKeys, List<Tuple2<Row, Iterable<Row>>> arrivingForKeys)
+    private List<Tuple2<Row, Tuple2<List<Row>, List<Row>>>> attachExistingToArrivingForKeys
+    (Map<Row, List<Row>> existingForKeys, List<Tuple2<Row, List<Row>>> arrivingForKeys)
     {
-      List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> arrivingAndExistingForKeys = Lists.newArrayList();
-      for (Tuple2<Row, Iterable<Row>> arrivingForKey : arrivingForKeys) {
+      List<Tuple2<Row, Tuple2<List<Row>, List<Row>>>> arrivingAndExistingForKeys = Lists.newArrayList();
+      for (Tuple2<Row, List<Row>> arrivingForKey : arrivingForKeys) {
         Row key = arrivingForKey._1();
-        Iterable<Row> arriving = arrivingForKey._2();
+        List<Row> arriving = arrivingForKey._2();
 
-        Iterable<Row> existing;
+        List<Row> existing;
         if (existingForKeys.containsKey(key)) {
           existing = existingForKeys.get(key);
         }
@@ -358,9 +636,9 @@ public abstract class DataStep extends Step {
         }
 
         // Oh my...
-        Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>> arrivingAndExistingForKey = 
-            new Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>(key, 
-                new Tuple2<Iterable<Row>, Iterable<Row>>(arriving, existing));
+        Tuple2<Row, Tuple2<List<Row>, List<Row>>> arrivingAndExistingForKey = 
+            new Tuple2<Row, Tuple2<List<Row>, List<Row>>>(key, 
+                new Tuple2<List<Row>, List<Row>>(arriving, existing));
 
         arrivingAndExistingForKeys.add(arrivingAndExistingForKey);
       }
@@ -371,7 +649,7 @@ public abstract class DataStep extends Step {
 
   @SuppressWarnings("serial")
   private static class PlanForKeyFunction
-  implements FlatMapFunction<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>, PlannedRow> {
+  implements FlatMapFunction<Tuple2<Row, Tuple2<List<Row>, List<Row>>>, PlannedRow> {
     private Config config;
     private RandomPlanner planner;
 
@@ -381,14 +659,14 @@ public abstract class DataStep extends Step {
 
     @Override
     public Iterable<PlannedRow>
-    call(Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>> keyedRecords) throws Exception {
+    call(Tuple2<Row, Tuple2<List<Row>, List<Row>>> keyedRecords) throws Exception {
       if (planner == null) {
         planner = (RandomPlanner)PlannerFactory.create(config);
       }
 
       Row key = keyedRecords._1();
-      List<Row> arrivingRecords = Lists.newArrayList(keyedRecords._2()._1());
-      List<Row> existingRecords = Lists.newArrayList(keyedRecords._2()._2());
+      List<Row> arrivingRecords = keyedRecords._2()._1();
+      List<Row> existingRecords = keyedRecords._2()._2();
 
       Iterable<PlannedRow> plannedForKey = planner.planMutationsForKey(key, arrivingRecords, existingRecords);
 
@@ -0,0 +1,140 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the micro-batches of a group of streaming steps that share data steps one at a time, in
+ * batch time order. When Spark runs streaming jobs concurrently, the jobs of later micro-batches
+ * can start before an earlier micro-batch has finished, and in any order. Rather than wait, a
+ * job whose micro-batch is not next only queues it and returns, and the job that runs the
+ * micro-batch before it runs it afterwards. A late micro-batch therefore never holds one of
+ * Spark's concurrent job slots while it waits, and so can not starve the other groups.
+ * <p>
+ * Each streaming step of the group submits one micro-batch per batch time, so the group moves on
+ * to the next batch time once all of its streaming steps have been run for the current one.
+ */
+public class MicroBatchQueue {
+
+  private static Logger LOG = LoggerFactory.getLogger(MicroBatchQueue.class);
+
+  private final int numStreamingSteps;
+  private final long batchMillis;
+
+  private final TreeMap<Long, List<Callable<Void>>> pending = new TreeMap<>();
+  private Long currentTime;
+  private int remainingAtCurrentTime;
+  private boolean running;
+
+  /**
+   * @param numStreamingSteps The number of streaming steps in the group.
+   * @param batchMillis The micro-batch duration of the streams.
+   */
+  public MicroBatchQueue(int numStreamingSteps, long batchMillis) {
+    this.numStreamingSteps = numStreamingSteps;
+    this.batchMillis = batchMillis;
+  }
+
+  /**
+   * Run the micro-batch if it is next, followed by any queued micro-batches that are then next.
+   * Otherwise queue the micro-batch to be run after the micro-batches before it, and return
+   * without waiting for it.
+   * @param batchTime The batch time of the micro-batch, in milliseconds.
+   * @param microBatch The processing of the micro-batch.
+   * @throws Exception If any micro-batch that is run by this call fails. Micro-batches that
+   * are queued behind it are still run by later calls.
+   */
+  public void submit(long batchTime, Callable<Void> microBatch) throws Exception {
+    synchronized (this) {
+      if (!pending.containsKey(batchTime)) {
+        pending.put(batchTime, Lists.<Callable<Void>>newArrayList());
+      }
+      pending.get(batchTime).add(microBatch);
+
+      // The thread that is already running micro-batches of the group runs this one when it is next
+      if (running) {
+        LOG.debug("Queued micro-batch of time {} behind the running micro-batch", batchTime);
+        return;
+      }
+      running = true;
+    }
+
+    // Once there is no next micro-batch another thread can start running them, so this thread
+    // only gives up running them itself if a micro-batch fails
+    boolean drained = false;
+    try {
+      Callable<Void> next;
+      while ((next = pollNext()) != null) {
+        next.call();
+      }
+      drained = true;
+    }
+    finally {
+      if (!drained) {
+        synchronized (this) {
+          running = false;
+        }
+      }
+    }
+  }
+
+  // Stops running micro-batches when the next one has not been submitted yet
+  private synchronized Callable<Void> pollNext() {
+    if (pending.isEmpty()) {
+      running = false;
+      return null;
+    }
+
+    long firstTime = pending.firstKey();
+
+    // The group starts at the first micro-batch that is submitted
+    if (currentTime == null) {
+      currentTime = firstTime;
+      remainingAtCurrentTime = numStreamingSteps;
+    }
+
+    if (firstTime > currentTime) {
+      running = false;
+      return null;
+    }
+
+    if (firstTime < currentTime) {
+      LOG.warn("Micro-batch of time {} was submitted after the group moved on to time {}", firstTime, currentTime);
+    }
+    else if (--remainingAtCurrentTime == 0) {
+      currentTime += batchMillis;
+      remainingAtCurrentTime = numStreamingSteps;
+    }
+
+    Map.Entry<Long, List<Callable<Void>>> first = pending.firstEntry();
+    Callable<Void> next = first.getValue().remove(0);
+    if (first.getValue().isEmpty()) {
+      pending.remove(firstTime);
+    }
+
+    return next;
+  }
+
+}
@@ -15,17 +15,23 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.util.ShutdownHookManager;
 import org.apache.spark.api.java.JavaRDD;
-import org.apache.spark.api.java.function.VoidFunction;
+import org.apache.spark.api.java.function.VoidFunction2;
 import org.apache.spark.sql.DataFrame;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
 import org.apache.spark.sql.types.StructType;
+import org.apache.spark.streaming.Time;
 import org.apache.spark.streaming.api.java.JavaDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.slf4j.Logger;
@@ -36,7 +42,12 @@ import com.cloudera.labs.envelope.input.Input;
 import com.cloudera.labs.envelope.input.InputFactory;
 import com.cloudera.labs.envelope.input.StreamInput;
 import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 /**
@@ -46,6 +57,13 @@ import com.typesafe.config.Config;
 @SuppressWarnings("serial")
 public class Runner {
 
+  public static final String PIPELINE_THREADS_PROPERTY = "application.pipeline.threads";
+  public static final String STOP_GRACEFULLY_PROPERTY = "spark.streaming.stopGracefullyOnShutdown";
+
+  // Spark stops the streaming context and the Spark context from a single Hadoop shutdown hook,
+  // so this needs a higher priority to run before both of them
+  private static final int GRACEFUL_STOP_HOOK_PRIORITY = FileSystem.SHUTDOWN_HOOK_PRIORITY + 40;
+
   private static Logger LOG = LoggerFactory.getLogger(Runner.class);
 
   /**
@@ -56,17 +74,27 @@ public class Runner {
     Set<Step> steps = extractSteps(config);
     LOG.info("Steps instatiated");
 
+    setNumDependents(steps);
+
     Contexts.initialize(config);
 
-    if (hasStreamingStep(steps)) {
-      LOG.info("Streaming step(s) identified");
+    ListeningExecutorService threadPool = getNewThreadPool(config);
 
-      runStreaming(steps);
-    }
-    else {
-      LOG.info("No streaming steps identified");
+    try {
+      if (hasStreamingStep(steps)) {
+        LOG.info("Streaming step(s) identified");
+
+        runStreaming(steps, threadPool, config.getLong(Contexts.BATCH_MILLISECONDS_PROPERTY));
+      }
+      else {
+        LOG.info("No streaming steps identified");
 
-      runBatch(steps);
+        runBatch(new StepGraph(steps), threadPool);
+        flushOutputs(steps);
+      }
+    }
+    finally {
+      threadPool.shutdownNow();
     }
 
     LOG.info("Runner finished");
@@ -75,97 +103,152 @@ public class Runner {
   /**
    * Run the Envelope pipeline as a Spark Streaming job.
    * @param steps The full configuration of the Envelope pipeline
+   * @param batchMillis The micro-batch duration of the streams
    */
-  private static void runStreaming(final Set<Step> steps) throws Exception {
+  private static void runStreaming(final Set<Step> steps, final ListeningExecutorService threadPool,
+                                   long batchMillis) throws Exception
+  {
     Set<Step> independentSteps = getIndependentSteps(steps);
-    runBatch(independentSteps);
+    runBatch(new StepGraph(independentSteps), threadPool);
 
     Set<StreamingStep> streamingSteps = getStreamingSteps(steps);
+
+    // The dependent steps of each stream are the same for every micro-batch, so the graph of
+    // them is only built once.
+    Map<StreamingStep, StepGraph> dependentGraphs = Maps.newHashMap();
+    for (StreamingStep streamingStep : streamingSteps) {
+      dependentGraphs.put(streamingStep, new StepGraph(getAllDependentSteps(streamingStep, steps)));
+    }
+    Map<StreamingStep, MicroBatchQueue> microBatchQueues = Maps.newHashMap();
+    for (Set<StreamingStep> group : groupStreamingSteps(dependentGraphs)) {
+      LOG.info("Streaming steps processed one micro-batch at a time: {}", stepNamesAsString(group));
+
+      MicroBatchQueue queue = new MicroBatchQueue(group.size(), batchMillis);
+      for (StreamingStep streamingStep : group) {
+        microBatchQueues.put(streamingStep, queue);
+      }
+    }
+
     for (final StreamingStep streamingStep : streamingSteps) {
       LOG.info("Setting up streaming step: " + streamingStep.getName());
 
-      JavaDStream<Row> stream = streamingStep.getStream();
-
       final StructType streamSchema = streamingStep.getSchema();
       LOG.info("Stream schema: " + streamSchema);
 
-      stream.foreachRDD(new VoidFunction<JavaRDD<Row>>() {
-        @Override
-        public void call(JavaRDD<Row> batch) throws Exception {
-          DataFrame batchDF = Contexts.getSQLContext().createDataFrame(batch, streamSchema);
-          streamingStep.setData(batchDF);
-          streamingStep.setFinished(true);
+      final StepGraph dependentGraph = dependentGraphs.get(streamingStep);
+      final MicroBatchQueue queue = microBatchQueues.get(streamingStep);
+
+      // Internal rows are already in the format of the DataFrame, so they do not need to be
+      // converted from Rows for each micro-batch
+      if (streamingStep.providesInternalRows()) {
+        LOG.info("Stream provides internal rows");
 
-          Set<Step> allDependentSteps = getAllDependentSteps(streamingStep, steps);
-          runBatch(allDependentSteps);
+        JavaDStream<InternalRow> stream = streamingStep.getInternalRowStream();
 
-          resetDataSteps(allDependentSteps);
-        };
-      });
+        stream.foreachRDD(new VoidFunction2<JavaRDD<InternalRow>, Time>() {
+          @Override
+          public void call(JavaRDD<InternalRow> batch, Time time) throws Exception {
+            DataFrame batchDF = Contexts.getSQLContext().internalCreateDataFrame(batch.rdd(), streamSchema);
+            queue.submit(time.milliseconds(), microBatch(streamingStep, batchDF, dependentGraph, threadPool));
+          };
+        });
+      }
+      else {
+        JavaDStream<Row> stream = streamingStep.getStream();
+
+        stream.foreachRDD(new VoidFunction2<JavaRDD<Row>, Time>() {
+          @Override
+          public void call(JavaRDD<Row> batch, Time time) throws Exception {
+            DataFrame batchDF = Contexts.getSQLContext().createDataFrame(batch, streamSchema);
+            queue.submit(time.milliseconds(), microBatch(streamingStep, batchDF, dependentGraph, threadPool));
+          };
+        });
+      }
 
       LOG.info("Finished setting up streaming step: " + streamingStep.getName());
     }
 
-    JavaStreamingContext sc = Contexts.getJavaStreamingContext();
+    final JavaStreamingContext sc = Contexts.getJavaStreamingContext();
+
+    if (sc.sparkContext().getConf().getBoolean(STOP_GRACEFULLY_PROPERTY, false)) {
+      ShutdownHookManager.get().addShutdownHook(new Runnable() {
+        @Override
+        public void run() {
+          stopGracefully(sc, steps);
+        }
+      }, GRACEFUL_STOP_HOOK_PRIORITY);
+    }
+
     sc.start();
     LOG.info("Streaming context started");
     sc.awaitTermination();
     LOG.info("Streaming context terminated");
   }
 
+  // The micro-batches of streaming steps that share data steps are run one at a time by their
+  // queue, so the shared steps are never run by two micro-batches at once
+  private static Callable<Void> microBatch(final StreamingStep streamingStep, final DataFrame batchDF,
+                                           final StepGraph dependentGraph,
+                                           final ListeningExecutorService threadPool)
+  {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        streamingStep.setData(batchDF);
+        streamingStep.setFinished(true);
+
+        runBatch(dependentGraph, threadPool);
+
+        logCachedData(streamingStep, dependentGraph);
+
+        resetDataSteps(dependentGraph.getSteps());
+
+        return null;
+      }
+    };
+  }
+
   /**
-   * Run the steps in dependency order.
-   * @param steps The steps to run, which may be the full Envelope pipeline, or a subset of it.
+   * Run the steps in dependency order. Each step is started as soon as all of its dependencies
+   * have finished, regardless of how long any independent steps take.
+   * @param graph The graph of the steps to run, which may be the full Envelope pipeline, or a
+   * subset of it.
+   * @param threadPool The thread pool to run the steps on.
    */
-  private static void runBatch(Set<? extends Step> steps) throws Exception {
-    LOG.info("Started batch for steps: {}", stepNamesAsString(steps));
-
-    ExecutorService threadPool = getNewThreadPool();
-    Set<Future<Void>> offMainThreadSteps = Sets.newHashSet();
-
-    // The essential logic is to loop through all of the steps until they have all been submitted.
-    // Steps will not be submitted until all of their dependency steps have been submitted first.
-    while (!allDataStepsFinished(steps)) {
-      LOG.info("Not all steps are finished");
-      for (final Step step : steps) {
-        LOG.info("Looking into step: " + step.getName());
-
-        if (step instanceof BatchStep) {
-          LOG.info("Step is batch");
-          BatchStep batchStep = (BatchStep)step;
-
-          if (!batchStep.hasFinished()) {
-            LOG.info("Step has not finished");
-
-            final Set<Step> dependencies = getDependencies(step, steps);
-
-            if (allDataStepsFinished(dependencies)) {
-              LOG.info("Step dependencies have finished, running step off main thread");
-              // Batch steps are run off the main thread so that if they contain outputs they will
-              // not block the parallel execution of independent steps.
-              Future<Void> offMainThreadStep = runStepOffMainThread(batchStep, dependencies, threadPool);
-              offMainThreadSteps.add(offMainThreadStep);
-            }
-            else {
-              LOG.info("Step dependencies have not finished");
-            }
-          }
-          else {
-            LOG.info("Step has finished");
-          }
-        }
-        else {
-          LOG.info("Step is not batch");
-        }
+  private static void runBatch(StepGraph graph, ListeningExecutorService threadPool) throws Exception {
+    LOG.info("Started batch for steps: {}", graph);
 
-        LOG.info("Finished looking into step: " + step.getName());
-      }
+    graph.run(threadPool);
+
+    LOG.info("Finished batch for steps: {}", graph);
+  }
 
-      awaitAllOffMainThreadsFinished(offMainThreadSteps);
-      offMainThreadSteps.clear();
+  // Outputs may hold back some mutations to write them together, so when the pipeline has
+  // finished they need to be told that no more are coming
+  private static void flushOutputs(Set<Step> steps) throws Exception {
+    for (Step step : steps) {
+      if (step instanceof DataStep) {
+        ((DataStep)step).flushOutput();
+      }
     }
+  }
 
-    LOG.info("Finished batch for steps: {}", stepNamesAsString(steps));
+  /**
+   * Stop the streaming context once its received micro-batches have been run, and then flush
+   * the outputs while the Spark context is still running, so that the mutations that the
+   * outputs have held back are written rather than lost.
+   */
+  static void stopGracefully(JavaStreamingContext sc, Set<Step> steps) {
+    LOG.info("Stopping streaming context gracefully");
+    sc.stop(false, true);
+
+    try {
+      flushOutputs(steps);
+      LOG.info("Flushed outputs after streaming context stopped");
+    }
+    catch (Exception e) {
+      LOG.error("Could not flush outputs after streaming context stopped", e);
+    }
   }
 
   private static Set<Step> extractSteps(Config config) throws Exception {
@@ -215,32 +298,12 @@ public class Runner {
     return steps;
   }
 
-  private static boolean allDataStepsFinished(Set<? extends Step> steps) {
+  private static void setNumDependents(Set<Step> steps) {
     for (Step step : steps) {
       if (step instanceof DataStep) {
-        if (!((DataStep)step).hasFinished()) {
-          return false;
-        }
+        ((DataStep)step).setNumDependents(getImmediateDependentSteps(step, steps).size());
       }
     }
-
-    return true;
-  }
-
-  private static Set<Step> getDependencies(Step step, Set<? extends Step> steps) {
-    Set<Step> dependencies = Sets.newHashSet();
-
-    Set<String> dependencyNames = step.getDependencyNames();
-    for (Step candidate : steps) {
-      String candidateName = candidate.getName();
-      if (dependencyNames.contains(candidateName)) {
-        dependencies.add(candidate);
-      }
-    }
-
-    LOG.info("Dependencies of {} are: {}", step.getName(), stepNamesAsString(dependencies));
-
-    return dependencies;
   }
 
   private static boolean hasStreamingStep(Set<Step> steps) {
@@ -269,12 +332,19 @@ public class Runner {
 
   private static Set<Step> getAllDependentSteps(Step rootStep, Set<Step> steps) {
     Set<Step> dependencies = Sets.newHashSet();
+    LinkedList<Step> unvisited = Lists.newLinkedList();
 
     dependencies.add(rootStep);
+    unvisited.add(rootStep);
+
+    while (!unvisited.isEmpty()) {
+      Step step = unvisited.removeFirst();
 
-    Set<BatchStep> immediateDependents = getImmediateDependentSteps(rootStep, steps);
-    for (BatchStep immediateDependent : immediateDependents) {
-      dependencies.addAll(getAllDependentSteps(immediateDependent, steps));
+      for (BatchStep immediateDependent : getImmediateDependentSteps(step, steps)) {
+        if (dependencies.add(immediateDependent)) {
+          unvisited.add(immediateDependent);
+        }
+      }
     }
 
     LOG.info("All dependent steps of {} are: {}", rootStep.getName(), stepNamesAsString(dependencies));
@@ -282,6 +352,34 @@ public class Runner {
     return dependencies;
   }
 
+  /**
+   * Group the streaming steps that have any data steps in common, so that the micro-batches of
+   * each group can be run one at a time. Streaming steps in different groups have no steps in
+   * common and so can be processed concurrently.
+   */
+  static List<Set<StreamingStep>> groupStreamingSteps(Map<StreamingStep, StepGraph> dependentGraphs) {
+    List<Set<Step>> groupSteps = Lists.newArrayList();
+    List<Set<StreamingStep>> groupStreamingSteps = Lists.newArrayList();
+
+    for (Map.Entry<StreamingStep, StepGraph> entry : dependentGraphs.entrySet()) {
+      Set<Step> mergedSteps = Sets.newHashSet(entry.getValue().getSteps());
+      Set<StreamingStep> mergedStreamingSteps = Sets.newHashSet(entry.getKey());
+
+      // Any existing groups that overlap with this streaming step are merged into one
+      for (int i = groupSteps.size() - 1; i >= 0; i--) {
+        if (!Sets.intersection(groupSteps.get(i), mergedSteps).isEmpty()) {
+          mergedSteps.addAll(groupSteps.remove(i));
+          mergedStreamingSteps.addAll(groupStreamingSteps.remove(i));
+        }
+      }
+
+      groupSteps.add(mergedSteps);
+      groupStreamingSteps.add(mergedStreamingSteps);
+    }
+
+    return groupStreamingSteps;
+  }
+
   private static Set<BatchStep> getImmediateDependentSteps(Step step, Set<Step> steps) {
     Set<BatchStep> dependencies = Sets.newHashSet();
 
@@ -324,35 +422,62 @@ public class Runner {
     return sb.toString();
   }
 
-  private static void resetDataSteps(Set<Step> steps) {
-    for (Step step : steps) {
+  /**
+   * Measure and log how much data the steps of a micro-batch have cached at the end of it. Any
+   * steps that are still cached at this point are released when the micro-batch is reset, so
+   * over time the cache metrics show the steady state memory use of the streaming job.
+   */
+  private static void logCachedData(StreamingStep streamingStep, StepGraph dependentGraph) {
+    CacheMetrics metrics = CacheMetrics.get();
+    long memoryBytes = 0, diskBytes = 0, offHeapBytes = 0;
+    int cachedSteps = 0;
+
+    List<DataStep> batchSteps = Lists.<DataStep>newArrayList(streamingStep);
+    for (Step step : dependentGraph.getSteps()) {
       if (step instanceof DataStep) {
-        ((DataStep)step).clearCache();
-        ((DataStep)step).setFinished(false);
+        batchSteps.add((DataStep)step);
       }
     }
-  }
 
-  private static ExecutorService getNewThreadPool() {
-    ExecutorService threadPool = Executors.newCachedThreadPool();
+    for (DataStep step : batchSteps) {
+      CacheMetrics.StepStorage storage = metrics.update(step);
 
-    return threadPool;
-  }
+      if (storage.isCached()) {
+        LOG.debug("Cached data of step {}: {} bytes in memory, {} bytes on disk, {} bytes off-heap",
+            step.getName(), storage.getMemoryBytes(), storage.getDiskBytes(), storage.getOffHeapBytes());
 
-  private static Future<Void> runStepOffMainThread(final BatchStep step, final Set<Step> dependencies, final ExecutorService threadPool) {
-    return threadPool.submit(new Callable<Void>() {
-      @Override
-      public Void call() throws Exception {
-        step.runStep(dependencies);
-        return null;
+        memoryBytes += storage.getMemoryBytes();
+        diskBytes += storage.getDiskBytes();
+        offHeapBytes += storage.getOffHeapBytes();
+        cachedSteps++;
       }
-    });
+    }
+
+    LOG.info("Cached data at end of micro-batch for {}: {} steps, {} bytes in memory, {} bytes on disk, {} bytes off-heap",
+        streamingStep.getName(), cachedSteps, memoryBytes, diskBytes, offHeapBytes);
   }
 
-  private static void awaitAllOffMainThreadsFinished(Set<Future<Void>> offMainThreadSteps) throws Exception {
-    for (Future<Void> offMainThreadStep : offMainThreadSteps) {
-      offMainThreadStep.get();
+  // Released steps are not unpersisted again, so this only releases what the micro-batch left cached
+  private static void resetDataSteps(List<Step> steps) {
+    for (Step step : steps) {
+      if (step instanceof DataStep) {
+        ((DataStep)step).clearCache();
+        ((DataStep)step).setFinished(false);
+      }
     }
   }
 
+  private static ListeningExecutorService getNewThreadPool(Config config) {
+    int numThreads = config.hasPath(PIPELINE_THREADS_PROPERTY) ?
+        config.getInt(PIPELINE_THREADS_PROPERTY) : 20;
+
+    // Daemon threads so that a failed step does not keep the driver alive
+    ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setNameFormat("envelope-step-%d")
+        .setDaemon(true)
+        .build();
+
+    return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(numThreads, threadFactory));
+  }
+
 }
@@ -0,0 +1,427 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * The dependency graph of a set of steps. The graph is built and topologically ordered once,
+ * and can then be run any number of times, for example once per streaming micro-batch.
+ * When the graph is run each batch step is submitted as soon as the last of its dependencies
+ * has finished, rather than waiting for unrelated steps that were submitted at the same time.
+ * <p>
+ * A step that only derives data leaves its DataFrame to be computed lazily by the steps that
+ * depend on it, so the cached data of a step is only released once every step downstream of
+ * it has finished, not just its immediate dependents.
+ */
+public class StepGraph {
+
+  private static Logger LOG = LoggerFactory.getLogger(StepGraph.class);
+
+  // The steps in topological order, with the dependencies and dependents of each step
+  // referenced by their position in that order
+  private final List<Step> steps;
+  private final int[][] dependencies;
+  private final int[][] dependents;
+  // The transitive dependencies and dependents of each step, by position
+  private final int[][] ancestors;
+  private final int[][] descendants;
+  private final List<Set<Step>> dependencySteps;
+  // Whether every step in the pipeline that is downstream of the step is in this graph, in which
+  // case the step's cached data can be released once they have all finished
+  private final boolean[] releasable;
+  private final String stepNames;
+
+  public StepGraph(Set<? extends Step> unorderedSteps) {
+    List<Step> stepList = Lists.<Step>newArrayList(unorderedSteps);
+    int numSteps = stepList.size();
+
+    Map<String, Integer> nameIndexes = Maps.newHashMap();
+    for (int i = 0; i < numSteps; i++) {
+      nameIndexes.put(stepList.get(i).getName(), i);
+    }
+
+    // Dependencies on steps outside of the graph are not tracked, as those steps are expected
+    // to have already been run by the time this graph is run.
+    List<List<Integer>> unorderedDependencies = Lists.newArrayList();
+    List<List<Integer>> unorderedDependents = Lists.newArrayList();
+    for (int i = 0; i < numSteps; i++) {
+      unorderedDependencies.add(Lists.<Integer>newArrayList());
+      unorderedDependents.add(Lists.<Integer>newArrayList());
+    }
+    for (int i = 0; i < numSteps; i++) {
+      for (String dependencyName : stepList.get(i).getDependencyNames()) {
+        Integer dependency = nameIndexes.get(dependencyName);
+
+        if (dependency != null) {
+          unorderedDependencies.get(i).add(dependency);
+          unorderedDependents.get(dependency).add(i);
+        }
+      }
+    }
+
+    int[] order = topologicalOrder(stepList, unorderedDependencies, unorderedDependents);
+    int[] positions = new int[numSteps];
+    for (int position = 0; position < numSteps; position++) {
+      positions[order[position]] = position;
+    }
+
+    List<Step> orderedSteps = Lists.newArrayListWithCapacity(numSteps);
+    List<Set<Step>> orderedDependencySteps = Lists.newArrayListWithCapacity(numSteps);
+    dependencies = new int[numSteps][];
+    dependents = new int[numSteps][];
+    for (int position = 0; position < numSteps; position++) {
+      int original = order[position];
+      orderedSteps.add(stepList.get(original));
+
+      dependencies[position] = toPositions(unorderedDependencies.get(original), positions);
+      dependents[position] = toPositions(unorderedDependents.get(original), positions);
+
+      Set<Step> stepDependencies = Sets.newHashSet();
+      for (int dependency : unorderedDependencies.get(original)) {
+        stepDependencies.add(stepList.get(dependency));
+      }
+      orderedDependencySteps.add(Collections.unmodifiableSet(stepDependencies));
+    }
+
+    ancestors = new int[numSteps][];
+    descendants = new int[numSteps][];
+    for (int position = 0; position < numSteps; position++) {
+      ancestors[position] = closure(dependencies, position);
+      descendants[position] = closure(dependents, position);
+    }
+
+    boolean[] dependentsInGraph = new boolean[numSteps];
+    for (int position = 0; position < numSteps; position++) {
+      Step step = orderedSteps.get(position);
+
+      if (step instanceof DataStep) {
+        int numDependents = ((DataStep)step).getNumDependents();
+        dependentsInGraph[position] = numDependents >= 0 && numDependents == countBatchSteps(orderedSteps, dependents[position]);
+      }
+    }
+
+    releasable = new boolean[numSteps];
+    for (int position = 0; position < numSteps; position++) {
+      releasable[position] = dependentsInGraph[position];
+
+      for (int descendant : descendants[position]) {
+        releasable[position] &= dependentsInGraph[descendant];
+      }
+    }
+
+    steps = Collections.unmodifiableList(orderedSteps);
+    dependencySteps = Collections.unmodifiableList(orderedDependencySteps);
+    stepNames = namesAsString(steps);
+  }
+
+  /**
+   * Run the unfinished batch steps of the graph, and wait until they have all finished.
+   * @param threadPool The thread pool that the steps are run on. Steps are run off the main
+   * thread so that if they contain outputs they will not block the parallel execution of
+   * independent steps.
+   */
+  public void run(ListeningExecutorService threadPool) throws Exception {
+    new GraphRun(threadPool).await();
+  }
+
+  /**
+   * @return The steps of the graph in dependency order.
+   */
+  public List<Step> getSteps() {
+    return steps;
+  }
+
+  @Override
+  public String toString() {
+    return stepNames;
+  }
+
+  private static int[] topologicalOrder(List<Step> stepList, List<List<Integer>> stepDependencies,
+                                        List<List<Integer>> stepDependents)
+  {
+    int numSteps = stepList.size();
+    int[] order = new int[numSteps];
+    int[] inDegrees = new int[numSteps];
+    Queue<Integer> ready = new LinkedList<>();
+
+    for (int i = 0; i < numSteps; i++) {
+      inDegrees[i] = stepDependencies.get(i).size();
+      if (inDegrees[i] == 0) {
+        ready.add(i);
+      }
+    }
+
+    int ordered = 0;
+    while (!ready.isEmpty()) {
+      int step = ready.remove();
+      order[ordered++] = step;
+
+      for (int dependent : stepDependents.get(step)) {
+        if (--inDegrees[dependent] == 0) {
+          ready.add(dependent);
+        }
+      }
+    }
+
+    if (ordered < numSteps) {
+      List<Step> cyclicSteps = Lists.newArrayList();
+      for (int i = 0; i < numSteps; i++) {
+        if (inDegrees[i] > 0) {
+          cyclicSteps.add(stepList.get(i));
+        }
+      }
+
+      throw new RuntimeException("Circular dependency between steps: " + namesAsString(cyclicSteps));
+    }
+
+    return order;
+  }
+
+  private static int countBatchSteps(List<Step> orderedSteps, int[] positions) {
+    int count = 0;
+
+    for (int position : positions) {
+      if (orderedSteps.get(position) instanceof BatchStep) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  // The positions of the steps reachable from the step at the position through the given edges,
+  // not including the step itself
+  private static int[] closure(int[][] edges, int position) {
+    boolean[] reached = new boolean[edges.length];
+    Queue<Integer> toVisit = new LinkedList<>();
+    toVisit.add(position);
+    int numReached = 0;
+
+    while (!toVisit.isEmpty()) {
+      for (int next : edges[toVisit.remove()]) {
+        if (!reached[next]) {
+          reached[next] = true;
+          numReached++;
+          toVisit.add(next);
+        }
+      }
+    }
+
+    int[] closure = new int[numReached];
+    int i = 0;
+    for (int reachedPosition = 0; reachedPosition < reached.length; reachedPosition++) {
+      if (reached[reachedPosition]) {
+        closure[i++] = reachedPosition;
+      }
+    }
+
+    return closure;
+  }
+
+  private static int[] toPositions(List<Integer> indexes, int[] positions) {
+    int[] mapped = new int[indexes.size()];
+
+    for (int i = 0; i < mapped.length; i++) {
+      mapped[i] = positions[indexes.get(i)];
+    }
+
+    return mapped;
+  }
+
+  private static String namesAsString(List<Step> steps) {
+    StringBuilder sb = new StringBuilder();
+
+    for (Step step : steps) {
+      sb.append(step.getName() + ", ");
+    }
+
+    if (sb.length() > 0) {
+      sb.setLength(sb.length() - ", ".length());
+    }
+
+    return sb.toString();
+  }
+
+  private static boolean hasFinished(Step step) {
+    return !(step instanceof DataStep) || ((DataStep)step).hasFinished();
+  }
+
+  /**
+   * The state of a single run of the graph. Each step keeps a count of its unfinished
+   * dependencies, and the completion callback of each step decrements the counts of its
+   * dependents, submitting those that reach zero. Each step also keeps a count of the unfinished
+   * steps downstream of it, as a derived step's data is only computed when a later step runs an
+   * action on it, so that its cached data can be released once nothing in the run reads it.
+   */
+  private class GraphRun {
+    private ListeningExecutorService threadPool;
+    private AtomicIntegerArray remainingDependencies;
+    private AtomicIntegerArray remainingDescendants;
+    private boolean[] toRun;
+    private AtomicInteger remainingSteps;
+    private SettableFuture<Void> completion = SettableFuture.create();
+
+    public GraphRun(ListeningExecutorService threadPool) {
+      this.threadPool = threadPool;
+
+      int numSteps = steps.size();
+      int numToRun = 0;
+      remainingDependencies = new AtomicIntegerArray(numSteps);
+      remainingDescendants = new AtomicIntegerArray(numSteps);
+      toRun = new boolean[numSteps];
+
+      for (int i = 0; i < numSteps; i++) {
+        Step step = steps.get(i);
+
+        if (step instanceof BatchStep && !hasFinished(step)) {
+          int unfinished = 0;
+          for (int dependency : dependencies[i]) {
+            if (!hasFinished(steps.get(dependency))) {
+              unfinished++;
+            }
+          }
+
+          remainingDependencies.set(i, unfinished);
+          toRun[i] = true;
+          numToRun++;
+
+          for (int ancestor : ancestors[i]) {
+            remainingDescendants.incrementAndGet(ancestor);
+          }
+        }
+      }
+
+      remainingSteps = new AtomicInteger(numToRun);
+    }
+
+    public void await() throws Exception {
+      if (remainingSteps.get() == 0) {
+        return;
+      }
+
+      boolean submittedAny = false;
+      for (int i = 0; i < toRun.length; i++) {
+        if (toRun[i] && remainingDependencies.get(i) == 0) {
+          submit(i);
+          submittedAny = true;
+        }
+      }
+
+      if (!submittedAny) {
+        throw new RuntimeException("No steps can be run because every step is waiting on a dependency");
+      }
+
+      try {
+        completion.get();
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof Exception) {
+          throw (Exception)cause;
+        }
+        else {
+          throw new RuntimeException(cause);
+        }
+      }
+    }
+
+    private void submit(final int position) {
+      final BatchStep step = (BatchStep)steps.get(position);
+      LOG.info("Step dependencies have finished, running step: " + step.getName());
+
+      ListenableFuture<Void> stepFuture = threadPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          step.runStep(dependencySteps.get(position));
+          return null;
+        }
+      });
+
+      Futures.addCallback(stepFuture, new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+          stepFinished(position);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.error("Step failed: " + step.getName(), t);
+          completion.setException(t);
+        }
+      });
+    }
+
+    private void stepFinished(int position) {
+      LOG.info("Step has finished: " + steps.get(position).getName());
+
+      // Once a step has failed the remaining steps are not submitted
+      if (completion.isDone()) {
+        return;
+      }
+
+      for (int dependent : dependents[position]) {
+        if (toRun[dependent] && remainingDependencies.decrementAndGet(dependent) == 0) {
+          submit(dependent);
+        }
+      }
+
+      for (int ancestor : ancestors[position]) {
+        if (remainingDescendants.decrementAndGet(ancestor) == 0) {
+          release(ancestor);
+        }
+      }
+      if (remainingDescendants.get(position) == 0) {
+        release(position);
+      }
+
+      if (remainingSteps.decrementAndGet() == 0) {
+        completion.set(null);
+      }
+    }
+
+    private void release(int position) {
+      if (releasable[position]) {
+        LOG.debug("All downstream steps have finished, releasing step: " + steps.get(position).getName());
+
+        ((DataStep)steps.get(position)).clearCache();
+      }
+    }
+  }
+
+}
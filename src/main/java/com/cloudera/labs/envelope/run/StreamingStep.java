@@ -16,9 +16,11 @@
 package com.cloudera.labs.envelope.run;
 
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.streaming.api.java.JavaDStream;
 
+import com.cloudera.labs.envelope.input.InternalRowStreamInput;
 import com.cloudera.labs.envelope.input.StreamInput;
 import com.typesafe.config.Config;
 
@@ -44,6 +46,23 @@ public class StreamingStep extends DataStep {
     return stream;
   }
 
+  /**
+   * @return True if the input of the step can provide its stream as Spark SQL internal rows.
+   */
+  public boolean providesInternalRows() throws Exception {
+    return input instanceof InternalRowStreamInput && ((InternalRowStreamInput)input).providesInternalRows();
+  }
+
+  public JavaDStream<InternalRow> getInternalRowStream() throws Exception {
+    JavaDStream<InternalRow> stream = ((InternalRowStreamInput)input).getInternalRowDStream();
+
+    if (doesRepartition(config)) {
+      stream = repartition(stream, config);
+    }
+
+    return stream;
+  }
+
   public StructType getSchema() throws Exception {
     StructType schema = ((StreamInput)input).getSchema();
 
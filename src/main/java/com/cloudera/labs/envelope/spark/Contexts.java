@@ -47,6 +47,7 @@ public enum Contexts {
   public static final String NUM_EXECUTORS_PROPERTY = "application.executors";
   public static final String NUM_EXECUTOR_CORES_PROPERTY = "application.executor.cores";
   public static final String EXECUTOR_MEMORY_PROPERTY = "application.executor.memory";
+  public static final String STREAMING_CONCURRENT_STEPS_PROPERTY = "application.streaming.concurrent.steps";
   public static final String SPARK_CONF_PROPERTY_PREFIX = "application.spark.conf";
 
   private Config config;
@@ -177,6 +178,12 @@ public enum Contexts {
 
       sparkConf.set("spark.sql.shuffle.partitions", shufflePartitions.toString());
     }
+    // Allow the Spark jobs of independent streaming steps to run at the same time. Runner still
+    // processes the micro-batches of streaming steps that share dependent steps one at a time and
+    // in batch time order, and a job whose micro-batch has to wait returns without holding a slot.
+    if (config.hasPath(STREAMING_CONCURRENT_STEPS_PROPERTY)) {
+      sparkConf.set("spark.streaming.concurrentJobs", config.getString(STREAMING_CONCURRENT_STEPS_PROPERTY));
+    }
 
     // Allow the user to provide any Spark configuration and we will just pass it on. These can
     // also override any of the configurations above.
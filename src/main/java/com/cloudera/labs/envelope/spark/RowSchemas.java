@@ -0,0 +1,119 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Shares schema instances between rows, and caches the schemas and field mappings derived from
+ * them. A schema's name-to-index map is built the first time a field is looked up by name, so
+ * sharing schemas means that map is built once rather than once per row. The derived schemas
+ * and mappings are cached by the identity of the schema they were derived from, and are
+ * released when that schema is no longer used.
+ */
+public class RowSchemas {
+
+  private static final Interner<StructType> INTERNER = Interners.newWeakInterner();
+
+  private static final LoadingCache<StructType, ConcurrentMap<StructField, StructType>> APPENDED =
+      CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<StructType, ConcurrentMap<StructField, StructType>>() {
+            @Override
+            public ConcurrentMap<StructField, StructType> load(StructType schema) {
+              return new ConcurrentHashMap<>();
+            }
+          });
+
+  private static final LoadingCache<StructType, Cache<StructType, int[]>> PROJECTIONS =
+      CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<StructType, Cache<StructType, int[]>>() {
+            @Override
+            public Cache<StructType, int[]> load(StructType from) {
+              return CacheBuilder.newBuilder().weakKeys().build();
+            }
+          });
+
+  /**
+   * @return The shared instance of a schema that is equal to the given schema.
+   */
+  public static StructType intern(StructType schema) {
+    return INTERNER.intern(schema);
+  }
+
+  /**
+   * @return The shared instance of the schema with the field appended.
+   */
+  public static StructType append(StructType schema, StructField field) {
+    ConcurrentMap<StructField, StructType> appendedForSchema = APPENDED.getUnchecked(schema);
+    StructType appended = appendedForSchema.get(field);
+
+    if (appended == null) {
+      appended = intern(schema.add(field));
+      appendedForSchema.put(field, appended);
+    }
+
+    return appended;
+  }
+
+  /**
+   * Map the fields of one schema to the fields of the same name in another.
+   * @return For each field of the 'to' schema, the index of the field of the same name in the
+   * 'from' schema, or -1 if the 'from' schema does not have that field. The returned array is
+   * shared and must not be modified.
+   */
+  public static int[] projection(StructType from, StructType to) {
+    Cache<StructType, int[]> projectionsFrom = PROJECTIONS.getUnchecked(from);
+    int[] projection = projectionsFrom.getIfPresent(to);
+
+    if (projection == null) {
+      projection = computeProjection(from, to);
+      projectionsFrom.put(to, projection);
+    }
+
+    return projection;
+  }
+
+  private static int[] computeProjection(StructType from, StructType to) {
+    String[] fromNames = from.fieldNames();
+    String[] toNames = to.fieldNames();
+    int[] indexes = new int[toNames.length];
+
+    for (int i = 0; i < toNames.length; i++) {
+      indexes[i] = -1;
+
+      for (int j = 0; j < fromNames.length; j++) {
+        if (fromNames[j].equals(toNames[i])) {
+          indexes[i] = j;
+          break;
+        }
+      }
+    }
+
+    return indexes;
+  }
+
+}
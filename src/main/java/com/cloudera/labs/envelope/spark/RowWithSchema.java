@@ -15,206 +15,114 @@
  */
 package com.cloudera.labs.envelope.spark;
 
-import java.math.BigDecimal;
-import java.sql.Date;
-import java.sql.Timestamp;
-import java.util.List;
-import java.util.Map;
-
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.expressions.GenericRowWithSchema;
 import org.apache.spark.sql.types.StructType;
 
-import scala.collection.Seq;
-
 /**
- * Allows individual Spark SQL Rows to be created with a schema. This is achieved by
- * simply wrapping a RowFactory-created Row and overriding the schema methods.
+ * Allows individual Spark SQL Rows to be created with a schema. The row is backed directly by
+ * the array of its values, and field names are resolved through the schema's own name index,
+ * so rows should share schema instances where possible, for example by using {@link RowSchemas}.
  */
 @SuppressWarnings("serial")
-public class RowWithSchema implements Row {
+public class RowWithSchema extends GenericRowWithSchema {
 
-  StructType schema;
-  Row internalRow;
+  private final Object[] values;
 
   public RowWithSchema(StructType schema, Object... values) {
-    this.schema = schema;
-    this.internalRow = RowFactory.create(values);
-  }
-
-  @Override
-  public boolean anyNull() {
-    return internalRow.anyNull();
-  }
-
-  @Override
-  public Object apply(int arg0) {
-    return internalRow.apply(arg0);
-  }
-
-  @Override
-  public Row copy() {
-    return internalRow.copy();
-  }
-
-  @Override
-  public int fieldIndex(String arg0) {
-    return schema.fieldIndex(arg0);
-  }
-
-  @Override
-  public Object get(int arg0) {
-    return internalRow.get(arg0);
-  }
-
-  @Override
-  public <T> T getAs(String arg0) {
-    return internalRow.getAs(arg0);
-  }
-
-  @Override
-  public boolean getBoolean(int arg0) {
-    return internalRow.getBoolean(arg0);
-  }
-
-  @Override
-  public byte getByte(int arg0) {
-    return internalRow.getByte(arg0);
-  }
-
-  @Override
-  public Date getDate(int arg0) {
-    return internalRow.getDate(arg0);
-  }
-
-  @Override
-  public BigDecimal getDecimal(int arg0) {
-    return internalRow.getDecimal(arg0);
-  }
-
-  @Override
-  public double getDouble(int arg0) {
-    return internalRow.getDouble(arg0);
-  }
-
-  @Override
-  public float getFloat(int arg0) {
-    return internalRow.getFloat(arg0);
-  }
-
-  @Override
-  public int getInt(int arg0) {
-    return internalRow.getInt(arg0);
-  }
-
-  @Override
-  public <K, V> Map<K, V> getJavaMap(int arg0) {
-    return internalRow.getJavaMap(arg0);
-  }
-
-  @Override
-  public <T> List<T> getList(int arg0) {
-    return internalRow.getList(arg0);
-  }
-
-  @Override
-  public long getLong(int arg0) {
-    return internalRow.getLong(arg0);
-  }
-
-  @Override
-  public <K, V> scala.collection.Map<K, V> getMap(int arg0) {
-    return internalRow.getMap(arg0);
-  }
-
-  @Override
-  public <T> Seq<T> getSeq(int arg0) {
-    return internalRow.getSeq(arg0);
-  }
-
-  @Override
-  public short getShort(int arg0) {
-    return internalRow.getShort(arg0);
-  }
-
-  @Override
-  public String getString(int arg0) {
-    return internalRow.getString(arg0);
-  }
-
-  @Override
-  public Row getStruct(int arg0) {
-    return internalRow.getStruct(arg0);
-  }
-
-  @Override
-  public Timestamp getTimestamp(int arg0) {
-    return internalRow.getTimestamp(arg0);
-  }
-
-  @Override
-  public <T> scala.collection.immutable.Map<String, T> getValuesMap(Seq<String> arg0) {
-    return internalRow.getValuesMap(arg0);
-  }
-
-  @Override
-  public boolean isNullAt(int arg0) {
-    return internalRow.isNullAt(arg0);
-  }
-
-  @Override
-  public int length() {
-    return internalRow.length();
-  }
-
-  @Override
-  public String mkString() {
-    return internalRow.mkString();
-  }
-
-  @Override
-  public String mkString(String arg0) {
-    return internalRow.mkString(arg0);
-  }
-
-  @Override
-  public String mkString(String arg0, String arg1, String arg2) {
-    return internalRow.mkString(arg0, arg1, arg2);
-  }
-
-  @Override
-  public StructType schema() {
-    return schema;
-  }
-
-  @Override
-  public int size() {
-    return internalRow.size();
-  }
-
-  @Override
-  public Seq<Object> toSeq() {
-    return internalRow.toSeq();
-  }
-
-  @Override
-  public <T> T getAs(int arg0) {
-    return internalRow.getAs(arg0);
-  }
-
-  @Override
-  public String toString() {
-    return internalRow.toString();
-  }
-
-  @Override
-  public boolean equals(Object other) {
-    return internalRow.equals(other);
-  }
-
-  @Override
-  public int hashCode() {
-    return internalRow.hashCode();
+    super(values, schema);
+    this.values = values;
+  }
+
+  /**
+   * @return A copy of the values of the row, which can be modified without affecting the row.
+   */
+  public Object[] copyValues() {
+    return values.clone();
+  }
+
+  /**
+   * Builds a single row by setting its values in place, so that a row can be assembled from
+   * several modifications without creating an intermediate row for each of them. A builder
+   * can only build one row.
+   */
+  public static class Builder {
+    private final StructType schema;
+    private Object[] values;
+
+    public Builder(StructType schema) {
+      this.schema = schema;
+      this.values = new Object[schema.length()];
+    }
+
+    /**
+     * Start the row from the values of an existing row with the same schema.
+     */
+    public Builder(Row row) {
+      this.schema = row.schema();
+      this.values = row instanceof RowWithSchema ? ((RowWithSchema)row).copyValues() : valuesOf(row);
+    }
+
+    public StructType schema() {
+      return schema;
+    }
+
+    public Object get(int index) {
+      checkNotBuilt();
+      return values[index];
+    }
+
+    public Builder set(int index, Object value) {
+      checkNotBuilt();
+      values[index] = value;
+      return this;
+    }
+
+    public Builder set(String fieldName, Object value) {
+      return set(schema.fieldIndex(fieldName), value);
+    }
+
+    /**
+     * Copy the values of a row into the fields of the same name. Fields of the row that are
+     * not in the schema of the builder are ignored.
+     */
+    public Builder setAll(Row row) {
+      checkNotBuilt();
+
+      int[] indexes = RowSchemas.projection(row.schema(), schema);
+      for (int i = 0; i < indexes.length; i++) {
+        if (indexes[i] >= 0) {
+          values[i] = row.get(indexes[i]);
+        }
+      }
+
+      return this;
+    }
+
+    public RowWithSchema build() {
+      checkNotBuilt();
+
+      RowWithSchema row = new RowWithSchema(schema, values);
+      values = null;
+
+      return row;
+    }
+
+    private void checkNotBuilt() {
+      if (values == null) {
+        throw new IllegalStateException("Row has already been built");
+      }
+    }
+
+    private static Object[] valuesOf(Row row) {
+      Object[] values = new Object[row.length()];
+
+      for (int i = 0; i < values.length; i++) {
+        values[i] = row.get(i);
+      }
+
+      return values;
+    }
   }
 
 }
@@ -15,6 +15,7 @@
  */
 package com.cloudera.labs.envelope.utils;
 
+import com.cloudera.labs.envelope.spark.RowSchemas;
 import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.google.common.collect.Lists;
 import com.google.common.collect.ObjectArrays;
@@ -438,15 +439,8 @@ public class RowUtils {
   }
 
   public static Row set(Row row, String fieldName, Object replacement) {
-    Object[] values = new Object[row.length()];
-
-    for (int i = 0; i < row.schema().fields().length; i++) {
-      if (i == row.fieldIndex(fieldName)) {
-        values[i] = replacement;
-      } else {
-        values[i] = row.get(i);
-      }
-    }
+    Object[] values = valuesFor(row);
+    values[row.fieldIndex(fieldName)] = replacement;
 
     Row replacedRow = new RowWithSchema(row.schema(), values);
 
@@ -454,7 +448,7 @@ public class RowUtils {
   }
 
   public static Row append(Row row, String fieldName, DataType fieldType, Object value) {
-    StructType appendedSchema = row.schema().add(fieldName, fieldType);
+    StructType appendedSchema = RowSchemas.append(row.schema(), DataTypes.createStructField(fieldName, fieldType, true));
     Object[] appendedValues = ObjectArrays.concat(valuesFor(row), value);
     Row appendedRow = new RowWithSchema(appendedSchema, appendedValues);
 
@@ -472,9 +466,13 @@ public class RowUtils {
   }
 
   public static Object[] valuesFor(Row row) {
+    if (row instanceof RowWithSchema) {
+      return ((RowWithSchema)row).copyValues();
+    }
+
     Object[] values = new Object[row.length()];
 
-    for (int i = 0; i < row.schema().fields().length; i++) {
+    for (int i = 0; i < values.length; i++) {
       values[i] = row.get(i);
     }
 
@@ -0,0 +1,192 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestAvroTranslator {
+
+  private static final String READER_SCHEMA_PATH = "/AvroTest/order-v2.avsc";
+  private static final String STORE_PATH = "/AvroTest/store";
+  private static final String WRITER_SCHEMA_PATH = "/AvroTest/store/order-v1.avsc";
+
+  @Test
+  public void testFlatSchema() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(AvroTranslator.FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("name", "count", "valid"));
+    configMap.put(AvroTranslator.FIELD_TYPES_CONFIG_NAME, Lists.newArrayList("string", "long", "boolean"));
+    AvroTranslator translator = new AvroTranslator();
+    translator.configure(ConfigFactory.parseMap(configMap));
+
+    Schema schema = SchemaBuilder.record("t").fields()
+        .optionalString("name").optionalLong("count").optionalBoolean("valid").endRecord();
+    GenericRecord record = new GenericData.Record(schema);
+    record.put("name", "hello");
+    record.put("count", 5L);
+
+    Row row = translator.translate(null, serialize(record)).iterator().next();
+
+    assertEquals(DataTypes.StringType, translator.getSchema().fields()[0].dataType());
+    assertEquals("hello", row.get(0));
+    assertEquals(5L, row.get(1));
+    assertNull(row.get(2));
+  }
+
+  @Test
+  public void testNestedSchemaFromFile() throws Exception {
+    AvroTranslator translator = new AvroTranslator();
+    translator.configure(config(false));
+
+    Schema schema = loadSchema(READER_SCHEMA_PATH);
+    GenericRecord first = order(schema, 1L, "alice", "a", 3);
+    first.put("channel", "mobile");
+    GenericRecord second = order(schema, 2L, "bob", "b", 2.5d);
+    second.put("channel", "web");
+    second.put("payload", ByteBuffer.wrap(new byte[] { 1, 2 }));
+
+    Row firstRow = translator.translate(null, serialize(first)).iterator().next();
+    Row secondRow = translator.translate(null, serialize(second)).iterator().next();
+
+    // The reused record does not change the rows of earlier messages
+    assertOrder(firstRow, 1L, "alice", "a", 3, null);
+    assertEquals("mobile", firstRow.get(6));
+    assertNull(firstRow.get(4));
+
+    assertOrder(secondRow, 2L, "bob", "b", null, 2.5d);
+    assertArrayEquals(new byte[] { 1, 2 }, (byte[])secondRow.get(4));
+  }
+
+  @Test
+  public void testSchemaStore() throws Exception {
+    AvroTranslator translator = new AvroTranslator();
+    translator.configure(config(true));
+
+    Schema writerSchema = loadSchema(WRITER_SCHEMA_PATH);
+    GenericRecord record = order(writerSchema, 7L, "carol", "c", 9);
+
+    Row row = translator.translate(null, withHeader(writerSchema, serialize(record))).iterator().next();
+
+    assertOrder(row, 7L, "carol", "c", 9, null);
+    assertEquals("web", row.get(6));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testSchemaNotInStore() throws Exception {
+    AvroTranslator translator = new AvroTranslator();
+    translator.configure(config(true));
+
+    Schema otherSchema = SchemaBuilder.record("t").fields().optionalString("name").endRecord();
+    GenericRecord record = new GenericData.Record(otherSchema);
+
+    translator.translate(null, withHeader(otherSchema, serialize(record)));
+  }
+
+  private Config config(boolean withStore) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(AvroTranslator.SCHEMA_PATH_CONFIG_NAME, resourcePath(READER_SCHEMA_PATH));
+    if (withStore) {
+      configMap.put(AvroTranslator.SCHEMA_STORE_PATH_CONFIG_NAME, resourcePath(STORE_PATH));
+    }
+
+    return ConfigFactory.parseMap(configMap);
+  }
+
+  private GenericRecord order(Schema schema, long id, String name, String item, Object amount) {
+    Schema customerSchema = schema.getField("customer").schema();
+    GenericRecord customer = new GenericData.Record(customerSchema);
+    customer.put("name", name);
+    customer.put("tier", new GenericData.EnumSymbol(customerSchema.getField("tier").schema(), "GOLD"));
+
+    GenericRecord order = new GenericData.Record(schema);
+    order.put("id", id);
+    order.put("customer", customer);
+    order.put("items", Lists.newArrayList(item, item + item));
+    order.put("attributes", ImmutableMap.of("size", item.length()));
+    order.put("amount", amount);
+
+    return order;
+  }
+
+  private void assertOrder(Row row, long id, String name, String item, Integer intAmount, Double doubleAmount) {
+    assertEquals(id, row.get(0));
+
+    Row customer = (Row)row.get(1);
+    assertEquals(name, customer.get(0));
+    assertEquals("GOLD", customer.get(1));
+
+    assertEquals(Lists.newArrayList(item, item + item), row.get(2));
+    assertEquals(ImmutableMap.of("size", item.length()), row.get(3));
+
+    Row amount = (Row)row.get(5);
+    assertEquals(intAmount, amount.get(0));
+    assertEquals(doubleAmount, amount.get(1));
+  }
+
+  private static String resourcePath(String resource) {
+    return new File(TestAvroTranslator.class.getResource(resource).getPath()).getAbsolutePath();
+  }
+
+  private static Schema loadSchema(String resource) throws Exception {
+    return new Schema.Parser().parse(TestAvroTranslator.class.getResourceAsStream(resource));
+  }
+
+  private static byte[] serialize(GenericRecord record) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+    encoder.flush();
+
+    return out.toByteArray();
+  }
+
+  private static byte[] withHeader(Schema schema, byte[] payload) {
+    long fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+    ByteBuffer message = ByteBuffer.allocate(10 + payload.length);
+    message.put((byte)0xC3).put((byte)0x01);
+    for (int i = 0; i < 8; i++) {
+      message.put((byte)(fingerprint >>> (8 * i)));
+    }
+    message.put(payload);
+
+    return message.array();
+  }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.unsafe.types.UTF8String;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+public class TestDelimitedTranslator {
+
+  private Config config(String delimiter) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(DelimitedTranslator.DELIMITER_CONFIG_NAME, delimiter);
+    configMap.put(DelimitedTranslator.FIELD_NAMES_CONFIG_NAME,
+        Lists.newArrayList("name", "count", "total", "ratio", "score", "valid"));
+    configMap.put(DelimitedTranslator.FIELD_TYPES_CONFIG_NAME,
+        Lists.newArrayList("string", "int", "long", "float", "double", "boolean"));
+
+    return ConfigFactory.parseMap(configMap);
+  }
+
+  private void assertTranslated(Row row) {
+    assertEquals(6, row.length());
+    assertEquals("héllo", row.get(0));
+    assertEquals(-42, row.get(1));
+    assertEquals(9876543210L, row.get(2));
+    assertEquals(1.5f, row.get(3));
+    assertEquals(2.25d, row.get(4));
+    assertEquals(true, row.get(5));
+  }
+
+  @Test
+  public void testTranslateString() throws Exception {
+    DelimitedTranslator<String> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    Row row = translator.translate(null, "héllo,-42,9876543210,1.5,2.25,TRUE").iterator().next();
+
+    assertTranslated(row);
+  }
+
+  @Test
+  public void testTranslateBytes() throws Exception {
+    DelimitedTranslator<byte[]> translator = new DelimitedTranslator<>();
+    translator.configure(config("||"));
+
+    byte[] message = "héllo||-42||9876543210||1.5||2.25||TRUE".getBytes(Charsets.UTF_8);
+    Row row = translator.translate(null, message).iterator().next();
+
+    assertTranslated(row);
+  }
+
+  @Test
+  public void testCharsDelimiter() throws Exception {
+    DelimitedTranslator<byte[]> translator = new DelimitedTranslator<>();
+    translator.configure(config("chars:1"));
+
+    byte[] message = "héllo\u0001-42\u00019876543210\u00011.5\u00012.25\u0001true".getBytes(Charsets.UTF_8);
+    Row row = translator.translate(null, message).iterator().next();
+
+    assertTranslated(row);
+  }
+
+  @Test
+  public void testEmptyAndMissingValues() throws Exception {
+    DelimitedTranslator<String> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    Row row = translator.translate(null, ",,7").iterator().next();
+
+    assertEquals(6, row.length());
+    assertEquals("", row.get(0));
+    assertNull(row.get(1));
+    assertEquals(7L, row.get(2));
+    assertNull(row.get(3));
+    assertNull(row.get(4));
+    assertNull(row.get(5));
+  }
+
+  @Test
+  public void testNumberBounds() throws Exception {
+    DelimitedTranslator<byte[]> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    byte[] message = "a,-2147483648,9223372036854775807".getBytes(Charsets.UTF_8);
+    Row row = translator.translate(null, message).iterator().next();
+
+    assertEquals(Integer.MIN_VALUE, row.get(1));
+    assertEquals(Long.MAX_VALUE, row.get(2));
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testIntOverflow() throws Exception {
+    DelimitedTranslator<String> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    translator.translate(null, "a,2147483648");
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testInvalidNumber() throws Exception {
+    DelimitedTranslator<byte[]> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    translator.translate(null, "a,12x".getBytes(Charsets.UTF_8));
+  }
+
+  @Test
+  public void testTranslatePartition() throws Exception {
+    DelimitedTranslator<String> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    List<Tuple2<String, String>> keysAndMessages = Lists.newArrayList(
+        new Tuple2<String, String>(null, "héllo,-42,9876543210,1.5,2.25,TRUE"),
+        new Tuple2<String, String>(null, "x,1"));
+    Iterator<Row> rows = translator.translatePartition(keysAndMessages.iterator());
+
+    assertTranslated(rows.next());
+    assertEquals("x", rows.next().get(0));
+    assertFalse(rows.hasNext());
+  }
+
+  @Test
+  public void testTranslateToInternalRows() throws Exception {
+    DelimitedTranslator<byte[]> translator = new DelimitedTranslator<>();
+    translator.configure(config(","));
+
+    List<Tuple2<byte[], byte[]>> keysAndMessages = Lists.newArrayList(
+        new Tuple2<byte[], byte[]>(null, "héllo,-42,9876543210,1.5,2.25,TRUE".getBytes(Charsets.UTF_8)));
+    Iterator<InternalRow> rows = translator.translatePartitionToInternalRows(keysAndMessages.iterator());
+
+    InternalRow row = rows.next();
+    assertEquals(UTF8String.fromString("héllo"), row.getUTF8String(0));
+    assertEquals(-42, row.getInt(1));
+    assertEquals(9876543210L, row.getLong(2));
+    assertEquals(1.5f, row.getFloat(3), 0);
+    assertEquals(2.25d, row.getDouble(4), 0);
+    assertTrue(row.getBoolean(5));
+    assertFalse(rows.hasNext());
+  }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.unsafe.types.UTF8String;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+public class TestKVPTranslator {
+
+  private Config config(String kvpDelimiter, String fieldDelimiter) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(KVPTranslator.KVP_DELIMITER_CONFIG_NAME, kvpDelimiter);
+    configMap.put(KVPTranslator.FIELD_DELIMITER_CONFIG_NAME, fieldDelimiter);
+    configMap.put(KVPTranslator.FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("35", "55", "38", "44", "54"));
+    configMap.put(KVPTranslator.FIELD_TYPES_CONFIG_NAME,
+        Lists.newArrayList("string", "string", "long", "double", "int"));
+
+    return ConfigFactory.parseMap(configMap);
+  }
+
+  private void assertTranslated(Row row) {
+    assertEquals(5, row.length());
+    assertEquals("D", row.get(0));
+    assertEquals("ABC", row.get(1));
+    assertEquals(100L, row.get(2));
+    assertEquals(12.5d, row.get(3));
+    assertNull(row.get(4));
+  }
+
+  @Test
+  public void testTranslateString() throws Exception {
+    KVPTranslator<String> translator = new KVPTranslator<>();
+    translator.configure(config(",", "="));
+
+    Row row = translator.translate(null, "8=FIX.4.2,35=D,49=SENDER,55=ABC,38=100,44=12.5,10=128").iterator().next();
+
+    assertTranslated(row);
+  }
+
+  @Test
+  public void testTranslateBytes() throws Exception {
+    KVPTranslator<byte[]> translator = new KVPTranslator<>();
+    translator.configure(config("chars:1", "="));
+
+    byte[] message = "8=FIX.4.2\u000135=D\u000149=SENDER\u000155=ABC\u000138=100\u000144=12.5\u000110=128\u0001"
+        .getBytes(Charsets.UTF_8);
+    Row row = translator.translate(null, message).iterator().next();
+
+    assertTranslated(row);
+  }
+
+  @Test
+  public void testLastValueOfRepeatedKey() throws Exception {
+    KVPTranslator<byte[]> translator = new KVPTranslator<>();
+    translator.configure(config(",", "="));
+
+    Row row = translator.translate(null, "35=A,35=D,55=ABC".getBytes(Charsets.UTF_8)).iterator().next();
+
+    assertEquals("D", row.get(0));
+    assertEquals("ABC", row.get(1));
+  }
+
+  @Test
+  public void testMalformedAndEmptyPairs() throws Exception {
+    KVPTranslator<String> translator = new KVPTranslator<>();
+    translator.configure(config(",", "="));
+
+    Row row = translator.translate(null, "35,,55=,38=,44=1.5=2").iterator().next();
+
+    assertNull(row.get(0));
+    assertEquals("", row.get(1));
+    assertNull(row.get(2));
+    assertEquals(1.5d, row.get(3));
+    assertNull(row.get(4));
+  }
+
+  @Test
+  public void testManyFields() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(KVPTranslator.KVP_DELIMITER_CONFIG_NAME, ";");
+    configMap.put(KVPTranslator.FIELD_DELIMITER_CONFIG_NAME, ":");
+    configMap.put(KVPTranslator.FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("a", "b", "c", "d", "e", "f", "g", "h"));
+    configMap.put(KVPTranslator.FIELD_TYPES_CONFIG_NAME,
+        Lists.newArrayList("int", "int", "int", "int", "int", "int", "int", "int"));
+    KVPTranslator<String> translator = new KVPTranslator<>();
+    translator.configure(ConfigFactory.parseMap(configMap));
+
+    Row row = translator.translate(null, "h:8;g:7;f:6;e:5;d:4;c:3;b:2;a:1;z:0").iterator().next();
+
+    for (int i = 0; i < 8; i++) {
+      assertEquals(i + 1, row.get(i));
+    }
+  }
+
+  @Test
+  public void testTranslateToInternalRows() throws Exception {
+    KVPTranslator<byte[]> translator = new KVPTranslator<>();
+    translator.configure(config("chars:1", "="));
+
+    List<Tuple2<byte[], byte[]>> keysAndMessages = Lists.newArrayList(
+        new Tuple2<byte[], byte[]>(null, "8=FIX.4.2\u000135=D\u000155=ÄBC\u000138=100\u000144=12.5\u0001"
+            .getBytes(Charsets.UTF_8)),
+        new Tuple2<byte[], byte[]>(null, "54=1".getBytes(Charsets.UTF_8)));
+    Iterator<InternalRow> rows = translator.translatePartitionToInternalRows(keysAndMessages.iterator());
+
+    InternalRow row = rows.next();
+    assertEquals(5, row.numFields());
+    assertEquals(UTF8String.fromString("D"), row.getUTF8String(0));
+    assertEquals(UTF8String.fromString("ÄBC"), row.getUTF8String(1));
+    assertEquals(100L, row.getLong(2));
+    assertEquals(12.5d, row.getDouble(3), 0);
+    assertTrue(row.isNullAt(4));
+
+    row = rows.next();
+    assertTrue(row.isNullAt(0));
+    assertTrue(row.isNullAt(1));
+    assertEquals(1, row.getInt(4));
+    assertFalse(rows.hasNext());
+  }
+
+  @Test
+  public void testTranslateStringToInternalRows() throws Exception {
+    KVPTranslator<String> translator = new KVPTranslator<>();
+    translator.configure(config(",", "="));
+
+    List<Tuple2<String, String>> keysAndMessages = Lists.newArrayList(
+        new Tuple2<String, String>(null, "35=D,55=ÄBC,38=100"));
+    InternalRow row = translator.translatePartitionToInternalRows(keysAndMessages.iterator()).next();
+
+    assertEquals(UTF8String.fromString("D"), row.getUTF8String(0));
+    assertEquals(UTF8String.fromString("ÄBC"), row.getUTF8String(1));
+    assertEquals(100L, row.getLong(2));
+    assertTrue(row.isNullAt(3));
+  }
+
+}
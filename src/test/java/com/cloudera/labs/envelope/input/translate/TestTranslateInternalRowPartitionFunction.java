@@ -0,0 +1,153 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.types.StructType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+/**
+ * The streaming runner builds DataFrames from internal rows with SQLContext.internalCreateDataFrame,
+ * which is not part of the public Spark API, so these check that the DataFrames it builds are the
+ * same as those that SQLContext.createDataFrame builds from the translated Rows.
+ */
+public class TestTranslateInternalRowPartitionFunction {
+
+  private static JavaSparkContext jsc;
+  private static SQLContext sqlc;
+
+  @BeforeClass
+  public static void beforeClass() {
+    SparkConf conf = new SparkConf();
+    conf.setMaster("local[1]");
+    conf.setAppName("TestTranslateInternalRowPartitionFunction");
+    jsc = new JavaSparkContext(conf);
+    sqlc = new SQLContext(jsc);
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    jsc.close();
+  }
+
+  private Map<String, Object> delimitedConfig(String encoding) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(TranslatorFactory.TYPE_CONFIG_NAME, "delimited");
+    configMap.put(DelimitedTranslator.DELIMITER_CONFIG_NAME, ",");
+    configMap.put(DelimitedTranslator.FIELD_NAMES_CONFIG_NAME,
+        Lists.newArrayList("name", "count", "total", "ratio", "score", "valid"));
+    configMap.put(DelimitedTranslator.FIELD_TYPES_CONFIG_NAME,
+        Lists.newArrayList("string", "int", "long", "float", "double", "boolean"));
+    configMap.put(DelimitedTranslator.ENCODING_CONFIG_NAME, encoding);
+
+    return configMap;
+  }
+
+  private Map<String, Object> kvpConfig(String encoding) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(TranslatorFactory.TYPE_CONFIG_NAME, "kvp");
+    configMap.put(KVPTranslator.KVP_DELIMITER_CONFIG_NAME, ",");
+    configMap.put(KVPTranslator.FIELD_DELIMITER_CONFIG_NAME, "=");
+    configMap.put(KVPTranslator.FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("35", "55", "38", "44", "54"));
+    configMap.put(KVPTranslator.FIELD_TYPES_CONFIG_NAME,
+        Lists.newArrayList("string", "string", "long", "double", "int"));
+    configMap.put(KVPTranslator.ENCODING_CONFIG_NAME, encoding);
+
+    return configMap;
+  }
+
+  @Test
+  public void testDelimitedUTF8() throws Exception {
+    assertSameDataFrames(delimitedConfig("UTF-8"),
+        "héllo,-42,9876543210,1.5,2.25,TRUE", "wörld,,1,,,false", ",0,0,0,0,");
+  }
+
+  @Test
+  public void testDelimitedISO88591() throws Exception {
+    assertSameDataFrames(delimitedConfig("ISO-8859-1"),
+        "héllo,-42,9876543210,1.5,2.25,TRUE", "wörld,,1,,,false", ",0,0,0,0,");
+  }
+
+  @Test
+  public void testDelimitedUTF16() throws Exception {
+    assertSameDataFrames(delimitedConfig("UTF-16"),
+        "héllo,-42,9876543210,1.5,2.25,TRUE", "wörld,,1,,,false", ",0,0,0,0,");
+  }
+
+  @Test
+  public void testKVPUTF8() throws Exception {
+    assertSameDataFrames(kvpConfig("UTF-8"),
+        "8=FIX.4.2,35=D,55=ÄBC,38=100,44=12.5", "35=A,35=F,54=1", "10=128");
+  }
+
+  @Test
+  public void testKVPISO88591() throws Exception {
+    assertSameDataFrames(kvpConfig("ISO-8859-1"),
+        "8=FIX.4.2,35=D,55=ÄBC,38=100,44=12.5", "35=A,35=F,54=1", "10=128");
+  }
+
+  private void assertSameDataFrames(Map<String, Object> configMap, String... messages) throws Exception {
+    Config config = ConfigFactory.parseMap(configMap);
+    Charset charset = Charset.forName(config.getString("encoding"));
+
+    List<Tuple2<byte[], byte[]>> keysAndMessages = Lists.newArrayList();
+    for (String message : messages) {
+      keysAndMessages.add(new Tuple2<byte[], byte[]>(null, message.getBytes(charset)));
+    }
+    JavaRDD<Tuple2<byte[], byte[]>> messagesRDD = jsc.parallelize(keysAndMessages, 2);
+    StructType schema = TranslatorFactory.create(config).getSchema();
+
+    JavaRDD<Row> rows = messagesRDD.mapPartitions(new TranslatePartitionFunction<byte[]>(config));
+    DataFrame expected = sqlc.createDataFrame(rows, schema);
+
+    JavaRDD<InternalRow> internalRows =
+        messagesRDD.mapPartitions(new TranslateInternalRowPartitionFunction<byte[]>(config));
+    DataFrame actual = sqlc.internalCreateDataFrame(internalRows.rdd(), schema);
+
+    assertEquals(expected.schema(), actual.schema());
+
+    List<Row> expectedRows = expected.collectAsList();
+    List<Row> actualRows = actual.collectAsList();
+    assertEquals(messages.length, expectedRows.size());
+    assertEquals(expectedRows, actualRows);
+
+    // The same through Spark SQL expressions, which read the internal values directly
+    assertEquals(expected.selectExpr("upper(`" + schema.fieldNames()[0] + "`)").collectAsList(),
+        actual.selectExpr("upper(`" + schema.fieldNames()[0] + "`)").collectAsList());
+  }
+
+}
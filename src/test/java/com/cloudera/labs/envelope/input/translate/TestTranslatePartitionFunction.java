@@ -0,0 +1,105 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input.translate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+public class TestTranslatePartitionFunction {
+
+  @Test
+  public void testPartitionTranslator() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(TranslatorFactory.TYPE_CONFIG_NAME, "delimited");
+    configMap.put(DelimitedTranslator.DELIMITER_CONFIG_NAME, ",");
+    configMap.put(DelimitedTranslator.FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("name", "count"));
+    configMap.put(DelimitedTranslator.FIELD_TYPES_CONFIG_NAME, Lists.newArrayList("string", "int"));
+
+    List<Row> rows = translate(ConfigFactory.parseMap(configMap), "a,1", "b,2", "c,3");
+
+    assertEquals(3, rows.size());
+    assertEquals("a", rows.get(0).get(0));
+    assertEquals(2, rows.get(1).get(1));
+    assertEquals("c", rows.get(2).get(0));
+  }
+
+  @Test
+  public void testMessageTranslator() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(TranslatorFactory.TYPE_CONFIG_NAME, RepeatingTranslator.class.getName());
+
+    // Messages that translate to no rows are skipped over
+    List<Row> rows = translate(ConfigFactory.parseMap(configMap), "", "ab", "", "", "c", "");
+
+    assertEquals(3, rows.size());
+    assertEquals("ab", rows.get(0).get(0));
+    assertEquals("ab", rows.get(1).get(0));
+    assertEquals("c", rows.get(2).get(0));
+  }
+
+  private List<Row> translate(Config config, String... messages) throws Exception {
+    List<Tuple2<String, String>> keysAndMessages = Lists.newArrayList();
+    for (String message : messages) {
+      keysAndMessages.add(new Tuple2<String, String>(null, message));
+    }
+
+    TranslatePartitionFunction<String> function = new TranslatePartitionFunction<>(config);
+
+    return Lists.newArrayList(function.call(keysAndMessages.iterator()));
+  }
+
+  /**
+   * A translator that is not a partition translator, which translates each message to a row
+   * for each of its characters.
+   */
+  public static class RepeatingTranslator implements Translator<String> {
+    @Override
+    public void configure(Config config) {
+    }
+
+    @Override
+    public Iterable<Row> translate(String key, String message) {
+      List<Row> rows = Lists.newArrayList();
+      for (int i = 0; i < message.length(); i++) {
+        rows.add(RowFactory.create(message));
+      }
+
+      return rows;
+    }
+
+    @Override
+    public StructType getSchema() {
+      return DataTypes.createStructType(Lists.newArrayList(
+          DataTypes.createStructField("message", DataTypes.StringType, true)));
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.collect.Lists;
+
+public class TestExistingRecordCache {
+
+  private StructType keySchema;
+  private StructType recordSchema;
+  private List<String> primaryKeyFieldNames;
+  private ExistingRecordCache cache;
+
+  @Before
+  public void before() {
+    keySchema = RowUtils.structTypeFor(Lists.newArrayList("key"), Lists.newArrayList("string"));
+    recordSchema = RowUtils.structTypeFor(
+        Lists.newArrayList("key", "ts", "value"), Lists.newArrayList("string", "long", "string"));
+    primaryKeyFieldNames = Lists.newArrayList("key", "ts");
+    cache = new ExistingRecordCache(100, 60);
+  }
+
+  @Test
+  public void testMissThenHit() {
+    Row key = new RowWithSchema(keySchema, "a");
+    assertNull(cache.get(key));
+
+    cache.put(key, Lists.<Row>newArrayList());
+
+    assertTrue(cache.get(new RowWithSchema(keySchema, "a")).isEmpty());
+  }
+
+  @Test
+  public void testInsertWriteThrough() {
+    cache.put(new RowWithSchema(keySchema, "a"), Lists.<Row>newArrayList());
+
+    Row inserted = new RowWithSchema(recordSchema, "a", 1L, "hello");
+    cache.applyMutation(new PlannedRow(inserted, MutationType.INSERT), recordSchema, primaryKeyFieldNames);
+
+    List<Row> cached = cache.get(new RowWithSchema(keySchema, "a"));
+    assertEquals(1, cached.size());
+    assertEquals("hello", RowUtils.get(cached.get(0), "value"));
+  }
+
+  @Test
+  public void testUpdateAndDeleteWriteThrough() {
+    Row first = new RowWithSchema(recordSchema, "a", 1L, "hello");
+    Row second = new RowWithSchema(recordSchema, "a", 2L, "world");
+    cache.put(new RowWithSchema(keySchema, "a"), Lists.newArrayList(first, second));
+
+    StructType updateSchema = RowUtils.structTypeFor(
+        Lists.newArrayList("key", "ts", "value"), Lists.newArrayList("string", "long", "string"));
+    Row update = new RowWithSchema(updateSchema, "a", 2L, "there");
+    cache.applyMutation(new PlannedRow(update, MutationType.UPDATE), recordSchema, primaryKeyFieldNames);
+    cache.applyMutation(new PlannedRow(first, MutationType.DELETE), recordSchema, primaryKeyFieldNames);
+
+    List<Row> cached = cache.get(new RowWithSchema(keySchema, "a"));
+    assertEquals(1, cached.size());
+    assertEquals(2L, RowUtils.get(cached.get(0), "ts"));
+    assertEquals("there", RowUtils.get(cached.get(0), "value"));
+  }
+
+  @Test
+  public void testPartialInsertInvalidates() {
+    cache.put(new RowWithSchema(keySchema, "a"), Lists.<Row>newArrayList());
+
+    StructType partialSchema = RowUtils.structTypeFor(
+        Lists.newArrayList("key", "ts"), Lists.newArrayList("string", "long"));
+    Row partial = new RowWithSchema(partialSchema, "a", 1L);
+    cache.applyMutation(new PlannedRow(partial, MutationType.INSERT), recordSchema, primaryKeyFieldNames);
+
+    assertNull(cache.get(new RowWithSchema(keySchema, "a")));
+  }
+
+  @Test
+  public void testUpdateWithoutCachedRecordInvalidates() {
+    cache.put(new RowWithSchema(keySchema, "a"), Lists.<Row>newArrayList());
+
+    Row update = new RowWithSchema(recordSchema, "a", 1L, "hello");
+    cache.applyMutation(new PlannedRow(update, MutationType.UPDATE), recordSchema, primaryKeyFieldNames);
+
+    assertNull(cache.get(new RowWithSchema(keySchema, "a")));
+  }
+
+  @Test
+  public void testUncachedKeyNotAdded() {
+    cache.put(new RowWithSchema(keySchema, "a"), Lists.<Row>newArrayList());
+
+    Row inserted = new RowWithSchema(recordSchema, "b", 1L, "hello");
+    cache.applyMutation(new PlannedRow(inserted, MutationType.INSERT), recordSchema, primaryKeyFieldNames);
+
+    assertNull(cache.get(new RowWithSchema(keySchema, "b")));
+  }
+
+}
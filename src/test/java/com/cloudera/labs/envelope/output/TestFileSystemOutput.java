@@ -0,0 +1,196 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+public class TestFileSystemOutput {
+
+  private static JavaSparkContext jsc;
+  private static SQLContext sqlc;
+  private static StructType schema;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private String path;
+  private Map<String, Object> configMap;
+
+  @BeforeClass
+  public static void beforeClass() {
+    SparkConf conf = new SparkConf();
+    conf.setMaster("local[1]");
+    conf.setAppName("TestFileSystemOutput");
+    jsc = new JavaSparkContext(conf);
+    sqlc = new SQLContext(jsc);
+
+    schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("day", DataTypes.StringType, false)));
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    jsc.close();
+  }
+
+  @Before
+  public void before() {
+    path = new File(folder.getRoot(), "output").getAbsolutePath();
+
+    configMap = Maps.newHashMap();
+    configMap.put(FileSystemOutput.PATH_CONFIG_NAME, path);
+    configMap.put(FileSystemOutput.FORMAT_CONFIG_NAME, "parquet");
+    configMap.put(FileSystemOutput.PARTITION_BY_CONFIG_NAME, Lists.newArrayList("day"));
+  }
+
+  @Test
+  public void testStaticOverwrite() throws Exception {
+    FileSystemOutput output = output();
+
+    apply(output, MutationType.INSERT, new RowWithSchema(schema, "a", "1"), new RowWithSchema(schema, "b", "2"));
+    apply(output, MutationType.OVERWRITE, new RowWithSchema(schema, "c", "2"));
+
+    List<Row> written = read();
+    assertEquals(written.size(), 1);
+    assertEquals(written.get(0).getString(0), "c");
+  }
+
+  @Test
+  public void testDynamicOverwrite() throws Exception {
+    configMap.put(FileSystemOutput.OVERWRITE_MODE_CONFIG_NAME, FileSystemOutput.OVERWRITE_MODE_DYNAMIC);
+    FileSystemOutput output = output();
+
+    apply(output, MutationType.INSERT, new RowWithSchema(schema, "a", "1"), new RowWithSchema(schema, "b", "2"));
+    apply(output, MutationType.OVERWRITE, new RowWithSchema(schema, "c", "2"), new RowWithSchema(schema, "d", "3"));
+
+    List<Row> written = read();
+    assertEquals(written.size(), 3);
+    assertEquals(written.get(0).getString(0), "a");
+    assertEquals(written.get(1).getString(0), "c");
+    assertEquals(written.get(2).getString(0), "d");
+    assertEquals(new File(path, FileSystemOutput.STAGING_DIRECTORY_NAME).list().length, 0);
+  }
+
+  @Test
+  public void testDynamicOverwriteRollsBackFailedSwap() throws Exception {
+    configMap.put(FileSystemOutput.OVERWRITE_MODE_CONFIG_NAME, FileSystemOutput.OVERWRITE_MODE_DYNAMIC);
+    FileSystemOutput output = output();
+
+    apply(output, MutationType.INSERT, new RowWithSchema(schema, "a", "1"), new RowWithSchema(schema, "b", "2"),
+        new RowWithSchema(schema, "e", "4"));
+
+    // The second partition to be swapped in is renamed, but the rename still reports a failure
+    FileSystemOutput failing = new FileSystemOutput() {
+      private int swappedIn = 0;
+      @Override
+      void rename(FileSystem fs, Path from, Path to) throws IOException {
+        super.rename(fs, from, to);
+
+        if (from.getParent().getName().equals("new") && ++swappedIn == 2) {
+          throw new IOException("Injected failure");
+        }
+      }
+    };
+    failing.configure(ConfigFactory.parseMap(configMap));
+
+    try {
+      apply(failing, MutationType.OVERWRITE, new RowWithSchema(schema, "c", "2"),
+          new RowWithSchema(schema, "d", "3"), new RowWithSchema(schema, "f", "4"));
+      fail("Overwrite should have failed");
+    }
+    catch (IOException e) {
+      assertEquals(e.getMessage(), "Injected failure");
+    }
+
+    List<Row> written = read();
+    assertEquals(written.size(), 3);
+    assertEquals(written.get(0).getString(0), "a");
+    assertEquals(written.get(1).getString(0), "b");
+    assertEquals(written.get(2).getString(0), "e");
+    assertEquals(new File(path, "day=3").exists(), false);
+    assertEquals(new File(path, FileSystemOutput.STAGING_DIRECTORY_NAME).list().length, 0);
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testDynamicOverwriteRequiresPartitions() {
+    configMap.remove(FileSystemOutput.PARTITION_BY_CONFIG_NAME);
+    configMap.put(FileSystemOutput.OVERWRITE_MODE_CONFIG_NAME, FileSystemOutput.OVERWRITE_MODE_DYNAMIC);
+
+    output();
+  }
+
+  @Test
+  public void testBufferedInsertsWrittenOnFlush() throws Exception {
+    configMap.put(MicroBatchBuffer.MAX_RECORDS_CONFIG_NAME, 3);
+    FileSystemOutput output = output();
+
+    apply(output, MutationType.INSERT, new RowWithSchema(schema, "a", "1"));
+    apply(output, MutationType.INSERT, new RowWithSchema(schema, "b", "1"));
+    assertEquals(new File(path).exists(), false);
+
+    output.flush();
+    assertEquals(read().size(), 2);
+  }
+
+  private FileSystemOutput output() {
+    FileSystemOutput output = new FileSystemOutput();
+    output.configure(ConfigFactory.parseMap(configMap));
+
+    return output;
+  }
+
+  private void apply(FileSystemOutput output, MutationType mutationType, Row... rows) throws Exception {
+    DataFrame mutation = sqlc.createDataFrame(Lists.newArrayList(rows), schema);
+
+    output.applyBulkMutations(Lists.newArrayList(new Tuple2<MutationType, DataFrame>(mutationType, mutation)));
+  }
+
+  private List<Row> read() {
+    return Lists.newArrayList(sqlc.read().parquet(path).sort("key").collect());
+  }
+
+}
@@ -17,24 +17,40 @@ package com.cloudera.labs.envelope.output;
 
 import com.cloudera.labs.envelope.input.JdbcInput;
 import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.cloudera.labs.envelope.utils.ConfigUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import mockit.Mock;
 import mockit.MockUp;
 import mockit.integration.junit4.JMockit;
 import org.apache.spark.SparkConf;
 import org.apache.spark.SparkContext;
 import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
 import org.h2.tools.Server;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import scala.Tuple2;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 @RunWith(JMockit.class)
@@ -46,6 +62,8 @@ public class TestJdbcOutput {
 
   public static final String SAMPLE_DATA_PATH = "/JdbcTest/sample.json";
   public static final String JDBC_URL = "jdbc:h2:tcp://127.0.0.1:9092/mem:test;DB_CLOSE_DELAY=-1";
+  public static final String JDBC_MUTATIONS_URL =
+      "jdbc:h2:tcp://127.0.0.1:9092/mem:mutations;DB_CLOSE_DELAY=-1";
   public static final String JDBC_USERNAME = "sa";
   public static final String JDBC_PASSWORD = "";
   public static Server server;
@@ -138,6 +156,189 @@ public class TestJdbcOutput {
   }
 
 
+  @Test
+  public void checkApplyRandomMutations_works() throws Exception {
+    createPeopleTable();
+    JdbcOutput jdbcOutput = new JdbcOutput();
+    // A batch size smaller than the mutations makes the writer execute more than one batch
+    jdbcOutput.configure(mutationsConfig(2));
+
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.IntegerType, false),
+        DataTypes.createStructField("name", DataTypes.StringType, true)));
+
+    List<PlannedRow> planned = Lists.newArrayList();
+    planned.add(new PlannedRow(new RowWithSchema(schema, 1, "a"), MutationType.INSERT));
+    planned.add(new PlannedRow(new RowWithSchema(schema, 2, "b"), MutationType.INSERT));
+    planned.add(new PlannedRow(new RowWithSchema(schema, 3, null), MutationType.INSERT));
+    jdbcOutput.applyRandomMutations(planned);
+
+    planned.clear();
+    planned.add(new PlannedRow(new RowWithSchema(schema, 1, "aa"), MutationType.UPDATE));
+    planned.add(new PlannedRow(new RowWithSchema(schema, 2, "bb"), MutationType.UPSERT));
+    planned.add(new PlannedRow(new RowWithSchema(schema, 4, "d"), MutationType.UPSERT));
+    planned.add(new PlannedRow(new RowWithSchema(schema, 3, null), MutationType.DELETE));
+    jdbcOutput.applyRandomMutations(planned);
+
+    Connection connection = DriverManager.getConnection(JDBC_MUTATIONS_URL, JDBC_USERNAME, JDBC_PASSWORD);
+    ResultSet resultSet = connection.createStatement().executeQuery("select id, name from people order by id");
+    List<String> people = Lists.newArrayList();
+    while (resultSet.next()) {
+      people.add(resultSet.getInt(1) + ":" + resultSet.getString(2));
+    }
+    connection.close();
+
+    assertEquals(Lists.newArrayList("1:aa", "2:bb", "4:d"), people);
+  }
+
+  @Test
+  public void checkApplyRandomMutations_RollsBackOnFailure() throws Exception {
+    createPeopleTable();
+    JdbcOutput jdbcOutput = new JdbcOutput();
+    jdbcOutput.configure(mutationsConfig(1));
+
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.IntegerType, false),
+        DataTypes.createStructField("name", DataTypes.StringType, true)));
+
+    List<PlannedRow> planned = Lists.newArrayList();
+    planned.add(new PlannedRow(new RowWithSchema(schema, 1, "a"), MutationType.INSERT));
+    planned.add(new PlannedRow(new RowWithSchema(schema, 1, "a"), MutationType.INSERT));
+
+    // The second insert violates the primary key
+    boolean failed = false;
+    try {
+      jdbcOutput.applyRandomMutations(planned);
+    }
+    catch (SQLException e) {
+      failed = true;
+    }
+    assertTrue(failed);
+
+    Connection connection = DriverManager.getConnection(JDBC_MUTATIONS_URL, JDBC_USERNAME, JDBC_PASSWORD);
+    ResultSet resultSet = connection.createStatement().executeQuery("select count(*) from people");
+    resultSet.next();
+    assertEquals(0, resultSet.getInt(1));
+    connection.close();
+  }
+
+  @Test
+  public void checkGetExistingForFilters_works() throws Exception {
+    createPeopleTable();
+    Connection connection = DriverManager.getConnection(JDBC_MUTATIONS_URL, JDBC_USERNAME, JDBC_PASSWORD);
+    connection.createStatement().executeUpdate("insert into people values (1, 'a'), (2, 'b'), (3, 'c')");
+    connection.close();
+
+    JdbcOutput jdbcOutput = new JdbcOutput();
+    Map<String, Object> configMap = Maps.newHashMap(mutationsConfig(1000).root().unwrapped());
+    configMap.put(JdbcOutput.JDBC_CONFIG_LOOKUP_CHUNK_SIZE, 2);
+    jdbcOutput.configure(ConfigFactory.parseMap(configMap));
+
+    StructType filterSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.IntegerType, false)));
+    List<Row> filters = Lists.<Row>newArrayList(
+        new RowWithSchema(filterSchema, 1), new RowWithSchema(filterSchema, 3), new RowWithSchema(filterSchema, 5));
+
+    List<Row> existing = Lists.newArrayList(jdbcOutput.getExistingForFilters(filters));
+
+    assertEquals(2, existing.size());
+    List<String> names = Lists.newArrayList();
+    for (Row row : existing) {
+      names.add(row.<String>getAs("name"));
+      assertEquals(DataTypes.IntegerType, row.schema().apply("id").dataType());
+    }
+    assertTrue(names.contains("a"));
+    assertTrue(names.contains("c"));
+  }
+
+  @Test
+  public void checkGetExistingForFilters_mapsFieldNames() throws Exception {
+    createPeopleTable();
+    Connection connection = DriverManager.getConnection(JDBC_MUTATIONS_URL, JDBC_USERNAME, JDBC_PASSWORD);
+    connection.createStatement().executeUpdate("insert into people values (1, 'a')");
+    connection.close();
+
+    JdbcOutput jdbcOutput = new JdbcOutput();
+    Map<String, Object> configMap = Maps.newHashMap(mutationsConfig(1000).root().unwrapped());
+    configMap.put(JdbcOutput.JDBC_CONFIG_KEY_FIELD_NAMES, Lists.newArrayList("Id"));
+    jdbcOutput.configure(ConfigFactory.parseMap(configMap));
+
+    StructType filterSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("Id", DataTypes.IntegerType, false)));
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(filterSchema, 1));
+
+    List<Row> existing = Lists.newArrayList(jdbcOutput.getExistingForFilters(filters));
+
+    assertEquals(1, existing.size());
+    assertEquals(Lists.newArrayList("Id", "name"), Lists.newArrayList(existing.get(0).schema().fieldNames()));
+    assertEquals(1, existing.get(0).<Integer>getAs("Id").intValue());
+    assertEquals("a", existing.get(0).<String>getAs("name"));
+  }
+
+  @Test
+  public void checkMutationWriter_reusesStatementsAndKeepsKeyOrder() throws Exception {
+    createPeopleTable();
+    final Connection connection = DriverManager.getConnection(JDBC_MUTATIONS_URL, JDBC_USERNAME, JDBC_PASSWORD);
+    final AtomicInteger prepared = new AtomicInteger();
+    Connection countingConnection = (Connection)Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { Connection.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("prepareStatement")) {
+              prepared.incrementAndGet();
+            }
+            return method.invoke(connection, args);
+          }
+        });
+
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.IntegerType, false),
+        DataTypes.createStructField("name", DataTypes.StringType, true)));
+    JdbcMutationWriter writer = new JdbcMutationWriter(countingConnection, "people", Lists.newArrayList("id"),
+        JdbcDialect.forName(null, JDBC_MUTATIONS_URL), 100);
+
+    // Interleaved mutation types, as a random planner plans them
+    writer.write(MutationType.INSERT, schema, new RowWithSchema(schema, 1, "a"));
+    writer.write(MutationType.UPDATE, schema, new RowWithSchema(schema, 1, "aa"));
+    writer.write(MutationType.INSERT, schema, new RowWithSchema(schema, 2, "b"));
+    writer.write(MutationType.UPDATE, schema, new RowWithSchema(schema, 2, "bb"));
+    writer.write(MutationType.DELETE, schema, new RowWithSchema(schema, 1, null));
+    writer.write(MutationType.INSERT, schema, new RowWithSchema(schema, 1, "c"));
+    writer.write(MutationType.INSERT, schema, new RowWithSchema(schema, 3, "d"));
+    writer.flush();
+    writer.close();
+
+    ResultSet resultSet = connection.createStatement().executeQuery("select id, name from people order by id");
+    List<String> people = Lists.newArrayList();
+    while (resultSet.next()) {
+      people.add(resultSet.getInt(1) + ":" + resultSet.getString(2));
+    }
+    connection.close();
+
+    assertEquals(Lists.newArrayList("1:c", "2:bb", "3:d"), people);
+    assertEquals(3, prepared.get());
+  }
+
+  private static void createPeopleTable() throws SQLException {
+    Connection connection = DriverManager.getConnection(JDBC_MUTATIONS_URL, JDBC_USERNAME, JDBC_PASSWORD);
+    Statement stmt = connection.createStatement();
+    stmt.executeUpdate("drop table if exists people");
+    stmt.executeUpdate("create table people (id int primary key, name varchar(30))");
+    connection.close();
+  }
+
+  private static Config mutationsConfig(int batchSize) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(JdbcOutput.JDBC_CONFIG_URL, JDBC_MUTATIONS_URL);
+    configMap.put(JdbcOutput.JDBC_CONFIG_TABLENAME, "people");
+    configMap.put(JdbcOutput.JDBC_CONFIG_USERNAME, JDBC_USERNAME);
+    configMap.put(JdbcOutput.JDBC_CONFIG_PASSWORD, JDBC_PASSWORD);
+    configMap.put(JdbcOutput.JDBC_CONFIG_KEY_FIELD_NAMES, Lists.newArrayList("id"));
+    configMap.put(JdbcOutput.JDBC_CONFIG_BATCH_SIZE, batchSize);
+
+    return ConfigFactory.parseMap(configMap);
+  }
+
   @After
   public void tearDown() {
     if (sparkContext!=null) {
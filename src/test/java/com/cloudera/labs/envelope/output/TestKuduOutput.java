@@ -0,0 +1,314 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.kudu.client.KuduSession;
+import org.apache.kudu.client.KuduTable;
+import org.apache.kudu.client.Operation;
+import org.apache.kudu.client.RowError;
+import org.apache.kudu.client.RowErrorsAndOverflowStatus;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.output.KuduOutput.TabletPartitioner;
+import com.cloudera.labs.envelope.plan.ExistingPredicate;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.ConfigFactory;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+
+public class TestKuduOutput {
+
+  private static final StructType KEY_SCHEMA = DataTypes.createStructType(Lists.<StructField>newArrayList(
+      DataTypes.createStructField("id", DataTypes.IntegerType, true)));
+  private static final StructType RECORD_SCHEMA = DataTypes.createStructType(Lists.<StructField>newArrayList(
+      DataTypes.createStructField("id", DataTypes.IntegerType, true),
+      DataTypes.createStructField("version", DataTypes.IntegerType, true)));
+
+  @Test
+  public void testApplyOperationsClosesSession(@Mocked final KuduSession session, @Mocked final Operation operation)
+      throws Exception
+  {
+    KuduOutput.applyOperations(session, Lists.newArrayList(operation, operation));
+
+    new Verifications() {{
+      session.apply(operation); times = 2;
+      session.flush(); times = 1;
+      session.close(); times = 1;
+    }};
+  }
+
+  @Test
+  public void testApplyOperationsReportsRowErrors(@Mocked final KuduSession session,
+                                                  @Mocked final Operation operation,
+                                                  @Mocked final RowErrorsAndOverflowStatus pendingErrors,
+                                                  @Mocked final RowError rowError) throws Exception
+  {
+    new Expectations() {{
+      session.countPendingErrors(); result = 2;
+      session.getPendingErrors(); result = pendingErrors;
+      pendingErrors.getRowErrors(); result = new RowError[] { rowError, rowError };
+      pendingErrors.isOverflowed(); result = true;
+      rowError.getTsUUID(); result = "tserver-1";
+    }};
+
+    try {
+      KuduOutput.applyOperations(session, Lists.newArrayList(operation));
+      fail("Expected the row errors to fail the operations");
+    }
+    catch (RuntimeException e) {
+      assertTrue(e.getMessage().startsWith("Kudu output had 2 or more errors"));
+      assertTrue(e.getMessage().endsWith("at tablet server 'tserver-1'"));
+    }
+
+    new Verifications() {{
+      session.close(); times = 1;
+    }};
+  }
+
+  @Test
+  public void testApplyOperationsCloseFailureDoesNotHideError(@Mocked final KuduSession session,
+                                                              @Mocked final Operation operation) throws Exception
+  {
+    new Expectations() {{
+      session.flush(); result = new IllegalStateException("flush failed");
+      session.close(); result = new IllegalStateException("close failed");
+    }};
+
+    try {
+      KuduOutput.applyOperations(session, Lists.newArrayList(operation));
+      fail("Expected the flush to fail the operations");
+    }
+    catch (IllegalStateException e) {
+      assertEquals("flush failed", e.getMessage());
+      assertEquals(1, e.getSuppressed().length);
+      assertEquals("close failed", e.getSuppressed()[0].getMessage());
+    }
+  }
+
+  @Test
+  public void testExistingCacheHit() throws Exception {
+    ScanRecordingOutput output = new ScanRecordingOutput(record(1, 1), record(1, 2), record(2, 1));
+    ExistingRecordCache cache = new ExistingRecordCache(100, 60);
+
+    List<Row> first = existingFor(output, Lists.newArrayList(key(1), key(2)), noPredicates(), cache);
+    List<Row> second = existingFor(output, Lists.newArrayList(key(1), key(2)), noPredicates(), cache);
+
+    assertEquals(Sets.newHashSet(record(1, 1), record(1, 2), record(2, 1)), Sets.newHashSet(first));
+    assertEquals(Sets.newHashSet(first), Sets.newHashSet(second));
+    assertEquals(1, output.scans.size());
+    assertEquals(2, cache.get(key(1)).size());
+  }
+
+  @Test
+  public void testExistingCacheOnlyScansUncachedKeys() throws Exception {
+    ScanRecordingOutput output = new ScanRecordingOutput(record(1, 1), record(2, 1));
+    ExistingRecordCache cache = new ExistingRecordCache(100, 60);
+
+    existingFor(output, Lists.newArrayList(key(1)), noPredicates(), cache);
+    List<Row> existing = existingFor(output, Lists.newArrayList(key(1), key(2)), noPredicates(), cache);
+
+    assertEquals(Sets.newHashSet(record(1, 1), record(2, 1)), Sets.newHashSet(existing));
+    assertEquals(2, output.scans.size());
+    assertEquals(Lists.newArrayList(key(2)), output.scans.get(1));
+  }
+
+  @Test
+  public void testExistingCacheEmptyKey() throws Exception {
+    ScanRecordingOutput output = new ScanRecordingOutput(record(1, 1));
+    ExistingRecordCache cache = new ExistingRecordCache(100, 60);
+
+    // A key without any existing records is cached too, so that it is not scanned again
+    assertTrue(existingFor(output, Lists.newArrayList(key(3)), noPredicates(), cache).isEmpty());
+    assertTrue(existingFor(output, Lists.newArrayList(key(3)), noPredicates(), cache).isEmpty());
+
+    assertEquals(1, output.scans.size());
+    assertTrue(cache.get(key(3)).isEmpty());
+  }
+
+  @Test
+  public void testExistingCacheBypassedByPredicates() throws Exception {
+    ScanRecordingOutput output = new ScanRecordingOutput(record(1, 1), record(1, 2));
+    ExistingRecordCache cache = new ExistingRecordCache(100, 60);
+    List<ExistingPredicate> predicates = Lists.newArrayList(
+        new ExistingPredicate("version", ExistingPredicate.Operator.GREATER, 1));
+
+    List<Row> existing = existingFor(output, Lists.newArrayList(key(1)), predicates, cache);
+
+    // The scan only read some of the existing records of the key, so they are not cached
+    assertEquals(Lists.newArrayList(record(1, 2)), existing);
+    assertEquals(null, cache.get(key(1)));
+
+    // A cached key has the predicates applied to its cached records instead of being scanned
+    existingFor(output, Lists.newArrayList(key(1)), noPredicates(), cache);
+    existing = existingFor(output, Lists.newArrayList(key(1)), predicates, cache);
+
+    assertEquals(Lists.newArrayList(record(1, 2)), existing);
+    assertEquals(2, output.scans.size());
+  }
+
+  @Test
+  public void testExistingCacheRecordNotMatchingFilter() throws Exception {
+    // The filter is a long but the records have int keys, so no record equals the filter
+    StructType longKeySchema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+        DataTypes.createStructField("id", DataTypes.LongType, true)));
+    ScanRecordingOutput output = new ScanRecordingOutput(record(1, 1)) {
+      @Override
+      Iterable<Row> scanForFilters(List<Row> filters, KuduTable table, List<ExistingPredicate> predicates) {
+        scans.add(filters);
+        return Lists.newArrayList(records);
+      }
+    };
+    ExistingRecordCache cache = new ExistingRecordCache(100, 60);
+
+    List<Row> existing = existingFor(output,
+        Lists.<Row>newArrayList(new RowWithSchema(longKeySchema, 1L)), noPredicates(), cache);
+
+    assertEquals(Lists.newArrayList(record(1, 1)), existing);
+  }
+
+  @Test
+  public void testTabletPartitionerAssignsKeysToTablets() {
+    // Range partitioned tablets of [, 100), [100, 200), and [200, )
+    TabletPartitioner partitioner = new RangePartitioner(new byte[0], encode(100), encode(200));
+
+    assertEquals(3, partitioner.numPartitions());
+    assertEquals(0, partitioner.getPartition(key(Integer.MIN_VALUE)));
+    assertEquals(0, partitioner.getPartition(key(-5)));
+    assertEquals(0, partitioner.getPartition(key(99)));
+    assertEquals(1, partitioner.getPartition(key(100)));
+    assertEquals(1, partitioner.getPartition(key(199)));
+    assertEquals(2, partitioner.getPartition(key(200)));
+    assertEquals(2, partitioner.getPartition(key(Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void testTabletPartitionerSingleTablet() {
+    TabletPartitioner partitioner = new RangePartitioner(new byte[0]);
+
+    assertEquals(0, partitioner.getPartition(key(-1)));
+    assertEquals(0, partitioner.getPartition(key(1)));
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testTabletPartitionerRejectsNullKey() {
+    new RangePartitioner(new byte[0], encode(100)).getPartition(key(null));
+  }
+
+  @Test
+  public void testExistingCacheFilledOnceScanIsIterated() throws Exception {
+    ScanRecordingOutput output = new ScanRecordingOutput(record(1, 1), record(2, 1));
+    ExistingRecordCache cache = new ExistingRecordCache(100, 60);
+
+    Iterator<Row> existing = output.getExistingForFiltersWithCache(
+        Lists.newArrayList(key(1), key(2), key(3)), noPredicates(), cache, null).iterator();
+
+    // The scanned records are returned as they are scanned, and cached when the scan is exhausted
+    assertTrue(existing.hasNext());
+    existing.next();
+    assertEquals(null, cache.get(key(1)));
+
+    assertEquals(record(2, 1), existing.next());
+    assertFalse(existing.hasNext());
+    assertEquals(Lists.newArrayList(record(1, 1)), cache.get(key(1)));
+    assertEquals(Lists.newArrayList(record(2, 1)), cache.get(key(2)));
+    assertTrue(cache.get(key(3)).isEmpty());
+  }
+
+  private static List<Row> existingFor(KuduOutput output, List<Row> filters, List<ExistingPredicate> predicates,
+                                       ExistingRecordCache cache)
+  {
+    return Lists.newArrayList(output.getExistingForFiltersWithCache(filters, predicates, cache, null));
+  }
+
+  private static Row record(int id, int version) {
+    return new RowWithSchema(RECORD_SCHEMA, id, version);
+  }
+
+  private static List<ExistingPredicate> noPredicates() {
+    return Collections.emptyList();
+  }
+
+  private static Row key(Integer id) {
+    return new RowWithSchema(KEY_SCHEMA, id);
+  }
+
+  // The Kudu encoding of an INT32 range partition column, which is big-endian with the sign bit
+  // flipped so that the keys sort as unsigned bytes
+  private static byte[] encode(int id) {
+    return ByteBuffer.allocate(4).putInt(id ^ Integer.MIN_VALUE).array();
+  }
+
+  // Scans a fixed set of records instead of a Kudu table, recording the filters of each scan
+  private static class ScanRecordingOutput extends KuduOutput {
+    protected List<Row> records;
+    protected List<List<Row>> scans = Lists.newArrayList();
+
+    public ScanRecordingOutput(Row... records) {
+      this.records = Lists.newArrayList(records);
+    }
+
+    @Override
+    Iterable<Row> scanForFilters(List<Row> filters, KuduTable table, List<ExistingPredicate> predicates) {
+      scans.add(Lists.newArrayList(filters));
+
+      List<Row> scanned = Lists.newArrayList();
+      for (Row record : records) {
+        boolean matches = filters.contains(key(record.getInt(0)));
+        for (ExistingPredicate predicate : predicates) {
+          matches &= predicate.matches(record);
+        }
+
+        if (matches) {
+          scanned.add(record);
+        }
+      }
+
+      return scanned;
+    }
+  }
+
+  // Encodes the keys without connecting to Kudu for the table's partition schema
+  @SuppressWarnings("serial")
+  private static class RangePartitioner extends TabletPartitioner {
+    public RangePartitioner(byte[]... tabletStartKeys) {
+      super(ConfigFactory.empty(), tabletStartKeys);
+    }
+
+    @Override
+    byte[] encodePartitionKey(Row keyRow) {
+      return encode(keyRow.getInt(0));
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.PartialRow;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+import mockit.Mocked;
+import mockit.Verifications;
+
+public class TestKuduRowConverter {
+
+  @Test
+  public void testSchema() {
+    Schema kuduSchema = new Schema(Lists.newArrayList(
+        new ColumnSchema.ColumnSchemaBuilder("key", Type.STRING).key(true).build(),
+        new ColumnSchema.ColumnSchemaBuilder("tiny", Type.INT8).nullable(true).build(),
+        new ColumnSchema.ColumnSchemaBuilder("small", Type.INT16).nullable(true).build(),
+        new ColumnSchema.ColumnSchemaBuilder("payload", Type.BINARY).nullable(true).build(),
+        new ColumnSchema.ColumnSchemaBuilder("ts", Type.UNIXTIME_MICROS).nullable(true).build()));
+
+    StructType schema = new KuduRowConverter(kuduSchema).getSchema();
+
+    assertEquals(5, schema.length());
+    assertEquals(DataTypes.StringType, schema.fields()[0].dataType());
+    assertEquals(DataTypes.ByteType, schema.fields()[1].dataType());
+    assertEquals(DataTypes.ShortType, schema.fields()[2].dataType());
+    assertEquals(DataTypes.BinaryType, schema.fields()[3].dataType());
+    assertEquals(DataTypes.TimestampType, schema.fields()[4].dataType());
+  }
+
+  @Test
+  public void testAddBinary(@Mocked final PartialRow kuduRow) {
+    Schema kuduSchema = new Schema(Lists.newArrayList(
+        new ColumnSchema.ColumnSchemaBuilder("key", Type.STRING).key(true).build(),
+        new ColumnSchema.ColumnSchemaBuilder("payload", Type.BINARY).nullable(true).build()));
+    KuduRowConverter converter = new KuduRowConverter(kuduSchema);
+    StructType rowSchema = converter.getSchema();
+    final byte[] bytes = new byte[] { 1, 2, 3 };
+    final ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 4, 5, 6 });
+
+    converter.addToPartialRow(new RowWithSchema(rowSchema, "a", bytes), kuduRow);
+    converter.addToPartialRow(new RowWithSchema(rowSchema, "b", buffer), kuduRow);
+
+    new Verifications() {{
+      kuduRow.addBinary(1, bytes); times = 1;
+      kuduRow.addBinary(1, buffer); times = 1;
+    }};
+  }
+
+  @Test
+  public void testTimestampMicros() {
+    Timestamp timestamp = Timestamp.valueOf("2017-03-01 12:34:56.123456");
+    long micros = KuduRowConverter.timestampToMicros(timestamp);
+
+    assertEquals(timestamp.getTime() * 1000 + 456, micros);
+    assertEquals(timestamp, KuduRowConverter.microsToTimestamp(micros));
+  }
+
+  @Test
+  public void testTimestampMicrosBeforeEpoch() {
+    Timestamp timestamp = Timestamp.valueOf("1969-12-31 23:59:59.999999");
+
+    assertEquals(timestamp, KuduRowConverter.microsToTimestamp(KuduRowConverter.timestampToMicros(timestamp)));
+  }
+
+}
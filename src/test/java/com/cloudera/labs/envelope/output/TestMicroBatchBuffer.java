@@ -0,0 +1,143 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestMicroBatchBuffer {
+
+  private static JavaSparkContext jsc;
+  private static SQLContext sqlc;
+  private static StructType schema;
+
+  @BeforeClass
+  public static void beforeClass() {
+    SparkConf conf = new SparkConf();
+    conf.setMaster("local[1]");
+    conf.setAppName("TestMicroBatchBuffer");
+    jsc = new JavaSparkContext(conf);
+    sqlc = new SQLContext(jsc);
+
+    schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false)));
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    jsc.close();
+  }
+
+  @Test
+  public void testFullByRecords() {
+    MicroBatchBuffer buffer = new MicroBatchBuffer(3, Long.MAX_VALUE);
+
+    assertTrue(buffer.isEmpty());
+    assertFalse(buffer.isFull());
+    assertNull(buffer.getBuffered());
+
+    buffer.add(batch(2, "a", "b"));
+    assertFalse(buffer.isEmpty());
+    assertFalse(buffer.isFull());
+
+    buffer.add(batch(1, "c", "d"));
+    assertTrue(buffer.isFull());
+
+    DataFrame buffered = buffer.getBuffered();
+    assertEquals(buffered.count(), 4);
+    assertEquals(buffered.rdd().partitions().length, 2);
+
+    buffer.clear();
+    assertTrue(buffer.isEmpty());
+    assertFalse(buffer.isFull());
+  }
+
+  @Test
+  public void testFullByAge() throws Exception {
+    MicroBatchBuffer buffer = new MicroBatchBuffer(Long.MAX_VALUE, 50);
+
+    buffer.add(batch(1, "a"));
+    assertFalse(buffer.isFull());
+
+    Thread.sleep(100);
+    assertTrue(buffer.isFull());
+  }
+
+  @Test
+  public void testEmptyBatchNotBuffered() {
+    MicroBatchBuffer buffer = new MicroBatchBuffer(1, Long.MAX_VALUE);
+
+    buffer.add(batch(1));
+
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void testBufferedIndependentOfSource() {
+    MicroBatchBuffer buffer = new MicroBatchBuffer(Long.MAX_VALUE, Long.MAX_VALUE);
+    DataFrame batch = batch(1, "a");
+    batch.persist();
+
+    buffer.add(batch);
+    batch.unpersist(true);
+
+    assertEquals(buffer.getBuffered().count(), 1);
+  }
+
+  @Test
+  public void testAcceptsOnlySameSchema() {
+    MicroBatchBuffer buffer = new MicroBatchBuffer(Long.MAX_VALUE, Long.MAX_VALUE);
+    StructType otherSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("other", DataTypes.IntegerType, false)));
+    Row otherRow = new RowWithSchema(otherSchema, 1);
+    DataFrame other = sqlc.createDataFrame(Lists.newArrayList(otherRow), otherSchema);
+
+    assertTrue(buffer.accepts(other));
+
+    buffer.add(batch(1, "a"));
+
+    assertTrue(buffer.accepts(batch(1, "b")));
+    assertFalse(buffer.accepts(other));
+  }
+
+  private DataFrame batch(int partitions, String... keys) {
+    List<Row> rows = Lists.newArrayList();
+    for (String key : keys) {
+      rows.add(new RowWithSchema(schema, key));
+    }
+
+    return sqlc.createDataFrame(jsc.parallelize(rows, partitions), schema);
+  }
+
+}
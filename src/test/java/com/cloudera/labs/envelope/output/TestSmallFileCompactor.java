@@ -0,0 +1,223 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestSmallFileCompactor {
+
+  private static JavaSparkContext jsc;
+  private static SQLContext sqlc;
+  private static StructType schema;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void beforeClass() {
+    SparkConf conf = new SparkConf();
+    conf.setMaster("local[1]");
+    conf.setAppName("TestSmallFileCompactor");
+    jsc = new JavaSparkContext(conf);
+    sqlc = new SQLContext(jsc);
+
+    schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("day", DataTypes.StringType, false)));
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    jsc.close();
+  }
+
+  @Test
+  public void testCompactsEachPartition() throws Exception {
+    String path = new File(folder.getRoot(), "output").getAbsolutePath();
+
+    for (int i = 0; i < 3; i++) {
+      write(path, new RowWithSchema(schema, "a" + i, "1"), new RowWithSchema(schema, "b" + i, "2"));
+    }
+    assertEquals(dataFiles(path + "/day=1").length, 3);
+
+    new SmallFileCompactor("parquet", 2, 1024 * 1024).compact(sqlc, path);
+
+    assertEquals(dataFiles(path + "/day=1").length, 1);
+    assertEquals(dataFiles(path + "/day=2").length, 1);
+    assertEquals(new File(path, SmallFileCompactor.STAGING_DIRECTORY_NAME).list().length, 0);
+
+    DataFrame compacted = sqlc.read().parquet(path);
+    assertEquals(compacted.count(), 6);
+    assertEquals(compacted.filter("day = 1").count(), 3);
+  }
+
+  @Test
+  public void testLeavesFewFiles() throws Exception {
+    String path = new File(folder.getRoot(), "output").getAbsolutePath();
+
+    write(path, new RowWithSchema(schema, "a", "1"));
+    write(path, new RowWithSchema(schema, "b", "1"));
+
+    new SmallFileCompactor("parquet", 3, 1024 * 1024).compact(sqlc, path);
+
+    assertEquals(dataFiles(path + "/day=1").length, 2);
+  }
+
+  @Test
+  public void testSmallFilesMovedAsideBeforeMerge() throws Exception {
+    String path = new File(folder.getRoot(), "output").getAbsolutePath();
+
+    for (int i = 0; i < 3; i++) {
+      write(path, new RowWithSchema(schema, "a" + i, "1"));
+    }
+    final Set<String> original = fileNames(path + "/day=1");
+
+    SmallFileCompactor compactor = new SmallFileCompactor("parquet", 2, 1024 * 1024) {
+      @Override
+      void move(FileSystem fs, Path source, Path target) throws IOException {
+        // A reader may miss the compacted records while they are merged in, but never sees them twice
+        if (source.getParent().getName().equals("merged")) {
+          Set<String> visible = fileNames(target.getParent().toUri().getPath());
+          visible.retainAll(original);
+          assertEquals(visible.size(), 0);
+        }
+        super.move(fs, source, target);
+      }
+    };
+    compactor.compact(sqlc, path);
+
+    assertEquals(dataFiles(path + "/day=1").length, 1);
+    assertEquals(sqlc.read().parquet(path).count(), 3);
+  }
+
+  @Test
+  public void testRollsBackFailedCompaction() throws Exception {
+    String path = new File(folder.getRoot(), "output").getAbsolutePath();
+
+    for (int i = 0; i < 3; i++) {
+      write(path, new RowWithSchema(schema, "a" + i, "1"));
+    }
+    Set<String> original = fileNames(path + "/day=1");
+
+    // Fails once the first two small files have been moved aside
+    SmallFileCompactor compactor = new SmallFileCompactor("parquet", 2, 1024 * 1024) {
+      private int movedOut = 0;
+      @Override
+      void move(FileSystem fs, Path source, Path target) throws IOException {
+        if (target.getParent().getName().equals("replaced") && ++movedOut > 2) {
+          throw new IOException("Injected failure");
+        }
+        super.move(fs, source, target);
+      }
+    };
+
+    try {
+      compactor.compact(sqlc, path);
+      fail("Compaction should have failed");
+    }
+    catch (IOException e) {
+      assertEquals(e.getMessage(), "Injected failure");
+    }
+
+    assertEquals(fileNames(path + "/day=1"), original);
+    assertEquals(new File(path, SmallFileCompactor.STAGING_DIRECTORY_NAME).list().length, 0);
+    assertEquals(sqlc.read().parquet(path).count(), 3);
+  }
+
+  @Test
+  public void testRollsBackFailedMerge() throws Exception {
+    String path = new File(folder.getRoot(), "output").getAbsolutePath();
+
+    for (int i = 0; i < 3; i++) {
+      write(path, new RowWithSchema(schema, "a" + i, "1"));
+    }
+    Set<String> original = fileNames(path + "/day=1");
+
+    SmallFileCompactor compactor = new SmallFileCompactor("parquet", 2, 1024 * 1024) {
+      @Override
+      void move(FileSystem fs, Path source, Path target) throws IOException {
+        super.move(fs, source, target);
+
+        // The first merged file is renamed in, but the rename still reports a failure
+        if (source.getParent().getName().equals("merged")) {
+          throw new IOException("Injected failure");
+        }
+      }
+    };
+
+    try {
+      compactor.compact(sqlc, path);
+      fail("Compaction should have failed");
+    }
+    catch (IOException e) {
+      assertEquals(e.getMessage(), "Injected failure");
+    }
+
+    assertEquals(fileNames(path + "/day=1"), original);
+    assertEquals(sqlc.read().parquet(path).count(), 3);
+  }
+
+  private void write(String path, Row... rows) {
+    DataFrame batch = sqlc.createDataFrame(jsc.parallelize(Lists.newArrayList(rows), 1), schema);
+    batch.write().mode(SaveMode.Append).partitionBy("day").parquet(path);
+  }
+
+  private Set<String> fileNames(String directory) {
+    Set<String> names = Sets.newHashSet();
+    for (File file : Arrays.asList(dataFiles(directory))) {
+      names.add(file.getName());
+    }
+    return names;
+  }
+
+  private File[] dataFiles(String directory) {
+    return new File(directory).listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && !file.getName().startsWith("_") && !file.getName().startsWith(".");
+      }
+    });
+  }
+
+}
@@ -27,6 +27,7 @@ import static com.cloudera.labs.envelope.plan.BitemporalHistoryPlanner.SYSTEM_TI
 import static com.cloudera.labs.envelope.plan.BitemporalHistoryPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME;
 import static com.cloudera.labs.envelope.plan.BitemporalHistoryPlanner.VALUE_FIELD_NAMES_CONFIG_NAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
@@ -829,4 +830,88 @@ public class TestBitemporalHistoryPlanner {
     assertEquals(RowUtils.get(planned.get(2).getRow(), "systemend"), FAR_FUTURE_MILLIS);
     assertEquals(RowUtils.get(planned.get(2).getRow(), "currentflag"), CURRENT_FLAG_YES);
   }
+
+  @Test
+  public void testExistingPredicates() {
+    p = new BitemporalHistoryPlanner();
+    p.configure(config);
+
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 300L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+
+    List<ExistingPredicate> predicates = ((PredicatedPlanner)p).getExistingPredicates(arriving);
+
+    // Closed in system time
+    Row closed = new RowWithSchema(existingSchema, "a", "hello", 150L, 150L, FAR_FUTURE_MILLIS, 1L, 2L, CURRENT_FLAG_NO);
+    // Ended in event time before the earliest arriving record
+    Row ended = new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 149L, 1L, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO);
+    // Covers the earliest arriving record
+    Row covering = new RowWithSchema(existingSchema, "a", "hello", 150L, 150L, FAR_FUTURE_MILLIS, 1L, FAR_FUTURE_MILLIS, CURRENT_FLAG_YES);
+
+    assertEquals(predicates.size(), 2);
+    assertFalse(matchesAll(closed, predicates));
+    assertFalse(matchesAll(ended, predicates));
+    assertTrue(matchesAll(covering, predicates));
+  }
+
+  @Test
+  public void testMultipleArrivingBeforeBetweenAndAfterMultipleExisting() {
+    p = new BitemporalHistoryPlanner();
+    p.configure(config);
+
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 199L, 1L, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello!", 200L, 200L, 299L, 1L, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello?", 300L, 300L, FAR_FUTURE_MILLIS, 1L, FAR_FUTURE_MILLIS, CURRENT_FLAG_YES));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "before", 50L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "between", 150L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "replaced", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "after", 400L));
+    Row key = new RowWithSchema(keySchema, "a");
+
+    List<PlannedRow> planned = p.planMutationsForKey(key, arriving, existing);
+
+    assertEquals(planned.size(), 9);
+
+    long systemStart = (Long)RowUtils.get(planned.get(0).getRow(), "systemstart");
+    long systemEnd = RowUtils.precedingTimestamp(systemStart);
+    assertTrue(systemStart >= preplanSystemTime);
+    assertTrue(systemStart < preplanSystemTime + 5000);
+
+    // Before all of the existing versions, so only the new version is inserted
+    assertVersion(planned.get(0), MutationType.INSERT, "before", 50L, 99L, systemStart, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO);
+    // Between two existing versions, so the previous version is superseded up until the new version
+    assertVersion(planned.get(1), MutationType.UPDATE, "hello", 100L, 199L, 1L, systemEnd, CURRENT_FLAG_NO);
+    assertVersion(planned.get(2), MutationType.INSERT, "hello", 100L, 149L, systemStart, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO);
+    assertVersion(planned.get(3), MutationType.INSERT, "between", 150L, 199L, systemStart, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO);
+    // The same time as an existing version, so that version is replaced for the same event time
+    assertVersion(planned.get(4), MutationType.UPDATE, "hello!", 200L, 299L, 1L, systemEnd, CURRENT_FLAG_NO);
+    assertVersion(planned.get(5), MutationType.INSERT, "replaced", 200L, 299L, systemStart, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO);
+    // After all of the existing versions, so the new version becomes the current version
+    assertVersion(planned.get(6), MutationType.UPDATE, "hello?", 300L, FAR_FUTURE_MILLIS, 1L, systemEnd, CURRENT_FLAG_NO);
+    assertVersion(planned.get(7), MutationType.INSERT, "hello?", 300L, 399L, systemStart, FAR_FUTURE_MILLIS, CURRENT_FLAG_NO);
+    assertVersion(planned.get(8), MutationType.INSERT, "after", 400L, FAR_FUTURE_MILLIS, systemStart, FAR_FUTURE_MILLIS, CURRENT_FLAG_YES);
+  }
+
+  private void assertVersion(PlannedRow plan, MutationType mutationType, String value, long eventStart, long eventEnd,
+                             long systemStart, long systemEnd, String currentFlag)
+  {
+    assertEquals(plan.getMutationType(), mutationType);
+    assertEquals(RowUtils.get(plan.getRow(), "value"), value);
+    assertEquals(RowUtils.get(plan.getRow(), "eventstart"), eventStart);
+    assertEquals(RowUtils.get(plan.getRow(), "eventend"), eventEnd);
+    assertEquals(RowUtils.get(plan.getRow(), "systemstart"), systemStart);
+    assertEquals(RowUtils.get(plan.getRow(), "systemend"), systemEnd);
+    assertEquals(RowUtils.get(plan.getRow(), "currentflag"), currentFlag);
+  }
+
+  private boolean matchesAll(Row existing, List<ExistingPredicate> predicates) {
+    for (ExistingPredicate predicate : predicates) {
+      if (!predicate.matches(existing)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
 }
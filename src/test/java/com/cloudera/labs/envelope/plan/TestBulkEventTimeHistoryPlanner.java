@@ -0,0 +1,258 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.Accumulator;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.hive.HiveContext;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.Tuple2;
+
+public class TestBulkEventTimeHistoryPlanner {
+
+  private static final long FAR_FUTURE = EventTimeHistoryPlanner.FAR_FUTURE_MILLIS;
+
+  private static JavaSparkContext jsc;
+  private static HiveContext hc;
+  private static StructType arrivingSchema;
+  private static StructType existingSchema;
+
+  private List<Row> arriving;
+  private List<Row> existing;
+  private Config config;
+
+  @BeforeClass
+  public static void beforeClass() {
+    SparkConf conf = new SparkConf();
+    conf.setMaster("local[1]");
+    conf.setAppName("TestBulkEventTimeHistoryPlanner");
+    jsc = new JavaSparkContext(conf);
+    hc = new HiveContext(jsc);
+
+    arrivingSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("value", DataTypes.StringType, true),
+        DataTypes.createStructField("timestamp", DataTypes.LongType, false)));
+    existingSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("value", DataTypes.StringType, true),
+        DataTypes.createStructField("timestamp", DataTypes.LongType, false),
+        DataTypes.createStructField("startdate", DataTypes.LongType, false),
+        DataTypes.createStructField("enddate", DataTypes.LongType, false),
+        DataTypes.createStructField("currentflag", DataTypes.StringType, false)));
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    jsc.close();
+  }
+
+  @Before
+  public void before() {
+    arriving = Lists.newArrayList();
+    existing = Lists.newArrayList();
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(BulkEventTimeHistoryPlanner.KEY_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("key"));
+    configMap.put(BulkEventTimeHistoryPlanner.VALUE_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("value"));
+    configMap.put(BulkEventTimeHistoryPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME, "timestamp");
+    configMap.put(BulkEventTimeHistoryPlanner.EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME, "startdate");
+    configMap.put(BulkEventTimeHistoryPlanner.EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME, "enddate");
+    configMap.put(BulkEventTimeHistoryPlanner.CURRENT_FLAG_FIELD_NAME_CONFIG_NAME, "currentflag");
+    config = ConfigFactory.parseMap(configMap);
+  }
+
+  @Test
+  public void testNotExisting() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 100L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    assertEquals(planned.size(), 2);
+    assertEquals(planned.get(0)._1(), MutationType.INSERT);
+    assertEquals(planned.get(1)._1(), MutationType.UPDATE);
+    assertEquals(planned.get(1)._2().count(), 0);
+
+    Row[] inserts = planned.get(0)._2().sort("timestamp").collect();
+    assertEquals(inserts.length, 2);
+    assertVersion(inserts[0], "hello", 100L, 100L, 199L, "N");
+    assertVersion(inserts[1], "world", 200L, 200L, FAR_FUTURE, "Y");
+  }
+
+  @Test
+  public void testArrivingAfterExisting() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, FAR_FUTURE, "Y"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    Row[] inserts = planned.get(0)._2().collect();
+    assertEquals(inserts.length, 1);
+    assertVersion(inserts[0], "world", 200L, 200L, FAR_FUTURE, "Y");
+
+    Row[] updates = planned.get(1)._2().collect();
+    assertEquals(updates.length, 1);
+    assertVersion(updates[0], "hello", 100L, 100L, 199L, "N");
+  }
+
+  @Test
+  public void testArrivingBetweenAndBeforeExisting() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "between", 150L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "before", 50L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 199L, "N"));
+    existing.add(new RowWithSchema(existingSchema, "a", "world", 200L, 200L, FAR_FUTURE, "Y"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    Row[] inserts = planned.get(0)._2().sort("timestamp").collect();
+    assertEquals(inserts.length, 2);
+    assertVersion(inserts[0], "before", 50L, 50L, 99L, "N");
+    assertVersion(inserts[1], "between", 150L, 150L, 199L, "N");
+
+    // The current version is unchanged, so only the version that the arriving record splits is updated
+    Row[] updates = planned.get(1)._2().collect();
+    assertEquals(updates.length, 1);
+    assertVersion(updates[0], "hello", 100L, 100L, 149L, "N");
+  }
+
+  @Test
+  public void testSameTimestampAsExisting() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 100L));
+    arriving.add(new RowWithSchema(arrivingSchema, "b", "changed", 100L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, FAR_FUTURE, "Y"));
+    existing.add(new RowWithSchema(existingSchema, "b", "hello", 100L, 100L, FAR_FUTURE, "Y"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    assertEquals(planned.get(0)._2().count(), 0);
+
+    Row[] updates = planned.get(1)._2().collect();
+    assertEquals(updates.length, 1);
+    assertEquals(updates[0].getString(0), "b");
+    assertVersion(updates[0], "changed", 100L, 100L, FAR_FUTURE, "Y");
+  }
+
+  @Test
+  public void testExistingEndedBeforeArrivingNotUpdated() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "again", 300L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 199L, "N"));
+    existing.add(new RowWithSchema(existingSchema, "a", "world", 200L, 200L, FAR_FUTURE, "Y"));
+    existing.add(new RowWithSchema(existingSchema, "b", "other", 100L, 100L, FAR_FUTURE, "Y"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    assertEquals(planned.get(0)._2().count(), 1);
+
+    Row[] updates = planned.get(1)._2().collect();
+    assertEquals(updates.length, 1);
+    assertVersion(updates[0], "world", 200L, 200L, 299L, "N");
+  }
+
+  @Test
+  public void testNoArriving() {
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, FAR_FUTURE, "Y"));
+
+    assertEquals(plan().size(), 0);
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testCarryForwardNotSupported() {
+    config = config.withFallback(ConfigFactory.parseString(
+        EventTimeHistoryPlanner.CARRY_FORWARD_CONFIG_NAME + " = true"));
+
+    new BulkEventTimeHistoryPlanner().configure(config);
+  }
+
+  @Test
+  public void testExistingReadOnceForAllMutations() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, FAR_FUTURE, "Y"));
+    Accumulator<Integer> existingReads = jsc.accumulator(0);
+    DataFrame existingDF = hc.createDataFrame(
+        jsc.parallelize(existing, 1).map(new CountingFunction(existingReads)), existingSchema);
+
+    CachingPlanner planner = new BulkEventTimeHistoryPlanner();
+    planner.configure(config);
+    List<Tuple2<MutationType, DataFrame>> planned = ((ExistingBulkPlanner)planner).planMutationsForSet(
+        hc.createDataFrame(arriving, arrivingSchema), existingDF);
+
+    // The plan is computed before it is returned, and the mutations are then read from the cache
+    assertEquals(existingReads.value().intValue(), 1);
+    assertEquals(planned.get(0)._2().count(), 1);
+    Row[] updates = planned.get(1)._2().collect();
+    assertEquals(updates.length, 1);
+    assertVersion(updates[0], "hello", 100L, 100L, 199L, "N");
+    assertEquals(existingReads.value().intValue(), 1);
+
+    planner.clearCache();
+    assertEquals(planned.get(1)._2().count(), 1);
+    assertEquals(existingReads.value().intValue(), 2);
+  }
+
+  private void assertVersion(Row row, String value, long timestamp, long from, long to, String currentFlag) {
+    assertEquals(row.getString(row.fieldIndex("value")), value);
+    assertEquals(row.getLong(row.fieldIndex("timestamp")), timestamp);
+    assertEquals(row.getLong(row.fieldIndex("startdate")), from);
+    assertEquals(row.getLong(row.fieldIndex("enddate")), to);
+    assertEquals(row.getString(row.fieldIndex("currentflag")), currentFlag);
+  }
+
+  private List<Tuple2<MutationType, DataFrame>> plan() {
+    ExistingBulkPlanner planner = new BulkEventTimeHistoryPlanner();
+    planner.configure(config);
+
+    return planner.planMutationsForSet(hc.createDataFrame(arriving, arrivingSchema),
+        hc.createDataFrame(existing, existingSchema));
+  }
+
+  @SuppressWarnings("serial")
+  private static class CountingFunction implements Function<Row, Row> {
+    private Accumulator<Integer> reads;
+
+    public CountingFunction(Accumulator<Integer> reads) {
+      this.reads = reads;
+    }
+
+    @Override
+    public Row call(Row row) throws Exception {
+      reads.add(1);
+      return row;
+    }
+  }
+
+}
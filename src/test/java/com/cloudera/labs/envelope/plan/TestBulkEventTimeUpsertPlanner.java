@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.Accumulator;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import scala.Tuple2;
+
+public class TestBulkEventTimeUpsertPlanner {
+
+  private static JavaSparkContext jsc;
+  private static SQLContext sqlc;
+  private static StructType arrivingSchema;
+  private static StructType existingSchema;
+
+  private List<Row> arriving;
+  private List<Row> existing;
+  private Config config;
+
+  @BeforeClass
+  public static void beforeClass() {
+    SparkConf conf = new SparkConf();
+    conf.setMaster("local[1]");
+    conf.setAppName("TestBulkEventTimeUpsertPlanner");
+    jsc = new JavaSparkContext(conf);
+    sqlc = new SQLContext(jsc);
+
+    arrivingSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("value", DataTypes.StringType, true),
+        DataTypes.createStructField("timestamp", DataTypes.LongType, false)));
+    existingSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("value", DataTypes.StringType, true),
+        DataTypes.createStructField("timestamp", DataTypes.LongType, false),
+        DataTypes.createStructField("other", DataTypes.StringType, true)));
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    jsc.close();
+  }
+
+  @Before
+  public void before() {
+    arriving = Lists.newArrayList();
+    existing = Lists.newArrayList();
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(BulkEventTimeUpsertPlanner.KEY_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("key"));
+    configMap.put(BulkEventTimeUpsertPlanner.VALUE_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("value"));
+    configMap.put(BulkEventTimeUpsertPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME, "timestamp");
+    config = ConfigFactory.parseMap(configMap);
+  }
+
+  @Test
+  public void testNotExisting() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 100L));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    assertEquals(planned.size(), 2);
+    assertEquals(planned.get(0)._1(), MutationType.INSERT);
+    assertEquals(planned.get(1)._1(), MutationType.UPDATE);
+
+    Row[] inserts = planned.get(0)._2().collect();
+    assertEquals(inserts.length, 1);
+    assertEquals(inserts[0].getString(0), "a");
+    assertEquals(planned.get(1)._2().count(), 0);
+  }
+
+  @Test
+  public void testOnlyLatestArrivingForKey() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 100L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "again", 150L));
+    arriving.add(new RowWithSchema(arrivingSchema, "b", "other", 50L));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    Row[] inserts = planned.get(0)._2().sort("key").collect();
+    assertEquals(inserts.length, 2);
+    assertEquals(inserts[0].getString(1), "world");
+    assertEquals(inserts[0].getLong(2), 200L);
+    assertEquals(inserts[1].getString(1), "other");
+  }
+
+  @Test
+  public void testUpdateWhenDifferentAndNotBefore() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "b", "world", 100L));
+    arriving.add(new RowWithSchema(arrivingSchema, "c", "hello", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "d", null, 100L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, "x"));
+    existing.add(new RowWithSchema(existingSchema, "b", "hello", 100L, "x"));
+    existing.add(new RowWithSchema(existingSchema, "c", "hello", 100L, "x"));
+    existing.add(new RowWithSchema(existingSchema, "d", "hello", 100L, "x"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    assertEquals(planned.get(0)._2().count(), 0);
+
+    DataFrame updates = planned.get(1)._2();
+    assertEquals(updates.columns().length, 3);
+
+    Row[] updated = updates.sort("key").collect();
+    assertEquals(updated.length, 3);
+    assertEquals(updated[0].getString(0), "a");
+    assertEquals(updated[1].getString(0), "b");
+    assertEquals(updated[2].getString(0), "d");
+  }
+
+  @Test
+  public void testNothingWhenBeforeExisting() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 50L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, "x"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    assertEquals(planned.get(0)._2().count(), 0);
+    assertEquals(planned.get(1)._2().count(), 0);
+  }
+
+  @Test
+  public void testLastUpdated() {
+    config = config.withValue(BulkEventTimeUpsertPlanner.LAST_UPDATED_FIELD_NAME_CONFIG_NAME,
+        ConfigValueFactory.fromAnyRef("lastupdated"));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "b", "hello", 100L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, "x"));
+
+    List<Tuple2<MutationType, DataFrame>> planned = plan();
+
+    Row inserted = planned.get(0)._2().collect()[0];
+    Row updated = planned.get(1)._2().collect()[0];
+    assertEquals(inserted.length(), 4);
+    assertEquals(updated.length(), 4);
+    assertEquals(inserted.schema().fieldNames()[3], "lastupdated");
+  }
+
+  @Test
+  public void testExistingReadOnceForAllMutations() {
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "b", "hello", 100L));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, "x"));
+    Accumulator<Integer> existingReads = jsc.accumulator(0);
+    DataFrame existingDF = sqlc.createDataFrame(
+        jsc.parallelize(existing, 1).map(new CountingFunction(existingReads)), existingSchema);
+
+    CachingPlanner planner = new BulkEventTimeUpsertPlanner();
+    planner.configure(config);
+    List<Tuple2<MutationType, DataFrame>> planned = ((ExistingBulkPlanner)planner).planMutationsForSet(
+        sqlc.createDataFrame(arriving, arrivingSchema), existingDF);
+
+    // The plan is computed before it is returned, and the mutations are then read from the cache
+    assertEquals(existingReads.value().intValue(), 1);
+    assertEquals(planned.get(0)._2().count(), 1);
+    assertEquals(planned.get(1)._2().count(), 1);
+    assertEquals(existingReads.value().intValue(), 1);
+
+    planner.clearCache();
+    assertEquals(planned.get(1)._2().count(), 1);
+    assertEquals(existingReads.value().intValue(), 2);
+  }
+
+  private List<Tuple2<MutationType, DataFrame>> plan() {
+    ExistingBulkPlanner planner = new BulkEventTimeUpsertPlanner();
+    planner.configure(config);
+
+    return planner.planMutationsForSet(sqlc.createDataFrame(arriving, arrivingSchema),
+        sqlc.createDataFrame(existing, existingSchema));
+  }
+
+  @SuppressWarnings("serial")
+  private static class CountingFunction implements Function<Row, Row> {
+    private Accumulator<Integer> reads;
+
+    public CountingFunction(Accumulator<Integer> reads) {
+      this.reads = reads;
+    }
+
+    @Override
+    public Row call(Row row) throws Exception {
+      reads.add(1);
+      return row;
+    }
+  }
+
+}
@@ -16,6 +16,8 @@
 package com.cloudera.labs.envelope.plan;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 import java.util.Map;
@@ -512,4 +514,80 @@ public class TestEventTimeHistoryPlanner {
     assertEquals(RowUtils.get(planned.get(1).getRow(), "enddate"), EventTimeHistoryPlanner.FAR_FUTURE_MILLIS);
     assertEquals(RowUtils.get(planned.get(1).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_YES);
   }
+
+  @Test
+  public void testArrivingRowsShareOutputSchema() {
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 100L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "!", 300L));
+    Row key = new RowWithSchema(keySchema, "a");
+
+    List<PlannedRow> planned = p.planMutationsForKey(key, arriving, existing);
+
+    assertEquals(planned.size(), 3);
+    assertSame(planned.get(0).getRow().schema(), planned.get(1).getRow().schema());
+    assertSame(planned.get(0).getRow().schema(), planned.get(2).getRow().schema());
+    assertEquals(Lists.newArrayList(planned.get(0).getRow().schema().fieldNames()),
+        Lists.newArrayList("key", "value", "timestamp", "startdate", "enddate", "currentflag", "lastupdated"));
+  }
+
+  @Test
+  public void testMultipleArrivingOutOfOrderMultipleExisting() {
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 199L, EventTimeHistoryPlanner.CURRENT_FLAG_NO, ""));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 300L, 300L, EventTimeHistoryPlanner.FAR_FUTURE_MILLIS, EventTimeHistoryPlanner.CURRENT_FLAG_YES, ""));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 200L, 200L, 299L, EventTimeHistoryPlanner.CURRENT_FLAG_NO, ""));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 250L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 150L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 50L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 350L));
+    Row key = new RowWithSchema(keySchema, "a");
+
+    List<PlannedRow> planned = p.planMutationsForKey(key, arriving, existing);
+
+    long[] expectedStarts = {50L, 100L, 150L, 200L, 250L, 300L, 350L};
+    long[] expectedEnds = {99L, 149L, 199L, 249L, 299L, 349L, EventTimeHistoryPlanner.FAR_FUTURE_MILLIS};
+
+    assertEquals(planned.size(), 7);
+    for (int i = 0; i < planned.size(); i++) {
+      Row row = planned.get(i).getRow();
+      MutationType expectedType = i % 2 == 0 ? MutationType.INSERT : MutationType.UPDATE;
+      String expectedFlag = i == 6 ? EventTimeHistoryPlanner.CURRENT_FLAG_YES : EventTimeHistoryPlanner.CURRENT_FLAG_NO;
+
+      assertEquals(planned.get(i).getMutationType(), expectedType);
+      assertEquals(RowUtils.get(row, "startdate"), expectedStarts[i]);
+      assertEquals(RowUtils.get(row, "enddate"), expectedEnds[i]);
+      assertEquals(RowUtils.get(row, "currentflag"), expectedFlag);
+    }
+  }
+
+  @Test
+  public void testExistingPredicates() {
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 300L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+
+    List<ExistingPredicate> predicates = ((PredicatedPlanner)p).getExistingPredicates(arriving);
+
+    assertEquals(predicates.size(), 1);
+    assertEquals(predicates.get(0).getFieldName(), "enddate");
+    assertEquals(predicates.get(0).getOperator(), ExistingPredicate.Operator.GREATER_EQUAL);
+    assertEquals(predicates.get(0).getValue(), 200L);
+  }
+
+  @Test
+  public void testNoExistingPredicatesWithoutArriving() {
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    assertTrue(((PredicatedPlanner)p).getExistingPredicates(arriving).isEmpty());
+  }
+
 }
@@ -17,6 +17,7 @@ package com.cloudera.labs.envelope.plan;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 import java.util.List;
 import java.util.Map;
@@ -203,4 +204,17 @@ public class TestEventTimeUpsertPlanner {
     assertEquals(planned.get(0).getRow().length(), 3);
   }
 
+  @Test
+  public void testReduceArrivingKeepsLatest() {
+    p = new EventTimeUpsertPlanner();
+    p.configure(config);
+
+    Row older = new RowWithSchema(recordSchema, "a", "hello", 100L);
+    Row newer = new RowWithSchema(recordSchema, "a", "world", 200L);
+    ReducingPlanner rp = (ReducingPlanner)p;
+
+    assertSame(rp.reduceArriving(older, newer), newer);
+    assertSame(rp.reduceArriving(newer, older), newer);
+  }
+
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.plan.ExistingPredicate.Operator;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestExistingPredicate {
+
+  private static final StructType SCHEMA = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("flag", DataTypes.StringType, true),
+      DataTypes.createStructField("end", DataTypes.LongType, true),
+      DataTypes.createStructField("score", DataTypes.DoubleType, true)));
+
+  @Test
+  public void testComparisons() {
+    Row row = new RowWithSchema(SCHEMA, "Y", 100L, 1.5);
+
+    assertTrue(new ExistingPredicate("flag", Operator.EQUAL, "Y").matches(row));
+    assertFalse(new ExistingPredicate("flag", Operator.EQUAL, "N").matches(row));
+    assertTrue(new ExistingPredicate("end", Operator.GREATER, 99L).matches(row));
+    assertFalse(new ExistingPredicate("end", Operator.GREATER, 100L).matches(row));
+    assertTrue(new ExistingPredicate("end", Operator.GREATER_EQUAL, 100L).matches(row));
+    assertTrue(new ExistingPredicate("end", Operator.LESS, 101L).matches(row));
+    assertFalse(new ExistingPredicate("end", Operator.LESS, 100L).matches(row));
+    assertTrue(new ExistingPredicate("end", Operator.LESS_EQUAL, 100L).matches(row));
+    assertTrue(new ExistingPredicate("score", Operator.GREATER, 1).matches(row));
+  }
+
+  @Test
+  public void testMixedIntegralTypes() {
+    Row row = new RowWithSchema(SCHEMA, "Y", 100L, 1.5);
+
+    assertTrue(new ExistingPredicate("end", Operator.EQUAL, 100).matches(row));
+  }
+
+  @Test
+  public void testNullNeverMatches() {
+    Row row = new RowWithSchema(SCHEMA, null, null, null);
+
+    assertFalse(new ExistingPredicate("flag", Operator.EQUAL, "Y").matches(row));
+    assertFalse(new ExistingPredicate("end", Operator.LESS, 100L).matches(row));
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testNullValue() {
+    new ExistingPredicate("flag", Operator.EQUAL, null);
+  }
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.apache.spark.sql.DataFrame;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+public class TestCacheMetrics {
+
+  @BeforeClass
+  public static void beforeClass() {
+    Map<String, Object> sparkConfig = Maps.newHashMap();
+    sparkConfig.put(Contexts.SPARK_CONF_PROPERTY_PREFIX + ".spark.master", "local[1]");
+    sparkConfig.put(Contexts.SPARK_CONF_PROPERTY_PREFIX + ".spark.driver.allowMultipleContexts", "true");
+    Contexts.initialize(ConfigFactory.parseMap(sparkConfig));
+  }
+
+  @Test
+  public void testStorageOfCachedStep() throws Exception {
+    BatchStep step = new BatchStep("cachedstep", ConfigFactory.empty());
+    step.setData(createData());
+    CacheMetrics metrics = CacheMetrics.get();
+
+    // Caching is lazy, so nothing is stored until the data is computed
+    CacheMetrics.StepStorage storage = metrics.update(step);
+    assertTrue(storage.isCached());
+    assertEquals(0, storage.getMemoryBytes());
+
+    step.getData().count();
+    storage = metrics.update(step);
+    assertTrue(storage.isCached());
+    assertTrue(storage.getMemoryBytes() > 0);
+    assertEquals(0, storage.getDiskBytes());
+    assertEquals(storage.getMemoryBytes(), metrics.getStorage("cachedstep").getMemoryBytes());
+
+    step.clearCache();
+    storage = metrics.update(step);
+    assertFalse(storage.isCached());
+    assertEquals(0, storage.getMemoryBytes());
+  }
+
+  @Test
+  public void testStorageOnlyAttributedToCachingStep() throws Exception {
+    BatchStep cachedStep = new BatchStep("cached", ConfigFactory.empty());
+    BatchStep uncachedStep = new BatchStep("uncached",
+        ConfigFactory.empty().withValue(DataStep.CACHE_PROPERTY, ConfigValueFactory.fromAnyRef("false")));
+    cachedStep.setData(createData());
+    cachedStep.getData().count();
+    uncachedStep.setData(cachedStep.getData().filter("value > 1"));
+    uncachedStep.getData().count();
+
+    CacheMetrics metrics = CacheMetrics.get();
+    CacheMetrics.StepStorage cachedStorage = metrics.update(cachedStep);
+    CacheMetrics.StepStorage uncachedStorage = metrics.update(uncachedStep);
+
+    assertTrue(cachedStorage.isCached());
+    assertTrue(cachedStorage.getMemoryBytes() > 0);
+    assertFalse(uncachedStorage.isCached());
+    assertEquals(0, uncachedStorage.getMemoryBytes());
+
+    cachedStep.clearCache();
+  }
+
+  private DataFrame createData() {
+    return Contexts.getSQLContext().createDataFrame(
+        Lists.newArrayList(new Value(1), new Value(2), new Value(3)), Value.class);
+  }
+
+  @SuppressWarnings("serial")
+  public static class Value implements Serializable {
+    private int value;
+
+    public Value(int value) {
+      this.value = value;
+    }
+
+    public int getValue() {
+      return value;
+    }
+
+    public void setValue(int value) {
+      this.value = value;
+    }
+  }
+
+}
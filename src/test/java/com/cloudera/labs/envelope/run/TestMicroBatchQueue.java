@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestMicroBatchQueue {
+
+  private final List<String> processed = Lists.newArrayList();
+
+  @Test
+  public void testBatchTimeOrder() throws Exception {
+    MicroBatchQueue queue = new MicroBatchQueue(2, 1000);
+
+    queue.submit(1000, record("a@1000"));
+    // Waits for the micro-batch of b at 1000
+    queue.submit(2000, record("b@2000"));
+    queue.submit(2000, record("a@2000"));
+    queue.submit(3000, record("a@3000"));
+    assertEquals(Lists.newArrayList("a@1000"), processed);
+
+    // Runs everything that is then next, in submission order within each batch time
+    queue.submit(1000, record("b@1000"));
+    assertEquals(Lists.newArrayList("a@1000", "b@1000", "b@2000", "a@2000", "a@3000"), processed);
+
+    queue.submit(3000, record("b@3000"));
+    assertEquals(Lists.newArrayList("a@1000", "b@1000", "b@2000", "a@2000", "a@3000", "b@3000"), processed);
+  }
+
+  @Test
+  public void testWaitingMicroBatchDoesNotBlock() throws Exception {
+    final MicroBatchQueue queue = new MicroBatchQueue(1, 1000);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<?> first = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          queue.submit(1000, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              started.countDown();
+              release.await();
+              record("1000").call();
+              return null;
+            }
+          });
+          return null;
+        }
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      // Returns straight away rather than taking up this thread until the first has finished
+      queue.submit(2000, record("2000"));
+      synchronized (processed) {
+        assertTrue(processed.isEmpty());
+      }
+
+      release.countDown();
+      first.get(10, TimeUnit.SECONDS);
+      synchronized (processed) {
+        assertEquals(Lists.newArrayList("1000", "2000"), processed);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testQueuedMicroBatchesRunAfterFailure() throws Exception {
+    MicroBatchQueue queue = new MicroBatchQueue(1, 1000);
+
+    try {
+      queue.submit(1000, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          throw new RuntimeException("Micro-batch failed");
+        }
+      });
+      fail("Micro-batch failure should have been thrown");
+    }
+    catch (RuntimeException e) {
+      assertEquals("Micro-batch failed", e.getMessage());
+    }
+
+    queue.submit(2000, record("2000"));
+    assertEquals(Lists.newArrayList("2000"), processed);
+  }
+
+  private Callable<Void> record(final String name) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        synchronized (processed) {
+          processed.add(name);
+        }
+        return null;
+      }
+    };
+  }
+
+}
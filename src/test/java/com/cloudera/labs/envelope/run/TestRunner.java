@@ -0,0 +1,96 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.VerificationsInOrder;
+
+public class TestRunner {
+
+  @Test
+  public void testStopGracefullyFlushesOutputs(@Mocked final JavaStreamingContext sc,
+                                               @Mocked final BatchStep step) throws Exception
+  {
+    Set<Step> steps = Sets.<Step>newHashSet(step);
+
+    Runner.stopGracefully(sc, steps);
+
+    // The outputs are flushed after the last micro-batches but before the Spark context stops
+    new VerificationsInOrder() {{
+      sc.stop(false, true);
+      step.flushOutput();
+    }};
+  }
+
+  @Test
+  public void testStopGracefullyFlushFailure(@Mocked final JavaStreamingContext sc,
+                                             @Mocked final BatchStep step) throws Exception
+  {
+    new Expectations() {{
+      step.flushOutput(); result = new RuntimeException("Flush failed");
+    }};
+
+    Runner.stopGracefully(sc, Sets.<Step>newHashSet(step));
+  }
+
+  @Test
+  public void testGroupStreamingStepsBySharedSteps() throws Exception {
+    StreamingStep s1 = new StreamingStep("s1", configFor());
+    StreamingStep s2 = new StreamingStep("s2", configFor());
+    StreamingStep s3 = new StreamingStep("s3", configFor());
+    BatchStep a = new BatchStep("a", configFor("s1"));
+    BatchStep b = new BatchStep("b", configFor("s2"));
+    BatchStep c = new BatchStep("c", configFor("a", "b"));
+    BatchStep d = new BatchStep("d", configFor("s3"));
+
+    // s1 and s2 share c, and s3 shares nothing
+    Map<StreamingStep, StepGraph> dependentGraphs = Maps.newHashMap();
+    dependentGraphs.put(s1, new StepGraph(Sets.newHashSet(a, c)));
+    dependentGraphs.put(s2, new StepGraph(Sets.newHashSet(b, c)));
+    dependentGraphs.put(s3, new StepGraph(Sets.newHashSet(d)));
+
+    List<Set<StreamingStep>> groups = Runner.groupStreamingSteps(dependentGraphs);
+
+    assertEquals(2, groups.size());
+    assertTrue(groups.contains(Sets.newHashSet(s1, s2)));
+    assertTrue(groups.contains(Sets.newHashSet(s3)));
+  }
+
+  private static Config configFor(String... dependencyNames) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("dependencies", Lists.newArrayList(dependencyNames));
+
+    return ConfigFactory.parseMap(configMap);
+  }
+
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.Accumulator;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.sql.DataFrame;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+public class TestStepGraph {
+
+  private ListeningExecutorService threadPool;
+  private List<String> completed;
+  private List<String> released;
+  private List<Integer> completedAtRelease;
+
+  @Before
+  public void before() {
+    threadPool = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    completed = Lists.newArrayList();
+    released = Lists.newArrayList();
+    completedAtRelease = Lists.newArrayList();
+  }
+
+  @After
+  public void after() {
+    threadPool.shutdownNow();
+  }
+
+  @Test
+  public void testDependencyOrder() throws Exception {
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a");
+    RecordingStep c = new RecordingStep("c", "a");
+    RecordingStep d = new RecordingStep("d", "b", "c");
+    Set<Step> steps = Sets.<Step>newHashSet(a, b, c, d);
+
+    new StepGraph(steps).run(threadPool);
+
+    assertEquals(4, completed.size());
+    assertEquals("a", completed.get(0));
+    assertEquals("d", completed.get(3));
+    assertEquals(Sets.<Step>newHashSet(b, c), d.dependencies);
+    assertTrue(a.hasFinished() && b.hasFinished() && c.hasFinished() && d.hasFinished());
+  }
+
+  @Test
+  public void testStepDoesNotWaitForIndependentStep() throws Exception {
+    // The slow step can only finish once the dependent of the fast step has run
+    CountDownLatch latch = new CountDownLatch(1);
+    RecordingStep slow = new RecordingStep("slow").awaiting(latch);
+    RecordingStep fast = new RecordingStep("fast");
+    RecordingStep fastDependent = new RecordingStep("fastdependent", "fast").releasing(latch);
+    Set<Step> steps = Sets.<Step>newHashSet(slow, fast, fastDependent);
+
+    new StepGraph(steps).run(threadPool);
+
+    assertEquals("slow", completed.get(2));
+  }
+
+  @Test
+  public void testFinishedStepsNotRerun() throws Exception {
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a");
+    a.setFinished(true);
+    Set<Step> steps = Sets.<Step>newHashSet(a, b);
+
+    new StepGraph(steps).run(threadPool);
+
+    assertEquals(Lists.newArrayList("b"), completed);
+  }
+
+  @Test
+  public void testFailedStepStopsDependents() throws Exception {
+    RecordingStep a = new RecordingStep("a").failing();
+    RecordingStep b = new RecordingStep("b", "a");
+    Set<Step> steps = Sets.<Step>newHashSet(a, b);
+
+    try {
+      new StepGraph(steps).run(threadPool);
+      fail("Expected step failure");
+    }
+    catch (IllegalStateException e) {
+      assertEquals("a", e.getMessage());
+    }
+
+    assertFalse(b.hasFinished());
+  }
+
+  @Test
+  public void testTopologicalOrder() throws Exception {
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a");
+    RecordingStep c = new RecordingStep("c", "b", "external");
+    RecordingStep d = new RecordingStep("d", "a", "c");
+
+    List<Step> ordered = new StepGraph(Sets.<Step>newHashSet(d, c, b, a)).getSteps();
+
+    assertEquals(Lists.<Step>newArrayList(a, b, c, d), ordered);
+  }
+
+  @Test
+  public void testGraphReusedAcrossRuns() throws Exception {
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a");
+    StepGraph graph = new StepGraph(Sets.<Step>newHashSet(a, b));
+
+    for (int run = 0; run < 3; run++) {
+      graph.run(threadPool);
+      a.setFinished(false);
+      b.setFinished(false);
+    }
+
+    assertEquals(Lists.newArrayList("a", "b", "a", "b", "a", "b"), completed);
+  }
+
+  @Test
+  public void testReleaseAfterLastDownstreamStep() throws Exception {
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a");
+    RecordingStep c = new RecordingStep("c", "b");
+    RecordingStep d = new RecordingStep("d", "a", "c");
+    a.setNumDependents(2);
+    b.setNumDependents(1);
+    c.setNumDependents(1);
+    d.setNumDependents(0);
+
+    new StepGraph(Sets.<Step>newHashSet(a, b, c, d)).run(threadPool);
+
+    // Every step is upstream of d, so nothing is released until d has finished
+    assertEquals(Lists.newArrayList("a", "b", "c", "d"), released);
+    assertEquals(Lists.newArrayList(4, 4, 4, 4), completedAtRelease);
+  }
+
+  @Test
+  public void testReleaseAfterIndependentBranch() throws Exception {
+    // a and b are only released once c, which also waits on the slow step, has finished
+    CountDownLatch latch = new CountDownLatch(1);
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a").releasing(latch);
+    RecordingStep slow = new RecordingStep("slow").awaiting(latch);
+    RecordingStep c = new RecordingStep("c", "b", "slow");
+    a.setNumDependents(1);
+    b.setNumDependents(1);
+    slow.setNumDependents(1);
+    c.setNumDependents(0);
+
+    new StepGraph(Sets.<Step>newHashSet(a, b, slow, c)).run(threadPool);
+
+    assertEquals(Sets.newHashSet("a", "b", "slow", "c"), Sets.newHashSet(released));
+    assertEquals(Lists.newArrayList(4, 4, 4, 4), completedAtRelease);
+  }
+
+  @Test
+  public void testCachedDataNotRecomputedByLaterSteps() throws Exception {
+    Map<String, Object> sparkConfig = Maps.newHashMap();
+    sparkConfig.put(Contexts.SPARK_CONF_PROPERTY_PREFIX + ".spark.master", "local[1]");
+    sparkConfig.put(Contexts.SPARK_CONF_PROPERTY_PREFIX + ".spark.driver.allowMultipleContexts", "true");
+    Contexts.initialize(ConfigFactory.parseMap(sparkConfig));
+
+    // a is cached, b is derived from a without being cached, and c reads b more than once
+    ComputationCountingStep a = new ComputationCountingStep("a");
+    BatchStep b = new BatchStep("b", configFor("a").withValue(DataStep.CACHE_PROPERTY, ConfigValueFactory.fromAnyRef("false")));
+    MultipleActionStep c = new MultipleActionStep("c", "b");
+    a.setNumDependents(1);
+    b.setNumDependents(1);
+    c.setNumDependents(0);
+
+    new StepGraph(Sets.<Step>newHashSet(a, b, c)).run(threadPool);
+
+    assertEquals(3, c.count);
+    assertEquals(3, a.computations.value().intValue());
+    assertFalse(a.isCached());
+  }
+
+  @Test
+  public void testNoReleaseWithDependentsOutsideGraph() throws Exception {
+    RecordingStep a = new RecordingStep("a");
+    RecordingStep b = new RecordingStep("b", "a");
+    a.setNumDependents(2);
+    b.setNumDependents(0);
+
+    new StepGraph(Sets.<Step>newHashSet(a, b)).run(threadPool);
+
+    assertEquals(Lists.newArrayList("b"), released);
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testCycle() throws Exception {
+    RecordingStep a = new RecordingStep("a", "b");
+    RecordingStep b = new RecordingStep("b", "a");
+
+    new StepGraph(Sets.<Step>newHashSet(a, b));
+  }
+
+  private class RecordingStep extends BatchStep {
+    private Set<Step> dependencies;
+    private CountDownLatch awaits;
+    private CountDownLatch releases;
+    private boolean fails = false;
+
+    public RecordingStep(String name, String... dependencyNames) throws Exception {
+      super(name, configFor(dependencyNames));
+    }
+
+    public RecordingStep awaiting(CountDownLatch latch) {
+      this.awaits = latch;
+      return this;
+    }
+
+    public RecordingStep releasing(CountDownLatch latch) {
+      this.releases = latch;
+      return this;
+    }
+
+    public RecordingStep failing() {
+      this.fails = true;
+      return this;
+    }
+
+    @Override
+    public void runStep(Set<Step> dependencySteps) throws Exception {
+      if (awaits != null && !awaits.await(10, TimeUnit.SECONDS)) {
+        throw new RuntimeException("Step was not released: " + getName());
+      }
+      if (fails) {
+        throw new IllegalStateException(getName());
+      }
+
+      dependencies = dependencySteps;
+      synchronized (completed) {
+        completed.add(getName());
+      }
+      setFinished(true);
+
+      if (releases != null) {
+        releases.countDown();
+      }
+    }
+
+    @Override
+    public void clearCache() {
+      synchronized (released) {
+        released.add(getName());
+        completedAtRelease.add(completed.size());
+      }
+    }
+  }
+
+  private static class ComputationCountingStep extends BatchStep {
+    private Accumulator<Integer> computations;
+
+    public ComputationCountingStep(String name) throws Exception {
+      super(name, configFor());
+    }
+
+    @Override
+    public void runStep(Set<Step> dependencySteps) throws Exception {
+      JavaSparkContext jsc = Contexts.getJavaSparkContext();
+      computations = jsc.accumulator(0);
+
+      JavaRDD<Row> rows = jsc.parallelize(Arrays.asList(1, 2, 3), 1).map(new CountingFunction(computations));
+      StructType schema = DataTypes.createStructType(Lists.<StructField>newArrayList(
+          DataTypes.createStructField("value", DataTypes.IntegerType, false)));
+
+      setData(Contexts.getSQLContext().createDataFrame(rows, schema));
+      setFinished(true);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class CountingFunction implements Function<Integer, Row> {
+    private Accumulator<Integer> computations;
+
+    public CountingFunction(Accumulator<Integer> computations) {
+      this.computations = computations;
+    }
+
+    @Override
+    public Row call(Integer value) throws Exception {
+      computations.add(1);
+      return RowFactory.create(value);
+    }
+  }
+
+  // Reads its data more than once, as the write of an output can
+  private static class MultipleActionStep extends BatchStep {
+    private long count;
+
+    public MultipleActionStep(String name, String... dependencyNames) throws Exception {
+      super(name, configFor(dependencyNames).withValue(DataStep.CACHE_PROPERTY, ConfigValueFactory.fromAnyRef("false")));
+    }
+
+    @Override
+    public void runStep(Set<Step> dependencySteps) throws Exception {
+      super.runStep(dependencySteps);
+
+      DataFrame data = getData();
+      count = data.count();
+      data.collect();
+    }
+  }
+
+  private static Config configFor(String... dependencyNames) {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("dependencies", Lists.newArrayList(dependencyNames));
+
+    return ConfigFactory.parseMap(configMap);
+  }
+
+}
@@ -82,4 +82,15 @@ public class TestContexts {
     assertTrue(!sparkConf.contains("spark.app.name"));
   }
 
+  @Test
+  public void testStreamingConcurrentSteps() {
+    Properties props = new Properties();
+    props.setProperty("application.streaming.concurrent.steps", "3");
+    Config config = ConfigFactory.parseProperties(props);
+
+    SparkConf sparkConf = Contexts.getSparkConfiguration(config);
+
+    assertEquals(sparkConf.get("spark.streaming.concurrentJobs"), "3");
+  }
+
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.collect.Lists;
+
+public class TestRowWithSchema {
+
+  private StructType schema = RowUtils.structTypeFor(
+      Lists.newArrayList("key", "value"), Lists.newArrayList("string", "int"));
+
+  @Test
+  public void testFieldAccess() {
+    Row row = new RowWithSchema(schema, "a", 1);
+
+    assertEquals(schema, row.schema());
+    assertEquals("a", row.getString(row.fieldIndex("key")));
+    assertEquals(1, row.getInt(row.fieldIndex("value")));
+    assertEquals(RowFactory.create("a", 1), row);
+    assertEquals(RowFactory.create("a", 1).hashCode(), row.hashCode());
+  }
+
+  @Test
+  public void testCopyValues() {
+    RowWithSchema row = new RowWithSchema(schema, "a", 1);
+    Object[] values = row.copyValues();
+    values[0] = "b";
+
+    assertEquals("a", row.getString(0));
+  }
+
+  @Test
+  public void testBuilder() {
+    Row row = new RowWithSchema.Builder(schema).set("key", "a").set(1, 2).build();
+
+    assertEquals(new RowWithSchema(schema, "a", 2), row);
+  }
+
+  @Test
+  public void testBuilderFromRow() {
+    Row original = new RowWithSchema(schema, "a", 1);
+    Row modified = new RowWithSchema.Builder(original).set("value", 2).build();
+
+    assertEquals(1, original.getInt(1));
+    assertEquals(2, modified.getInt(1));
+  }
+
+  @Test
+  public void testBuilderSetAll() {
+    StructType wider = RowSchemas.append(schema, DataTypes.createStructField("extra", DataTypes.LongType, true));
+    Row row = new RowWithSchema.Builder(wider).setAll(new RowWithSchema(schema, "a", 1)).build();
+
+    assertEquals("a", row.get(0));
+    assertEquals(1, row.get(1));
+    assertNull(row.get(2));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void testBuilderOnlyBuildsOnce() {
+    RowWithSchema.Builder builder = new RowWithSchema.Builder(schema);
+    builder.build();
+    builder.set(0, "a");
+  }
+
+  @Test
+  public void testAppendedSchemaShared() {
+    StructField field = DataTypes.createStructField("extra", DataTypes.LongType, true);
+
+    StructType first = RowSchemas.append(schema, field);
+    StructType second = RowSchemas.append(schema, field);
+
+    assertSame(first, second);
+    assertEquals(schema.add(field), first);
+    assertSame(RowSchemas.intern(schema.add(field)), first);
+  }
+
+  @Test
+  public void testProjection() {
+    StructType reversed = RowUtils.structTypeFor(
+        Lists.newArrayList("value", "missing", "key"), Lists.newArrayList("int", "string", "string"));
+
+    assertArrayEquals(new int[] {1, -1, 0}, RowSchemas.projection(schema, reversed));
+  }
+
+}